@@ -38,6 +38,11 @@ android {
         targetCompatibility = JavaVersion.VERSION_11
     }
 
+    testOptions {
+        // android.util.Log returns 0 in host unit tests instead of throwing
+        unitTests.isReturnDefaultValues = true
+    }
+
     flavorDimensions += "pyVersion"
     productFlavors {
         create("py308") { dimension = "pyVersion" }
@@ -0,0 +1,70 @@
+package com.example.pythoncalculation;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.chaquo.python.PyObject;
+import com.chaquo.python.Python;
+import com.chaquo.python.android.AndroidPlatform;
+import com.example.pythoncalculation.bridge.ColumnBatch;
+import com.example.pythoncalculation.bridge.ColumnExchange;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures the cost of moving 1M encoded rows from Python to Java, once as int32 buffers
+ * and once as CSV text that Java has to parse again. Timings are written to logcat.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ColumnExchangeBenchmark {
+
+    private static final String TAG = "ColumnExchangeBenchmark";
+    private static final int ROW_COUNT = 1_000_000;
+    private static final int QI_COUNT = 8;
+
+    private PyObject exchangeModule;
+
+    @Before
+    public void setUp() {
+        Context appContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        if (!Python.isStarted()) {
+            Python.start(new AndroidPlatform(appContext));
+        }
+        exchangeModule = Python.getInstance().getModule("algorithm.column_exchange");
+    }
+
+    @Test
+    public void bufferTransferMatchesStringTransfer() {
+        long start = System.nanoTime();
+        ColumnBatch batch;
+        try (PyObject pyBatch = exchangeModule.callAttr("synthetic_batch", ROW_COUNT, QI_COUNT)) {
+            batch = ColumnExchange.fromPython(pyBatch);
+        }
+        long bufferNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        int[] parsed = new int[QI_COUNT * ROW_COUNT];
+        try (PyObject text = exchangeModule.callAttr("synthetic_batch_text", ROW_COUNT, QI_COUNT)) {
+            String[] lines = text.toString().split("\n");
+            for (int row = 0; row < lines.length; row++) {
+                String[] cells = lines[row].split(",");
+                for (int qi = 0; qi < QI_COUNT; qi++) {
+                    parsed[qi * ROW_COUNT + row] = Integer.parseInt(cells[qi]);
+                }
+            }
+        }
+        long stringNanos = System.nanoTime() - start;
+
+        Log.i(TAG, "Buffer transfer of " + ROW_COUNT + " rows: " + bufferNanos / 1_000_000 + " ms");
+        Log.i(TAG, "String transfer of " + ROW_COUNT + " rows: " + stringNanos / 1_000_000 + " ms");
+
+        assertArrayEquals(parsed, batch.getCodes());
+    }
+}
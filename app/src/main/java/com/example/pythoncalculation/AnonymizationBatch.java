@@ -0,0 +1,104 @@
+package com.example.pythoncalculation;
+
+import java.util.List;
+
+/**
+ * Model class for a batch MQTT JSON message.
+ * A batch is recognized by its "jobs" array; every job has the fields of an AnonymizationCommand.
+ *
+ * Example: {"batchId": "b1", "jobs": [{"kValue": 5, "dataset": "standard"}, {"kValue": 10, "dataset": "standard", "lValue": 2}]}
+ */
+public class AnonymizationBatch {
+
+    /**
+     * Largest number of jobs accepted in one batch.
+     */
+    public static final int MAX_JOBS = 100;
+
+    /**
+     * Pattern of a batch ID. The ID is echoed in the progress topic, so it is kept short and plain.
+     */
+    private static final String BATCH_ID_PATTERN = "[A-Za-z0-9_.-]{1,64}";
+
+    /**
+     * The ID of the batch, echoed in every progress message.
+     */
+    private String batchId;
+
+    /**
+     * The jobs of the batch, executed in this order.
+     */
+    private List<AnonymizationCommand> jobs;
+
+    /**
+     * Default constructor for Gson deserialization.
+     */
+    public AnonymizationBatch() {
+    }
+
+    /**
+     * Constructor with parameters.
+     *
+     * @param batchId The ID of the batch
+     * @param jobs The jobs of the batch
+     */
+    public AnonymizationBatch(String batchId, List<AnonymizationCommand> jobs) {
+        this.batchId = batchId;
+        this.jobs = jobs;
+    }
+
+    /**
+     * Get the batch ID.
+     *
+     * @return The batch ID
+     */
+    public String getBatchId() {
+        return batchId;
+    }
+
+    /**
+     * Get the jobs.
+     *
+     * @return The jobs of the batch
+     */
+    public List<AnonymizationCommand> getJobs() {
+        return jobs;
+    }
+
+    /**
+     * Validates the batch ID and the number of jobs.
+     *
+     * @return true if the batch ID is well-formed and there are 1 to MAX_JOBS jobs
+     */
+    public boolean isValidBatch() {
+        return batchId != null && batchId.matches(BATCH_ID_PATTERN)
+                && jobs != null && !jobs.isEmpty() && jobs.size() <= MAX_JOBS;
+    }
+
+    /**
+     * Finds the first job that is not valid.
+     *
+     * @return The index of the first invalid job, or -1 if all jobs are valid
+     */
+    public int firstInvalidJob() {
+        for (int i = 0; i < jobs.size(); i++) {
+            if (jobs.get(i) == null || !jobs.get(i).isValid()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Convert to string for debugging.
+     *
+     * @return A string representation of this object
+     */
+    @Override
+    public String toString() {
+        return "AnonymizationBatch{" +
+                "batchId='" + batchId + '\'' +
+                ", jobs=" + jobs +
+                '}';
+    }
+}
@@ -6,18 +6,86 @@ package com.example.pythoncalculation;
  */
 public class AnonymizationCommand {
 
+    /**
+     * Smallest accepted K value. The upper bound is the number of records,
+     * which only the engine knows, so it is checked there.
+     */
+    public static final int MIN_K_VALUE = 2;
+
+    /**
+     * Pattern of a dataset ID in the dataset registry (input/datasets.json).
+     */
+    private static final String DATASET_ID_PATTERN = "[A-Za-z0-9_.-]+";
+
+    /**
+     * Optional ID of the command. Commands are delivered at least once (QoS 1),
+     * and a command whose ID was already seen is ignored.
+     */
+    private String commandId;
+
     /**
      * The K value for anonymization.
-     * Must be one of the predefined values: 2, 5, 10, 30, 50, 500.
+     * Any value from MIN_K_VALUE up to the number of records.
      */
     private int kValue;
 
     /**
-     * The dataset to be anonymized.
-     * Can be either "standard" or "wearable".
+     * The ID of the dataset to be anonymized, e.g. "standard" or "wearable".
      */
     private String dataset;
 
+    /**
+     * Optional L value for l-diversity of the dataset's sensitive column.
+     * 0 or 1 disables l-diversity.
+     */
+    private int lValue;
+
+    /**
+     * Optional l-diversity mode: "distinct" (default) or "entropy".
+     */
+    private String diversity;
+
+    /**
+     * Optional cut-point estimation: "exact" (default) sorts every partition,
+     * "sampled" estimates the cut points from a sample and repairs leaves below K.
+     */
+    private String cutEstimation;
+
+    /**
+     * Sample size for "sampled" cut estimation. 0 uses the engine default.
+     */
+    private int sampleSize;
+
+    /**
+     * Optional storage: "memory" (default) loads the whole dataset, "external" spills
+     * encoded runs to app-private files and only loads partitions that fit memoryBudgetMb.
+     */
+    private String storage;
+
+    /**
+     * Memory budget in MB for "external" storage. 0 uses the engine default.
+     */
+    private int memoryBudgetMb;
+
+    /**
+     * Optional split mode: "median" (default) cuts at the median leaf ID, "hierarchy" cuts
+     * categorical quasi-identifiers along the children of their generalization node.
+     */
+    private String splitMode;
+
+    /**
+     * Optional generalization: "local" (default) recodes every Mondrian partition on its own,
+     * "full-domain" maps every value of a quasi-identifier to the same level of its hierarchy,
+     * found by a search of the generalization lattice.
+     */
+    private String generalization;
+
+    /**
+     * Whether the command arrived on the binary topic, so that its result is published
+     * in the binary encoding as well. Not part of the JSON message.
+     */
+    private transient boolean binaryReply;
+
     /**
      * Default constructor for Gson deserialization.
      */
@@ -35,6 +103,24 @@ public class AnonymizationCommand {
         this.dataset = dataset;
     }
 
+    /**
+     * Get the command ID.
+     *
+     * @return The command ID, or null if the sender did not set one
+     */
+    public String getCommandId() {
+        return commandId;
+    }
+
+    /**
+     * Set the command ID.
+     *
+     * @param commandId The command ID to set
+     */
+    public void setCommandId(String commandId) {
+        this.commandId = commandId;
+    }
+
     /**
      * Get the K value.
      *
@@ -72,12 +158,239 @@ public class AnonymizationCommand {
     }
 
     /**
-     * Validates if the dataset value is one of the allowed options.
+     * Get the L value for l-diversity.
+     *
+     * @return The L value, 0 if l-diversity is not requested
+     */
+    public int getLValue() {
+        return lValue;
+    }
+
+    /**
+     * Set the L value for l-diversity.
+     *
+     * @param lValue The L value to set
+     */
+    public void setLValue(int lValue) {
+        this.lValue = lValue;
+    }
+
+    /**
+     * Get the l-diversity mode.
+     *
+     * @return "distinct" or "entropy"
+     */
+    public String getDiversity() {
+        return diversity != null ? diversity : "distinct";
+    }
+
+    /**
+     * Set the l-diversity mode.
+     *
+     * @param diversity "distinct" or "entropy"
+     */
+    public void setDiversity(String diversity) {
+        this.diversity = diversity;
+    }
+
+    /**
+     * Get the cut-point estimation.
+     *
+     * @return "exact" or "sampled"
+     */
+    public String getCutEstimation() {
+        return cutEstimation != null ? cutEstimation : "exact";
+    }
+
+    /**
+     * Set the cut-point estimation.
+     *
+     * @param cutEstimation "exact" or "sampled"
+     */
+    public void setCutEstimation(String cutEstimation) {
+        this.cutEstimation = cutEstimation;
+    }
+
+    /**
+     * Get the sample size for sampled cut estimation.
+     *
+     * @return The sample size, 0 for the engine default
+     */
+    public int getSampleSize() {
+        return sampleSize;
+    }
+
+    /**
+     * Set the sample size for sampled cut estimation.
+     *
+     * @param sampleSize The sample size
+     */
+    public void setSampleSize(int sampleSize) {
+        this.sampleSize = sampleSize;
+    }
+
+    /**
+     * Get the storage mode.
+     *
+     * @return "memory" or "external"
+     */
+    public String getStorage() {
+        return storage != null ? storage : "memory";
+    }
+
+    /**
+     * Set the storage mode.
+     *
+     * @param storage "memory" or "external"
+     */
+    public void setStorage(String storage) {
+        this.storage = storage;
+    }
+
+    /**
+     * Get the memory budget for external storage.
+     *
+     * @return The budget in MB, 0 for the engine default
+     */
+    public int getMemoryBudgetMb() {
+        return memoryBudgetMb;
+    }
+
+    /**
+     * Set the memory budget for external storage.
+     *
+     * @param memoryBudgetMb The budget in MB
+     */
+    public void setMemoryBudgetMb(int memoryBudgetMb) {
+        this.memoryBudgetMb = memoryBudgetMb;
+    }
+
+    /**
+     * Get the split mode.
+     *
+     * @return "median" or "hierarchy"
+     */
+    public String getSplitMode() {
+        return splitMode != null ? splitMode : "median";
+    }
+
+    /**
+     * Set the split mode.
+     *
+     * @param splitMode "median" or "hierarchy"
+     */
+    public void setSplitMode(String splitMode) {
+        this.splitMode = splitMode;
+    }
+
+    /**
+     * Get the generalization.
+     *
+     * @return "local" or "full-domain"
+     */
+    public String getGeneralization() {
+        return generalization != null ? generalization : "local";
+    }
+
+    /**
+     * Set the generalization.
+     *
+     * @param generalization "local" or "full-domain"
+     */
+    public void setGeneralization(String generalization) {
+        this.generalization = generalization;
+    }
+
+    /**
+     * Checks whether the result should be published in the binary encoding.
+     *
+     * @return true if the command arrived on the binary topic
+     */
+    public boolean isBinaryReply() {
+        return binaryReply;
+    }
+
+    /**
+     * Set whether the result should be published in the binary encoding.
+     *
+     * @param binaryReply true if the command arrived on the binary topic
+     */
+    public void setBinaryReply(boolean binaryReply) {
+        this.binaryReply = binaryReply;
+    }
+
+    /**
+     * Validates the optional split mode.
+     *
+     * @return true if the split mode is "median" or "hierarchy"
+     */
+    public boolean isValidSplitMode() {
+        return "median".equals(getSplitMode()) || "hierarchy".equals(getSplitMode());
+    }
+
+    /**
+     * Validates the optional generalization.
+     *
+     * @return true if the generalization is "local" or "full-domain"
+     */
+    public boolean isValidGeneralization() {
+        return "local".equals(getGeneralization()) || "full-domain".equals(getGeneralization());
+    }
+
+    /**
+     * Validates the optional storage fields.
+     *
+     * @return true if the storage is "memory" or "external" with a non-negative budget
+     */
+    public boolean isValidStorage() {
+        return memoryBudgetMb >= 0 && ("memory".equals(getStorage()) || "external".equals(getStorage()));
+    }
+
+    /**
+     * Validates the optional cut estimation fields.
+     *
+     * @return true if the cut estimation is "exact" or "sampled" with a non-negative sample size
+     */
+    public boolean isValidCutEstimation() {
+        return sampleSize >= 0 && ("exact".equals(getCutEstimation()) || "sampled".equals(getCutEstimation()));
+    }
+
+    /**
+     * Validates the optional l-diversity fields.
+     *
+     * @return true if l-diversity is off or well-formed, false otherwise
+     */
+    public boolean isValidDiversity() {
+        return lValue >= 0 && ("distinct".equals(getDiversity()) || "entropy".equals(getDiversity()));
+    }
+
+    /**
+     * Validates that the K value is at least MIN_K_VALUE.
+     *
+     * @return true if the K value is valid, false otherwise
+     */
+    public boolean isValidKValue() {
+        return kValue >= MIN_K_VALUE;
+    }
+
+    /**
+     * Validates that the dataset is a well-formed dataset ID.
+     * Whether the ID is registered is checked by the engine.
      *
      * @return true if the dataset is valid, false otherwise
      */
     public boolean isValidDataset() {
-        return "standard".equalsIgnoreCase(dataset) || "wearable".equalsIgnoreCase(dataset);
+        return dataset != null && dataset.matches(DATASET_ID_PATTERN);
+    }
+
+    /**
+     * Validates all fields at once, used for the jobs of a batch.
+     *
+     * @return true if every field is valid, false otherwise
+     */
+    public boolean isValid() {
+        return isValidKValue() && isValidDataset() && isValidDiversity() && isValidCutEstimation() && isValidStorage()
+                && isValidSplitMode() && isValidGeneralization();
     }
 
     /**
@@ -88,8 +401,17 @@ public class AnonymizationCommand {
     @Override
     public String toString() {
         return "AnonymizationCommand{" +
-                "kValue=" + kValue +
+                "commandId='" + commandId + '\'' +
+                ", kValue=" + kValue +
                 ", dataset='" + dataset + '\'' +
+                ", lValue=" + lValue +
+                ", diversity='" + getDiversity() + '\'' +
+                ", cutEstimation='" + getCutEstimation() + '\'' +
+                ", sampleSize=" + sampleSize +
+                ", storage='" + getStorage() + '\'' +
+                ", memoryBudgetMb=" + memoryBudgetMb +
+                ", splitMode='" + getSplitMode() + '\'' +
+                ", generalization='" + getGeneralization() + '\'' +
                 '}';
     }
 }
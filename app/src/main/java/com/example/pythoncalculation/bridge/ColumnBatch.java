@@ -0,0 +1,135 @@
+package com.example.pythoncalculation.bridge;
+
+/**
+ * Encoded quasi-identifier columns and their generalized ranges.
+ *
+ * Every array is column-major: the values of quasi-identifier i are stored in
+ * [i * rowCount, (i + 1) * rowCount). Values are hierarchy leaf IDs, so a row is
+ * generalized to the range [low, high] of each quasi-identifier.
+ */
+public class ColumnBatch {
+
+    private final String[] qiNames;
+    private final int rowCount;
+    private final int[] codes;
+    private final int[] low;
+    private final int[] high;
+    private String metricsSummary = "";
+
+    /**
+     * Constructor with parameters.
+     *
+     * @param qiNames The quasi-identifier names, in column order
+     * @param rowCount The number of rows
+     * @param codes The original leaf IDs
+     * @param low The lower ends of the generalized ranges
+     * @param high The upper ends of the generalized ranges
+     */
+    public ColumnBatch(String[] qiNames, int rowCount, int[] codes, int[] low, int[] high) {
+        int expected = qiNames.length * rowCount;
+        if (codes.length != expected || low.length != expected || high.length != expected) {
+            throw new IllegalArgumentException("Column arrays must hold " + expected + " values");
+        }
+        this.qiNames = qiNames;
+        this.rowCount = rowCount;
+        this.codes = codes;
+        this.low = low;
+        this.high = high;
+    }
+
+    /**
+     * Get the quasi-identifier names.
+     *
+     * @return The names, in column order
+     */
+    public String[] getQiNames() {
+        return qiNames;
+    }
+
+    /**
+     * Get the number of rows.
+     *
+     * @return The row count
+     */
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Get the original leaf ID of a cell.
+     *
+     * @param qi The quasi-identifier column
+     * @param row The row
+     * @return The leaf ID
+     */
+    public int getCode(int qi, int row) {
+        return codes[qi * rowCount + row];
+    }
+
+    /**
+     * Get the lower end of the generalized range of a cell.
+     *
+     * @param qi The quasi-identifier column
+     * @param row The row
+     * @return The lowest leaf ID of the range
+     */
+    public int getLow(int qi, int row) {
+        return low[qi * rowCount + row];
+    }
+
+    /**
+     * Get the upper end of the generalized range of a cell.
+     *
+     * @param qi The quasi-identifier column
+     * @param row The row
+     * @return The highest leaf ID of the range
+     */
+    public int getHigh(int qi, int row) {
+        return high[qi * rowCount + row];
+    }
+
+    /**
+     * Get the information-loss metrics that were collected while partitioning.
+     *
+     * @return The metrics summary, empty if none were collected
+     */
+    public String getMetricsSummary() {
+        return metricsSummary;
+    }
+
+    /**
+     * Set the information-loss metrics summary.
+     *
+     * @param metricsSummary The metrics summary
+     */
+    public void setMetricsSummary(String metricsSummary) {
+        this.metricsSummary = metricsSummary;
+    }
+
+    /**
+     * Get the backing array of original leaf IDs, without copying.
+     *
+     * @return The column-major codes
+     */
+    public int[] getCodes() {
+        return codes;
+    }
+
+    /**
+     * Get the backing array of range lower ends, without copying.
+     *
+     * @return The column-major lower ends
+     */
+    public int[] getLow() {
+        return low;
+    }
+
+    /**
+     * Get the backing array of range upper ends, without copying.
+     *
+     * @return The column-major upper ends
+     */
+    public int[] getHigh() {
+        return high;
+    }
+}
@@ -0,0 +1,68 @@
+package com.example.pythoncalculation.bridge;
+
+import com.chaquo.python.PyObject;
+import com.chaquo.python.Python;
+
+/**
+ * Bulk transfer of quasi-identifier columns across the Chaquopy boundary.
+ *
+ * The Python side returns flat int32 numpy arrays. Chaquopy converts objects that support
+ * the buffer protocol into Java primitive arrays with one memory copy, so no value is
+ * formatted into a string and parsed again. Java int[] columns passed to Python are read
+ * through the same protocol.
+ */
+public final class ColumnExchange {
+
+    private static final String MODULE = "algorithm.column_exchange";
+
+    private ColumnExchange() {
+    }
+
+    /**
+     * Anonymizes a registered data set and returns the result as columns.
+     *
+     * @param py The Python instance
+     * @param kValue The K value for anonymization
+     * @param dataset The dataset ID in the registry (e.g. standard or wearable)
+     * @return The anonymized columns in output row order
+     */
+    public static ColumnBatch anonymize(Python py, int kValue, String dataset) {
+        try (PyObject batch = py.getModule(MODULE).callAttr("anonymize_columns", kValue, dataset)) {
+            return fromPython(batch);
+        }
+    }
+
+    /**
+     * Anonymizes columns that were encoded on the Java side.
+     *
+     * @param py The Python instance
+     * @param kValue The K value for anonymization
+     * @param qiNames The quasi-identifier names, in column order
+     * @param columns The column-major leaf IDs
+     * @param rowCount The number of rows
+     * @return The anonymized columns in output row order
+     */
+    public static ColumnBatch anonymize(Python py, int kValue, String[] qiNames, int[] columns, int rowCount) {
+        try (PyObject batch = py.getModule(MODULE)
+                .callAttr("anonymize_java_columns", kValue, qiNames, columns, rowCount)) {
+            return fromPython(batch);
+        }
+    }
+
+    /**
+     * Converts a Python ColumnBatch into its Java counterpart.
+     *
+     * @param batch The Python ColumnBatch object
+     * @return The Java ColumnBatch
+     */
+    public static ColumnBatch fromPython(PyObject batch) {
+        String[] qiNames = batch.get("qi_names").toJava(String[].class);
+        int rowCount = batch.get("n_rows").toInt();
+        int[] codes = batch.get("codes").toJava(int[].class);
+        int[] low = batch.get("low").toJava(int[].class);
+        int[] high = batch.get("high").toJava(int[].class);
+        ColumnBatch result = new ColumnBatch(qiNames, rowCount, codes, low, high);
+        result.setMetricsSummary(batch.get("metrics_summary").toString());
+        return result;
+    }
+}
@@ -0,0 +1,435 @@
+package com.example.pythoncalculation.codec;
+
+import com.example.pythoncalculation.AnonymizationBatch;
+import com.example.pythoncalculation.AnonymizationCommand;
+import com.example.pythoncalculation.pipeline.JobProgress;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compact length-prefixed binary encoding of MQTT payloads, used on topics ending in TOPIC_SUFFIX.
+ * The JSON encoding on the plain topics stays unchanged.
+ *
+ * Every message starts with MAGIC, VERSION and a type byte. Integers are big-endian int32,
+ * strings are a uint16 UTF-8 byte length (NULL_STRING for null) followed by the bytes, and the
+ * enumerated command options are single bytes:
+ *
+ *   command:  commandId, kValue, dataset, lValue, diversity, cutEstimation, sampleSize, storage, memoryBudgetMb,
+ *             splitMode, generalization
+ *   batch:    batchId, uint16 job count, the jobs as command bodies
+ *   progress: batchId, jobIndex, dataset, kValue, stage, status, message, jobCount, completed, failed,
+ *             int64 elapsedMs, float64 jobsPerMinute
+ *   result:   commandId, kValue, dataset, status, result
+ *   columns:  uint16 column count, rowCount, the column names, then the int32 values column-major
+ *
+ * An instance encodes into one reusable buffer that only grows, and decodes commands into a
+ * caller-supplied object, so steady-state encoding and decoding do not allocate apart from
+ * strings that are not in the small string cache (e.g. unique command IDs). An instance is
+ * not thread-safe; use one per thread.
+ */
+public final class BinaryCodec {
+
+    /** Suffix of the topics that carry binary payloads, e.g. anonymization/commands/bin. */
+    public static final String TOPIC_SUFFIX = "/bin";
+
+    public static final byte TYPE_COMMAND = 1;
+    public static final byte TYPE_BATCH = 2;
+    public static final byte TYPE_PROGRESS = 3;
+    public static final byte TYPE_RESULT = 4;
+    public static final byte TYPE_COLUMNS = 5;
+
+    private static final byte MAGIC = (byte) 0xA7;
+    private static final byte VERSION = 3; // 2: command bodies end with splitMode, 3: then generalization
+    private static final int NULL_STRING = 0xFFFF;
+    private static final int MAX_STRING_BYTES = 0xFFFE;
+
+    // Byte codes of the enumerated command options, in the order of the accepted values
+    private static final String[] DIVERSITY_VALUES = {"distinct", "entropy"};
+    private static final String[] CUT_ESTIMATION_VALUES = {"exact", "sampled"};
+    private static final String[] STORAGE_VALUES = {"memory", "external"};
+    private static final String[] SPLIT_MODE_VALUES = {"median", "hierarchy"};
+    private static final String[] GENERALIZATION_VALUES = {"local", "full-domain"};
+
+    private ByteBuffer out = ByteBuffer.allocate(4096);
+    private final StringCache strings = new StringCache();
+
+    // ---------------------------------------------------------------------------------------
+    // Encoding. Every encode method returns the internal buffer, flipped for reading; it is
+    // valid until the next call on this instance.
+    // ---------------------------------------------------------------------------------------
+
+    /**
+     * Encodes a single command.
+     *
+     * @param command The command
+     * @return The encoded message
+     */
+    public ByteBuffer encodeCommand(AnonymizationCommand command) {
+        begin(TYPE_COMMAND);
+        writeCommand(command);
+        return finish();
+    }
+
+    /**
+     * Encodes a batch command.
+     *
+     * @param batch The batch
+     * @return The encoded message
+     */
+    public ByteBuffer encodeBatch(AnonymizationBatch batch) {
+        begin(TYPE_BATCH);
+        writeString(batch.getBatchId());
+        List<AnonymizationCommand> jobs = batch.getJobs();
+        ensure(2);
+        out.putShort((short) jobs.size());
+        for (int i = 0; i < jobs.size(); i++) {
+            writeCommand(jobs.get(i));
+        }
+        return finish();
+    }
+
+    /**
+     * Encodes a batch progress message.
+     *
+     * @param progress The progress of a job and its batch
+     * @return The encoded message
+     */
+    public ByteBuffer encodeProgress(JobProgress progress) {
+        begin(TYPE_PROGRESS);
+        writeString(progress.getBatchId());
+        writeInt(progress.getJobIndex());
+        writeString(progress.getDataset());
+        writeInt(progress.getKValue());
+        writeString(progress.getStage());
+        writeString(progress.getStatus());
+        writeString(progress.getMessage());
+        writeInt(progress.getJobCount());
+        writeInt(progress.getCompleted());
+        writeInt(progress.getFailed());
+        ensure(16);
+        out.putLong(progress.getElapsedMs());
+        out.putDouble(progress.getJobsPerMinute());
+        return finish();
+    }
+
+    /**
+     * Encodes the result of a single command.
+     *
+     * @param command The command that was executed
+     * @param status "done" or "failed"
+     * @param result The metrics and preview of the result, or null
+     * @return The encoded message
+     */
+    public ByteBuffer encodeResult(AnonymizationCommand command, String status, String result) {
+        begin(TYPE_RESULT);
+        writeString(command.getCommandId());
+        writeInt(command.getKValue());
+        writeString(command.getDataset());
+        writeString(status);
+        writeString(result);
+        return finish();
+    }
+
+    /**
+     * Encodes a chunk of integer columns, e.g. encoded quasi-identifiers.
+     *
+     * @param names The column names
+     * @param columns The column-major values, names.length * rowCount of them
+     * @param rowCount The number of rows
+     * @return The encoded message
+     */
+    public ByteBuffer encodeColumns(String[] names, int[] columns, int rowCount) {
+        begin(TYPE_COLUMNS);
+        ensure(6);
+        out.putShort((short) names.length);
+        out.putInt(rowCount);
+        for (String name : names) {
+            writeString(name);
+        }
+        int count = names.length * rowCount;
+        ensure(4 * count);
+        for (int i = 0; i < count; i++) {
+            out.putInt(columns[i]);
+        }
+        return finish();
+    }
+
+    /**
+     * Copies an encoded message into a new array, for APIs that keep the payload (e.g. MqttMessage).
+     *
+     * @param encoded A buffer returned by an encode method
+     * @return The bytes of the message
+     */
+    public static byte[] toArray(ByteBuffer encoded) {
+        byte[] bytes = new byte[encoded.remaining()];
+        encoded.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private void begin(byte type) {
+        out.clear();
+        out.put(MAGIC).put(VERSION).put(type);
+    }
+
+    private ByteBuffer finish() {
+        out.flip();
+        return out;
+    }
+
+    private void ensure(int bytes) {
+        if (out.remaining() < bytes) {
+            int capacity = out.capacity();
+            while (capacity - out.position() < bytes) {
+                capacity *= 2;
+            }
+            ByteBuffer grown = ByteBuffer.allocate(capacity);
+            out.flip();
+            grown.put(out);
+            out = grown;
+        }
+    }
+
+    private void writeInt(int value) {
+        ensure(4);
+        out.putInt(value);
+    }
+
+    private void writeString(String value) {
+        if (value == null) {
+            ensure(2);
+            out.putShort((short) NULL_STRING);
+            return;
+        }
+        int length = value.length();
+        if (length > MAX_STRING_BYTES) {
+            writeUtf8(value);
+            return;
+        }
+        ensure(2 + length);
+        int start = out.position();
+        out.position(start + 2);
+        // ASCII fast path writes the chars directly; other strings go through the UTF-8 encoder
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x80) {
+                out.position(start);
+                writeUtf8(value);
+                return;
+            }
+            out.put((byte) c);
+        }
+        out.putShort(start, (short) length);
+    }
+
+    private void writeUtf8(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_STRING_BYTES) {
+            throw new IllegalArgumentException("String longer than " + MAX_STRING_BYTES + " bytes");
+        }
+        ensure(2 + bytes.length);
+        out.putShort((short) bytes.length);
+        out.put(bytes);
+    }
+
+    private void writeCommand(AnonymizationCommand command) {
+        writeString(command.getCommandId());
+        writeInt(command.getKValue());
+        writeString(command.getDataset());
+        writeInt(command.getLValue());
+        ensure(2);
+        out.put(code(DIVERSITY_VALUES, command.getDiversity()));
+        out.put(code(CUT_ESTIMATION_VALUES, command.getCutEstimation()));
+        writeInt(command.getSampleSize());
+        ensure(1);
+        out.put(code(STORAGE_VALUES, command.getStorage()));
+        writeInt(command.getMemoryBudgetMb());
+        ensure(2);
+        out.put(code(SPLIT_MODE_VALUES, command.getSplitMode()));
+        out.put(code(GENERALIZATION_VALUES, command.getGeneralization()));
+    }
+
+    private static byte code(String[] values, String value) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i].equals(value)) {
+                return (byte) i;
+            }
+        }
+        throw new IllegalArgumentException("Cannot encode '" + value + "'");
+    }
+
+    // ---------------------------------------------------------------------------------------
+    // Decoding. Malformed input raises IllegalArgumentException.
+    // ---------------------------------------------------------------------------------------
+
+    /**
+     * Reads the message type and leaves the buffer positioned at the message body.
+     *
+     * @param in The received payload
+     * @return One of the TYPE_ constants
+     */
+    public int readType(ByteBuffer in) {
+        try {
+            if (in.get() != MAGIC || in.get() != VERSION) {
+                throw new IllegalArgumentException("Not a binary payload of version " + VERSION);
+            }
+            return in.get();
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated binary payload", e);
+        }
+    }
+
+    /**
+     * Decodes the body of a single command into an existing object.
+     *
+     * @param in The payload, positioned after readType()
+     * @param into The command to overwrite
+     * @return into
+     */
+    public AnonymizationCommand decodeCommand(ByteBuffer in, AnonymizationCommand into) {
+        try {
+            readCommand(in, into);
+            return into;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated binary command", e);
+        }
+    }
+
+    /**
+     * Decodes the body of a batch command. The jobs are new objects because they are
+     * handed to the job pipeline and outlive the decoding.
+     *
+     * @param in The payload, positioned after readType()
+     * @return The batch
+     */
+    public AnonymizationBatch decodeBatch(ByteBuffer in) {
+        try {
+            String batchId = readString(in);
+            int jobCount = in.getShort() & 0xFFFF;
+            List<AnonymizationCommand> jobs = new ArrayList<>(jobCount);
+            for (int i = 0; i < jobCount; i++) {
+                jobs.add(readCommand(in, new AnonymizationCommand()));
+            }
+            return new AnonymizationBatch(batchId, jobs);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated binary batch", e);
+        }
+    }
+
+    /**
+     * Decodes the body of a column chunk, reusing the arrays of the target when they are large enough.
+     *
+     * @param in The payload, positioned after readType()
+     * @param into The chunk to overwrite
+     * @return into
+     */
+    public ColumnChunk decodeColumns(ByteBuffer in, ColumnChunk into) {
+        try {
+            int columnCount = in.getShort() & 0xFFFF;
+            int rowCount = in.getInt();
+            if (rowCount < 0 || (long) columnCount * rowCount * 4 > in.remaining()) {
+                throw new IllegalArgumentException("Column chunk larger than its payload");
+            }
+            into.reset(columnCount, rowCount);
+            for (int i = 0; i < columnCount; i++) {
+                into.names[i] = readString(in);
+            }
+            int count = columnCount * rowCount;
+            for (int i = 0; i < count; i++) {
+                into.values[i] = in.getInt();
+            }
+            return into;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated binary columns", e);
+        }
+    }
+
+    private AnonymizationCommand readCommand(ByteBuffer in, AnonymizationCommand into) {
+        into.setCommandId(readString(in));
+        into.setKValue(in.getInt());
+        into.setDataset(readString(in));
+        into.setLValue(in.getInt());
+        into.setDiversity(value(DIVERSITY_VALUES, in.get()));
+        into.setCutEstimation(value(CUT_ESTIMATION_VALUES, in.get()));
+        into.setSampleSize(in.getInt());
+        into.setStorage(value(STORAGE_VALUES, in.get()));
+        into.setMemoryBudgetMb(in.getInt());
+        into.setSplitMode(value(SPLIT_MODE_VALUES, in.get()));
+        into.setGeneralization(value(GENERALIZATION_VALUES, in.get()));
+        return into;
+    }
+
+    private static String value(String[] values, byte code) {
+        if (code < 0 || code >= values.length) {
+            throw new IllegalArgumentException("Unknown option code " + code);
+        }
+        return values[code];
+    }
+
+    private String readString(ByteBuffer in) {
+        int length = in.getShort() & 0xFFFF;
+        if (length == NULL_STRING) {
+            return null;
+        }
+        if (length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String value = strings.get(in, length);
+        in.position(in.position() + length);
+        return value;
+    }
+
+    /**
+     * Small cache of decoded strings keyed by their UTF-8 bytes, so repeated values such as
+     * dataset IDs and column names are not allocated again. Collisions simply replace the entry.
+     */
+    private static final class StringCache {
+
+        private static final int SIZE = 256;
+        private static final int MAX_CACHED_BYTES = 64;
+
+        private final byte[][] keys = new byte[SIZE][];
+        private final String[] values = new String[SIZE];
+
+        String get(ByteBuffer in, int length) {
+            int start = in.position();
+            if (length > MAX_CACHED_BYTES || !in.hasArray()) {
+                return decode(in, start, length);
+            }
+            byte[] array = in.array();
+            int offset = in.arrayOffset() + start;
+            int hash = 0x811C9DC5;
+            for (int i = 0; i < length; i++) {
+                hash = (hash ^ array[offset + i]) * 0x01000193;
+            }
+            int slot = hash & (SIZE - 1);
+            byte[] key = keys[slot];
+            if (key != null && key.length == length && regionEquals(key, array, offset)) {
+                return values[slot];
+            }
+            String value = new String(array, offset, length, StandardCharsets.UTF_8);
+            keys[slot] = Arrays.copyOfRange(array, offset, offset + length);
+            values[slot] = value;
+            return value;
+        }
+
+        private static boolean regionEquals(byte[] key, byte[] array, int offset) {
+            for (int i = 0; i < key.length; i++) {
+                if (key[i] != array[offset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static String decode(ByteBuffer in, int start, int length) {
+            byte[] bytes = new byte[length];
+            in.duplicate().position(start).get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
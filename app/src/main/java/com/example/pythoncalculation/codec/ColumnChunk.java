@@ -0,0 +1,75 @@
+package com.example.pythoncalculation.codec;
+
+/**
+ * Reusable target for decoded column chunks. The arrays are only replaced when a chunk
+ * does not fit, so decoding a stream of equally sized chunks does not allocate.
+ */
+public class ColumnChunk {
+
+    String[] names = new String[0];
+    int[] values = new int[0];
+    private int columnCount;
+    private int rowCount;
+
+    /**
+     * Prepares the chunk for columnCount columns of rowCount rows.
+     */
+    void reset(int columnCount, int rowCount) {
+        this.columnCount = columnCount;
+        this.rowCount = rowCount;
+        if (names.length < columnCount) {
+            names = new String[columnCount];
+        }
+        if (values.length < columnCount * rowCount) {
+            values = new int[columnCount * rowCount];
+        }
+    }
+
+    /**
+     * Get the number of columns.
+     *
+     * @return The number of columns of the last decoded chunk
+     */
+    public int getColumnCount() {
+        return columnCount;
+    }
+
+    /**
+     * Get the number of rows.
+     *
+     * @return The number of rows of the last decoded chunk
+     */
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Get a column name.
+     *
+     * @param column The column index
+     * @return The name of the column
+     */
+    public String getName(int column) {
+        return names[column];
+    }
+
+    /**
+     * Get a value.
+     *
+     * @param column The column index
+     * @param row The row index
+     * @return The value of the cell
+     */
+    public int getValue(int column, int row) {
+        return values[column * rowCount + row];
+    }
+
+    /**
+     * Get the backing column-major array. It may be longer than columnCount * rowCount.
+     *
+     * @return The values
+     */
+    public int[] getValues() {
+        return values;
+    }
+}
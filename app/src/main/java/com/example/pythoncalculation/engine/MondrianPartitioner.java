@@ -0,0 +1,393 @@
+package com.example.pythoncalculation.engine;
+
+import com.example.pythoncalculation.bridge.ColumnBatch;
+import com.example.pythoncalculation.trace.PartitionProfile;
+import com.example.pythoncalculation.trace.Tracer;
+
+import java.util.Arrays;
+
+/**
+ * Mondrian median partitioner on encoded columns, the Java counterpart of mondrian.anonymize().
+ *
+ * Like the Python engine, a partition is an (offset, length) window over one permutation of the
+ * rows, the data is cut along the quasi-identifier with the most distinct values, and partitions
+ * are finalized in output order. Because every window is cut along the same dimension and the
+ * root sort is stable, every window is already a sorted slice of the root permutation, so the
+ * rows are sorted once (LSD radix sort) and never again.
+ *
+ * The pending partitions are kept in an explicit work stack of primitive records in
+ * struct-of-arrays form (offset, length, dim and the bounds of the window on dim). The stack,
+ * the permutation, the range arrays and the sort buffers are allocated once for a capacity and
+ * reused by every run, so partitioning allocates nothing in the steady state. Depth-first
+ * processing keeps at most one pending sibling per level, so MAX_DEPTH entries cover any int
+ * row count.
+ *
+ * The stages of a run are Tracer sections ("mondrian rank", "mondrian sort", "mondrian split"),
+ * and so is every window of at least LEVEL_MIN_ROWS rows, named after its recursion level. With a
+ * PartitionProfile, the partition sizes and the time per level are recorded as well.
+ *
+ * An instance is not thread-safe; use one per thread.
+ */
+public class MondrianPartitioner {
+
+    /**
+     * Entries of the work stack: one pending sibling per level of a binary split of up to 2^31 rows, plus the root.
+     */
+    private static final int MAX_DEPTH = 64;
+
+    /**
+     * Windows with fewer rows are not traced one by one: a section would cost more than their work.
+     */
+    private static final int LEVEL_MIN_ROWS = 4096;
+    private static final String[] LEVEL_SECTIONS = new String[MAX_DEPTH];
+
+    static {
+        for (int depth = 0; depth < MAX_DEPTH; depth++) {
+            LEVEL_SECTIONS[depth] = "mondrian level " + depth;
+        }
+    }
+
+    private static final int RADIX_BITS = 16;
+    private static final int RADIX = 1 << RADIX_BITS;
+
+    private final int rowCapacity;
+    private final int qiCapacity;
+
+    // Work stack, struct-of-arrays
+    private final int[] stackOffset = new int[MAX_DEPTH];
+    private final int[] stackLength = new int[MAX_DEPTH];
+    private final int[] stackDim = new int[MAX_DEPTH];
+    private final int[] stackFirst = new int[MAX_DEPTH];
+    private final int[] stackLast = new int[MAX_DEPTH];
+    private final int[] stackDepth = new int[MAX_DEPTH];
+    private int stackSize;
+
+    // Results, valid for the rows and quasi-identifiers of the last run
+    private final int[] perm;
+    private final int[] low;
+    private final int[] high;
+    private final int[] partitionOffsets;
+
+    // Radix sort buffers
+    private final int[] scratch;
+    private final int[] count = new int[RADIX + 1];
+
+    private int rowCount;
+    private int qiCount;
+    private int partitionCount;
+    private PartitionProfile profile;
+
+    /**
+     * Allocates all buffers of the partitioner.
+     *
+     * @param rowCapacity The largest number of rows of a run
+     * @param qiCapacity The largest number of quasi-identifiers of a run
+     */
+    public MondrianPartitioner(int rowCapacity, int qiCapacity) {
+        if (rowCapacity <= 0 || qiCapacity <= 0) {
+            throw new IllegalArgumentException("Capacities must be positive");
+        }
+        this.rowCapacity = rowCapacity;
+        this.qiCapacity = qiCapacity;
+        this.perm = new int[rowCapacity];
+        this.scratch = new int[rowCapacity];
+        this.low = new int[rowCapacity * qiCapacity];
+        this.high = new int[rowCapacity * qiCapacity];
+        this.partitionOffsets = new int[rowCapacity];
+    }
+
+    /**
+     * Partitions encoded columns until a half would hold less than k rows.
+     *
+     * @param codes The column-major leaf IDs: quasi-identifier i occupies [i * rowCount, (i + 1) * rowCount)
+     * @param qiCount The number of quasi-identifiers
+     * @param rowCount The number of rows
+     * @param k The K value for anonymization
+     * @return The number of partitions (equivalence classes)
+     */
+    public int partition(int[] codes, int qiCount, int rowCount, int k) {
+        if (rowCount > rowCapacity || qiCount > qiCapacity || qiCount <= 0) {
+            throw new IllegalArgumentException("Run of " + rowCount + " rows and " + qiCount
+                    + " quasi-identifiers exceeds the capacity of " + rowCapacity + " x " + qiCapacity);
+        }
+        if (codes.length < qiCount * rowCount) {
+            throw new IllegalArgumentException("Codes must hold " + qiCount * rowCount + " values");
+        }
+        if (k < 1 || k > rowCount) {
+            throw new IllegalArgumentException("K = " + k + " must be between 1 and the number of rows (" + rowCount + ")");
+        }
+        this.rowCount = rowCount;
+        this.qiCount = qiCount;
+        this.partitionCount = 0;
+
+        // Step 1: find the quasi-identifier with the most distinct values, the first one on ties
+        int dim = 0;
+        int mostDistinct = -1;
+        Tracer.begin("mondrian rank");
+        try {
+            for (int qi = 0; qi < qiCount; qi++) {
+                sortRows(codes, qi);
+                int distinct = countDistinct(codes, qi);
+                if (distinct > mostDistinct) {
+                    mostDistinct = distinct;
+                    dim = qi;
+                }
+            }
+        } finally {
+            Tracer.end();
+        }
+
+        // Step 2: the root permutation is the stable order of dim; every window stays a sorted slice of it
+        Tracer.begin("mondrian sort");
+        try {
+            sortRows(codes, dim);
+        } finally {
+            Tracer.end();
+        }
+        int base = dim * rowCount;
+        stackSize = 0;
+        push(0, rowCount, dim, codes[base + perm[0]], codes[base + perm[rowCount - 1]], 0);
+
+        // Step 3: cut windows at their median; the right half is pushed first,
+        // so that partitions are finalized in output order
+        Tracer.begin("mondrian split");
+        try {
+            split(codes, k);
+        } finally {
+            Tracer.end();
+        }
+        return partitionCount;
+    }
+
+    /**
+     * Cuts the windows of the work stack until it is empty. Whether windows are traced is decided
+     * once per run.
+     */
+    private void split(int[] codes, int k) {
+        boolean tracing = Tracer.isEnabled();
+        PartitionProfile runProfile = profile;
+        if (runProfile != null) {
+            runProfile.reset("median", rowCount);
+        }
+        while (stackSize > 0) {
+            stackSize--;
+            int offset = stackOffset[stackSize];
+            int length = stackLength[stackSize];
+            int windowDim = stackDim[stackSize];
+            int first = stackFirst[stackSize];
+            int last = stackLast[stackSize];
+            int depth = stackDepth[stackSize];
+            boolean traced = tracing && length >= LEVEL_MIN_ROWS;
+            if (traced) {
+                Tracer.begin(LEVEL_SECTIONS[depth]);
+            }
+            long started = runProfile != null ? System.nanoTime() : 0;
+            int mid = length >>> 1;
+            if (mid >= k && length - mid >= k) {
+                int windowBase = windowDim * rowCount;
+                push(offset + mid, length - mid, windowDim, codes[windowBase + perm[offset + mid]], last, depth + 1);
+                push(offset, mid, windowDim, first, codes[windowBase + perm[offset + mid - 1]], depth + 1);
+            } else {
+                summarize(codes, offset, length, windowDim, first, last);
+                partitionOffsets[partitionCount++] = offset;
+                if (runProfile != null) {
+                    runProfile.recordPartition(length);
+                }
+            }
+            if (runProfile != null) {
+                runProfile.recordWindow(depth, System.nanoTime() - started);
+            }
+            if (traced) {
+                Tracer.end();
+            }
+        }
+    }
+
+    /**
+     * Pushes a pending partition on the work stack.
+     */
+    private void push(int offset, int length, int dim, int first, int last, int depth) {
+        stackOffset[stackSize] = offset;
+        stackLength[stackSize] = length;
+        stackDim[stackSize] = dim;
+        stackFirst[stackSize] = first;
+        stackLast[stackSize] = last;
+        stackDepth[stackSize] = depth;
+        stackSize++;
+    }
+
+    /**
+     * Records the range of every quasi-identifier in a finalized partition as its generalized value.
+     * The range of the split dimension is known from the bounds of the sorted window.
+     */
+    private void summarize(int[] codes, int offset, int length, int dim, int first, int last) {
+        int end = offset + length;
+        for (int qi = 0; qi < qiCount; qi++) {
+            int base = qi * rowCount;
+            int min = first;
+            int max = last;
+            if (qi != dim) {
+                min = Integer.MAX_VALUE;
+                max = Integer.MIN_VALUE;
+                for (int i = offset; i < end; i++) {
+                    int value = codes[base + perm[i]];
+                    if (value < min) {
+                        min = value;
+                    }
+                    if (value > max) {
+                        max = value;
+                    }
+                }
+            }
+            for (int i = offset; i < end; i++) {
+                low[base + i] = min;
+                high[base + i] = max;
+            }
+        }
+    }
+
+    /**
+     * Sets perm to the stable order of the rows by one quasi-identifier, with an LSD radix sort
+     * of 16-bit digits of (value - min). One pass suffices when the values span less than 2^16.
+     */
+    private void sortRows(int[] codes, int qi) {
+        int base = qi * rowCount;
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (int row = 0; row < rowCount; row++) {
+            perm[row] = row;
+            int value = codes[base + row];
+            if (value < min) {
+                min = value;
+            }
+            if (value > max) {
+                max = value;
+            }
+        }
+        long span = (long) max - min;
+        radixPass(codes, base, min, 0, perm, scratch);
+        System.arraycopy(scratch, 0, perm, 0, rowCount);
+        if (span >= RADIX) {
+            radixPass(codes, base, min, RADIX_BITS, perm, scratch);
+            System.arraycopy(scratch, 0, perm, 0, rowCount);
+        }
+    }
+
+    /**
+     * One stable counting pass of the radix sort: reorders the rows of source into target by one digit.
+     */
+    private void radixPass(int[] codes, int base, int min, int shift, int[] source, int[] target) {
+        Arrays.fill(count, 0);
+        for (int i = 0; i < rowCount; i++) {
+            count[digit(codes[base + source[i]], min, shift) + 1]++;
+        }
+        for (int d = 0; d < RADIX; d++) {
+            count[d + 1] += count[d];
+        }
+        for (int i = 0; i < rowCount; i++) {
+            int row = source[i];
+            target[count[digit(codes[base + row], min, shift)]++] = row;
+        }
+    }
+
+    private static int digit(int value, int min, int shift) {
+        return (int) ((((long) value - min) >>> shift) & (RADIX - 1));
+    }
+
+    /**
+     * Counts the distinct values of a quasi-identifier, with perm sorted by it.
+     */
+    private int countDistinct(int[] codes, int qi) {
+        int base = qi * rowCount;
+        int distinct = 1;
+        for (int i = 1; i < rowCount; i++) {
+            if (codes[base + perm[i]] != codes[base + perm[i - 1]]) {
+                distinct++;
+            }
+        }
+        return distinct;
+    }
+
+    /**
+     * Set the profile that records the following runs.
+     *
+     * @param profile The profile, reset by every run, or null to stop profiling
+     */
+    public void setProfile(PartitionProfile profile) {
+        this.profile = profile;
+    }
+
+    /**
+     * Get the number of partitions of the last run.
+     *
+     * @return The partition count
+     */
+    public int getPartitionCount() {
+        return partitionCount;
+    }
+
+    /**
+     * Get the first output positions of the partitions of the last run, without copying.
+     * Partitions are finalized in output order, so partition i covers
+     * [offsets[i], offsets[i + 1]) and the last one ends at the row count.
+     * Valid for [0, partitionCount) until the next run.
+     *
+     * @return The partition offsets, ascending
+     */
+    public int[] getPartitionOffsets() {
+        return partitionOffsets;
+    }
+
+    /**
+     * Get the output row order of the last run, without copying.
+     * Valid for [0, rowCount) until the next run.
+     *
+     * @return The permutation: output position -> input row
+     */
+    public int[] getPerm() {
+        return perm;
+    }
+
+    /**
+     * Get the lower ends of the generalized ranges of the last run, without copying.
+     * Column-major by output position with the row count of the last run, valid until the next run.
+     *
+     * @return The lower ends
+     */
+    public int[] getLow() {
+        return low;
+    }
+
+    /**
+     * Get the upper ends of the generalized ranges of the last run, without copying.
+     * Column-major by output position with the row count of the last run, valid until the next run.
+     *
+     * @return The upper ends
+     */
+    public int[] getHigh() {
+        return high;
+    }
+
+    /**
+     * Copies the result of the last run into a ColumnBatch, in output row order like
+     * algorithm.column_exchange.anonymize_java_columns(). Allocates the batch arrays.
+     *
+     * @param qiNames The quasi-identifier names, in column order
+     * @param codes The codes of the last run
+     * @return The anonymized columns
+     */
+    public ColumnBatch toColumnBatch(String[] qiNames, int[] codes) {
+        int size = qiCount * rowCount;
+        int[] ordered = new int[size];
+        for (int qi = 0; qi < qiCount; qi++) {
+            int base = qi * rowCount;
+            for (int i = 0; i < rowCount; i++) {
+                ordered[base + i] = codes[base + perm[i]];
+            }
+        }
+        ColumnBatch batch = new ColumnBatch(qiNames, rowCount, ordered,
+                Arrays.copyOf(low, size), Arrays.copyOf(high, size));
+        batch.setMetricsSummary("Partitions: " + partitionCount);
+        return batch;
+    }
+}
@@ -2,7 +2,6 @@ package com.example.pythoncalculation.fragments;
 
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -18,16 +17,20 @@ import androidx.fragment.app.Fragment;
 import androidx.navigation.NavController;
 import androidx.navigation.Navigation;
 
-import com.chaquo.python.PyObject;
-import com.chaquo.python.Python;
+import com.example.pythoncalculation.AnonymizationCommand;
+import com.example.pythoncalculation.MainActivity;
 import com.example.pythoncalculation.R;
 import com.example.pythoncalculation.databinding.FragmentAnonymizationBinding;
-
-import java.lang.ref.WeakReference;
+import com.example.pythoncalculation.service.AnonymizationService;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
 
 /**
  * Fragment for anonymizing data with different K values.
  * Allows the user to select a K value and perform anonymization on the data.
+ * The anonymization runs in the AnonymizationService, so it continues when the fragment is gone;
+ * the fragment shows the running command or the last result of the service when it is created.
+ * The last result can be counted by generalized quasi-identifiers (see AnonymizationService.runQuery).
  */
 public class AnonymizationFragment extends Fragment {
 
@@ -36,9 +39,8 @@ public class AnonymizationFragment extends Fragment {
     private static final String PREF_USE_WEARABLE = "use_wearable";
     
     private FragmentAnonymizationBinding binding;
-    private Python py;
-    private PyObject mondrianModule;
     private boolean useWearableDataset = false;
+    // Input file name or dataset registry ID passed to anonymize_execute
     private String selectedDatasetFile = "dataset.csv";
     private RadioButton standardDatasetRadio;
     private RadioButton wearableDatasetRadio;
@@ -57,10 +59,6 @@ public class AnonymizationFragment extends Fragment {
     public void onViewCreated(@NonNull View view, @Nullable Bundle savedInstanceState) {
         super.onViewCreated(view, savedInstanceState);
 
-        // Get Python instance and modules
-        py = Python.getInstance();
-        mondrianModule = py.getModule("algorithm.mondrian");
-        
         // Get shared preferences
         sharedPreferences = requireActivity().getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
         useWearableDataset = sharedPreferences.getBoolean(PREF_USE_WEARABLE, false);
@@ -84,38 +82,14 @@ public class AnonymizationFragment extends Fragment {
 
         // Set up K value buttons
         setupAnonymizationButtons();
+        binding.countButton.setOnClickListener(v -> countLastResult());
         
         // Add a label to remind users that these are K values
         resultLabel = binding.resultLabel;
         updateResultLabel();
         
-        // Set up fragment result listener for MQTT commands
-        getParentFragmentManager().setFragmentResultListener("anonymize_request", this,
-            (requestKey, result) -> {
-                if (result.containsKey("k_value")) {
-                    int kValue = result.getInt("k_value");
-                    
-                    // Check if we have dataset selection as well
-                    if (result.containsKey("use_wearable")) {
-                        boolean newUseWearable = result.getBoolean("use_wearable");
-                        
-                        // Update dataset selection if it's different
-                        if (newUseWearable != useWearableDataset) {
-                            setDataset(newUseWearable);
-                        }
-                    }
-                    
-                    Log.d(TAG, "Received fragment result with k_value = " + kValue + 
-                            ", dataset = " + (useWearableDataset ? "wearable" : "standard"));
-                    
-                    Toast.makeText(getContext(), 
-                            "Starting anonymization with K = " + kValue + 
-                            " on " + (useWearableDataset ? "wearable" : "standard") + " dataset", 
-                            Toast.LENGTH_SHORT).show();
-                    
-                    startAnonymization(kValue);
-                }
-            });
+        // Show the command the service is running, or its last result
+        restoreServiceState();
         
         // Listen for file selection changes from DataFragment
         getParentFragmentManager().setFragmentResultListener("file_selected", this,
@@ -169,6 +143,28 @@ public class AnonymizationFragment extends Fragment {
         updateResultLabel();
     }
     
+    /**
+     * Sets the dataset to use for anonymization by its registry ID.
+     * "standard" and "wearable" also update the radio buttons; other IDs clear them.
+     *
+     * @param datasetId A dataset ID of the dataset registry, or its input file name
+     */
+    public void setDataset(String datasetId) {
+        if ("standard".equalsIgnoreCase(datasetId) || "wearable".equalsIgnoreCase(datasetId)) {
+            setDataset("wearable".equalsIgnoreCase(datasetId));
+            return;
+        }
+        useWearableDataset = false;
+        selectedDatasetFile = datasetId;
+        if (standardDatasetRadio != null && wearableDatasetRadio != null) {
+            standardDatasetRadio.setChecked(false);
+            wearableDatasetRadio.setChecked(false);
+        }
+        if (resultLabel != null) {
+            resultLabel.setText("Anonymization Result (K = ?, Dataset: " + datasetId + "):");
+        }
+    }
+    
     private void setupRadioButtonListeners() {
         standardDatasetRadio.setOnClickListener(v -> {
             if (standardDatasetRadio.isChecked()) {
@@ -210,18 +206,131 @@ public class AnonymizationFragment extends Fragment {
     }
 
     public void startAnonymization(int kValue) {
+        startAnonymization(new AnonymizationCommand(kValue, selectedDatasetFile));
+    }
+
+    /**
+     * Starts anonymization of the selected dataset with the options of a command
+     * (l-diversity, cut estimation). The dataset must already be set with setDataset().
+     *
+     * @param command The command carrying the K value and options
+     */
+    public void startAnonymization(AnonymizationCommand command) {
+        if (!(getActivity() instanceof MainActivity) || !((MainActivity) getActivity()).runCommand(command)) {
+            return;
+        }
+        showRunning(command);
+        Toast.makeText(getContext(), "Anonymization with K=" + command.getKValue()
+                + " started on " + command.getDataset(), Toast.LENGTH_LONG).show();
+    }
+
+    /**
+     * Shows a command that the service is running: its dataset, K value and the progress bar.
+     *
+     * @param command The running command
+     */
+    public void showRunning(AnonymizationCommand command) {
+        if (binding == null) {
+            return;
+        }
+        if (!command.getDataset().equals(selectedDatasetFile)) {
+            setDataset(command.getDataset());
+        }
+        int kValue = command.getKValue();
+        int lValue = command.getLValue();
         // Show progress bar
         binding.progressBar.setVisibility(View.VISIBLE);
         
         // Update result label with selected K value and dataset type
-        String datasetType = useWearableDataset ? "Wearable" : "Standard";
-        resultLabel.setText("Anonymization Result (K = " + kValue + ", Dataset: " + datasetType + "):");
+        String datasetType = useWearableDataset ? "Wearable"
+                : "dataset.csv".equals(selectedDatasetFile) ? "Standard" : selectedDatasetFile;
+        resultLabel.setText("Anonymization Result (K = " + kValue
+                + (lValue > 1 ? ", L = " + lValue + " " + command.getDiversity() : "")
+                + ", Dataset: " + datasetType + "):");
         
         // Disable buttons while processing
         setButtonsEnabled(false);
+    }
+
+    /**
+     * Shows the result of a command that the service has finished.
+     *
+     * @param command The finished command
+     * @param result The metrics and preview of the result, or null if it failed
+     */
+    public void showResult(AnonymizationCommand command, String result) {
+        if (binding == null) {
+            return;
+        }
+        // Hide progress bar
+        binding.progressBar.setVisibility(View.GONE);
         
-        // Execute the anonymization
-        new AnonymizeTask(this, kValue, selectedDatasetFile).execute();
+        // Re-enable buttons
+        setButtonsEnabled(true);
+
+        if (result != null) {
+            binding.textViewOutput.setText(result);
+            Toast.makeText(getContext(), "Anonymization completed!", Toast.LENGTH_SHORT).show();
+        } else {
+            binding.textViewOutput.setText(getString(R.string.error_message, "Anonymization failed"));
+            Toast.makeText(getContext(), "Anonymization failed", Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    /**
+     * Counts the records of the last result per value of the quasi-identifiers typed in the query
+     * field, from the equivalence-class summaries of the service. The counts are shown as the result.
+     */
+    private void countLastResult() {
+        AnonymizationService service = getActivity() instanceof MainActivity
+                ? ((MainActivity) getActivity()).getAnonymizationService() : null;
+        AnonymizationCommand last = service != null ? service.getLastCommand() : null;
+        if (last == null) {
+            Toast.makeText(getContext(), "Run an anonymization first", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        JsonArray groupBy = new JsonArray();
+        for (String name : binding.groupByInput.getText().toString().split(",")) {
+            if (!name.trim().isEmpty()) {
+                groupBy.add(name.trim());
+            }
+        }
+        JsonObject request = new JsonObject();
+        request.addProperty("dataset", last.getDataset());
+        request.addProperty("kValue", last.getKValue());
+        request.addProperty("lValue", last.getLValue());
+        request.addProperty("diversity", last.getDiversity());
+        request.addProperty("cutEstimation", last.getCutEstimation());
+        request.addProperty("splitMode", last.getSplitMode());
+        request.addProperty("generalization", last.getGeneralization());
+        request.add("groupBy", groupBy);
+        resultLabel.setText("Counts of K = " + last.getKValue() + " on " + last.getDataset()
+                + (groupBy.size() > 0 ? " by " + binding.groupByInput.getText().toString().trim() : "") + ":");
+        service.runQuery(request.toString(), (response, text) -> {
+            if (binding != null) {
+                binding.textViewOutput.setText(text);
+            }
+        });
+    }
+
+    /**
+     * Shows the state of the service: the running command, or the last result.
+     * Called when the view is created, e.g. after a rotation or when returning to the app.
+     */
+    private void restoreServiceState() {
+        if (!(getActivity() instanceof MainActivity)) {
+            return;
+        }
+        AnonymizationService service = ((MainActivity) getActivity()).getAnonymizationService();
+        if (service == null) {
+            return;
+        }
+        AnonymizationCommand running = service.getCurrentCommand();
+        if (running != null) {
+            showRunning(running);
+        } else if (service.getLastCommand() != null && service.getLastResult() != null) {
+            binding.textViewOutput.setText(service.getLastResult());
+        }
     }
 
     private void setButtonsEnabled(boolean enabled) {
@@ -231,6 +340,7 @@ public class AnonymizationFragment extends Fragment {
         binding.anonymizeButtonK30.setEnabled(enabled);
         binding.anonymizeButtonK50.setEnabled(enabled);
         binding.anonymizeButtonK500.setEnabled(enabled);
+        binding.countButton.setEnabled(enabled);
         binding.backButton.setEnabled(enabled);
         standardDatasetRadio.setEnabled(enabled);
         wearableDatasetRadio.setEnabled(enabled);
@@ -241,64 +351,4 @@ public class AnonymizationFragment extends Fragment {
         super.onDestroyView();
         binding = null;
     }
-
-    /**
-     * AsyncTask for anonymizing data in the background to prevent UI freezes
-     */
-    private static class AnonymizeTask extends AsyncTask<Void, Void, String> {
-        private WeakReference<AnonymizationFragment> fragmentReference;
-        private int kValue;
-        private String datasetFile;
-
-        AnonymizeTask(AnonymizationFragment fragment, int kValue, String datasetFile) {
-            fragmentReference = new WeakReference<>(fragment);
-            this.kValue = kValue;
-            this.datasetFile = datasetFile;
-        }
-
-        @Override
-        protected void onPreExecute() {
-            AnonymizationFragment fragment = fragmentReference.get();
-            if (fragment == null || fragment.getActivity() == null || fragment.isDetached()) return;
-
-            StringBuilder message = new StringBuilder()
-                    .append("Anonymization with K=").append(kValue)
-                    .append(" started on ").append(datasetFile);
-
-            Toast.makeText(fragment.getContext(), message.toString(), Toast.LENGTH_LONG).show();
-        }
-
-        @Override
-        protected String doInBackground(Void... voids) {
-            AnonymizationFragment fragment = fragmentReference.get();
-            if (fragment == null || fragment.getActivity() == null || fragment.isDetached()) return null;
-
-            try (PyObject pyObjectAnonymizedDataResult = fragment.mondrianModule.callAttr("anonymize_execute", kValue, datasetFile)) {
-                return pyObjectAnonymizedDataResult.toString();
-            } catch (Exception e) {
-                Log.e(TAG, "Error during anonymization", e);
-                return null;
-            }
-        }
-
-        @Override
-        protected void onPostExecute(String result) {
-            AnonymizationFragment fragment = fragmentReference.get();
-            if (fragment == null || fragment.getActivity() == null || fragment.isDetached()) return;
-
-            // Hide progress bar
-            fragment.binding.progressBar.setVisibility(View.GONE);
-            
-            // Re-enable buttons
-            fragment.setButtonsEnabled(true);
-
-            if (result != null) {
-                fragment.binding.textViewOutput.setText(result);
-                Toast.makeText(fragment.getContext(), "Anonymization completed!", Toast.LENGTH_SHORT).show();
-            } else {
-                fragment.binding.textViewOutput.setText(fragment.getString(R.string.error_message, "Anonymization failed"));
-                Toast.makeText(fragment.getContext(), "Anonymization failed", Toast.LENGTH_SHORT).show();
-            }
-        }
-    }
-}
\ No newline at end of file
+}
@@ -20,6 +20,7 @@ import com.chaquo.python.PyObject;
 import com.chaquo.python.Python;
 import com.example.pythoncalculation.R;
 import com.example.pythoncalculation.databinding.FragmentDataBinding;
+import com.example.pythoncalculation.startup.PythonRuntime;
 
 import java.lang.ref.WeakReference;
 
@@ -34,9 +35,6 @@ public class DataFragment extends Fragment {
     private static final String PREF_USE_WEARABLE = "use_wearable";
     
     private FragmentDataBinding binding;
-    private Python py;
-    private PyObject inputReaderModule;
-    private PyObject wearableReaderModule;
     private boolean useWearableDataset = false;
     private SharedPreferences sharedPreferences;
 
@@ -55,11 +53,6 @@ public class DataFragment extends Fragment {
         sharedPreferences = requireActivity().getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
         useWearableDataset = sharedPreferences.getBoolean(PREF_USE_WEARABLE, false);
 
-        // Get Python instance and modules
-        py = Python.getInstance();
-        inputReaderModule = py.getModule("algorithm.input_reader");
-        wearableReaderModule = py.getModule("algorithm.input_reader_wearable");
-
         // Set up navigation back to home
         NavController navController = Navigation.findNavController(view);
         binding.backButton.setOnClickListener(v -> 
@@ -146,14 +139,16 @@ public class DataFragment extends Fragment {
             if (fragment == null || fragment.getActivity() == null || fragment.isDetached()) return null;
 
             try {
+                // Python starts in the background; this task waits for it instead of the main thread
+                Python py = PythonRuntime.start(fragment.requireContext()).join();
                 PyObject pyObjectResult;
                 if (useWearable) {
                     // Use wearable reader module
-                    pyObjectResult = fragment.wearableReaderModule.callAttr("get_wearable_csvfile");
+                    pyObjectResult = py.getModule("algorithm.input_reader_wearable").callAttr("get_wearable_csvfile");
                     Log.d(TAG, "Reading wearable dataset");
                 } else {
                     // Use standard reader module
-                    pyObjectResult = fragment.inputReaderModule.callAttr("get_csvfile", "dataset.csv");
+                    pyObjectResult = py.getModule("algorithm.input_reader").callAttr("get_csvfile", "dataset.csv");
                     Log.d(TAG, "Reading standard dataset");
                 }
                 return pyObjectResult.toString();
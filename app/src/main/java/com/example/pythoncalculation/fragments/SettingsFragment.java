@@ -6,10 +6,12 @@ import android.content.SharedPreferences;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
+import android.text.InputType;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.EditText;
 import android.widget.Toast;
 
 import androidx.annotation.NonNull;
@@ -23,6 +25,7 @@ import com.example.pythoncalculation.MainActivity;
 import com.example.pythoncalculation.MqttHelper;
 import com.example.pythoncalculation.R;
 import com.example.pythoncalculation.databinding.FragmentSettingsBinding;
+import com.example.pythoncalculation.service.AnonymizationService;
 import com.google.android.material.textfield.TextInputEditText;
 
 import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
@@ -30,7 +33,7 @@ import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
 
 /**
  * Fragment for managing and viewing application settings.
- * Shows connection status to SmarKo watch and MQTT broker.
+ * Shows connection status to SmarKo watch and MQTT broker, and the memory budget of the jobs.
  */
 public class SettingsFragment extends Fragment {
 
@@ -66,6 +69,9 @@ public class SettingsFragment extends Fragment {
         // Set up edit MQTT broker button
         binding.editMqttButton.setOnClickListener(v -> showMqttBrokerDialog());
 
+        // Set up edit memory budget button
+        binding.editMemoryButton.setOnClickListener(v -> showMemoryBudgetDialog());
+
         // Display app version
         displayAppVersion();
         
@@ -92,6 +98,10 @@ public class SettingsFragment extends Fragment {
 
         // Check MQTT connection status from MainActivity
         checkMqttStatus();
+
+        // Show the memory budget of the service
+        AnonymizationService service = ((MainActivity) requireActivity()).getAnonymizationService();
+        binding.memoryBudgetValue.setText(service != null ? service.getMemoryBudgetMb() + " MB" : "Not Available");
     }
 
     private void checkMqttStatus() {
@@ -175,6 +185,37 @@ public class SettingsFragment extends Fragment {
         dialog.show();
     }
     
+    /**
+     * Shows a dialog for editing the memory budget that overlapping jobs share.
+     * An empty value or 0 restores the default derived from the memory class of the app.
+     */
+    private void showMemoryBudgetDialog() {
+        AnonymizationService service = ((MainActivity) requireActivity()).getAnonymizationService();
+        if (service == null) {
+            Toast.makeText(requireContext(), "Anonymization service is not ready yet", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        EditText budgetEditText = new EditText(requireContext());
+        budgetEditText.setInputType(InputType.TYPE_CLASS_NUMBER);
+        budgetEditText.setHint("MB, 0 for the default");
+        budgetEditText.setText(String.valueOf(service.getMemoryBudgetMb()));
+
+        new AlertDialog.Builder(requireContext())
+                .setTitle("Job memory budget (MB)")
+                .setView(budgetEditText)
+                .setNegativeButton("Cancel", null)
+                .setPositiveButton("Save", (dialog, which) -> {
+                    String text = budgetEditText.getText().toString().trim();
+                    try {
+                        service.setMemoryBudgetMb(text.isEmpty() ? 0 : Integer.parseInt(text));
+                    } catch (NumberFormatException e) {
+                        Toast.makeText(requireContext(), "Invalid memory budget", Toast.LENGTH_LONG).show();
+                    }
+                    updateConnectionStatus();
+                })
+                .show();
+    }
+
     /**
      * Tests the connection to a new MQTT broker URL.
      * 
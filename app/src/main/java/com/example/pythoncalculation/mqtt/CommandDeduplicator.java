@@ -0,0 +1,85 @@
+package com.example.pythoncalculation.mqtt;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+
+/**
+ * Remembers the IDs of the most recent commands.
+ *
+ * With QoS 1 the broker delivers a command at least once: a command is redelivered if the
+ * app stopped after handling it but before the acknowledgement reached the broker. The IDs
+ * are kept in a small file, so a redelivery after a restart is also recognized.
+ *
+ * An ID is only recorded once its command is validated and journaled. A command that is
+ * rejected, or lost because the app stopped before journaling it, is run when it is sent again.
+ */
+public class CommandDeduplicator {
+
+    private static final String TAG = "CommandDeduplicator";
+
+    /**
+     * Number of IDs remembered. Redeliveries arrive soon after the original,
+     * so only the most recent commands need to be kept.
+     */
+    private static final int MAX_IDS = 256;
+
+    private final File file;
+    private final LinkedHashSet<String> ids = new LinkedHashSet<>();
+
+    /**
+     * Loads the remembered IDs.
+     *
+     * @param file The file that keeps the IDs, one per line
+     */
+    public CommandDeduplicator(File file) {
+        this.file = file;
+        if (file.exists()) {
+            try {
+                ids.addAll(Files.readAllLines(file.toPath(), StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to read " + file, e);
+            }
+        }
+    }
+
+    /**
+     * Checks whether a command was already accepted.
+     *
+     * @param id The ID of an arriving command
+     * @return true if the ID was recorded before
+     */
+    public synchronized boolean contains(String id) {
+        return ids.contains(id);
+    }
+
+    /**
+     * Records the ID of an accepted command, forgetting the oldest ID beyond MAX_IDS.
+     * The file is replaced atomically (temporary file and rename), so a crash while
+     * writing keeps the previous IDs.
+     *
+     * @param id The ID of a validated and journaled command
+     */
+    public synchronized void record(String id) {
+        if (!ids.add(id)) {
+            return;
+        }
+        if (ids.size() > MAX_IDS) {
+            ids.remove(ids.iterator().next());
+        }
+        File temporary = new File(file.getPath() + ".tmp");
+        try {
+            Files.write(temporary.toPath(), new ArrayList<>(ids), StandardCharsets.UTF_8);
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // Deduplication still works in memory until the next restart
+            Log.e(TAG, "Failed to write " + file, e);
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package com.example.pythoncalculation.mqtt;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Bounded disk-backed queue of outgoing MQTT messages.
+ *
+ * Every message is one file named after its sequence number, holding the topic on the
+ * first line and the payload after it, so the queue survives a restart of the app.
+ * Messages are published in sequence order once the broker is reachable.
+ *
+ * Intermediate messages, such as the progress of a running batch job, carry a key. A newer
+ * message with the same key and topic supersedes the queued one, which is dropped. Their
+ * files end in PROGRESS_SUFFIX and hold the key on the second line. When the queue is full,
+ * the oldest intermediate message is dropped. Other messages, such as results and the last
+ * progress message of a job, are never dropped: if only those are queued, the queue grows
+ * past its bound until the broker is reachable.
+ */
+public class Outbox {
+
+    private static final String TAG = "Outbox";
+    private static final String SUFFIX = ".msg";
+    private static final String PROGRESS_SUFFIX = ".progress";
+
+    /**
+     * Publishes one message.
+     */
+    public interface Publisher {
+        /**
+         * Hands a message to the MQTT client.
+         *
+         * @param topic The topic
+         * @param payload The payload
+         * @return true if the client accepted the message, false to stop draining
+         */
+        boolean publish(String topic, byte[] payload);
+    }
+
+    /**
+     * A queued message file, with its key if it is an intermediate message.
+     */
+    private static final class Entry {
+        final File file;
+        final String key;
+
+        Entry(File file, String key) {
+            this.file = file;
+            this.key = key;
+        }
+    }
+
+    private final File directory;
+    private final int maxMessages;
+    private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+    // Topic and key of every queued intermediate message
+    private final Map<String, Entry> intermediate = new HashMap<>();
+    private long nextSequence;
+
+    /**
+     * Opens the outbox and queues the messages left from a previous run.
+     *
+     * @param directory The directory of the message files
+     * @param maxMessages The largest number of queued messages
+     */
+    public Outbox(File directory, int maxMessages) {
+        this.directory = directory;
+        this.maxMessages = maxMessages;
+        directory.mkdirs();
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX) || name.endsWith(PROGRESS_SUFFIX));
+        if (files != null) {
+            Arrays.sort(files, Comparator.comparingLong(Outbox::sequenceOf));
+            for (File file : files) {
+                String key = null;
+                if (file.getName().endsWith(PROGRESS_SUFFIX)) {
+                    try {
+                        String[] header = new String[2];
+                        readHeader(Files.readAllBytes(file.toPath()), header);
+                        key = header[0] + "\n" + header[1];
+                    } catch (IOException e) {
+                        Log.e(TAG, "Dropping unreadable message " + file.getName(), e);
+                        file.delete();
+                        continue;
+                    }
+                }
+                add(new Entry(file, key));
+            }
+        }
+        nextSequence = files == null || files.length == 0 ? 0 : sequenceOf(files[files.length - 1]) + 1;
+    }
+
+    /**
+     * Parses the sequence number from a message file name.
+     */
+    private static long sequenceOf(File file) {
+        String name = file.getName();
+        return Long.parseLong(name.substring(0, name.indexOf('.')));
+    }
+
+    /**
+     * Reads the header lines of a message file: the topic and, for an intermediate message, the key.
+     *
+     * @param content The content of the file
+     * @param header Receives one header line per element
+     * @return The offset of the payload
+     */
+    private static int readHeader(byte[] content, String[] header) {
+        int start = 0;
+        for (int line = 0; line < header.length; line++) {
+            int newline = start;
+            while (newline < content.length && content[newline] != '\n') {
+                newline++;
+            }
+            header[line] = new String(content, start, newline - start, StandardCharsets.UTF_8);
+            start = Math.min(newline + 1, content.length);
+        }
+        return start;
+    }
+
+    /**
+     * Queues an entry, dropping the queued intermediate message it supersedes.
+     */
+    private void add(Entry entry) {
+        Entry superseded = entry.key == null ? null : intermediate.put(entry.key, entry);
+        if (superseded != null) {
+            queue.remove(superseded);
+            superseded.file.delete();
+        }
+        queue.add(entry);
+    }
+
+    /**
+     * Removes the head of the queue.
+     */
+    private void poll() {
+        Entry entry = queue.poll();
+        if (entry.key != null) {
+            intermediate.remove(entry.key, entry);
+        }
+        entry.file.delete();
+    }
+
+    /**
+     * Stores a message until it can be published. It is never dropped.
+     *
+     * @param topic The topic
+     * @param payload The payload
+     */
+    public synchronized void enqueue(String topic, byte[] payload) {
+        enqueue(topic, payload, null, true);
+    }
+
+    /**
+     * Stores a message until it can be published, superseding the queued message with the same
+     * topic and key.
+     *
+     * @param topic The topic
+     * @param payload The payload
+     * @param key The key of the message, e.g. a batch job, or null
+     * @param last True if no message with this key follows: the message is never dropped
+     */
+    public synchronized void enqueue(String topic, byte[] payload, String key, boolean last) {
+        boolean droppable = key != null && !last;
+        File file = new File(directory, String.format("%019d", nextSequence++) + (droppable ? PROGRESS_SUFFIX : SUFFIX));
+        byte[] header = (topic + "\n" + (droppable ? key + "\n" : "")).getBytes(StandardCharsets.UTF_8);
+        byte[] content = Arrays.copyOf(header, header.length + payload.length);
+        System.arraycopy(payload, 0, content, header.length, payload.length);
+        try {
+            Files.write(file.toPath(), content);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to store a message for " + topic, e);
+            return;
+        }
+        if (key != null && last) {
+            // The last message of a key supersedes the queued one but is kept like a result
+            Entry superseded = intermediate.remove(topic + "\n" + key);
+            if (superseded != null) {
+                queue.remove(superseded);
+                superseded.file.delete();
+            }
+        }
+        add(new Entry(file, droppable ? topic + "\n" + key : null));
+        if (queue.size() > maxMessages) {
+            Iterator<Entry> it = queue.iterator();
+            while (queue.size() > maxMessages && it.hasNext()) {
+                Entry entry = it.next();
+                if (entry.key != null) {
+                    Log.w(TAG, "Outbox full, dropping " + entry.file.getName());
+                    it.remove();
+                    intermediate.remove(entry.key, entry);
+                    entry.file.delete();
+                }
+            }
+            if (queue.size() > maxMessages) {
+                Log.w(TAG, "Outbox over capacity with " + queue.size() + " messages that are never dropped");
+            }
+        }
+    }
+
+    /**
+     * Publishes the queued messages in order until the publisher refuses one.
+     * A message is removed once the client has accepted it; from then on the
+     * client's own persistence keeps it until the broker acknowledges it.
+     *
+     * @param publisher The receiver of the messages
+     * @return The number of messages published
+     */
+    public synchronized int drain(Publisher publisher) {
+        int published = 0;
+        while (!queue.isEmpty()) {
+            Entry entry = queue.peek();
+            byte[] content;
+            try {
+                content = Files.readAllBytes(entry.file.toPath());
+            } catch (IOException e) {
+                Log.e(TAG, "Dropping unreadable message " + entry.file.getName(), e);
+                poll();
+                continue;
+            }
+            String[] header = new String[entry.key != null ? 2 : 1];
+            int start = readHeader(content, header);
+            byte[] payload = Arrays.copyOfRange(content, start, content.length);
+            if (!publisher.publish(header[0], payload)) {
+                break;
+            }
+            poll();
+            published++;
+        }
+        return published;
+    }
+
+    /**
+     * Get the number of queued messages.
+     *
+     * @return The number of messages waiting to be published
+     */
+    public synchronized int size() {
+        return queue.size();
+    }
+}
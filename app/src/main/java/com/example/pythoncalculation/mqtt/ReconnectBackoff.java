@@ -0,0 +1,36 @@
+package com.example.pythoncalculation.mqtt;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff for reconnecting to the MQTT broker.
+ * The delay starts at MIN_DELAY_MS, doubles after every failed attempt up to MAX_DELAY_MS,
+ * and is spread by +-20% so that many devices losing the same broker do not retry in lockstep.
+ */
+public class ReconnectBackoff {
+
+    private static final long MIN_DELAY_MS = 1000;
+    private static final long MAX_DELAY_MS = 60000;
+    private static final double JITTER = 0.2;
+
+    private final Random random = new Random();
+    private long nextDelayMs = MIN_DELAY_MS;
+
+    /**
+     * Returns the delay before the next attempt and doubles the one after it.
+     *
+     * @return The delay in milliseconds
+     */
+    public synchronized long nextDelayMs() {
+        long delay = nextDelayMs;
+        nextDelayMs = Math.min(MAX_DELAY_MS, nextDelayMs * 2);
+        return (long) (delay * (1 - JITTER + 2 * JITTER * random.nextDouble()));
+    }
+
+    /**
+     * Starts over at the minimum delay, called after a successful connection.
+     */
+    public synchronized void reset() {
+        nextDelayMs = MIN_DELAY_MS;
+    }
+}
@@ -0,0 +1,214 @@
+package com.example.pythoncalculation.pipeline;
+
+import java.util.ArrayDeque;
+
+/**
+ * Memory admission control for jobs that run at the same time.
+ *
+ * Every job reserves its estimated peak memory (see JobFootprint) before it loads its input, and
+ * releases it when it is done. A job whose reservation does not fit the free part of the budget
+ * waits; waiting jobs are admitted in arrival order, so a large job is not starved by small ones
+ * behind it. A job larger than the whole budget is admitted when nothing else runs, so it never
+ * shares the heap; callers that can run such a job on external storage do that instead (see
+ * fitsBudget).
+ *
+ * The budget is a share of the memory limit of the process: ActivityManager.getMemoryClass() on a
+ * device, the maximum heap on a JVM. It can be changed while jobs run.
+ */
+public final class AdmissionController {
+
+    /**
+     * Share of the memory limit given to jobs; the rest is left to the runtime, the UI and the
+     * MQTT client.
+     */
+    static final double BUDGET_SHARE = 0.75;
+
+    /**
+     * The memory reserved by one admitted job. Closing it releases the memory.
+     */
+    public final class Reservation implements AutoCloseable {
+        private final long bytes;
+        private final boolean external;
+        private boolean released;
+
+        private Reservation(long bytes, boolean external) {
+            this.bytes = bytes;
+            this.external = external;
+        }
+
+        /**
+         * Get the reserved memory.
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * Get whether the job was admitted to run on external storage.
+         */
+        public boolean isExternal() {
+            return external;
+        }
+
+        /**
+         * Releases the memory. Later calls do nothing.
+         */
+        @Override
+        public void close() {
+            release(this);
+        }
+    }
+
+    /**
+     * Notified once when a job has to wait for memory.
+     */
+    public interface WaitListener {
+        /**
+         * @param bytes The memory the job asks for
+         * @param freeBytes The free part of the budget
+         */
+        void onWait(long bytes, long freeBytes);
+    }
+
+    private long budgetBytes;
+    private long reservedBytes;
+    private int running;
+    // Waiting jobs in arrival order; the head is admitted first
+    private final ArrayDeque<Object> waiting = new ArrayDeque<>();
+
+    /**
+     * Creates a controller.
+     *
+     * @param budgetBytes The memory that admitted jobs may reserve together
+     */
+    public AdmissionController(long budgetBytes) {
+        if (budgetBytes <= 0) {
+            throw new IllegalArgumentException("The memory budget must be positive");
+        }
+        this.budgetBytes = budgetBytes;
+    }
+
+    /**
+     * Get the default budget of an app with the given memory class.
+     *
+     * @param memoryClassMb ActivityManager.getMemoryClass()
+     * @return The budget in bytes
+     */
+    public static long budgetFromMemoryClass(int memoryClassMb) {
+        return (long) (((long) memoryClassMb << 20) * BUDGET_SHARE);
+    }
+
+    /**
+     * Get the default budget of a JVM, from its maximum heap.
+     *
+     * @return The budget in bytes
+     */
+    public static long budgetFromMaxHeap() {
+        return (long) (Runtime.getRuntime().maxMemory() * BUDGET_SHARE);
+    }
+
+    /**
+     * Get the memory that admitted jobs may reserve together.
+     */
+    public synchronized long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    /**
+     * Changes the budget. Running jobs keep their reservations; waiting jobs are admitted if
+     * they fit the new budget.
+     *
+     * @param budgetBytes The new budget
+     */
+    public synchronized void setBudgetBytes(long budgetBytes) {
+        if (budgetBytes <= 0) {
+            throw new IllegalArgumentException("The memory budget must be positive");
+        }
+        this.budgetBytes = budgetBytes;
+        notifyAll();
+    }
+
+    /**
+     * Get the memory reserved by the running jobs.
+     */
+    public synchronized long getReservedBytes() {
+        return reservedBytes;
+    }
+
+    /**
+     * Get the number of running jobs.
+     */
+    public synchronized int getRunning() {
+        return running;
+    }
+
+    /**
+     * Get the number of jobs waiting for memory.
+     */
+    public synchronized int getWaiting() {
+        return waiting.size();
+    }
+
+    /**
+     * Get whether a reservation fits the budget at all, that is, when no other job runs.
+     *
+     * @param bytes The memory of the job
+     */
+    public synchronized boolean fitsBudget(long bytes) {
+        return bytes <= budgetBytes;
+    }
+
+    /**
+     * Reserves the memory of a job, waiting until it fits and the jobs that arrived earlier
+     * have been admitted.
+     *
+     * @param bytes The estimated peak memory of the job
+     * @param external Whether the job runs on external storage, kept in the reservation
+     * @param listener Notified if the job has to wait, or null
+     * @return The reservation, to be closed when the job is done
+     * @throws InterruptedException If the thread is interrupted while waiting; nothing is reserved
+     */
+    public synchronized Reservation admit(long bytes, boolean external, WaitListener listener)
+            throws InterruptedException {
+        Object ticket = new Object();
+        waiting.addLast(ticket);
+        try {
+            boolean notified = false;
+            while (waiting.peekFirst() != ticket || !fitsNow(bytes)) {
+                if (!notified && listener != null) {
+                    notified = true;
+                    listener.onWait(bytes, Math.max(0, budgetBytes - reservedBytes));
+                }
+                wait();
+            }
+        } catch (InterruptedException e) {
+            waiting.remove(ticket);
+            // The next job may be at the head now
+            notifyAll();
+            throw e;
+        }
+        waiting.removeFirst();
+        reservedBytes += bytes;
+        running++;
+        // The next job may fit as well
+        notifyAll();
+        return new Reservation(bytes, external);
+    }
+
+    /**
+     * Whether a job fits the free part of the budget; with nothing running, every job fits.
+     */
+    private boolean fitsNow(long bytes) {
+        return running == 0 || reservedBytes + bytes <= budgetBytes;
+    }
+
+    private synchronized void release(Reservation reservation) {
+        if (reservation.released) {
+            return;
+        }
+        reservation.released = true;
+        reservedBytes -= reservation.bytes;
+        running--;
+        notifyAll();
+    }
+}
@@ -0,0 +1,158 @@
+package com.example.pythoncalculation.pipeline;
+
+/**
+ * Estimated peak memory of one anonymization job, from the shape of its input.
+ *
+ * The estimate is taken before the input is read, so it works from a cheap description of the
+ * input: the number of rows (exact from a snapshot, else extrapolated from the first bytes of
+ * the file), the columns that are read (the header without the suppressed identifiers) and the
+ * quasi-identifiers. The per-row costs are deliberately on the high side; the admission
+ * controller only needs to keep the sum of the running jobs below the budget.
+ *
+ * The in-memory Python engine peaks in its write stage, where the frame, its reordered copy and
+ * the generalized quasi-identifier columns are alive at the same time. A fresh snapshot replaces
+ * the quasi-identifier text columns of the frame by one-byte placeholders and memory-maps the codes.
+ * The external engine bounds itself to its memory budget.
+ */
+public final class JobFootprint {
+
+    /**
+     * Bytes of one text cell of a pandas object column: the pointer and a short str object.
+     */
+    static final long PANDAS_CELL_BYTES = 64;
+
+    /**
+     * Bytes of one text cell of the headless engine: the array slot and a short String.
+     */
+    static final long JAVA_CELL_BYTES = 56;
+
+    /**
+     * Bytes per row and quasi-identifier of the encoded columns: the int32 codes, their ranks
+     * and the low and high ranges of the partitions.
+     */
+    static final long CODE_BYTES = 16;
+
+    /**
+     * Bytes per row of the permutation and the sort temporaries.
+     */
+    static final long ROW_BYTES = 16;
+
+    /**
+     * Memory of a job that does not grow with its rows: hierarchy trees, read buffers and the
+     * metrics.
+     */
+    static final long BASE_BYTES = 16L << 20;
+
+    public static final String ENGINE_MONDRIAN = "mondrian";
+    public static final String ENGINE_ROUNDING = "rounding";
+
+    private final long rows;
+    private final int columns;
+    private final int qiColumns;
+    private final boolean snapshot;
+    private final String engine;
+
+    /**
+     * Creates the footprint of an input.
+     *
+     * @param rows The number of rows, exact or estimated
+     * @param columns The columns that are read
+     * @param qiColumns The quasi-identifiers among them
+     * @param snapshot Whether a fresh snapshot replaces reading and encoding the input
+     * @param engine The engine of the data set, ENGINE_MONDRIAN or ENGINE_ROUNDING
+     */
+    public JobFootprint(long rows, int columns, int qiColumns, boolean snapshot, String engine) {
+        this.rows = rows;
+        this.columns = columns;
+        this.qiColumns = qiColumns;
+        this.snapshot = snapshot;
+        this.engine = engine;
+    }
+
+    /**
+     * Get the number of rows of the input.
+     */
+    public long getRows() {
+        return rows;
+    }
+
+    /**
+     * Get the number of columns that are read.
+     */
+    public int getColumns() {
+        return columns;
+    }
+
+    /**
+     * Get the number of quasi-identifiers.
+     */
+    public int getQiColumns() {
+        return qiColumns;
+    }
+
+    /**
+     * Get whether a fresh snapshot replaces reading and encoding the input.
+     */
+    public boolean isSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Get the engine of the data set.
+     */
+    public String getEngine() {
+        return engine;
+    }
+
+    /**
+     * Get whether the data set can run on external storage instead of in memory.
+     * The external engine runs Mondrian only.
+     */
+    public boolean supportsExternal() {
+        return ENGINE_MONDRIAN.equals(engine);
+    }
+
+    /**
+     * Get the peak memory of an in-memory run of the Python engine.
+     *
+     * @param diversity Whether the job enforces l-diversity, which encodes a sensitive column
+     * @return The estimate in bytes
+     */
+    public long inMemoryBytes(boolean diversity) {
+        if (ENGINE_ROUNDING.equals(engine)) {
+            // The frame and its rounded copy
+            return BASE_BYTES + 2 * rows * columns * PANDAS_CELL_BYTES;
+        }
+        long textColumns = snapshot ? columns - qiColumns : columns;
+        long frame = rows * (textColumns * PANDAS_CELL_BYTES + (snapshot ? qiColumns : 0));
+        long perRow = qiColumns * (CODE_BYTES + PANDAS_CELL_BYTES) + ROW_BYTES + (diversity ? 4 : 0);
+        // The frame, its reordered copy in the write stage and the generalized quasi-identifiers
+        return BASE_BYTES + 2 * frame + rows * perRow;
+    }
+
+    /**
+     * Get the peak memory of a run on external storage.
+     *
+     * @param memoryBudgetMb The memory budget of the external engine
+     * @return The estimate in bytes
+     */
+    public static long externalBytes(int memoryBudgetMb) {
+        return BASE_BYTES + ((long) memoryBudgetMb << 20);
+    }
+
+    /**
+     * Get the peak memory of a run of the headless Java engine, which holds the input as
+     * String columns and writes the output row by row.
+     *
+     * @return The estimate in bytes
+     */
+    public long javaEngineBytes() {
+        return BASE_BYTES + rows * (columns * JAVA_CELL_BYTES + qiColumns * CODE_BYTES + ROW_BYTES);
+    }
+
+    @Override
+    public String toString() {
+        return rows + " rows x " + columns + " columns (" + qiColumns + " quasi-identifiers"
+                + (snapshot ? ", snapshot" : "") + ", " + engine + ")";
+    }
+}
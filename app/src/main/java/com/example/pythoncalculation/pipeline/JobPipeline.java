@@ -0,0 +1,365 @@
+package com.example.pythoncalculation.pipeline;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.chaquo.python.Kwarg;
+import com.chaquo.python.PyObject;
+import com.chaquo.python.Python;
+import com.example.pythoncalculation.AnonymizationBatch;
+import com.example.pythoncalculation.AnonymizationCommand;
+import com.example.pythoncalculation.trace.Tracer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pipelined executor for batches of anonymization jobs.
+ *
+ * Every job passes three stages of algorithm.pipeline, each with its own single thread:
+ * 1. read: read the input and encode the quasi-identifiers
+ * 2. partition: run Mondrian on the encoded columns
+ * 3. write: generalize, verify and write the output file
+ *
+ * Because every stage has one thread and jobs are submitted in order, job N+1 is read
+ * while job N is partitioned and job N-1 is written. Jobs of later batches queue behind
+ * the jobs of earlier ones. At most MAX_JOBS_IN_FLIGHT jobs hold their data at a time,
+ * so a long batch cannot read all of its inputs ahead of the partition stage.
+ *
+ * Jobs with "external" storage bound their own memory, so they run as a whole in the
+ * partition stage through run_external_job.
+ *
+ * Before a job reads its input, it reserves its estimated peak memory on the AdmissionController
+ * shared with the single commands of the service, and keeps the reservation until its write stage
+ * is done. A job that does not fit waits in the read stage; a job whose in-memory run exceeds
+ * the whole budget runs on external storage if its options allow it, and alone otherwise.
+ *
+ * Every stage of a job is a Tracer section ("pipeline <stage> K=<k> <dataset>"), around the
+ * sections of the Python engine.
+ */
+public class JobPipeline {
+
+    private static final String TAG = "JobPipeline";
+    private static final String MODULE = "algorithm.pipeline";
+
+    /**
+     * Jobs between the start of their read stage and the end of their write stage.
+     * One per stage keeps all three stages busy.
+     */
+    private static final int MAX_JOBS_IN_FLIGHT = 3;
+
+    private static final String STAGE_READ = "read";
+    private static final String STAGE_PARTITION = "partition";
+    private static final String STAGE_WRITE = "write";
+    private static final String STORAGE_EXTERNAL = "external";
+    private static final int DEFAULT_EXTERNAL_BUDGET_MB = 64;
+
+    /**
+     * Receives the progress messages of all batches, on the pipeline threads.
+     */
+    public interface ProgressListener {
+        /**
+         * Called when a job enters a stage, finishes or fails.
+         *
+         * @param progress The state of the job and of its batch
+         */
+        void onProgress(JobProgress progress);
+    }
+
+    private final Python py;
+    private final ProgressListener listener;
+    private final AdmissionController admission;
+    private final ExecutorService readStage = newStage("pipeline-read");
+    private final ExecutorService partitionStage = newStage("pipeline-partition");
+    private final ExecutorService writeStage = newStage("pipeline-write");
+    private final Semaphore inFlight = new Semaphore(MAX_JOBS_IN_FLIGHT);
+
+    /**
+     * Aggregate state of one submitted batch.
+     */
+    private static class BatchState {
+        final String batchId;
+        final int jobCount;
+        final long startTime = SystemClock.elapsedRealtime();
+        final AtomicInteger completed = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+
+        BatchState(AnonymizationBatch batch, int completed, int failed) {
+            this.batchId = batch.getBatchId();
+            this.jobCount = batch.getJobs().size();
+            this.completed.set(completed);
+            this.failed.set(failed);
+        }
+    }
+
+    /**
+     * The admission of one job, from its read stage to the end of its write stage.
+     */
+    private static class JobRun {
+        AdmissionController.Reservation reservation;
+        PyObject handle;
+
+        boolean isExternal() {
+            return reservation != null && reservation.isExternal();
+        }
+    }
+
+    /**
+     * Creates the pipeline. The stage threads are started on the first submitted job.
+     *
+     * @param py The Python instance
+     * @param listener The receiver of the progress messages
+     * @param admission The memory admission of the jobs, shared with the single commands
+     */
+    public JobPipeline(Python py, ProgressListener listener, AdmissionController admission) {
+        this.py = py;
+        this.listener = listener;
+        this.admission = admission;
+    }
+
+    /**
+     * Creates the single daemon thread of a stage.
+     *
+     * @param name The thread name
+     * @return The stage executor
+     */
+    private static ExecutorService newStage(String name) {
+        return Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queues all jobs of a batch. Returns immediately; progress is reported to the listener.
+     *
+     * @param batch A validated batch
+     */
+    public void submit(AnonymizationBatch batch) {
+        List<Integer> jobIndexes = new ArrayList<>();
+        for (int i = 0; i < batch.getJobs().size(); i++) {
+            jobIndexes.add(i);
+        }
+        submit(batch, jobIndexes, 0, 0);
+    }
+
+    /**
+     * Queues some jobs of a batch, used to resume a batch that was interrupted.
+     * Progress messages keep the original job indexes and aggregate counts.
+     *
+     * @param batch A validated batch
+     * @param jobIndexes The indexes of the jobs to run
+     * @param completed The number of jobs that finished before the interruption
+     * @param failed The number of jobs that failed before the interruption
+     */
+    public void submit(AnonymizationBatch batch, List<Integer> jobIndexes, int completed, int failed) {
+        BatchState state = new BatchState(batch, completed, failed);
+        for (int index : jobIndexes) {
+            final AnonymizationCommand job = batch.getJobs().get(index);
+            final JobRun run = new JobRun();
+            CompletableFuture.runAsync(() -> read(state, index, job, run), readStage)
+                    .thenRunAsync(() -> partition(state, index, job, run), partitionStage)
+                    .thenApplyAsync(ignored -> write(state, index, job, run), writeStage)
+                    .whenComplete((summary, error) -> finish(state, index, job, run, summary, error));
+        }
+    }
+
+    /**
+     * Stage 1: reserves the memory of a job, then reads and encodes its dataset into run.handle.
+     * Blocks the read thread while MAX_JOBS_IN_FLIGHT jobs are in the pipeline, and while the
+     * job does not fit the memory budget. External storage jobs read nothing here.
+     */
+    private void read(BatchState state, int index, AnonymizationCommand job, JobRun run) {
+        inFlight.acquireUninterruptibly();
+        try {
+            run.reservation = admit(job, (bytes, freeBytes) -> report(state, index, job, STAGE_READ,
+                    JobProgress.STATUS_RUNNING, "Waiting for " + (bytes >> 20) + " MB of memory, "
+                            + (freeBytes >> 20) + " MB free"));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for memory", e);
+        }
+        if (run.isExternal()) {
+            return;
+        }
+        report(state, index, job, STAGE_READ, JobProgress.STATUS_RUNNING, null);
+        boolean sampled = "sampled".equals(job.getCutEstimation());
+        Tracer.begin(sectionName(STAGE_READ, job));
+        try {
+            run.handle = py.getModule(MODULE).callAttr("read_job", job.getDataset(), job.getKValue(),
+                    new Kwarg("l_value", job.getLValue()),
+                    new Kwarg("diversity_mode", job.getDiversity()),
+                    new Kwarg("sample_size", sampled ? (job.getSampleSize() > 0 ? job.getSampleSize() : 10000) : 0),
+                    new Kwarg("split_mode", job.getSplitMode()),
+                    new Kwarg("generalization", job.getGeneralization()));
+        } finally {
+            Tracer.end();
+        }
+    }
+
+    /**
+     * Stage 2: partitions the encoded dataset. External storage jobs run completely here;
+     * run.handle then holds their metrics summary.
+     */
+    private void partition(BatchState state, int index, AnonymizationCommand job, JobRun run) {
+        report(state, index, job, STAGE_PARTITION, JobProgress.STATUS_RUNNING, null);
+        Tracer.begin(sectionName(STAGE_PARTITION, job));
+        PyObject handle = run.handle;
+        try {
+            if (run.isExternal()) {
+                run.handle = py.getModule(MODULE).callAttr("run_external_job", job.getDataset(), job.getKValue(),
+                        new Kwarg("memory_budget_mb", externalBudgetMb(job)),
+                        new Kwarg("l_value", job.getLValue()),
+                        new Kwarg("cut_estimation", job.getCutEstimation()),
+                        new Kwarg("split_mode", job.getSplitMode()),
+                        new Kwarg("generalization", job.getGeneralization()));
+            } else {
+                run.handle = py.getModule(MODULE).callAttr("partition_job", handle);
+            }
+        } finally {
+            Tracer.end();
+            if (handle != null) {
+                handle.close();
+            }
+        }
+    }
+
+    /**
+     * Stage 3: writes the anonymized dataset. External storage jobs have already written theirs.
+     *
+     * @return The information-loss summary of the job
+     */
+    private String write(BatchState state, int index, AnonymizationCommand job, JobRun run) {
+        PyObject handle = run.handle;
+        run.handle = null;
+        try {
+            if (run.isExternal()) {
+                return handle.toString();
+            }
+            report(state, index, job, STAGE_WRITE, JobProgress.STATUS_RUNNING, null);
+            Tracer.begin(sectionName(STAGE_WRITE, job));
+            try (PyObject summary = py.getModule(MODULE).callAttr("write_job", handle)) {
+                return summary.toString();
+            } finally {
+                Tracer.end();
+            }
+        } finally {
+            handle.close();
+        }
+    }
+
+    /**
+     * Reserves the memory of a job or single command on the admission controller, waiting while
+     * it does not fit. The estimate comes from the shape of the input (algorithm.pipeline.input_shape).
+     * A job whose in-memory run exceeds the whole budget is sent to external storage if the
+     * data set and its options allow it; otherwise it runs alone.
+     *
+     * @param job The job or single command
+     * @param waitListener Notified if the job has to wait, or null
+     * @return The reservation, to be closed when the job is done. isExternal() tells whether
+     *         the job has to run on external storage
+     * @throws InterruptedException If the thread is interrupted while waiting
+     */
+    public AdmissionController.Reservation admit(AnonymizationCommand job, AdmissionController.WaitListener waitListener)
+            throws InterruptedException {
+        JobFootprint footprint = footprint(job.getDataset());
+        boolean external = STORAGE_EXTERNAL.equals(job.getStorage()) && footprint.supportsExternal();
+        long bytes = external ? JobFootprint.externalBytes(externalBudgetMb(job)) : footprint.inMemoryBytes(job.getLValue() > 1);
+        if (!external && !admission.fitsBudget(bytes) && canRunExternal(job, footprint)) {
+            Log.i(TAG, "K = " + job.getKValue() + " on " + job.getDataset() + " needs about " + (bytes >> 20)
+                    + " MB in memory, more than the budget; running it on external storage");
+            external = true;
+            bytes = JobFootprint.externalBytes(externalBudgetMb(job));
+        }
+        Log.d(TAG, "Admitting K = " + job.getKValue() + " on " + job.getDataset() + ": " + footprint + ", "
+                + (bytes >> 20) + " MB" + (external ? " on external storage" : ""));
+        return admission.admit(bytes, external, waitListener);
+    }
+
+    /**
+     * Get the shape of the input of a data set, without reading it.
+     */
+    private JobFootprint footprint(String dataset) {
+        try (PyObject shape = py.getModule(MODULE).callAttr("input_shape", dataset)) {
+            List<PyObject> fields = shape.asList();
+            return new JobFootprint(fields.get(0).toLong(), fields.get(1).toInt(), fields.get(2).toInt(),
+                    fields.get(3).toBoolean(), fields.get(4).toString());
+        }
+    }
+
+    /**
+     * Get whether a job may be moved to external storage: the external engine runs exact median
+     * cuts of Mondrian without l-diversity.
+     */
+    private static boolean canRunExternal(AnonymizationCommand job, JobFootprint footprint) {
+        return footprint.supportsExternal() && job.getLValue() <= 1 && "exact".equals(job.getCutEstimation())
+                && "median".equals(job.getSplitMode()) && "local".equals(job.getGeneralization());
+    }
+
+    /**
+     * Get the memory budget of a job on external storage.
+     */
+    private static int externalBudgetMb(AnonymizationCommand job) {
+        return job.getMemoryBudgetMb() > 0 ? job.getMemoryBudgetMb() : DEFAULT_EXTERNAL_BUDGET_MB;
+    }
+
+    /**
+     * Get the trace section name of a stage of a job.
+     */
+    private static String sectionName(String stage, AnonymizationCommand job) {
+        return "pipeline " + stage + " K=" + job.getKValue() + " " + job.getDataset();
+    }
+
+    /**
+     * Counts a finished or failed job and releases its memory and its pipeline slot.
+     */
+    private void finish(BatchState state, int index, AnonymizationCommand job, JobRun run, String summary,
+                        Throwable error) {
+        if (run.handle != null) {
+            run.handle.close();
+        }
+        if (run.reservation != null) {
+            run.reservation.close();
+        }
+        inFlight.release();
+        if (error != null) {
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            Log.e(TAG, "Job " + index + " of batch " + state.batchId + " failed", cause);
+            state.failed.incrementAndGet();
+            report(state, index, job, null, JobProgress.STATUS_FAILED, cause.getMessage());
+        } else {
+            state.completed.incrementAndGet();
+            report(state, index, job, null, JobProgress.STATUS_DONE, summary);
+        }
+    }
+
+    /**
+     * Sends a progress message with the current aggregate state of the batch.
+     */
+    private void report(BatchState state, int index, AnonymizationCommand job, String stage, String status, String message) {
+        JobProgress progress = new JobProgress(state.batchId, index, job.getDataset(), job.getKValue(), stage, status, message);
+        progress.setAggregate(state.jobCount, state.completed.get(), state.failed.get(),
+                SystemClock.elapsedRealtime() - state.startTime);
+        try {
+            listener.onProgress(progress);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Progress listener failed", e);
+        }
+    }
+
+    /**
+     * Stops the stage threads. Queued jobs are dropped.
+     */
+    public void shutdown() {
+        readStage.shutdownNow();
+        partitionStage.shutdownNow();
+        writeStage.shutdownNow();
+    }
+}
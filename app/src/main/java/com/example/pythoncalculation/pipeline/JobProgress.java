@@ -0,0 +1,162 @@
+package com.example.pythoncalculation.pipeline;
+
+/**
+ * Progress message of a batch, published as JSON on the progress topic.
+ * Every message carries the state of one job and the aggregate state of its batch.
+ */
+public class JobProgress {
+
+    /** The job entered a stage ("read", "partition" or "write"). */
+    public static final String STATUS_RUNNING = "running";
+    /** The job finished all stages. */
+    public static final String STATUS_DONE = "done";
+    /** The job failed; message holds the reason. */
+    public static final String STATUS_FAILED = "failed";
+
+    private String batchId;
+    private int jobIndex;
+    private String dataset;
+    private int kValue;
+    private String stage;
+    private String status;
+    private String message;
+
+    // Aggregate state of the batch when this message was created
+    private int jobCount;
+    private int completed;
+    private int failed;
+    private long elapsedMs;
+    private double jobsPerMinute;
+
+    /**
+     * Creates a progress message.
+     *
+     * @param batchId The ID of the batch
+     * @param jobIndex The index of the job in the batch
+     * @param dataset The dataset of the job
+     * @param kValue The K value of the job
+     * @param stage The pipeline stage of the job
+     * @param status One of STATUS_RUNNING, STATUS_DONE or STATUS_FAILED
+     * @param message The metrics summary of a finished job, the error of a failed one, or null
+     */
+    public JobProgress(String batchId, int jobIndex, String dataset, int kValue,
+                       String stage, String status, String message) {
+        this.batchId = batchId;
+        this.jobIndex = jobIndex;
+        this.dataset = dataset;
+        this.kValue = kValue;
+        this.stage = stage;
+        this.status = status;
+        this.message = message;
+    }
+
+    /**
+     * Sets the aggregate state of the batch.
+     *
+     * @param jobCount The number of jobs in the batch
+     * @param completed The number of finished jobs
+     * @param failed The number of failed jobs
+     * @param elapsedMs The time since the batch was submitted
+     */
+    void setAggregate(int jobCount, int completed, int failed, long elapsedMs) {
+        this.jobCount = jobCount;
+        this.completed = completed;
+        this.failed = failed;
+        this.elapsedMs = elapsedMs;
+        // Failed jobs also leave the pipeline, so they count towards the throughput
+        this.jobsPerMinute = elapsedMs > 0 ? (completed + failed) * 60000.0 / elapsedMs : 0.0;
+    }
+
+    /**
+     * @return The ID of the batch
+     */
+    public String getBatchId() {
+        return batchId;
+    }
+
+    /**
+     * @return The index of the job in the batch
+     */
+    public int getJobIndex() {
+        return jobIndex;
+    }
+
+    /**
+     * @return The dataset of the job
+     */
+    public String getDataset() {
+        return dataset;
+    }
+
+    /**
+     * @return The K value of the job
+     */
+    public int getKValue() {
+        return kValue;
+    }
+
+    /**
+     * @return The pipeline stage of the job
+     */
+    public String getStage() {
+        return stage;
+    }
+
+    /**
+     * @return "running", "done" or "failed"
+     */
+    public String getStatus() {
+        return status;
+    }
+
+    /**
+     * @return The metrics summary, the error, or null
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * @return The number of jobs in the batch
+     */
+    public int getJobCount() {
+        return jobCount;
+    }
+
+    /**
+     * @return The number of finished jobs
+     */
+    public int getCompleted() {
+        return completed;
+    }
+
+    /**
+     * @return The number of failed jobs
+     */
+    public int getFailed() {
+        return failed;
+    }
+
+    /**
+     * @return The time since the batch was submitted, in milliseconds
+     */
+    public long getElapsedMs() {
+        return elapsedMs;
+    }
+
+    /**
+     * @return The throughput of the batch so far
+     */
+    public double getJobsPerMinute() {
+        return jobsPerMinute;
+    }
+
+    /**
+     * Checks whether this message reports the last job of its batch.
+     *
+     * @return true if every job of the batch is finished or failed
+     */
+    public boolean isBatchFinished() {
+        return completed + failed == jobCount;
+    }
+}
@@ -0,0 +1,1352 @@
+package com.example.pythoncalculation.service;
+
+import android.app.ActivityManager;
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.util.Log;
+
+import com.chaquo.python.Kwarg;
+import com.chaquo.python.PyObject;
+import com.chaquo.python.Python;
+import com.example.pythoncalculation.AnonymizationBatch;
+import com.example.pythoncalculation.AnonymizationCommand;
+import com.example.pythoncalculation.MainActivity;
+import com.example.pythoncalculation.codec.BinaryCodec;
+import com.example.pythoncalculation.mqtt.CommandDeduplicator;
+import com.example.pythoncalculation.mqtt.Outbox;
+import com.example.pythoncalculation.mqtt.ReconnectBackoff;
+import com.example.pythoncalculation.pipeline.AdmissionController;
+import com.example.pythoncalculation.pipeline.JobPipeline;
+import com.example.pythoncalculation.pipeline.JobProgress;
+import com.example.pythoncalculation.startup.PythonRuntime;
+import com.example.pythoncalculation.startup.StartupTrace;
+import com.example.pythoncalculation.trace.AndroidTraceBackend;
+import com.example.pythoncalculation.trace.Tracer;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonSyntaxException;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Foreground service that owns the MQTT connection, the Python runtime and the job scheduler.
+ *
+ * Activities bind to the service to show its state, so rotating the screen, backgrounding the
+ * app or destroying the activity no longer drops the broker link or orphans a running job.
+ * The service is started as sticky: if the system kills it, it is restarted and resumes the
+ * unfinished commands and batch jobs recorded in its JobJournal.
+ *
+ * Single commands (from MQTT or the UI) run one at a time on the command executor;
+ * batches run on the JobPipeline. Listeners are called on the main thread.
+ * Both reserve their estimated peak memory on one AdmissionController before they load their
+ * input, so overlapping jobs queue instead of running out of memory together. The budget is a
+ * share of the memory class of the app, or the value set with setMemoryBudgetMb().
+ *
+ * Startup is phased: the journal is loaded and the broker connection started first, while
+ * PythonRuntime starts the interpreter, imports the engine and pre-warms the hierarchy cache on
+ * a background thread. Commands that arrive before the engine is ready are journaled at once and
+ * queued in arrival order until it is.
+ *
+ * Once the engine is ready, the inputs are ingested into the dataset store
+ * (algorithm/dataset_store.py) and their pre-encoded snapshots (algorithm/snapshot.py) are
+ * refreshed on the snapshot executor, and again for a data set announced on
+ * MQTT_DATASET_UPDATED_TOPIC, so commands skip reading and encoding an unchanged input.
+ *
+ * Commands, pipeline stages and the stages of the Python engine are android.os.Trace sections
+ * (see Tracer), so a slow run can be inspected in a system trace. {"enabled": true} on
+ * MQTT_PROFILING_TOPIC switches on the profiling mode of the engine: the result of every following
+ * command then also holds its partition-size distribution and time per recursion level.
+ *
+ * Counting queries on the stored results (algorithm/class_summary.py) arrive on MQTT_QUERY_TOPIC and
+ * are answered on MQTT_QUERY_RESULT_TOPIC, or come from the app through runQuery. They run on their
+ * own executor from the equivalence-class summaries, so they are not queued behind commands.
+ */
+public class AnonymizationService extends Service {
+
+    private static final String TAG = "MQTT";
+
+    // MQTT Configuration
+    public static final String DEFAULT_MQTT_BROKER_URL = "tcp://192.168.8.126:1883"; // Default MQTT broker address
+    private static final String MQTT_TOPIC = "anonymization/commands"; // Topic to listen for commands
+    private static final String MQTT_PROGRESS_TOPIC = "anonymization/progress"; // Topic for batch progress
+    private static final String MQTT_RESULT_TOPIC = "anonymization/results"; // Topic for single command results
+    private static final String MQTT_DATASET_UPDATED_TOPIC = "anonymization/datasets/updated"; // Topic for changed inputs
+    private static final String MQTT_PROFILING_TOPIC = "anonymization/profiling"; // Topic to switch the profiling mode
+    private static final String MQTT_QUERY_TOPIC = "anonymization/queries"; // Topic for counting queries
+    private static final String MQTT_QUERY_RESULT_TOPIC = "anonymization/queries/results"; // Topic for query answers
+    private static final int MQTT_QOS = 1; // At least once; duplicates are removed by command ID
+    private static final int OUTBOX_CAPACITY = 1000; // Outgoing messages kept while the broker is unreachable
+
+    // SharedPreferences keys
+    public static final String PREF_NAME = "MqttPreferences";
+    public static final String PREF_BROKER_URL = "broker_url";
+    private static final String PREF_USE_WEARABLE = "use_wearable";
+    private static final String PREF_CLIENT_ID = "client_id";
+    private static final String PREF_MEMORY_BUDGET_MB = "memory_budget_mb";
+
+    // Foreground notification
+    private static final String CHANNEL_ID = "anonymization";
+    private static final int NOTIFICATION_ID = 1;
+    private static final String ACTION_STOP = "com.example.pythoncalculation.action.STOP";
+
+    /**
+     * Receives the state of the service, on the main thread.
+     */
+    public interface Listener {
+        /**
+         * The broker connection or the work of the service changed.
+         *
+         * @param status A human-readable status line
+         * @param connected Whether the broker is connected
+         */
+        void onStatusChanged(String status, boolean connected);
+
+        /**
+         * A single command started, from MQTT, the UI or a resumed journal.
+         *
+         * @param command The command
+         */
+        void onCommandStarted(AnonymizationCommand command);
+
+        /**
+         * A single command finished.
+         *
+         * @param command The command
+         * @param result The metrics and preview of the result, or null if it failed
+         */
+        void onCommandFinished(AnonymizationCommand command, String result);
+
+        /**
+         * An MQTT message was rejected.
+         *
+         * @param title The error title
+         * @param message The error message
+         */
+        void onInvalidMessage(String title, String message);
+    }
+
+    /**
+     * Receives the answer of a query started with runQuery, on the main thread.
+     */
+    public interface QueryListener {
+        /**
+         * @param response The JSON answer, with an "error" member if the query failed
+         * @param text The answer as text, one line per group
+         */
+        void onQueryResult(String response, String text);
+    }
+
+    /**
+     * Binder returned to activities.
+     */
+    public class LocalBinder extends Binder {
+        /**
+         * @return The running service
+         */
+        public AnonymizationService getService() {
+            return AnonymizationService.this;
+        }
+    }
+
+    private final IBinder binder = new LocalBinder();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final Gson gson = new Gson();
+
+    // MQTT Client
+    private MqttAsyncClient mqttClient;
+    private String mqttBrokerUrl;
+    private volatile String status = "Starting...";
+    private volatile boolean connected;
+
+    // Reliable transport: persistent session, reconnect backoff, outbox and duplicate filter
+    private final ReconnectBackoff reconnectBackoff = new ReconnectBackoff();
+    private Runnable pendingReconnect;
+    private Outbox outbox;
+    private CommandDeduplicator commandDeduplicator;
+
+    // Binary payloads: one codec per thread (MQTT callback, pipeline threads, command thread)
+    // and the batches whose progress is published on the binary topic
+    private final ThreadLocal<BinaryCodec> codecs = ThreadLocal.withInitial(BinaryCodec::new);
+    private final Set<String> binaryBatches = ConcurrentHashMap.newKeySet();
+
+    // Scheduler: single commands one at a time, batches on the pipeline.
+    // Both are set when the engine is ready; work that arrives earlier waits in engineQueue
+    private volatile PyObject mondrianModule;
+    private volatile PyObject traceModule;
+    private volatile PyObject summaryModule;
+    private volatile JobPipeline jobPipeline;
+    private AdmissionController admission;
+    private final List<Runnable> engineQueue = new ArrayList<>();
+    private boolean engineReady;
+    private boolean destroyed;
+    private final ExecutorService commandExecutor = Executors.newSingleThreadExecutor(r -> new Thread(r, "command"));
+    private final ExecutorService snapshotExecutor = Executors.newSingleThreadExecutor(r -> new Thread(r, "snapshot"));
+    private final ExecutorService queryExecutor = Executors.newSingleThreadExecutor(r -> new Thread(r, "query"));
+    private JobJournal journal;
+    private volatile AnonymizationCommand currentCommand;
+    private volatile AnonymizationCommand lastCommand;
+    private volatile String lastResult;
+
+    /**
+     * Starts the service in the foreground. Safe to call when it is already running.
+     *
+     * @param context Any context
+     */
+    public static void start(Context context) {
+        context.startForegroundService(new Intent(context, AnonymizationService.class));
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        startForeground(NOTIFICATION_ID, buildNotification(status));
+        StartupTrace.mark(StartupTrace.SERVICE_CREATED);
+        Tracer.setBackend(new AndroidTraceBackend());
+        admission = new AdmissionController(getMemoryBudgetBytes());
+
+        // Phase 1: outgoing messages, the IDs of handled commands and unfinished work survive restarts.
+        // Resumed work is queued until the engine is ready
+        outbox = new Outbox(new File(getFilesDir(), "mqtt_outbox"), OUTBOX_CAPACITY);
+        commandDeduplicator = new CommandDeduplicator(new File(getFilesDir(), "mqtt_command_ids.txt"));
+        journal = new JobJournal(new File(getFilesDir(), "job_journal.json"));
+        resumeUnfinishedWork();
+
+        // Phase 2: connect to the broker before Python is started; the connection is asynchronous
+        mqttBrokerUrl = getSavedBrokerUrl();
+        if (checkNetworkConnectivity()) {
+            StartupTrace.mark(StartupTrace.MQTT_CONNECT_STARTED);
+            connectToMqttBroker(mqttBrokerUrl);
+            setStatus("Ready. Waiting for MQTT commands...", false);
+        } else {
+            setStatus("Network unavailable. Cannot connect to MQTT broker.", false);
+        }
+
+        // Phase 3: the Python engine starts on a background thread
+        PythonRuntime.start(this).whenComplete((py, error) -> {
+            if (error != null) {
+                setStatus("Anonymization engine failed to start: " + error.getMessage(), connected);
+            } else {
+                onEngineReady(py);
+            }
+        });
+    }
+
+    /**
+     * Creates the scheduler on the Python engine and runs the work that waited for it, in arrival order.
+     *
+     * @param py The started Python instance
+     */
+    private void onEngineReady(Python py) {
+        synchronized (engineQueue) {
+            if (destroyed) {
+                return;
+            }
+        }
+        mondrianModule = py.getModule("algorithm.mondrian");
+        traceModule = py.getModule("algorithm.trace");
+        summaryModule = py.getModule("algorithm.class_summary");
+        // Batch jobs run on the pipeline threads and report progress over MQTT
+        jobPipeline = new JobPipeline(py, this::publishProgress, admission);
+        // The tasks only hand work to the executors, so they run under the lock to keep their order
+        synchronized (engineQueue) {
+            for (Runnable task : engineQueue) {
+                task.run();
+            }
+            engineQueue.clear();
+            engineReady = true;
+        }
+        StartupTrace.mark(StartupTrace.READY_FOR_COMMANDS);
+        Log.i(TAG, "Cold start:\n" + StartupTrace.summary());
+
+        // Inputs changed while the app was not running are encoded in the background
+        snapshotExecutor.execute(() -> refreshSnapshots(null, false));
+    }
+
+    /**
+     * Ingests the CSV file of one or all data sets into the dataset store (algorithm/dataset_store.py),
+     * then rebuilds their pre-encoded snapshots from it. Runs on the snapshot executor; a command that
+     * reads the data set meanwhile reads the file and encodes the input itself.
+     *
+     * @param dataset The dataset ID, or null for every registered data set
+     * @param force Whether to ingest an input and rebuild a snapshot that look fresh
+     */
+    private void refreshSnapshots(String dataset, boolean force) {
+        try (PyObject storeModule = PythonRuntime.await().getModule("algorithm.dataset_store");
+             PyObject ingested = dataset == null
+                     ? storeModule.callAttr("refresh_all", force)
+                     : storeModule.callAttr("refresh", dataset, force)) {
+            Log.i(TAG, "Ingested " + (dataset == null ? "all data sets" : dataset) + " into the store: " + ingested);
+        } catch (Exception e) {
+            // The snapshots are built from the CSV files then
+            Log.e(TAG, "Failed to ingest " + (dataset == null ? "the data sets" : dataset) + " into the store", e);
+        }
+        try (PyObject snapshotModule = PythonRuntime.await().getModule("algorithm.snapshot");
+             PyObject written = dataset == null
+                     ? snapshotModule.callAttr("refresh_all", force)
+                     : snapshotModule.callAttr("refresh", dataset, force)) {
+            Log.i(TAG, "Refreshed snapshots of " + (dataset == null ? "all data sets" : dataset) + ": " + written);
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to refresh the snapshot of " + (dataset == null ? "the data sets" : dataset), e);
+        }
+    }
+
+    /**
+     * Runs a task that needs the engine now, or when the engine is ready.
+     * Tasks keep their order either way.
+     *
+     * @param task The task, run on the calling thread or on the startup thread; it must not block
+     */
+    private void whenEngineReady(Runnable task) {
+        synchronized (engineQueue) {
+            if (engineReady) {
+                task.run();
+            } else {
+                engineQueue.add(task);
+            }
+        }
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null && ACTION_STOP.equals(intent.getAction())) {
+            stopForeground(true);
+            stopSelf();
+            return START_NOT_STICKY;
+        }
+        // Restarted by the system after being killed: onCreate() has resumed the journal
+        return START_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return binder;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        // Stop receiving commands first; the persistent session keeps queued ones at the broker
+        cancelPendingReconnect();
+        closeMqttClient();
+        Log.d(TAG, "Disconnected from MQTT broker");
+
+        // Work that has not finished stays in the journal and is resumed on the next start
+        synchronized (engineQueue) {
+            destroyed = true;
+            engineQueue.clear();
+        }
+        if (jobPipeline != null) {
+            jobPipeline.shutdown();
+        }
+        commandExecutor.shutdownNow();
+        snapshotExecutor.shutdownNow();
+        queryExecutor.shutdownNow();
+    }
+
+    // ---------------------------------------------------------------------------------------
+    // Listeners and status
+    // ---------------------------------------------------------------------------------------
+
+    /**
+     * Registers a listener and sends it the current status.
+     *
+     * @param listener The listener
+     */
+    public void addListener(Listener listener) {
+        listeners.addIfAbsent(listener);
+        listener.onStatusChanged(status, connected);
+    }
+
+    /**
+     * Unregisters a listener.
+     *
+     * @param listener The listener
+     */
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Updates the status line, the foreground notification and the listeners.
+     */
+    private void setStatus(String newStatus, boolean isConnected) {
+        status = newStatus;
+        connected = isConnected;
+        mainHandler.post(() -> {
+            NotificationManager manager = getSystemService(NotificationManager.class);
+            manager.notify(NOTIFICATION_ID, buildNotification(newStatus));
+            for (Listener listener : listeners) {
+                listener.onStatusChanged(newStatus, isConnected);
+            }
+        });
+    }
+
+    /**
+     * Builds the foreground notification with a stop action.
+     */
+    private Notification buildNotification(String text) {
+        NotificationManager manager = getSystemService(NotificationManager.class);
+        manager.createNotificationChannel(new NotificationChannel(CHANNEL_ID, "Anonymization",
+                NotificationManager.IMPORTANCE_LOW));
+        PendingIntent open = PendingIntent.getActivity(this, 0, new Intent(this, MainActivity.class),
+                PendingIntent.FLAG_IMMUTABLE);
+        PendingIntent stop = PendingIntent.getService(this, 1,
+                new Intent(this, AnonymizationService.class).setAction(ACTION_STOP), PendingIntent.FLAG_IMMUTABLE);
+        return new Notification.Builder(this, CHANNEL_ID)
+                .setContentTitle("Anonymization service")
+                .setContentText(text)
+                .setSmallIcon(android.R.drawable.stat_notify_sync)
+                .setContentIntent(open)
+                .addAction(new Notification.Action.Builder(null, "Stop", stop).build())
+                .setOngoing(true)
+                .build();
+    }
+
+    /**
+     * Reports a rejected message to the listeners.
+     *
+     * @param title The error title
+     * @param message The error message
+     */
+    private void handleInvalidMessage(String title, String message) {
+        Log.e(TAG, title + ": " + message);
+        setStatus(title + ": " + message, connected);
+        mainHandler.post(() -> {
+            for (Listener listener : listeners) {
+                listener.onInvalidMessage(title, message);
+            }
+        });
+    }
+
+    // ---------------------------------------------------------------------------------------
+    // Scheduler
+    // ---------------------------------------------------------------------------------------
+
+    /**
+     * Get the command that is running.
+     *
+     * @return The running single command, or null
+     */
+    public AnonymizationCommand getCurrentCommand() {
+        return currentCommand;
+    }
+
+    /**
+     * Get the last finished command.
+     *
+     * @return The last finished single command, or null
+     */
+    public AnonymizationCommand getLastCommand() {
+        return lastCommand;
+    }
+
+    /**
+     * Get the result of the last finished command.
+     *
+     * @return The metrics and preview of the last result, or null if it failed or none finished
+     */
+    public String getLastResult() {
+        return lastResult;
+    }
+
+    /**
+     * Answers a counting query from the equivalence-class summaries of a stored result, see
+     * algorithm/class_summary.py for the request format. Queries do not wait for running commands.
+     *
+     * @param request The JSON request
+     * @param listener Receives the answer on the main thread
+     */
+    public void runQuery(String request, QueryListener listener) {
+        whenEngineReady(() -> queryExecutor.execute(() -> {
+            String response = query(request);
+            String text;
+            try (PyObject formatted = summaryModule.callAttr("format_result", response)) {
+                text = formatted.toString();
+            } catch (Exception e) {
+                text = response;
+            }
+            String answer = text;
+            mainHandler.post(() -> listener.onQueryResult(response, answer));
+        }));
+    }
+
+    /**
+     * Queues a single command. It is journaled first, so it is resumed if the service is killed.
+     *
+     * @param command A validated command
+     */
+    public void runCommand(AnonymizationCommand command) {
+        String journalKey = journal.startCommand(command);
+        // Record the ID only once the command is journaled, so a redelivery before this point still runs it
+        recordCommandId(command.getCommandId());
+        runCommand(command, journalKey);
+    }
+
+    /**
+     * Queues a single command that is already journaled under journalKey.
+     */
+    private void runCommand(AnonymizationCommand command, String journalKey) {
+        whenEngineReady(() -> commandExecutor.execute(() -> {
+            // Reserve the memory of the command; it waits while batch jobs hold the budget
+            AdmissionController.Reservation reservation;
+            try {
+                reservation = jobPipeline.admit(command, (bytes, freeBytes) -> setStatus("K = "
+                        + command.getKValue() + " on " + command.getDataset() + " waits for "
+                        + (bytes >> 20) + " MB of memory", connected));
+            } catch (InterruptedException e) {
+                // The service is stopping: the command stays journaled and is resumed on the next start
+                return;
+            } catch (RuntimeException e) {
+                // No estimate (e.g. an unknown data set): the engine reports the error itself
+                Log.w(TAG, "No memory estimate for " + command, e);
+                reservation = null;
+            }
+            currentCommand = command;
+            setStatus("Running K = " + command.getKValue() + " on " + command.getDataset(), connected);
+            mainHandler.post(() -> {
+                for (Listener listener : listeners) {
+                    listener.onCommandStarted(command);
+                }
+            });
+
+            String result;
+            try {
+                result = executeCommand(command, reservation != null && reservation.isExternal());
+            } finally {
+                if (reservation != null) {
+                    reservation.close();
+                }
+            }
+
+            // Publish before removing the journal entry: the outbox keeps the result from here on
+            publishResult(command, result);
+            journal.finishCommand(journalKey);
+            currentCommand = null;
+            lastCommand = command;
+            lastResult = result;
+            setStatus("Finished K = " + command.getKValue() + " on " + command.getDataset(), connected);
+            mainHandler.post(() -> {
+                for (Listener listener : listeners) {
+                    listener.onCommandFinished(command, result);
+                }
+            });
+        }));
+    }
+
+    /**
+     * Runs a single command in Python.
+     *
+     * @param external Whether the admission controller sent the command to external storage
+     * @return The metrics and preview of the result, or null if it failed
+     */
+    private String executeCommand(AnonymizationCommand command, boolean external) {
+        Tracer.begin("command K=" + command.getKValue() + " " + command.getDataset());
+        try (PyObject pyObjectAnonymizedDataResult = mondrianModule.callAttr("anonymize_execute",
+                command.getKValue(), command.getDataset(),
+                new Kwarg("l_value", command.getLValue()),
+                new Kwarg("diversity_mode", command.getDiversity()),
+                new Kwarg("cut_estimation", command.getCutEstimation()),
+                new Kwarg("sample_size", command.getSampleSize() > 0 ? command.getSampleSize() : 10000),
+                new Kwarg("storage", external ? "external" : command.getStorage()),
+                new Kwarg("memory_budget_mb", command.getMemoryBudgetMb() > 0 ? command.getMemoryBudgetMb() : 64),
+                new Kwarg("split_mode", command.getSplitMode()),
+                new Kwarg("generalization", command.getGeneralization()));
+             PyObject pyObjectMetrics = mondrianModule.callAttr("get_last_metrics_summary");
+             PyObject pyObjectProfile = traceModule.callAttr("get_last_profile_summary")) {
+            // Information-loss metrics are collected during partitioning, so reading them costs nothing extra
+            String metrics = pyObjectMetrics.toString();
+            // The profile is empty unless the profiling mode is on
+            String profile = pyObjectProfile.toString();
+            if (!profile.isEmpty()) {
+                Log.i(TAG, profile);
+                metrics += "\n" + profile;
+            }
+            return metrics + "\n\n" + pyObjectAnonymizedDataResult.toString();
+        } catch (Exception e) {
+            Log.e(TAG, "Error during anonymization", e);
+            return null;
+        } finally {
+            Tracer.end();
+        }
+    }
+
+    /**
+     * Queues the jobs of a batch on the pipeline and journals them.
+     *
+     * @param batch A validated batch
+     * @param binaryReply Whether its progress goes to the binary topic
+     */
+    private void runBatch(AnonymizationBatch batch, boolean binaryReply) {
+        if (binaryReply) {
+            binaryBatches.add(batch.getBatchId());
+        }
+        journal.startBatch(batch, binaryReply);
+        recordCommandId(batch.getBatchId());
+        whenEngineReady(() -> jobPipeline.submit(batch));
+        setStatus("Received batch " + batch.getBatchId() + " with " + batch.getJobs().size() + " jobs", connected);
+    }
+
+    /**
+     * Resubmits the commands and batch jobs that were unfinished when the service was killed.
+     */
+    private void resumeUnfinishedWork() {
+        for (Map.Entry<String, JobJournal.Entry> item : journal.unfinished().entrySet()) {
+            JobJournal.Entry entry = item.getValue();
+            if (entry.getCommand() != null) {
+                // The engine continues an exact run from its checkpoint instead of starting over
+                Log.d(TAG, "Resuming " + entry.getCommand());
+                entry.getCommand().setBinaryReply(entry.isBinaryReply());
+                // The service may have been killed between journaling and recording the ID
+                recordCommandId(entry.getCommand().getCommandId());
+                runCommand(entry.getCommand(), item.getKey());
+            } else if (entry.getBatch() != null) {
+                Log.d(TAG, "Resuming batch " + entry.getBatch().getBatchId() + ", jobs " + entry.getRemaining());
+                if (entry.isBinaryReply()) {
+                    binaryBatches.add(entry.getBatch().getBatchId());
+                }
+                recordCommandId(entry.getBatch().getBatchId());
+                whenEngineReady(() -> jobPipeline.submit(entry.getBatch(), entry.getRemaining(),
+                        entry.getCompleted(), entry.getFailed()));
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------
+    // MQTT
+    // ---------------------------------------------------------------------------------------
+
+    /**
+     * Establishes connection to the MQTT broker and sets up message handling.
+     * Uses the Eclipse Paho MQTT client library.
+     *
+     * The session is persistent: the client ID is kept across restarts and clean session is off,
+     * so the broker keeps the subscription and queues QoS 1 commands while the app is offline.
+     * After a lost connection Paho reconnects by itself with exponential backoff; a failed first
+     * connection is retried here with the same kind of backoff.
+     *
+     * @param brokerUrl The MQTT broker URL to connect to
+     */
+    private void connectToMqttBroker(String brokerUrl) {
+        try {
+            // A stable client ID identifies the persistent session at the broker
+            String clientId = getClientId();
+
+            // File persistence keeps unacknowledged QoS 1 messages across restarts
+            mqttClient = new MqttAsyncClient(brokerUrl, clientId,
+                    new MqttDefaultFilePersistence(new File(getFilesDir(), "mqtt").getAbsolutePath()));
+
+            // Configure connection options
+            MqttConnectOptions options = new MqttConnectOptions();
+            options.setCleanSession(false); // Keep the subscription and queued commands while offline
+            options.setAutomaticReconnect(true); // Reconnect with exponential backoff after a lost connection
+            options.setMaxReconnectDelay(60000); // Cap the backoff at one minute
+            options.setMaxInflight(100); // Room for draining the outbox
+            options.setConnectionTimeout(60); // Increase timeout for cellular networks
+            options.setKeepAliveInterval(60); // Increase keep alive for cellular networks
+
+            // Set up callback for message handling before connecting, so that commands
+            // queued by the broker during the offline period are not missed
+            mqttClient.setCallback(new MqttCallbackExtended() {
+                @Override
+                public void connectComplete(boolean reconnect, String serverURI) {
+                    // Called for the first connection and for every automatic reconnect
+                    Log.d(TAG, (reconnect ? "Reconnected" : "Connected") + " to MQTT Broker " + serverURI);
+                    reconnectBackoff.reset();
+                    StartupTrace.mark(StartupTrace.MQTT_CONNECTED);
+                    subscribeToTopic();
+                    drainOutbox();
+                    setStatus(reconnect ? "Reconnected to MQTT Broker" : "Connected to MQTT Broker", true);
+                }
+
+                @Override
+                public void connectionLost(Throwable cause) {
+                    // Connection to the broker was lost, Paho reconnects automatically
+                    Log.e(TAG, "Connection lost", cause);
+                    setStatus("Connection to MQTT Broker lost, reconnecting...", false);
+                }
+
+                @Override
+                public void messageArrived(String topic, MqttMessage message) throws Exception {
+                    if (topic.equals(MQTT_DATASET_UPDATED_TOPIC)) {
+                        processDatasetUpdate(new String(message.getPayload(), StandardCharsets.UTF_8));
+                        return;
+                    }
+                    if (topic.equals(MQTT_PROFILING_TOPIC)) {
+                        processProfiling(new String(message.getPayload(), StandardCharsets.UTF_8));
+                        return;
+                    }
+                    if (topic.equals(MQTT_QUERY_TOPIC)) {
+                        processQuery(new String(message.getPayload(), StandardCharsets.UTF_8));
+                        return;
+                    }
+                    // Binary commands arrive on the same topics with the binary suffix
+                    if (topic.endsWith(BinaryCodec.TOPIC_SUFFIX)) {
+                        processBinaryMessage(message.getPayload());
+                        return;
+                    }
+
+                    // Extract the message content
+                    String payload = new String(message.getPayload());
+                    Log.d(TAG, "Message arrived: " + payload);
+
+                    try {
+                        // Try to parse the message as JSON
+                        JsonElement json = JsonParser.parseString(payload);
+
+                        // A message with a "jobs" array is a batch
+                        if (json.isJsonObject() && json.getAsJsonObject().has("jobs")) {
+                            AnonymizationBatch batch = gson.fromJson(json, AnonymizationBatch.class);
+                            if (isDuplicate(batch.getBatchId())) {
+                                return;
+                            }
+                            processBatchCommand(batch, false);
+                            return;
+                        }
+                        AnonymizationCommand command = gson.fromJson(json, AnonymizationCommand.class);
+
+                        // Check if the message was successfully parsed
+                        if (command != null) {
+                            if (isDuplicate(command.getCommandId())) {
+                                return;
+                            }
+                            processJsonCommand(command);
+                        } else {
+                            handleInvalidMessage("JSON parsing error", "Received message is not in the correct format.");
+                        }
+                    } catch (JsonSyntaxException e) {
+                        // The message is not a valid JSON
+                        Log.e(TAG, "Invalid JSON format", e);
+                        handleInvalidMessage("Invalid JSON Format",
+                                "The received message is not in valid JSON format. Expected: {\"kValue\": X, \"dataset\": \"<dataset ID>\"}");
+                    }
+                }
+
+                @Override
+                public void deliveryComplete(IMqttDeliveryToken token) {
+                    // An acknowledged message frees an in-flight slot for the outbox
+                    drainOutbox();
+                }
+            });
+
+            // Connect to the broker with callback handlers
+            mqttClient.connect(options, null, new IMqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    // Subscription and outbox are handled in connectComplete
+                    Log.d(TAG, "Connected to MQTT Broker");
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                    // Connection failed, log the error and try again later
+                    Log.e(TAG, "Failed to connect", exception);
+                    long delay = scheduleReconnect(brokerUrl);
+                    setStatus("Failed to connect to MQTT Broker, retrying in " + (delay / 1000) + " s", false);
+                }
+            });
+
+        } catch (MqttException e) {
+            // Log any MQTT-related errors
+            Log.e(TAG, "MQTT Error", e);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Handles a "dataset updated" message: {"dataset": "<dataset ID>"}, or an empty payload for all
+     * data sets. Their snapshots are rebuilt in the background once the engine is ready.
+     *
+     * @param payload The message payload
+     */
+    private void processDatasetUpdate(String payload) {
+        String dataset = null;
+        if (!payload.trim().isEmpty()) {
+            try {
+                JsonElement json = JsonParser.parseString(payload);
+                if (!json.isJsonObject() || !json.getAsJsonObject().has("dataset")) {
+                    handleInvalidMessage("Invalid dataset update", "Expected: {\"dataset\": \"<dataset ID>\"}");
+                    return;
+                }
+                dataset = json.getAsJsonObject().get("dataset").getAsString();
+            } catch (JsonSyntaxException | IllegalStateException | UnsupportedOperationException e) {
+                handleInvalidMessage("Invalid dataset update", "Expected: {\"dataset\": \"<dataset ID>\"}");
+                return;
+            }
+        }
+        Log.d(TAG, "Dataset updated: " + (dataset != null ? dataset : "all"));
+        String updated = dataset;
+        whenEngineReady(() -> snapshotExecutor.execute(() -> refreshSnapshots(updated, true)));
+    }
+
+    /**
+     * Handles a profiling message: {"enabled": true} or {"enabled": false}. The mode is switched on
+     * the command executor, so it applies from the next queued command on.
+     *
+     * @param payload The message payload
+     */
+    private void processProfiling(String payload) {
+        boolean enabled;
+        try {
+            JsonElement json = JsonParser.parseString(payload);
+            if (!json.isJsonObject() || !json.getAsJsonObject().has("enabled")) {
+                handleInvalidMessage("Invalid profiling message", "Expected: {\"enabled\": true}");
+                return;
+            }
+            enabled = json.getAsJsonObject().get("enabled").getAsBoolean();
+        } catch (JsonSyntaxException | IllegalStateException | UnsupportedOperationException | ClassCastException e) {
+            handleInvalidMessage("Invalid profiling message", "Expected: {\"enabled\": true}");
+            return;
+        }
+        Log.d(TAG, "Profiling " + (enabled ? "on" : "off"));
+        whenEngineReady(() -> commandExecutor.execute(() -> {
+            try (PyObject ignored = traceModule.callAttr("set_profiling", enabled)) {
+                setStatus("Profiling " + (enabled ? "on" : "off"), connected);
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to switch profiling", e);
+            }
+        }));
+    }
+
+    /**
+     * Handles a counting query, e.g. {"queryId": "q1", "dataset": "standard", "kValue": 5,
+     * "groupBy": ["age"]}. The answer, or the error, is published on MQTT_QUERY_RESULT_TOPIC with
+     * the same queryId.
+     *
+     * @param payload The message payload
+     */
+    private void processQuery(String payload) {
+        Log.d(TAG, "Query arrived: " + payload);
+        whenEngineReady(() -> queryExecutor.execute(() -> publish(MQTT_QUERY_RESULT_TOPIC, query(payload))));
+    }
+
+    /**
+     * Answers a counting query in Python. Runs on the query executor.
+     *
+     * @param request The JSON request
+     * @return The JSON answer; a failure of the engine is answered with an error
+     */
+    private String query(String request) {
+        try (PyObject response = summaryModule.callAttr("query_json", request)) {
+            return response.toString();
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to answer the query " + request, e);
+            JsonObject error = new JsonObject();
+            error.addProperty("error", String.valueOf(e.getMessage()));
+            return gson.toJson(error);
+        }
+    }
+
+    /**
+     * Decodes a binary command or batch and processes it like its JSON counterpart.
+     * Its results are published on the binary topics.
+     *
+     * @param payload The payload received on the binary command topic
+     */
+    private void processBinaryMessage(byte[] payload) {
+        BinaryCodec codec = codecs.get();
+        ByteBuffer in = ByteBuffer.wrap(payload);
+        try {
+            int type = codec.readType(in);
+            if (type == BinaryCodec.TYPE_BATCH) {
+                AnonymizationBatch batch = codec.decodeBatch(in);
+                if (isDuplicate(batch.getBatchId())) {
+                    return;
+                }
+                processBatchCommand(batch, true);
+            } else if (type == BinaryCodec.TYPE_COMMAND) {
+                // A new object: the command is handed to the command executor
+                AnonymizationCommand command = codec.decodeCommand(in, new AnonymizationCommand());
+                if (isDuplicate(command.getCommandId())) {
+                    return;
+                }
+                command.setBinaryReply(true);
+                processJsonCommand(command);
+            } else {
+                handleInvalidMessage("Invalid Binary Message", "Unexpected message type " + type + ".");
+            }
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Invalid binary payload", e);
+            handleInvalidMessage("Invalid Binary Message", e.getMessage());
+        }
+    }
+
+    /**
+     * Processes a valid JSON command for anonymization.
+     * Validates the fields and queues the command if valid.
+     *
+     * @param command The parsed AnonymizationCommand object
+     */
+    private void processJsonCommand(AnonymizationCommand command) {
+        // Log the parsed command
+        Log.d(TAG, "Parsed command: " + command.toString());
+
+        // Get the k-value from the command
+        final int kValue = command.getKValue();
+
+        // Validate the k-value
+        if (!command.isValidKValue()) {
+            // Invalid k-value
+            handleInvalidMessage("Invalid K Value",
+                    "Received K = " + kValue + ", but K must be at least " + AnonymizationCommand.MIN_K_VALUE + ".");
+            return;
+        }
+
+        // Validate the dataset
+        if (!command.isValidDataset()) {
+            // Invalid dataset
+            handleInvalidMessage("Invalid Dataset",
+                    "Received dataset = '" + command.getDataset() + "', which is not a valid dataset ID.");
+            return;
+        }
+
+        // Validate the optional l-diversity fields
+        if (!command.isValidDiversity()) {
+            handleInvalidMessage("Invalid L-Diversity",
+                    "Received L = " + command.getLValue() + " (" + command.getDiversity()
+                            + "), but L must be >= 0 and the mode 'distinct' or 'entropy'.");
+            return;
+        }
+
+        // Validate the optional cut estimation fields
+        if (!command.isValidCutEstimation()) {
+            handleInvalidMessage("Invalid Cut Estimation",
+                    "Received cutEstimation = '" + command.getCutEstimation() + "', sampleSize = "
+                            + command.getSampleSize() + ", but only 'exact' or 'sampled' with sampleSize >= 0 are allowed.");
+            return;
+        }
+
+        // Validate the optional storage fields
+        if (!command.isValidStorage()) {
+            handleInvalidMessage("Invalid Storage",
+                    "Received storage = '" + command.getStorage() + "', memoryBudgetMb = "
+                            + command.getMemoryBudgetMb() + ", but only 'memory' or 'external' with memoryBudgetMb >= 0 are allowed.");
+            return;
+        }
+
+        // Validate the optional split mode
+        if (!command.isValidSplitMode()) {
+            handleInvalidMessage("Invalid Split Mode",
+                    "Received splitMode = '" + command.getSplitMode() + "', but only 'median' or 'hierarchy' are allowed.");
+            return;
+        }
+
+        // Validate the optional generalization
+        if (!command.isValidGeneralization()) {
+            handleInvalidMessage("Invalid Generalization",
+                    "Received generalization = '" + command.getGeneralization()
+                            + "', but only 'local' or 'full-domain' are allowed.");
+            return;
+        }
+
+        // At this point, both k-value and dataset are well-formed; the engine checks K <= n and the registry
+        final boolean useWearable = "wearable".equalsIgnoreCase(command.getDataset());
+
+        // Save the dataset preference
+        SharedPreferences.Editor editor = getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE).edit();
+        editor.putBoolean(PREF_USE_WEARABLE, useWearable);
+        editor.apply();
+
+        // The command runs in the service; bound activities show it through onCommandStarted
+        runCommand(command);
+    }
+
+    /**
+     * Processes a batch command: validates the batch and all of its jobs, then queues
+     * the jobs into the pipeline. Unlike single commands, batches do not use the UI;
+     * their progress is published on MQTT_PROGRESS_TOPIC.
+     *
+     * @param batch The parsed AnonymizationBatch object
+     * @param binaryReply Whether the batch arrived on the binary topic
+     */
+    private void processBatchCommand(AnonymizationBatch batch, boolean binaryReply) {
+        Log.d(TAG, "Parsed batch: " + batch.toString());
+
+        if (!batch.isValidBatch()) {
+            handleInvalidMessage("Invalid Batch",
+                    "A batch needs a batchId of letters, digits, '_', '.' or '-' and 1 to "
+                            + AnonymizationBatch.MAX_JOBS + " jobs.");
+            return;
+        }
+
+        // Reject the whole batch if any job is invalid, so a batch never runs partially
+        int invalidJob = batch.firstInvalidJob();
+        if (invalidJob >= 0) {
+            handleInvalidMessage("Invalid Batch Job",
+                    "Job " + invalidJob + " of batch " + batch.getBatchId() + " is not valid: " + batch.getJobs().get(invalidJob));
+            return;
+        }
+
+        runBatch(batch, binaryReply);
+    }
+
+    /**
+     * Publishes the progress of a batch job on MQTT_PROGRESS_TOPIC and updates the journal.
+     * Called on the pipeline threads.
+     *
+     * @param progress The state of the job and of its batch
+     */
+    private void publishProgress(JobProgress progress) {
+        boolean finished = JobProgress.STATUS_DONE.equals(progress.getStatus());
+        boolean failed = JobProgress.STATUS_FAILED.equals(progress.getStatus());
+        // A newer state of the job supersedes a queued one; its final state is never dropped
+        String key = progress.getBatchId() + "/" + progress.getJobIndex();
+        if (binaryBatches.contains(progress.getBatchId())) {
+            outbox.enqueue(MQTT_PROGRESS_TOPIC + BinaryCodec.TOPIC_SUFFIX,
+                    BinaryCodec.toArray(codecs.get().encodeProgress(progress)), key, finished || failed);
+            if (progress.isBatchFinished()) {
+                binaryBatches.remove(progress.getBatchId());
+            }
+        } else {
+            outbox.enqueue(MQTT_PROGRESS_TOPIC, gson.toJson(progress).getBytes(StandardCharsets.UTF_8), key,
+                    finished || failed);
+        }
+        drainOutbox();
+        // Publish before journaling: the outbox keeps the message from here on
+        if (finished || failed) {
+            journal.finishJob(progress.getBatchId(), progress.getJobIndex(), failed);
+        }
+        if (progress.isBatchFinished()) {
+            Log.d(TAG, "Batch " + progress.getBatchId() + " finished: " + progress.getCompleted() + " done, "
+                    + progress.getFailed() + " failed, " + String.format("%.1f", progress.getJobsPerMinute()) + " jobs/min");
+            setStatus("Batch " + progress.getBatchId() + " finished at "
+                    + String.format("%.1f", progress.getJobsPerMinute()) + " jobs/min", connected);
+        }
+    }
+
+    /**
+     * Publishes the result of a single command on MQTT_RESULT_TOPIC.
+     *
+     * @param command The command that was executed
+     * @param result The metrics and preview of the result, or null if the anonymization failed
+     */
+    private void publishResult(AnonymizationCommand command, String result) {
+        if (command.isBinaryReply()) {
+            publish(MQTT_RESULT_TOPIC + BinaryCodec.TOPIC_SUFFIX, BinaryCodec.toArray(
+                    codecs.get().encodeResult(command, result != null ? "done" : "failed", result)));
+            return;
+        }
+        JsonObject json = new JsonObject();
+        json.addProperty("commandId", command.getCommandId());
+        json.addProperty("kValue", command.getKValue());
+        json.addProperty("dataset", command.getDataset());
+        json.addProperty("status", result != null ? "done" : "failed");
+        json.addProperty("result", result);
+        publish(MQTT_RESULT_TOPIC, gson.toJson(json));
+    }
+
+    /**
+     * Publishes a message through the outbox, so it is kept on disk until the broker is reachable.
+     *
+     * @param topic The topic
+     * @param payload The JSON payload
+     */
+    private void publish(String topic, String payload) {
+        publish(topic, payload.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Publishes an encoded message through the outbox.
+     *
+     * @param topic The topic
+     * @param payload The encoded payload
+     */
+    private void publish(String topic, byte[] payload) {
+        outbox.enqueue(topic, payload);
+        drainOutbox();
+    }
+
+    /**
+     * Hands the queued outgoing messages to the MQTT client while it is connected.
+     * Paho's file persistence keeps each accepted message until the broker acknowledges it.
+     */
+    private void drainOutbox() {
+        IMqttAsyncClient client = mqttClient;
+        if (client == null || !client.isConnected()) {
+            return;
+        }
+        int published = outbox.drain((topic, payload) -> {
+            try {
+                client.publish(topic, payload, MQTT_QOS, false);
+                return true;
+            } catch (MqttException e) {
+                // Disconnected or too many messages in flight; the rest waits for the next drain
+                Log.d(TAG, "Outbox paused: " + e.getMessage());
+                return false;
+            }
+        });
+        if (published > 0) {
+            Log.d(TAG, "Published " + published + " queued messages, " + outbox.size() + " left");
+        }
+    }
+
+    /**
+     * Subscribes to the MQTT topic to receive commands.
+     */
+    private void subscribeToTopic() {
+        try {
+            // QoS level 1 - at least once delivery, on the JSON and the binary command topic
+            String binaryTopic = MQTT_TOPIC + BinaryCodec.TOPIC_SUFFIX;
+            mqttClient.subscribe(new String[] {MQTT_TOPIC, binaryTopic, MQTT_DATASET_UPDATED_TOPIC, MQTT_PROFILING_TOPIC,
+                            MQTT_QUERY_TOPIC},
+                    new int[] {MQTT_QOS, MQTT_QOS, MQTT_QOS, MQTT_QOS, MQTT_QOS});
+            Log.d(TAG, "Subscribed to topics: " + MQTT_TOPIC + ", " + binaryTopic + ", " + MQTT_DATASET_UPDATED_TOPIC
+                    + ", " + MQTT_PROFILING_TOPIC + ", " + MQTT_QUERY_TOPIC);
+        } catch (MqttException e) {
+            Log.e(TAG, "Failed to subscribe", e);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Retries a failed first connection after the next backoff delay.
+     * Paho only reconnects automatically once a connection has been established.
+     *
+     * @param brokerUrl The MQTT broker URL to connect to
+     * @return The delay in milliseconds
+     */
+    private long scheduleReconnect(String brokerUrl) {
+        long delay = reconnectBackoff.nextDelayMs();
+        Runnable reconnect = () -> {
+            pendingReconnect = null;
+            closeMqttClient();
+            connectToMqttBroker(brokerUrl);
+        };
+        mainHandler.post(() -> {
+            cancelPendingReconnect();
+            pendingReconnect = reconnect;
+            mainHandler.postDelayed(reconnect, delay);
+        });
+        return delay;
+    }
+
+    /**
+     * Cancels a scheduled connection retry. Must be called on the main thread.
+     */
+    private void cancelPendingReconnect() {
+        if (pendingReconnect != null) {
+            mainHandler.removeCallbacks(pendingReconnect);
+            pendingReconnect = null;
+        }
+    }
+
+    /**
+     * Disconnects and releases the current MQTT client, including its automatic reconnect.
+     */
+    private void closeMqttClient() {
+        if (mqttClient == null) {
+            return;
+        }
+        try {
+            if (mqttClient.isConnected()) {
+                // Bounded wait, this runs on the main thread
+                mqttClient.disconnectForcibly(0, 1000);
+            }
+        } catch (MqttException e) {
+            Log.e(TAG, "Error disconnecting from MQTT broker", e);
+        }
+        try {
+            mqttClient.close(true);
+        } catch (MqttException e) {
+            Log.e(TAG, "Error closing MQTT client", e);
+        }
+        mqttClient = null;
+    }
+
+    /**
+     * Gets the client ID of the persistent session, created on first use.
+     *
+     * @return The client ID
+     */
+    private String getClientId() {
+        SharedPreferences prefs = getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+        String clientId = prefs.getString(PREF_CLIENT_ID, null);
+        if (clientId == null) {
+            clientId = MqttAsyncClient.generateClientId();
+            prefs.edit().putString(PREF_CLIENT_ID, clientId).apply();
+        }
+        return clientId;
+    }
+
+    /**
+     * Checks whether a command was already accepted. Commands without an ID are never duplicates.
+     * The ID is not recorded here: see recordCommandId().
+     *
+     * @param commandId The command or batch ID, may be null
+     * @return true if the ID was recorded before
+     */
+    private boolean isDuplicate(String commandId) {
+        if (commandId == null || !commandDeduplicator.contains(commandId)) {
+            return false;
+        }
+        Log.d(TAG, "Ignoring redelivered command " + commandId);
+        return true;
+    }
+
+    /**
+     * Records the ID of a command or batch that is validated and journaled. Until then a
+     * redelivery is handled like the original, so a command rejected or lost before the
+     * journal can be sent again with the same ID.
+     *
+     * @param commandId The command or batch ID, may be null
+     */
+    private void recordCommandId(String commandId) {
+        if (commandId != null) {
+            commandDeduplicator.record(commandId);
+        }
+    }
+
+    /**
+     * Checks if the device has network connectivity.
+     * This helps prevent attempting MQTT connections when no network is available.
+     *
+     * @return true if network is available, false otherwise
+     */
+    private boolean checkNetworkConnectivity() {
+        ConnectivityManager connectivityManager = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+
+        if (connectivityManager != null) {
+            NetworkInfo activeNetworkInfo = connectivityManager.getActiveNetworkInfo();
+            boolean isConnected = activeNetworkInfo != null && activeNetworkInfo.isConnected();
+
+            Log.d(TAG, "Network connectivity: " + (isConnected ? "Available" : "Not available"));
+            Log.d(TAG, "Network type: " + (activeNetworkInfo != null ? activeNetworkInfo.getTypeName() : "None"));
+
+            return isConnected;
+        }
+
+        Log.e(TAG, "ConnectivityManager is null");
+        return false;
+    }
+
+    /**
+     * Get the MQTT client for other components to check connection status
+     * @return The MQTT client instance
+     */
+    public IMqttAsyncClient getMqttClient() {
+        return mqttClient;
+    }
+
+    /**
+     * Get the MQTT broker URL for display in settings
+     * @return The MQTT broker URL
+     */
+    public String getMqttBrokerUrl() {
+        return mqttBrokerUrl;
+    }
+
+    /**
+     * Get the memory budget of the jobs: the saved setting, else a share of the memory class of the app.
+     *
+     * @return The budget in bytes
+     */
+    private long getMemoryBudgetBytes() {
+        int savedMb = getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE).getInt(PREF_MEMORY_BUDGET_MB, 0);
+        if (savedMb > 0) {
+            return (long) savedMb << 20;
+        }
+        return AdmissionController.budgetFromMemoryClass(getSystemService(ActivityManager.class).getMemoryClass());
+    }
+
+    /**
+     * Get the memory budget that running jobs share.
+     *
+     * @return The budget in MB
+     */
+    public int getMemoryBudgetMb() {
+        return (int) (admission.getBudgetBytes() >> 20);
+    }
+
+    /**
+     * Sets and saves the memory budget of the jobs. Running jobs keep their reservations.
+     *
+     * @param budgetMb The budget in MB, or 0 for the default derived from the memory class
+     */
+    public void setMemoryBudgetMb(int budgetMb) {
+        getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE).edit()
+                .putInt(PREF_MEMORY_BUDGET_MB, Math.max(0, budgetMb)).apply();
+        admission.setBudgetBytes(getMemoryBudgetBytes());
+        Log.d(TAG, "Memory budget of the jobs: " + getMemoryBudgetMb() + " MB");
+    }
+
+    /**
+     * Gets the saved MQTT broker URL from SharedPreferences or the default URL if none saved.
+     *
+     * @return The broker URL to use
+     */
+    private String getSavedBrokerUrl() {
+        SharedPreferences prefs = getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+        return prefs.getString(PREF_BROKER_URL, DEFAULT_MQTT_BROKER_URL);
+    }
+
+    /**
+     * Reconnects the MQTT client with a new broker URL.
+     * Disconnects from the current broker if connected, then connects to the new one.
+     *
+     * @param newBrokerUrl The new MQTT broker URL to connect to
+     * @return false if the network is unavailable
+     */
+    public boolean reconnectMqttClient(String newBrokerUrl) {
+        // Save the new URL
+        SharedPreferences.Editor editor = getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE).edit();
+        editor.putString(PREF_BROKER_URL, newBrokerUrl);
+        editor.apply();
+
+        // Update the broker URL
+        mqttBrokerUrl = newBrokerUrl;
+
+        // Stop retrying the previous broker and start the backoff over
+        cancelPendingReconnect();
+        reconnectBackoff.reset();
+
+        // Disconnect and release the previous client, including its automatic reconnect
+        if (mqttClient != null) {
+            closeMqttClient();
+            Log.d(TAG, "Disconnected from previous MQTT broker");
+        }
+
+        // Check network connectivity before connecting
+        if (!checkNetworkConnectivity()) {
+            setStatus("Network unavailable. Cannot connect to MQTT broker.", false);
+            return false;
+        }
+        connectToMqttBroker(newBrokerUrl);
+        Log.d(TAG, "Attempting to connect to new MQTT broker: " + newBrokerUrl);
+        return true;
+    }
+}
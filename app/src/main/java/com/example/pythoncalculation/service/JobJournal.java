@@ -0,0 +1,215 @@
+package com.example.pythoncalculation.service;
+
+import android.util.Log;
+
+import com.example.pythoncalculation.AnonymizationBatch;
+import com.example.pythoncalculation.AnonymizationCommand;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Journal of the work the service has accepted but not finished.
+ *
+ * A single command is journaled when it starts and removed when its result is published; a
+ * batch keeps the indexes of its unfinished jobs. The journal is rewritten atomically (temporary
+ * file and rename) on every change, which is cheap because it only holds the commands, not data.
+ * When the service is restarted after being killed, it resumes every entry of the journal.
+ */
+public class JobJournal {
+
+    private static final String TAG = "JobJournal";
+
+    /**
+     * One unfinished command or batch.
+     */
+    public static class Entry {
+        AnonymizationCommand command;
+        AnonymizationBatch batch;
+        // The transient field of the command is not serialized, so the reply encoding is kept here
+        boolean binaryReply;
+        List<Integer> remaining = new ArrayList<>();
+        int completed;
+        int failed;
+
+        /**
+         * @return The single command, or null for a batch
+         */
+        public AnonymizationCommand getCommand() {
+            return command;
+        }
+
+        /**
+         * @return The batch, or null for a single command
+         */
+        public AnonymizationBatch getBatch() {
+            return batch;
+        }
+
+        /**
+         * @return Whether results go to the binary topics
+         */
+        public boolean isBinaryReply() {
+            return binaryReply;
+        }
+
+        /**
+         * @return The unfinished job indexes of a batch
+         */
+        public List<Integer> getRemaining() {
+            return remaining;
+        }
+
+        /**
+         * @return The number of finished jobs of a batch
+         */
+        public int getCompleted() {
+            return completed;
+        }
+
+        /**
+         * @return The number of failed jobs of a batch
+         */
+        public int getFailed() {
+            return failed;
+        }
+    }
+
+    private final File file;
+    private final Gson gson = new Gson();
+    private final Map<String, Entry> entries;
+
+    /**
+     * Loads the journal left by a previous run of the service.
+     *
+     * @param file The journal file
+     */
+    public JobJournal(File file) {
+        this.file = file;
+        Map<String, Entry> loaded = null;
+        if (file.exists()) {
+            try {
+                String json = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+                loaded = gson.fromJson(json, new TypeToken<LinkedHashMap<String, Entry>>() { }.getType());
+            } catch (IOException | JsonParseException e) {
+                // A damaged journal only loses the resume, not any output
+                Log.e(TAG, "Discarding unreadable journal " + file, e);
+            }
+        }
+        entries = loaded != null ? loaded : new LinkedHashMap<>();
+    }
+
+    /**
+     * Records a started single command.
+     *
+     * @param command The command
+     * @return The key of the entry, passed to finishCommand()
+     */
+    public synchronized String startCommand(AnonymizationCommand command) {
+        Entry entry = new Entry();
+        entry.command = command;
+        entry.binaryReply = command.isBinaryReply();
+        String key = "command:" + (command.getCommandId() != null ? command.getCommandId() : UUID.randomUUID().toString());
+        entries.put(key, entry);
+        save();
+        return key;
+    }
+
+    /**
+     * Removes a finished single command.
+     *
+     * @param key The key returned by startCommand()
+     */
+    public synchronized void finishCommand(String key) {
+        if (entries.remove(key) != null) {
+            save();
+        }
+    }
+
+    /**
+     * Records a submitted batch with all of its jobs unfinished.
+     *
+     * @param batch The batch
+     * @param binaryReply Whether its progress goes to the binary topic
+     */
+    public synchronized void startBatch(AnonymizationBatch batch, boolean binaryReply) {
+        Entry entry = new Entry();
+        entry.batch = batch;
+        entry.binaryReply = binaryReply;
+        for (int i = 0; i < batch.getJobs().size(); i++) {
+            entry.remaining.add(i);
+        }
+        entries.put("batch:" + batch.getBatchId(), entry);
+        save();
+    }
+
+    /**
+     * Marks a job of a batch as finished; the batch is removed with its last job.
+     *
+     * @param batchId The batch ID
+     * @param jobIndex The index of the job
+     * @param failed Whether the job failed
+     */
+    public synchronized void finishJob(String batchId, int jobIndex, boolean failed) {
+        String key = "batch:" + batchId;
+        Entry entry = entries.get(key);
+        if (entry == null || !entry.remaining.remove(Integer.valueOf(jobIndex))) {
+            return;
+        }
+        if (failed) {
+            entry.failed++;
+        } else {
+            entry.completed++;
+        }
+        if (entry.remaining.isEmpty()) {
+            entries.remove(key);
+        }
+        save();
+    }
+
+    /**
+     * Returns the unfinished work, for resuming. Resumed entries keep their keys, so they are
+     * finished through finishCommand() and finishJob() like the original ones.
+     *
+     * @return The unfinished entries by key, in the order they were started
+     */
+    public synchronized Map<String, Entry> unfinished() {
+        Map<String, Entry> copy = new LinkedHashMap<>();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            Entry value = entry.getValue();
+            Entry snapshot = new Entry();
+            snapshot.command = value.command;
+            snapshot.batch = value.batch;
+            snapshot.binaryReply = value.binaryReply;
+            snapshot.remaining = new ArrayList<>(value.remaining);
+            snapshot.completed = value.completed;
+            snapshot.failed = value.failed;
+            copy.put(entry.getKey(), snapshot);
+        }
+        return copy;
+    }
+
+    /**
+     * Writes the journal atomically.
+     */
+    private void save() {
+        File temporary = new File(file.getPath() + ".tmp");
+        try {
+            Files.write(temporary.toPath(), gson.toJson(entries).getBytes(StandardCharsets.UTF_8));
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write " + file, e);
+        }
+    }
+}
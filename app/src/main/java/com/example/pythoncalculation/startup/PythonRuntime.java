@@ -0,0 +1,104 @@
+package com.example.pythoncalculation.startup;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.chaquo.python.PyObject;
+import com.chaquo.python.Python;
+import com.chaquo.python.android.AndroidPlatform;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Starts the Python runtime off the main thread.
+ *
+ * Starting the interpreter and importing numpy and pandas takes long enough to delay the first
+ * frame and the broker connection when it is done in onCreate(). The first call to start()
+ * runs it on a background thread in three phases, each marked in StartupTrace:
+ * 1. start the interpreter
+ * 2. import the anonymization engine (algorithm.mondrian, with numpy and pandas)
+ * 3. pre-warm the hierarchy cache of the registered datasets, so the first command does not
+ *    build the hierarchy trees
+ * Callers that need Python wait on the returned future instead of starting it themselves.
+ */
+public final class PythonRuntime {
+
+    private static final String TAG = "PythonRuntime";
+
+    private static final AtomicBoolean started = new AtomicBoolean();
+    private static final CompletableFuture<Python> ready = new CompletableFuture<>();
+
+    private PythonRuntime() {
+    }
+
+    /**
+     * Starts the runtime on a background thread. Safe to call more than once.
+     *
+     * @param context Any context
+     * @return Completed with the Python instance when the engine is loaded and warm
+     */
+    public static CompletableFuture<Python> start(Context context) {
+        if (started.compareAndSet(false, true)) {
+            Context appContext = context.getApplicationContext();
+            Thread thread = new Thread(() -> initialize(appContext), "python-init");
+            thread.start();
+        }
+        return ready;
+    }
+
+    /**
+     * Runs the three startup phases.
+     */
+    private static void initialize(Context appContext) {
+        try {
+            if (!Python.isStarted()) {
+                Python.start(new AndroidPlatform(appContext));
+            }
+            StartupTrace.mark(StartupTrace.PYTHON_STARTED);
+            Python py = Python.getInstance();
+
+            py.getModule("algorithm.mondrian");
+            StartupTrace.mark(StartupTrace.ENGINE_LOADED);
+
+            // A failed pre-warm only costs the first command the tree building, not the start
+            try (PyObject trees = py.getModule("algorithm.dataset_registry").callAttr("prewarm")) {
+                StartupTrace.mark(StartupTrace.HIERARCHIES_WARM);
+                Log.d(TAG, "Pre-warmed " + trees.toInt() + " hierarchy trees");
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to pre-warm the hierarchy cache", e);
+            }
+            ready.complete(py);
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to start Python", e);
+            ready.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Get the runtime once it is ready, without starting it.
+     *
+     * @return Completed with the Python instance when start() has finished
+     */
+    public static CompletableFuture<Python> whenReady() {
+        return ready;
+    }
+
+    /**
+     * Waits for the runtime. Must not be called on the main thread.
+     *
+     * @return The Python instance
+     */
+    public static Python await() {
+        return ready.join();
+    }
+
+    /**
+     * Get the runtime if it is ready.
+     *
+     * @return The Python instance, or null while it is starting
+     */
+    public static Python getIfReady() {
+        return ready.isDone() && !ready.isCompletedExceptionally() ? ready.join() : null;
+    }
+}
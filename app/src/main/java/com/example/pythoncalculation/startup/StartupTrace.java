@@ -0,0 +1,73 @@
+package com.example.pythoncalculation.startup;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cold-start instrumentation.
+ *
+ * Every phase of the startup is marked once with its time since the process was started, and
+ * logged under the tag "Startup" (adb logcat -s Startup). A phase that is marked again, for
+ * example when the activity is recreated, keeps its first time.
+ */
+public final class StartupTrace {
+
+    private static final String TAG = "Startup";
+
+    public static final String ACTIVITY_CREATED = "activity_created";
+    public static final String FIRST_FRAME = "first_frame";
+    public static final String SERVICE_CREATED = "service_created";
+    public static final String MQTT_CONNECT_STARTED = "mqtt_connect_started";
+    public static final String MQTT_CONNECTED = "mqtt_connected";
+    public static final String PYTHON_STARTED = "python_started";
+    public static final String ENGINE_LOADED = "engine_loaded";
+    public static final String HIERARCHIES_WARM = "hierarchies_warm";
+    public static final String READY_FOR_COMMANDS = "ready_for_commands";
+
+    private static final Map<String, Long> marks = new LinkedHashMap<>();
+
+    private StartupTrace() {
+    }
+
+    /**
+     * Records the first time a phase is reached.
+     *
+     * @param phase One of the phase constants
+     */
+    public static synchronized void mark(String phase) {
+        if (marks.containsKey(phase)) {
+            return;
+        }
+        long sinceProcessStart = SystemClock.elapsedRealtime() - Process.getStartElapsedRealtime();
+        marks.put(phase, sinceProcessStart);
+        Log.i(TAG, phase + " at " + sinceProcessStart + " ms");
+    }
+
+    /**
+     * Get the time of a phase.
+     *
+     * @param phase One of the phase constants
+     * @return The milliseconds since the process was started, or -1 if the phase was not reached
+     */
+    public static synchronized long get(String phase) {
+        Long time = marks.get(phase);
+        return time != null ? time : -1;
+    }
+
+    /**
+     * Get all phases reached so far.
+     *
+     * @return One "phase: time" line per phase, in the order they were reached
+     */
+    public static synchronized String summary() {
+        StringBuilder summary = new StringBuilder();
+        for (Map.Entry<String, Long> mark : marks.entrySet()) {
+            summary.append(mark.getKey()).append(": ").append(mark.getValue()).append(" ms\n");
+        }
+        return summary.toString();
+    }
+}
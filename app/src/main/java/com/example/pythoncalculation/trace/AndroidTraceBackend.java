@@ -0,0 +1,28 @@
+package com.example.pythoncalculation.trace;
+
+import android.os.Trace;
+
+/**
+ * Tracer backend writing android.os.Trace sections, recorded while a system trace of the app runs,
+ * e.g. with Perfetto or the CPU profiler of Android Studio.
+ */
+public final class AndroidTraceBackend implements Tracer.Backend {
+
+    // Longer section names are rejected by android.os.Trace
+    private static final int MAX_NAME_LENGTH = 127;
+
+    @Override
+    public boolean isEnabled() {
+        return Trace.isEnabled();
+    }
+
+    @Override
+    public void beginSection(String name) {
+        Trace.beginSection(name.length() > MAX_NAME_LENGTH ? name.substring(0, MAX_NAME_LENGTH) : name);
+    }
+
+    @Override
+    public void endSection() {
+        Trace.endSection();
+    }
+}
@@ -0,0 +1,129 @@
+package com.example.pythoncalculation.trace;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Sampling profile of a partitioning run: the sizes of the finalized partitions, in power-of-two
+ * buckets [2^b, 2^(b+1)), and the windows and time spent per recursion level. The counterpart of
+ * algorithm.trace.Profile, with the same summary format.
+ *
+ * The counters are allocated once, so a profiled run of MondrianPartitioner still allocates nothing
+ * per partition; profiling costs two clock reads per window.
+ */
+public final class PartitionProfile {
+
+    /**
+     * Recursion levels of a binary split of up to 2^31 rows, plus the root.
+     */
+    public static final int MAX_LEVELS = 64;
+    private static final int SIZE_BUCKETS = 32;
+
+    private final long[] levelWindows = new long[MAX_LEVELS];
+    private final long[] levelNanos = new long[MAX_LEVELS];
+    private final long[] sizeBuckets = new long[SIZE_BUCKETS];
+    private String engine = "";
+    private int rows;
+    private long partitions;
+    private int minSize;
+    private int maxSize;
+
+    /**
+     * Clears the counters for a new run.
+     *
+     * @param engine The name of the partitioning loop, e.g. "median"
+     * @param rows The rows of the run
+     */
+    public void reset(String engine, int rows) {
+        this.engine = engine;
+        this.rows = rows;
+        Arrays.fill(levelWindows, 0);
+        Arrays.fill(levelNanos, 0);
+        Arrays.fill(sizeBuckets, 0);
+        partitions = 0;
+        minSize = Integer.MAX_VALUE;
+        maxSize = 0;
+    }
+
+    /**
+     * Records one window taken from the work stack, split or finalized.
+     *
+     * @param depth The recursion level of the window
+     * @param nanos The time spent on it
+     */
+    public void recordWindow(int depth, long nanos) {
+        levelWindows[depth]++;
+        levelNanos[depth] += nanos;
+    }
+
+    /**
+     * Records one finalized partition.
+     *
+     * @param size The rows of the partition, at least 1
+     */
+    public void recordPartition(int size) {
+        sizeBuckets[31 - Integer.numberOfLeadingZeros(size)]++;
+        partitions++;
+        minSize = Math.min(minSize, size);
+        maxSize = Math.max(maxSize, size);
+    }
+
+    /**
+     * Get the number of finalized partitions.
+     */
+    public long getPartitions() {
+        return partitions;
+    }
+
+    /**
+     * Get the number of partitions with 2^bucket <= size < 2^(bucket + 1).
+     *
+     * @param bucket The bucket, 0 to 31
+     */
+    public long getSizeBucket(int bucket) {
+        return sizeBuckets[bucket];
+    }
+
+    /**
+     * Get the number of windows of a recursion level.
+     *
+     * @param depth The level, 0 for the root
+     */
+    public long getLevelWindows(int depth) {
+        return levelWindows[depth];
+    }
+
+    /**
+     * Get the time spent on the windows of a recursion level.
+     *
+     * @param depth The level, 0 for the root
+     */
+    public long getLevelNanos(int depth) {
+        return levelNanos[depth];
+    }
+
+    /**
+     * Get the profile in the format of algorithm.trace.Profile.summary().
+     */
+    public String summary() {
+        StringBuilder summary = new StringBuilder();
+        summary.append("Profile (").append(engine).append(", ").append(rows).append(" rows): ")
+                .append(partitions).append(" partitions");
+        if (partitions > 0) {
+            summary.append(", size min = ").append(minSize).append(", max = ").append(maxSize);
+        }
+        for (int bucket = 0; bucket < SIZE_BUCKETS; bucket++) {
+            if (sizeBuckets[bucket] > 0) {
+                summary.append("\n  sizes [").append(1L << bucket).append(", ").append(1L << (bucket + 1))
+                        .append("): ").append(sizeBuckets[bucket]);
+            }
+        }
+        for (int depth = 0; depth < MAX_LEVELS; depth++) {
+            if (levelWindows[depth] > 0) {
+                summary.append(String.format(Locale.ROOT, "\n  level %d: %d windows, %.2f ms",
+                        depth, levelWindows[depth], levelNanos[depth] / 1e6));
+            }
+        }
+        return summary.toString();
+    }
+}
@@ -0,0 +1,104 @@
+package com.example.pythoncalculation.trace;
+
+/**
+ * Named trace sections around the stages of an anonymization run.
+ *
+ * The sections go to a pluggable Backend: android.os.Trace on the device (AndroidTraceBackend),
+ * so a run shows up in a system trace (Perfetto) together with the sections of the Python engine
+ * (algorithm/trace.py), and JFR events or nothing on the JVM. The default backend records nothing.
+ *
+ * Sections nest and must end on the thread that began them; callers end them in a finally block.
+ * This class has no Android dependency, so the engine and the headless runner share it.
+ */
+public final class Tracer {
+
+    /**
+     * Receives the sections.
+     */
+    public interface Backend {
+        /**
+         * Whether sections are being recorded; checked before building a dynamic section name.
+         *
+         * @return False to skip the sections
+         */
+        boolean isEnabled();
+
+        /**
+         * Begins a section on the calling thread.
+         *
+         * @param name The section name
+         */
+        void beginSection(String name);
+
+        /**
+         * Ends the innermost section of the calling thread.
+         */
+        void endSection();
+    }
+
+    /**
+     * Records nothing.
+     */
+    public static final Backend NO_OP = new Backend() {
+        @Override
+        public boolean isEnabled() {
+            return false;
+        }
+
+        @Override
+        public void beginSection(String name) {
+        }
+
+        @Override
+        public void endSection() {
+        }
+    };
+
+    private static volatile Backend backend = NO_OP;
+
+    private Tracer() {
+    }
+
+    /**
+     * Set the backend of all following sections.
+     *
+     * @param newBackend The backend, or null for NO_OP
+     */
+    public static void setBackend(Backend newBackend) {
+        backend = newBackend != null ? newBackend : NO_OP;
+    }
+
+    /**
+     * Get the backend.
+     *
+     * @return The current backend
+     */
+    public static Backend getBackend() {
+        return backend;
+    }
+
+    /**
+     * Whether sections are being recorded.
+     *
+     * @return True if the backend records sections
+     */
+    public static boolean isEnabled() {
+        return backend.isEnabled();
+    }
+
+    /**
+     * Begins a section on the calling thread.
+     *
+     * @param name The section name
+     */
+    public static void begin(String name) {
+        backend.beginSection(name);
+    }
+
+    /**
+     * Ends the innermost section of the calling thread.
+     */
+    public static void end() {
+        backend.endSection();
+    }
+}
@@ -0,0 +1,350 @@
+# Checkpoint and resume of the exact in-memory Mondrian engine
+#
+# mondrian.anonymize() finalizes partitions in output order, so the output file grows as a prefix of the final
+# result. CheckpointedOutput writes the finalized partitions in chunks of CHUNK_ROWS rows and, after every chunk,
+# hands a snapshot of the work frontier to a background writer:
+# - the pending partitions, each as (offset, length, bounds); bounds are the first and the last leaf_id of the
+#   window on the split dimension, used to check that a resumed permutation matches
+# - the number of finalized rows, the byte offset of the output file after them, and the NCP so far
+# The snapshot is packed into one of two preallocated buffers; the writer thread fsyncs the output, writes the
+# other buffer to a temporary file and renames it over the checkpoint, so the engine never waits for the disk.
+#
+# The engine splits every window along the same dimension, and the root sort is stable, so the permutation is
+# the stable argsort of that dimension and every pending window is a slice of it. A resumed run sorts once,
+# truncates the output to the checkpointed byte offset and partitions only the pending windows. The equivalence
+# classes of the metrics are distinct tuples of published labels, which later partitions may join, so a resumed run
+# counts them again from the quasi-identifiers of the kept output instead of checkpointing them.
+#
+# The weighted engine (mondrian.anonymize_weighted()) partitions the distinct quasi-identifier tuples, sorted by
+# the split dimension once, and fixes the output row order before it starts. Its pending windows are windows of
+# tuples; a resumed run deduplicates again, which yields the same tuples for the same input, and checks the bounds
+# on the tuples instead of the rows.
+#
+# The chunks also go to the results table of the dataset store, with their equivalence classes; a resumed run
+# drops the stored rows after the checkpointed ones.
+import io
+import os
+import struct
+import threading
+import zlib
+
+import numpy as np
+import pandas as pd
+
+import algorithm.dataset_store as dataset_store
+import algorithm.identifier_transform as id_transform
+import algorithm.mondrian as mondrian
+
+MAGIC = b'MCKP'
+VERSION = 3
+CHUNK_ROWS = 65536
+
+# magic, version, n, m, dim, k, l, entropy mode, weighted engine, input size, input mtime_ns,
+# finalized rows, output bytes, ncp_sum, metric rows, entry count
+HEADER = struct.Struct('<4sHqiiiiBBqqqqdqi')
+# offset, length (in rows, or in tuples for the weighted engine), first and last leaf_id on the split dimension
+ENTRY = struct.Struct('<qqii')
+CRC = struct.Struct('<I')
+
+
+def checkpoint_root():
+    """
+    app-private directory for checkpoints ($HOME is the app files directory under Chaquopy)
+    """
+    path = os.path.join(os.path.expanduser("~"), "checkpoints")
+    os.makedirs(path, exist_ok=True)
+    return path
+
+
+def checkpoint_path(schema, k, l=0, diversity_mode="distinct"):
+    """
+    the checkpoint file of one anonymization job; a job with the same parameters resumes from it
+    """
+    suffix = f"_l{l}_{diversity_mode}" if l > 1 else ""
+    return os.path.join(checkpoint_root(), f"{schema.dataset_id}_k{k}{suffix}.ckpt")
+
+
+def input_fingerprint(path):
+    """
+    (size, mtime_ns) of the input file; a checkpoint of a changed input is discarded
+    """
+    stat = os.stat(path)
+    return stat.st_size, stat.st_mtime_ns
+
+
+class CheckpointWriter:
+    """
+    background writer with double buffering. submit() packs a snapshot into the buffer the writer thread is
+    not writing and returns at once; a snapshot that is not picked up yet is replaced by the next one.
+    """
+    def __init__(self, path):
+        self.path = path
+        self.buffers = [bytearray(HEADER.size + 64 * ENTRY.size + CRC.size) for _ in range(2)]
+        self.sizes = [0, 0]
+        self.sync_fds = [None, None]
+        self.pending = None  # index of the buffer waiting to be written
+        self.writing = None  # index of the buffer the writer thread is writing
+        self.closed = False
+        self.condition = threading.Condition()
+        self.thread = threading.Thread(target=self._run, name="checkpoint-writer", daemon=True)
+        self.thread.start()
+
+    def submit(self, fields, entries, sync_fd=None):
+        """
+        :param fields: the HEADER fields after magic and version, without the entry count
+        :param entries: the pending partitions as (offset, length, first leaf_id, last leaf_id)
+        :param sync_fd: file descriptor of the output, synced before the checkpoint that refers to it
+        """
+        size = HEADER.size + len(entries) * ENTRY.size + CRC.size
+        with self.condition:
+            index = 1 - self.writing if self.writing is not None else (self.pending or 0)
+            if len(self.buffers[index]) < size:
+                self.buffers[index] = bytearray(2 * size)
+            buffer = self.buffers[index]
+            HEADER.pack_into(buffer, 0, MAGIC, VERSION, *fields, len(entries))
+            position = HEADER.size
+            for entry in entries:
+                ENTRY.pack_into(buffer, position, *entry)
+                position += ENTRY.size
+            CRC.pack_into(buffer, position, zlib.crc32(memoryview(buffer)[:position]))
+            self.sizes[index] = size
+            self.sync_fds[index] = sync_fd
+            self.pending = index
+            self.condition.notify()
+
+    def _run(self):
+        while True:
+            with self.condition:
+                while self.pending is None and not self.closed:
+                    self.condition.wait()
+                if self.pending is None:
+                    return
+                index = self.writing = self.pending
+                self.pending = None
+            try:
+                if self.sync_fds[index] is not None:
+                    os.fsync(self.sync_fds[index])
+                temporary = self.path + ".tmp"
+                with open(temporary, 'wb') as f:
+                    f.write(memoryview(self.buffers[index])[:self.sizes[index]])
+                    f.flush()
+                    os.fsync(f.fileno())
+                os.replace(temporary, self.path)
+            except OSError as e:
+                # a failed checkpoint only loses the resume, not the run
+                print(f"Error writing checkpoint {self.path}: {e}")
+            finally:
+                with self.condition:
+                    self.writing = None
+
+    def close(self):
+        """
+        write the last submitted snapshot and stop the writer thread
+        """
+        with self.condition:
+            self.closed = True
+            self.condition.notify()
+        self.thread.join()
+
+
+def read_checkpoint(path):
+    """
+    :return: (header fields after magic and version, list of entries), or None if there is no valid checkpoint
+    """
+    try:
+        with open(path, 'rb') as f:
+            data = f.read()
+    except OSError:
+        return None
+    if len(data) < HEADER.size + CRC.size:
+        return None
+    body, (crc,) = data[:-CRC.size], CRC.unpack_from(data, len(data) - CRC.size)
+    if zlib.crc32(body) != crc:
+        return None
+    header = HEADER.unpack_from(body, 0)
+    magic, version, fields, count = header[0], header[1], header[2:-1], header[-1]
+    if magic != MAGIC or version != VERSION or len(body) != HEADER.size + count * ENTRY.size:
+        return None
+    entries = [ENTRY.unpack_from(body, HEADER.size + i * ENTRY.size) for i in range(count)]
+    return fields, entries
+
+
+class CheckpointedOutput:
+    """
+    frontier of mondrian.anonymize() and mondrian.anonymize_weighted(): writes the finalized partitions to the output file and checkpoints the
+    pending ones. A run with the same parameters on the same input resumes from the checkpoint.
+    """
+    def __init__(self, df, schema, k, metrics, output_path, path=None, l=0,
+                 diversity_mode="distinct", chunk_rows=CHUNK_ROWS):
+        """
+        :param df: the data frame from mondrian.read_encoded(), in input row order
+        :param schema: the DatasetSchema from the registry
+        :param k: the k value for k-anonymity
+        :param metrics: the InfoLossMetrics of the run, restored on resume
+        :param output_path: the anonymized output file
+        :param path: the checkpoint file, or None to only stream the output
+        :param l: the l value; every chunk is checked for l-diversity if l > 1
+        :param diversity_mode: 'distinct' or 'entropy' l-diversity
+        :param chunk_rows: the number of finalized rows written and checkpointed at a time
+        """
+        self.df = df
+        self.schema = schema
+        self.k = k
+        self.l = l
+        self.diversity_mode = diversity_mode
+        self.metrics = metrics
+        self.output_path = output_path
+        self.path = path
+        self.chunk_rows = chunk_rows
+        self.hierarchy_tree_dict = {qi: tree for qi, tree in zip(schema.qi_list, metrics.trees)}
+        self.writer = None
+        self.output = None
+        self.results = dataset_store.ResultWriter(schema, k, l, diversity_mode)
+        self.written = 0
+        self.output_bytes = 0
+        self.resumed = False
+
+    def start(self, codes, dim, perm, low, high, stack, diversity=None, tuples=None):
+        """
+        called by anonymize() or anonymize_weighted() before partitioning. Restores the permutation and the
+        frontier of a checkpoint.
+        :param tuples: the distinct tuples of anonymize_weighted(), whose windows the stack holds; None for rows
+        :return: the stack to start from: the pending partitions of the checkpoint, or the given stack
+        """
+        # the split dimension in window order: of the tuples, or of the rows through the permutation
+        self.values = tuples[dim] if tuples is not None else codes[dim]
+        self.weighted = tuples is not None
+        self.perm = perm
+        self.low = low
+        self.high = high
+        n = codes.shape[1]
+        self.key = (n, codes.shape[0], dim, self.k, self.l, int(self.diversity_mode == "entropy"),
+                    int(self.weighted)) + input_fingerprint(self.schema.path)
+        restored = self._restore(perm, diversity) if self.path else None
+        if self.path:
+            self.writer = CheckpointWriter(self.path)
+        if restored is None:
+            self.output = open(self.output_path, 'wb')
+            return stack
+        self.output = open(self.output_path, 'r+b')
+        self.output.truncate(self.output_bytes)
+        self.output.seek(self.output_bytes)
+        self.resumed = True
+        print(f"Resuming from checkpoint: {self.written} of {n} rows finalized, {len(restored)} partitions pending")
+        return restored
+
+    def _restore(self, perm, diversity):
+        """
+        :return: the pending partitions of a matching checkpoint, or None
+        """
+        checkpoint = read_checkpoint(self.path)
+        if checkpoint is None:
+            return None
+        fields, entries = checkpoint
+        key, (written, output_bytes, ncp_sum, metric_rows) = fields[:9], fields[9:]
+        if tuple(key) != self.key or not os.path.exists(self.output_path) \
+                or os.path.getsize(self.output_path) < output_bytes:
+            print(f"Discarding checkpoint {self.path}: it belongs to another run or input")
+            return None
+        # the permutation of anonymize() is the stable argsort of the split dimension (see the module comment);
+        # anonymize_weighted() fixes it before partitioning
+        restored_perm = perm if self.weighted else np.argsort(self.values, kind='stable')
+        windows = len(self.values)
+        for offset, length, first, last in entries:
+            if offset + length > windows or self._value(restored_perm, offset) != first \
+                    or self._value(restored_perm, offset + length - 1) != last:
+                print(f"Discarding checkpoint {self.path}: its partitions do not match the input")
+                return None
+        perm[:] = restored_perm
+        self.written = written
+        self.output_bytes = output_bytes
+        self.metrics.ncp_sum = ncp_sum
+        self.metrics.n_rows = metric_rows
+        self.metrics.add_classes(self._written_classes())
+        return [(offset, length, diversity.histogram(perm[offset:offset + length]) if diversity else None)
+                for offset, length, _, _ in entries]
+
+    def _written_classes(self):
+        """
+        the equivalence classes of the kept output: {tuple of published labels: rows}
+        """
+        if self.output_bytes == 0:
+            return {}
+        with open(self.output_path, 'rb') as f:
+            data = f.read(self.output_bytes)
+        qi_list = self.schema.qi_list
+        written = pd.read_csv(io.BytesIO(data), sep=self.schema.delimiter, usecols=qi_list, dtype=str,
+                              keep_default_na=False)
+        sizes = written.groupby(qi_list, sort=False).size()
+        # a single quasi-identifier groups by plain labels, not by tuples
+        return {labels if len(qi_list) > 1 else (labels,): int(size) for labels, size in sizes.items()}
+
+    def _value(self, perm, position):
+        """
+        the leaf_id on the split dimension at a position of the window order
+        """
+        return self.values[position] if self.weighted else self.values[perm[position]]
+
+    def finalized(self, end, stack):
+        """
+        called by the engine after every finalized partition; rows [0, end) of the output order are final
+        """
+        if end - self.written >= self.chunk_rows:
+            self.flush(end, stack)
+
+    def flush(self, end, stack):
+        """
+        write the finalized rows [written, end) and checkpoint the pending partitions
+        """
+        if end > self.written:
+            self._write_rows(self.written, end)
+            self.written = end
+        if self.writer is not None:
+            self.output.flush()
+            entries = [(offset, length, int(self._value(self.perm, offset)),
+                        int(self._value(self.perm, offset + length - 1))) for offset, length, _ in stack]
+            metrics = self.metrics
+            fields = self.key + (self.written, self.output_bytes, metrics.ncp_sum, metrics.n_rows)
+            self.writer.submit(fields, entries, self.output.fileno())
+
+    def _write_rows(self, start, end):
+        qi_list = self.schema.qi_list
+        chunk = self.df.iloc[self.perm[start:end]].reset_index(drop=True)
+        chunk = mondrian.map_num_to_text(chunk, qi_list, self.hierarchy_tree_dict, self.low[:, start:end],
+                                         self.high[:, start:end], self.schema.numeric_strategy)
+        # a chunk ends at a partition boundary, so every equivalence class lies in one chunk
+        if not mondrian.check_k_anonymity(chunk, qi_list, self.k):
+            raise Exception("Not all partitions are k-anonymous")
+        if self.l > 1 and not mondrian.check_l_diversity(chunk, qi_list, self.schema.sensitive[0], self.l,
+                                                          self.diversity_mode):
+            raise Exception(f"Not all partitions are {self.l}-diverse")
+        chunk = id_transform.restore_suppressed(chunk, self.schema)
+        if self.results.columns is None:
+            self.results.start(chunk.columns, resumed=start)
+        self.results.write(chunk)
+        data = chunk.to_csv(index=False, sep=self.schema.delimiter, header=start == 0).encode('utf-8')
+        self.output.write(data)
+        self.output_bytes += len(data)
+
+    def finish(self):
+        """
+        write the last rows and remove the checkpoint of the completed run
+        """
+        if self.written < len(self.perm):
+            self._write_rows(self.written, len(self.perm))
+            self.written = len(self.perm)
+        self.results.finish(self.metrics.summary())
+        self.close()
+        if self.path and os.path.exists(self.path):
+            os.remove(self.path)
+
+    def close(self):
+        """
+        stop the writer and close the output; the checkpoint of an interrupted run is kept
+        """
+        if self.writer is not None:
+            self.writer.close()
+            self.writer = None
+        if self.output is not None:
+            self.output.close()
+            self.output = None
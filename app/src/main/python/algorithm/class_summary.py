@@ -0,0 +1,159 @@
+# Counting queries on the anonymized output, answered from the equivalence-class summaries
+#
+# Every run kept by the dataset store has one summary row per equivalence class (classes_<id>: generalized
+# quasi-identifiers and size) and the histogram of its sensitive columns (class_values_<id>, with the generalized
+# quasi-identifiers of the class repeated), see dataset_store.py.
+# A group-by-count query on generalized attributes is a GROUP BY over the n / k classes of the run, summing their sizes,
+# instead of a scan over its n output rows: every row of a class has the same generalized values, so the counts are
+# the same. Only quasi-identifiers can be grouped or filtered on, since only they are constant within a class;
+# the sensitive columns are counted per value.
+#
+# Requests arrive as JSON from MQTT or the app:
+# {"queryId": "...", "dataset": "standard", "kValue": 5, "lValue": 0, "diversity": "distinct",
+#  "cutEstimation": "exact", "splitMode": "median", "generalization": "local",
+#  "groupBy": ["age", "race"], "where": {"sex": "Male", "race": ["White", "Black"]}, "sensitive": "salary-class"}
+# and are answered with {"queryId", "dataset", "kValue", "groupBy", "rows": [{"age": ..., "race": ..., "count": n,
+# "sensitive": {value: n}}], "classes", "records", "milliseconds"}, or {"queryId", "error"}.
+# lValue, diversity, cutEstimation, splitMode and generalization select the run and default to the exact median run.
+import json
+import time
+
+import algorithm.dataset_registry as registry
+import algorithm.dataset_store as dataset_store
+
+
+def _condition(where, columns):
+    """
+    :return: (SQL condition on the class table aliased c, parameters) for a {column: value or list of values} filter
+    """
+    conditions, parameters = [], []
+    for name, value in (where or {}).items():
+        _check_column(name, columns)
+        if isinstance(value, list):
+            conditions.append(f"c.{dataset_store._quote(name)} IN ({', '.join('?' * len(value))})")
+            parameters.extend(value)
+        else:
+            conditions.append(f"c.{dataset_store._quote(name)} = ?")
+            parameters.append(value)
+    return "".join(" AND " + condition for condition in conditions), parameters
+
+
+def _check_column(name, columns):
+    if name not in columns:
+        raise ValueError(f"'{name}' is not a quasi-identifier of the summaries; use one of {', '.join(columns)}")
+
+
+def count_by(dataset, k, group_by, l=0, diversity_mode="distinct", where=None, sensitive=None, cut_estimation='exact',
+             split_mode='median', generalization='local'):
+    """
+    number of anonymized records per combination of generalized quasi-identifier values, from the class summaries
+    :param dataset: the dataset ID (or input file name) in the registry
+    :param k: the k value of the run
+    :param group_by: the quasi-identifiers to group by, empty for the total
+    :param l: the l value of the run
+    :param diversity_mode: the diversity mode of the run with l > 1
+    :param where: optional {quasi-identifier: generalized value or list of values} filter
+    :param sensitive: optional sensitive column, counted per value in every group
+    :param cut_estimation: the cut estimation of the run, 'exact' or 'sampled'
+    :param split_mode: the split mode of the run, 'median' or 'hierarchy'
+    :param generalization: the generalization of the run, 'local' or 'full-domain'
+    :return: dict with the rows in group order, the number of classes summed and of records counted
+    """
+    schema = registry.get_dataset(dataset)
+    run = dataset_store.find_run(dataset, k, l, diversity_mode, cut_estimation, split_mode, generalization)
+    if run is None or run[1] != dataset_store.STATUS_DONE:
+        options = [option for option, default in zip((cut_estimation, split_mode, generalization),
+                                                     (default for _, default in dataset_store.RUN_OPTIONS))
+                   if option != default]
+        raise ValueError(f"No completed run of '{schema.dataset_id}' with K = {k}"
+                         + (f", L = {l} {diversity_mode}" if int(l or 0) > 1 else "")
+                         + "".join(f", {option}" for option in options) + " in the store")
+    connection = dataset_store._connection()
+    classes = dataset_store.class_table(schema.dataset_id)
+    columns = dataset_store._table_columns(connection, classes)[3:]
+    group_by = list(group_by or [])
+    for name in group_by:
+        _check_column(name, columns)
+    if sensitive is not None and sensitive not in schema.sensitive:
+        raise ValueError(f"'{sensitive}' is not a sensitive column of '{schema.dataset_id}'")
+    condition, parameters = _condition(where, columns)
+    groups = [f"c.{dataset_store._quote(name)}" for name in group_by]
+    select = "".join(group + ", " for group in groups)
+    group_clause = f" GROUP BY {', '.join(groups)} ORDER BY {', '.join(groups)}" if groups else ""
+
+    # Step 1: the size of every group, summed over its classes
+    rows = {}
+    classes_summed = records = 0
+    for row in connection.execute(f"SELECT {select}sum(c.size), count(*) FROM {dataset_store._quote(classes)} c "
+                                  f"WHERE c.run_id = ?{condition}{group_clause}", [run[0]] + parameters):
+        if row[-1] == 0:
+            # no class matches the filter; the total without GROUP BY still has one row
+            continue
+        key = tuple(row[:len(groups)])
+        rows[key] = dict(zip(group_by, key), count=row[-2])
+        classes_summed += row[-1]
+        records += row[-2]
+
+    # Step 2: the histogram of the sensitive column per group, summed over the same classes
+    if sensitive is not None:
+        for entry in rows.values():
+            entry['sensitive'] = {}
+        # the histogram rows repeat the quasi-identifiers of their class, so they are filtered and grouped alike
+        values = dataset_store._quote(dataset_store.value_table(schema.dataset_id))
+        for row in connection.execute(f"SELECT {select}c.value, sum(c.count) FROM {values} c "
+                                      f"WHERE c.run_id = ? AND c.attribute = ?{condition} "
+                                      f"GROUP BY {', '.join(groups + ['c.value'])}",
+                                      [run[0], sensitive] + parameters):
+            rows[tuple(row[:len(groups)])]['sensitive'][str(row[-2])] = row[-1]
+    return {'groupBy': group_by, 'rows': list(rows.values()), 'classes': classes_summed, 'records': records}
+
+
+def query_json(payload):
+    """
+    answer a query request, for the MQTT query topic and the app
+    :param payload: the JSON request, see the module comment
+    :return: the JSON response; errors are reported in it instead of raised
+    """
+    query_id = None
+    try:
+        tic = time.time()
+        request = json.loads(payload)
+        if not isinstance(request, dict):
+            raise ValueError("Expected a JSON object")
+        query_id = request.get('queryId')
+        dataset = request.get('dataset', 'standard')
+        k = int(request['kValue'])
+        where = request.get('where')
+        if where is not None and not isinstance(where, dict):
+            raise ValueError("'where' must be an object of quasi-identifier values")
+        group_by = request.get('groupBy') or []
+        if isinstance(group_by, str):
+            group_by = [name.strip() for name in group_by.split(',') if name.strip()]
+        result = count_by(dataset, k, group_by, int(request.get('lValue') or 0), request.get('diversity') or 'distinct',
+                          where, request.get('sensitive'), request.get('cutEstimation') or 'exact',
+                          request.get('splitMode') or 'median', request.get('generalization') or 'local')
+        response = {'queryId': query_id, 'dataset': dataset, 'kValue': k}
+        response.update(result)
+        response['milliseconds'] = round((time.time() - tic) * 1000, 3)
+        return json.dumps(response)
+    except KeyError as e:
+        return json.dumps({'queryId': query_id, 'error': f"Missing {e}"})
+    except Exception as e:
+        return json.dumps({'queryId': query_id, 'error': str(e)})
+
+
+def format_result(response_json):
+    """
+    a query response as text for the app: one line per group
+    """
+    response = json.loads(response_json)
+    if 'error' in response:
+        return f"Query failed: {response['error']}"
+    lines = [f"{response['records']} records in {response['classes']} classes ({response['milliseconds']} ms)"]
+    for row in response['rows']:
+        group = ", ".join(f"{name} = {row[name]}" for name in response['groupBy']) or "total"
+        histogram = row.get('sensitive')
+        lines.append(f"{group}: {row['count']}"
+                     + (" (" + ", ".join(f"{value}: {count}" for value, count in histogram.items()) + ")"
+                        if histogram else ""))
+    return "\n".join(lines)
@@ -0,0 +1,82 @@
+# Bulk exchange of encoded quasi-identifier columns between Python and Java
+#
+# Results used to reach Java only through PyObject.toString(). The functions below hand over
+# flat int32 numpy arrays instead. Chaquopy converts objects that support the buffer protocol
+# with a single memory copy (PyObject.toJava(int[].class)), and Java primitive arrays passed in
+# are read through the same protocol (np.asarray), so no value is ever formatted or parsed.
+#
+# Layout of every matrix is column-major: quasi-identifier i occupies [i * n_rows, (i + 1) * n_rows).
+import time
+import numpy as np
+
+import algorithm.dataset_registry as registry
+import algorithm.mondrian as mondrian
+
+
+class ColumnBatch:
+    """
+    the encoded quasi-identifiers of a data set and their generalized ranges, as flat int32 arrays
+    """
+    def __init__(self, qi_names, codes, low, high, metrics=None):
+        self.qi_names = list(qi_names)
+        self.metrics_summary = metrics.summary() if metrics else ""
+        self.n_rows = int(codes.shape[1])
+        self.codes = np.ascontiguousarray(codes, dtype=np.int32).reshape(-1)
+        self.low = np.ascontiguousarray(low, dtype=np.int32).reshape(-1)
+        self.high = np.ascontiguousarray(high, dtype=np.int32).reshape(-1)
+
+
+def anonymize_columns(k_value, dataset="standard"):
+    """
+    anonymize a registered data set and return the result as columns instead of text
+    :param k_value: the k value for k-anonymity
+    :param dataset: the dataset ID (or input file name) in the registry
+    :return: ColumnBatch with codes, low and high in output row order, and the information loss
+    """
+    schema = registry.get_dataset(dataset)
+    qi_list = schema.qi_list
+    _, codes, hierarchy_tree_dict = mondrian.read_encoded(schema)
+    metrics = mondrian.InfoLossMetrics(qi_list, hierarchy_tree_dict, k_value, schema.numeric_strategy)
+    perm, low, high = mondrian.mondrian(codes, qi_list, k_value, metrics)
+    return ColumnBatch(qi_list, codes[:, perm], low, high, metrics)
+
+
+def anonymize_java_columns(k_value, qi_names, columns, n_rows):
+    """
+    anonymize columns that were encoded on the Java side
+    :param k_value: the k value for k-anonymity
+    :param qi_names: the quasi-identifier names, in the order of the columns
+    :param columns: Java int[] holding the leaf_ids, column-major
+    :param n_rows: the number of rows
+    :return: ColumnBatch with codes, low and high in output row order
+    """
+    qi_names = [str(name) for name in qi_names]
+    codes = np.asarray(columns, dtype=np.int32).reshape(len(qi_names), n_rows)
+    perm, low, high = mondrian.mondrian(codes, qi_names, k_value)
+    return ColumnBatch(qi_names, codes[:, perm], low, high)
+
+
+#### TRANSFER BENCHMARK ###########################################################
+# used by the instrumented benchmark to compare buffer transfer with string transfer
+#################################################################################
+
+
+def synthetic_batch(n_rows, n_qi=8, seed=0):
+    """
+    a batch of random leaf_ids shaped like the standard data set, without running the engine
+    """
+    rng = np.random.default_rng(seed)
+    codes = rng.integers(1, 100, size=(n_qi, n_rows), dtype=np.int32)
+    return ColumnBatch([f"qi_{i}" for i in range(n_qi)], codes, codes, codes)
+
+
+def synthetic_batch_text(n_rows, n_qi=8, seed=0):
+    """
+    the same batch as synthetic_batch, formatted as CSV text the way results crossed before
+    """
+    batch = synthetic_batch(n_rows, n_qi, seed)
+    tic = time.time()
+    rows = batch.codes.reshape(n_qi, n_rows).T
+    text = "\n".join(",".join(map(str, row)) for row in rows.tolist())
+    print(f"Formatted {n_rows} rows as text in {time.time() - tic:.2f} seconds")
+    return text
@@ -0,0 +1,151 @@
+# Dataset registry
+#
+# Describes every input the app can anonymize: the file, its delimiter, the role of each column
+# (qi, identifier, sensitive or insensitive), the hierarchy file of each quasi-identifier and how
+# numeric quasi-identifiers are published ("hierarchy": common ancestor, "range": "low-high" of the
+# original values) and how identifiers are protected ("transform": "suppress", "pseudonymize" or
+# "encrypt", see identifier_transform.py). The bundled descriptor is input/datasets.json. A descriptor at
+# $HOME/datasets/datasets.json (the app-private files directory under Chaquopy) is merged on top of
+# it, so new sources can be onboarded by copying files to the device, without a rebuild.
+import copy
+import json
+import os
+
+import algorithm.hierarchy_tree as h_tree
+import algorithm.identifier_transform as id_transform
+
+ROLE_QI = 'qi'
+ROLE_IDENTIFIER = 'identifier'
+ROLE_SENSITIVE = 'sensitive'
+ROLE_INSENSITIVE = 'insensitive'
+
+NUMERIC_HIERARCHY = 'hierarchy'
+NUMERIC_RANGE = 'range'
+
+BUNDLED_DESCRIPTOR = os.path.join(os.path.dirname(os.path.dirname(__file__)), "input", "datasets.json")
+
+
+def user_descriptor_path():
+    return os.path.join(os.path.expanduser("~"), "datasets", "datasets.json")
+
+
+class DatasetSchema:
+    """
+    the compiled description of one data set, with absolute paths
+    """
+    def __init__(self, dataset_id, descriptor, base_dir, hierarchy_dir):
+        self.dataset_id = dataset_id
+        self.path = os.path.join(base_dir, descriptor['file'])
+        self.file_name = os.path.basename(self.path)
+        self.delimiter = descriptor.get('delimiter', ',')
+        self.engine = descriptor.get('engine', 'mondrian')
+        columns = descriptor.get('columns', {})
+        self.qi_list = [name for name, column in columns.items() if column['role'] == ROLE_QI]
+        self.identifiers = [name for name, column in columns.items() if column['role'] == ROLE_IDENTIFIER]
+        self.identifier_transforms = {name: columns[name].get('transform', id_transform.SUPPRESS)
+                                      for name in self.identifiers}
+        for name, transform in self.identifier_transforms.items():
+            if transform not in id_transform.TRANSFORMS:
+                raise ValueError(f"Dataset '{dataset_id}': unknown transform '{transform}' of identifier '{name}'")
+        self.sensitive = [name for name, column in columns.items() if column['role'] == ROLE_SENSITIVE]
+        self.hierarchy_files = {name: os.path.join(hierarchy_dir, column['hierarchy'])
+                                for name, column in columns.items() if 'hierarchy' in column}
+        self.numeric_strategy = {name: columns[name].get('numeric', NUMERIC_HIERARCHY) for name in self.qi_list}
+        # quasi-identifiers declared numeric have ordered leaf values; the others are categorical
+        self.numeric_columns = [name for name in self.qi_list if 'numeric' in columns[name]]
+        self.preview_columns = descriptor.get('preview_columns', self.qi_list[:5])
+        self.preview_rows = tuple(descriptor.get('preview_rows', (0, 40)))
+
+    def with_path(self, path):
+        """
+        the same schema for another input file with the same columns
+        """
+        schema = copy.copy(self)
+        schema.path = path
+        schema.file_name = os.path.basename(path)
+        return schema
+
+    def cache_key(self):
+        """
+        changes whenever the input file or one of its hierarchy files changes
+        """
+        paths = [self.path] + sorted(self.hierarchy_files.values())
+        return tuple(os.path.getmtime(p) if os.path.exists(p) else 0 for p in paths)
+
+
+# descriptor path -> (mtime, {dataset_id: DatasetSchema})
+_descriptor_cache = {}
+# dataset_id -> (DatasetSchema.cache_key(), hierarchy_tree_dict)
+_hierarchy_cache = {}
+
+
+def _load_descriptor(path):
+    mtime = os.path.getmtime(path)
+    cached = _descriptor_cache.get(path)
+    if cached and cached[0] == mtime:
+        return cached[1]
+    with open(path, encoding='utf-8') as f:
+        descriptor = json.load(f)
+    base_dir = os.path.dirname(path)
+    hierarchy_dir = os.path.normpath(os.path.join(base_dir, descriptor.get('hierarchy_dir', '.')))
+    datasets = {dataset_id.lower(): DatasetSchema(dataset_id, d, base_dir, hierarchy_dir)
+                for dataset_id, d in descriptor.get('datasets', {}).items()}
+    _descriptor_cache[path] = (mtime, datasets)
+    return datasets
+
+
+def load_registry():
+    """
+    :return: {dataset_id: DatasetSchema} of the bundled and the user descriptor
+    """
+    datasets = dict(_load_descriptor(BUNDLED_DESCRIPTOR))
+    if os.path.exists(user_descriptor_path()):
+        datasets.update(_load_descriptor(user_descriptor_path()))
+    return datasets
+
+
+def get_dataset(name):
+    """
+    look a data set up by its ID or, for older callers, by its input file name
+    :param name: e.g. "standard" or "dataset.csv"
+    :return: DatasetSchema
+    """
+    datasets = load_registry()
+    schema = datasets.get(str(name).lower())
+    if schema is not None:
+        return schema
+    for schema in datasets.values():
+        if schema.file_name == name:
+            return schema
+    raise KeyError(f"Unknown dataset '{name}'. Registered: {', '.join(sorted(datasets))}")
+
+
+def dataset_ids():
+    return sorted(load_registry())
+
+
+def get_hierarchy_trees(schema):
+    """
+    the hierarchy trees of a data set, built once and reused until one of its files changes
+    :return: {column: HierarchyTree}
+    """
+    key = schema.cache_key()
+    cached = _hierarchy_cache.get(schema.dataset_id)
+    if cached and cached[0] == key:
+        return cached[1]
+    hierarchy_tree_dict = {column: h_tree.HierarchyTree(path) for column, path in schema.hierarchy_files.items()}
+    _hierarchy_cache[schema.dataset_id] = (key, hierarchy_tree_dict)
+    return hierarchy_tree_dict
+
+
+def prewarm():
+    """
+    build the hierarchy trees of every registered data set ahead of the first command, called on the
+    background startup thread
+    :return: the number of hierarchy trees in the cache
+    """
+    count = 0
+    for schema in load_registry().values():
+        if schema.hierarchy_files and all(os.path.exists(path) for path in schema.hierarchy_files.values()):
+            count += len(get_hierarchy_trees(schema))
+    return count
@@ -0,0 +1,555 @@
+# Embedded SQLite store of the input data sets and of the anonymized results
+#
+# ~/store/datasets.db (the app-private files directory under Chaquopy), in WAL mode, so that the pipeline stages, the
+# snapshot builder and the previews can read while a run writes. Every thread has its own connection.
+# - datasets        one row per ingested input: the fingerprint of its CSV file, its columns and its number of rows
+# - "input_<id>"    the rows of an input, row_id in file order. Numeric quasi-identifiers are NUMERIC columns and the
+#                   other quasi-identifiers TEXT columns, each with an index; the other columns keep the text of the file
+# - runs            one row per anonymization (data set, k, l, diversity mode, cut estimation, split mode,
+#                   generalization), replaced by the next run with the same parameters: its status, its numbers of rows
+#                   and classes and the metrics summary. Runs of other engines (e.g. a sampled or a full-domain run)
+#                   are kept side by side with the exact median run of the same k
+# - "result_<id>"   the anonymized rows of the runs of a data set in output order, keyed by (run_id, row_id), with the
+#                   equivalence class of every row: rows with the same generalized quasi-identifiers share a class_id,
+#                   numbered from 0 in the order of their first row
+# - "classes_<id>"  one row per equivalence class of a run: its generalized quasi-identifiers and its size
+# - "class_values_<id>"  the histogram of every sensitive column per class, one row per (class, column, value), with
+#                   the quasi-identifiers of the class repeated so that it is counted without a join
+#                   The summaries are built with SQL GROUP BYs over the rows when a run finishes, and answer the
+#                   counting queries of class_summary.py
+# Inputs are ingested from their CSV files with one prepared INSERT executed for batches of BATCH_ROWS rows inside a
+# single transaction, so a reader sees either all the old or all the new rows. An input stays fresh while its CSV file
+# keeps its size and mtime; without the file the store is the only copy and stays in use.
+# read_input() scans an input with a cursor in chunks of SCAN_ROWS rows and assembles the columns; preview() and
+# preview_input() are range queries on the primary keys instead of parses of a CSV file.
+import csv
+import itertools
+import json
+import os
+import sqlite3
+import threading
+import time
+
+import numpy as np
+import pandas as pd
+
+import algorithm.dataset_registry as registry
+import algorithm.identifier_transform as id_transform
+
+BATCH_ROWS = 50000
+SCAN_ROWS = 20000
+STATUS_RUNNING = 'running'
+STATUS_DONE = 'done'
+
+# the options of a run besides k, l and the diversity mode, with the value of the default engine
+RUN_OPTIONS = (('cut_estimation', 'exact'), ('split_mode', 'median'), ('generalization', 'local'))
+
+_local = threading.local()
+
+
+def store_path():
+    return os.path.join(os.path.expanduser("~"), "store", "datasets.db")
+
+
+def _connection():
+    """
+    the connection of the calling thread, in autocommit mode: transactions are begun explicitly
+    """
+    path = store_path()
+    connection = getattr(_local, 'connection', None)
+    if connection is not None and _local.path == path:
+        return connection
+    os.makedirs(os.path.dirname(path), exist_ok=True)
+    connection = sqlite3.connect(path, timeout=30, isolation_level=None)
+    connection.execute("PRAGMA journal_mode=WAL")
+    connection.execute("PRAGMA synchronous=NORMAL")
+    connection.executescript("""
+        CREATE TABLE IF NOT EXISTS datasets (
+            dataset_id TEXT PRIMARY KEY, source_size INTEGER, source_mtime_ns INTEGER, columns TEXT NOT NULL,
+            rows INTEGER NOT NULL, ingested_at REAL NOT NULL);
+    """)
+    with _Transaction(connection):
+        existing = _table_columns(connection, 'runs')
+        if 'generalization' not in existing:
+            # a store from before the engine options is migrated: its runs were exact median runs of Mondrian
+            if existing:
+                connection.execute("ALTER TABLE runs RENAME TO runs_old")
+            _create_runs(connection)
+            if existing:
+                connection.execute(f"INSERT INTO runs ({', '.join(existing)}) SELECT * FROM runs_old")
+                connection.execute("DROP TABLE runs_old")
+    _local.connection = connection
+    _local.path = path
+    return connection
+
+
+def _create_runs(connection):
+    options = "".join(f"{name} TEXT NOT NULL DEFAULT '{default}', " for name, default in RUN_OPTIONS)
+    keys = ", ".join(name for name, _ in RUN_OPTIONS)
+    connection.execute(f"""
+        CREATE TABLE runs (
+            run_id INTEGER PRIMARY KEY, dataset_id TEXT NOT NULL, k INTEGER NOT NULL, l INTEGER NOT NULL,
+            diversity_mode TEXT NOT NULL, {options}status TEXT NOT NULL, rows INTEGER NOT NULL DEFAULT 0,
+            classes INTEGER NOT NULL DEFAULT 0, metrics TEXT, updated_at REAL NOT NULL,
+            UNIQUE (dataset_id, k, l, diversity_mode, {keys}))""")
+
+
+class _Transaction:
+    """
+    BEGIN IMMEDIATE ... COMMIT, rolled back on an exception
+    """
+    def __init__(self, connection):
+        self.connection = connection
+
+    def __enter__(self):
+        self.connection.execute("BEGIN IMMEDIATE")
+        return self.connection
+
+    def __exit__(self, exc_type, exc, tb):
+        self.connection.execute("ROLLBACK" if exc_type else "COMMIT")
+        return False
+
+
+def _quote(name):
+    return '"' + str(name).replace('"', '""') + '"'
+
+
+def input_table(dataset_id):
+    return "input_" + dataset_id.lower()
+
+
+def result_table(dataset_id):
+    return "result_" + dataset_id.lower()
+
+
+def class_table(dataset_id):
+    return "classes_" + dataset_id.lower()
+
+
+def value_table(dataset_id):
+    return "class_values_" + dataset_id.lower()
+
+
+def _source_stat(schema):
+    """
+    (size, mtime_ns) of the CSV file of a data set, or None if there is none
+    """
+    try:
+        st = os.stat(schema.path)
+    except OSError:
+        return None
+    return st.st_size, st.st_mtime_ns
+
+
+def _table_columns(connection, table):
+    return [row[1] for row in connection.execute(f"PRAGMA table_info({_quote(table)})")]
+
+
+def ingested(schema):
+    """
+    :return: (source size, source mtime_ns, columns, rows) of the stored input, or None if it was never ingested
+    """
+    row = _connection().execute("SELECT source_size, source_mtime_ns, columns, rows FROM datasets WHERE dataset_id = ?",
+                                (schema.dataset_id.lower(),)).fetchone()
+    return None if row is None else (row[0], row[1], json.loads(row[2]), row[3])
+
+
+def is_fresh(schema):
+    """
+    :return: True if the stored input matches the CSV file of the data set, or there is no CSV file to match
+    """
+    stored = ingested(schema)
+    if stored is None:
+        return False
+    stat = _source_stat(schema)
+    return stat is None or stat == (stored[0], stored[1])
+
+
+def unique_columns(columns):
+    """
+    the column names of a header, with repeated names numbered like pandas.read_csv() does: "a", "a.1", "a.2"
+    """
+    seen = {}
+    names = []
+    for name in columns:
+        count = seen.get(name, 0)
+        seen[name] = count + 1
+        while count and f"{name}.{count}" in seen:
+            count += 1
+        names.append(f"{name}.{count}" if count else name)
+        if count:
+            seen[names[-1]] = 1
+    return names
+
+
+def _column_type(schema, name):
+    if name in schema.numeric_columns:
+        return " NUMERIC"
+    if name in schema.qi_list:
+        return " TEXT"
+    return ""
+
+
+def ingest_rows(schema, columns, rows, source=None, batch_rows=BATCH_ROWS):
+    """
+    replace the stored input of a data set, in one transaction
+    :param schema: the DatasetSchema from the registry
+    :param columns: the column names, in input order
+    :param rows: an iterable of row sequences, None for a missing value
+    :param source: the (size, mtime_ns) fingerprint of the file the rows come from, or None
+    :param batch_rows: the rows bound to the prepared INSERT per executemany() call
+    :return: the number of rows stored
+    """
+    table = _quote(input_table(schema.dataset_id))
+    definitions = ", ".join(_quote(name) + _column_type(schema, name) for name in columns)
+    insert = f"INSERT INTO {table} ({', '.join(_quote(name) for name in columns)}) " \
+             f"VALUES ({', '.join('?' * len(columns))})"
+    connection = _connection()
+    with _Transaction(connection):
+        connection.execute(f"DROP TABLE IF EXISTS {table}")
+        connection.execute(f"CREATE TABLE {table} (row_id INTEGER PRIMARY KEY, {definitions})")
+        rows = iter(rows)
+        count = 0
+        while True:
+            batch = list(itertools.islice(rows, batch_rows))
+            if not batch:
+                break
+            connection.executemany(insert, batch)
+            count += len(batch)
+        # indexes are built after the load, once instead of per row
+        for name in schema.qi_list:
+            if name in columns:
+                connection.execute(f"CREATE INDEX {_quote(input_table(schema.dataset_id) + '_' + name)} "
+                                   f"ON {table} ({_quote(name)})")
+        connection.execute("INSERT OR REPLACE INTO datasets VALUES (?, ?, ?, ?, ?, ?)",
+                           (schema.dataset_id.lower(), source[0] if source else None,
+                            source[1] if source else None, json.dumps(list(columns)), count, time.time()))
+    return count
+
+
+def ingest_csv(dataset, force=False):
+    """
+    ingest the CSV file of a data set if the stored copy is missing or stale
+    :param dataset: the dataset ID (or input file name) in the registry
+    :param force: ingest even if the stored copy looks fresh, e.g. on a "dataset updated" message
+    :return: True if the input was ingested
+    """
+    schema = registry.get_dataset(dataset)
+    if not force and is_fresh(schema):
+        return False
+    tic = time.time()
+    stat = _source_stat(schema)
+    with open(schema.path, newline='', encoding='utf-8') as f:
+        reader = csv.reader(f, delimiter=schema.delimiter)
+        columns = unique_columns(next(reader))
+        count = ingest_rows(schema, columns, ([value if value != '' else None for value in row]
+                                              for row in reader if row), source=stat)
+    if _source_stat(schema) != stat:
+        print(f"Input of '{schema.dataset_id}' changed while it was ingested")
+    print(f"Ingested '{schema.dataset_id}' into the store: {count} rows in {time.time() - tic:.2f} seconds")
+    return True
+
+
+def refresh(dataset, force=False):
+    """
+    ingest_csv(), called with snapshot.refresh() when the engine starts or an input was updated
+    """
+    return ingest_csv(dataset, force)
+
+
+def refresh_all(force=False):
+    """
+    ingest every registered data set whose CSV file exists and changed since it was ingested
+    :return: the number of data sets ingested
+    """
+    ingested_count = 0
+    for dataset_id, schema in sorted(registry.load_registry().items()):
+        if not os.path.exists(schema.path):
+            continue
+        try:
+            ingested_count += ingest_csv(dataset_id, force)
+        except Exception as e:
+            print(f"Error ingesting '{dataset_id}' into the store: {e}")
+    return ingested_count
+
+
+def scan_columns(table, columns, where="", parameters=(), chunk_rows=SCAN_ROWS):
+    """
+    columnar reader: runs a SELECT and assembles its result column by column, fetching chunk_rows rows at a time
+    :param table: the table name, unquoted
+    :param columns: the column names to read
+    :param where: an optional SQL condition with ? placeholders, without the WHERE keyword
+    :param parameters: the values of the placeholders
+    :return: {column: list of values}, in row_id order
+    """
+    values = {name: [] for name in columns}
+    sql = f"SELECT {', '.join(_quote(name) for name in columns)} FROM {_quote(table)}"
+    cursor = _connection().execute(sql + (f" WHERE {where}" if where else "") + " ORDER BY row_id", parameters)
+    targets = [values[name] for name in columns]
+    while True:
+        rows = cursor.fetchmany(chunk_rows)
+        if not rows:
+            break
+        for target, column in zip(targets, zip(*rows)):
+            target.extend(column)
+    return values
+
+
+def _frame(values):
+    """
+    data frame of a scan, with the columns of numbers as numeric dtypes like pandas.read_csv() gives them
+    """
+    return pd.DataFrame({name: pd.Series(column, dtype=None if column else object)
+                         for name, column in values.items()})
+
+
+def read_input(schema):
+    """
+    the input of a data set from the store, like id_transform.read_csv(): without the suppressed identifiers and
+    with the other identifiers transformed
+    :param schema: the DatasetSchema from the registry
+    :return: the data frame, or None if the store has no fresh copy of the input
+    """
+    if not is_fresh(schema):
+        return None
+    columns = ingested(schema)[2]
+    suppressed = set(id_transform.suppressed_columns(schema))
+    df = _frame(scan_columns(input_table(schema.dataset_id), [name for name in columns if name not in suppressed]))
+    return id_transform.apply(df, schema)
+
+
+def preview_input(dataset, first=0, last=10, columns=None):
+    """
+    rows [first, last) of a stored input, by a range query on row_id
+    :param dataset: the dataset ID (or input file name) in the registry
+    :param columns: the columns to show, or None for all
+    :return: the data frame, or None if the input is not in the store
+    """
+    schema = registry.get_dataset(dataset)
+    stored = ingested(schema)
+    if stored is None:
+        return None
+    names = [name for name in (columns or stored[2]) if name in stored[2]]
+    # row_id starts at 1, in file order
+    return _frame(scan_columns(input_table(schema.dataset_id), names, "row_id > ? AND row_id <= ?",
+                               (int(first), int(last))))
+
+
+def _plain_value(value):
+    """
+    a numpy scalar as the Python value sqlite3 binds
+    """
+    return value.item() if isinstance(value, np.generic) else value
+
+
+def _plain(series):
+    """
+    the values of a column as Python objects for sqlite3, None for missing values
+    """
+    values = series.astype(object)
+    return values.where(pd.notna(values), None).tolist()
+
+
+def _run_key(schema, k, l, diversity_mode, cut_estimation='exact', split_mode='median', generalization='local'):
+    """
+    the parameters that identify a run; the diversity mode only counts with l > 1
+    """
+    l = int(l or 0)
+    return (schema.dataset_id.lower(), int(k), l if l > 1 else 0, str(diversity_mode) if l > 1 else "distinct",
+            str(cut_estimation), str(split_mode), str(generalization))
+
+
+# WHERE condition on the runs table of a run key
+_RUN_KEY_CONDITION = "dataset_id = ? AND k = ? AND l = ? AND diversity_mode = ? AND " + \
+                     " AND ".join(f"{name} = ?" for name, _ in RUN_OPTIONS)
+
+
+class ResultWriter:
+    """
+    writes the anonymized rows of one run to "result_<id>" in output order, chunk by chunk, and numbers and
+    summarizes their equivalence classes when the run finishes, so the rows of a class need not be consecutive (the
+    external engine writes its output in input order). A run with the same parameters replaces the previous one;
+    a resumed run keeps its rows before `resumed`.
+    The output file stays the result of the run: an error of the store is printed and ends the writing, and the
+    run is not marked as done.
+    """
+    def __init__(self, schema, k, l=0, diversity_mode="distinct", cut_estimation='exact', split_mode='median',
+                 generalization='local'):
+        self.schema = schema
+        self.table = result_table(schema.dataset_id)
+        self.key = _run_key(schema, k, l, diversity_mode, cut_estimation, split_mode, generalization)
+        self.run_id = None
+        self.failed = False
+        self.columns = None
+        self.qi_list = None
+        self.sensitive = None
+        self.rows = 0
+
+    def start(self, columns, resumed=0):
+        """
+        :param columns: the output columns, in output order
+        :param resumed: the number of output rows kept from an interrupted run with the same parameters
+        """
+        self._guard(self._start, columns, resumed)
+
+    def write(self, chunk):
+        """
+        append the next rows of the output
+        :param chunk: the generalized rows, with the output columns
+        """
+        if self.run_id is not None and len(chunk) > 0:
+            self._guard(self._write, chunk)
+
+    def finish(self, metrics_summary=""):
+        """
+        mark the run as done, with its metrics
+        """
+        if self.run_id is not None:
+            self._guard(self._finish, metrics_summary)
+
+    def _guard(self, step, *args):
+        if self.failed:
+            return
+        try:
+            step(*args)
+        except sqlite3.Error as e:
+            self.failed = True
+            self.run_id = None
+            print(f"Error storing the results of '{self.schema.dataset_id}': {e}")
+
+    def _start(self, columns, resumed):
+        connection = _connection()
+        self.columns = list(columns)
+        self.qi_list = [name for name in self.schema.qi_list if name in self.columns]
+        self.sensitive = [name for name in self.schema.sensitive if name in self.columns]
+        classes, values = _quote(class_table(self.schema.dataset_id)), _quote(value_table(self.schema.dataset_id))
+        with _Transaction(connection):
+            existing = _table_columns(connection, self.table)
+            if existing and (existing[3:] != self.columns
+                             or not _table_columns(connection, class_table(self.schema.dataset_id))):
+                # the output columns changed: the stored results belong to an older input, or have no summaries
+                for table in (self.table, class_table(self.schema.dataset_id), value_table(self.schema.dataset_id)):
+                    connection.execute(f"DROP TABLE IF EXISTS {_quote(table)}")
+                connection.execute("DELETE FROM runs WHERE dataset_id = ?", (self.key[0],))
+                existing = []
+            if not existing:
+                connection.execute(f"CREATE TABLE {_quote(self.table)} (run_id INTEGER NOT NULL, row_id INTEGER NOT NULL, "
+                                   f"class_id INTEGER NOT NULL, {', '.join(_quote(name) for name in self.columns)}, "
+                                   f"PRIMARY KEY (run_id, row_id)) WITHOUT ROWID")
+                connection.execute(f"CREATE INDEX {_quote(self.table + '_class')} ON {_quote(self.table)} (run_id, class_id)")
+                connection.execute(f"CREATE TABLE {classes} (run_id INTEGER NOT NULL, class_id INTEGER NOT NULL, "
+                                   f"size INTEGER NOT NULL, {', '.join(_quote(name) for name in self.qi_list)}, "
+                                   f"PRIMARY KEY (run_id, class_id)) WITHOUT ROWID")
+                connection.execute(f"CREATE TABLE {values} (run_id INTEGER NOT NULL, class_id INTEGER NOT NULL, "
+                                   f"attribute TEXT NOT NULL, value NOT NULL, count INTEGER NOT NULL, "
+                                   f"{', '.join(_quote(name) for name in self.qi_list)}, "
+                                   f"PRIMARY KEY (run_id, class_id, attribute, value)) WITHOUT ROWID")
+            row = connection.execute("SELECT run_id FROM runs WHERE " + _RUN_KEY_CONDITION, self.key).fetchone()
+            if row is None:
+                options = "".join(f"{name}, " for name, _ in RUN_OPTIONS)
+                self.run_id = connection.execute(f"INSERT INTO runs (dataset_id, k, l, diversity_mode, {options}status, "
+                                                 f"updated_at) VALUES ({', '.join('?' * (len(self.key) + 2))})",
+                                                 self.key + (STATUS_RUNNING, time.time())).lastrowid
+                resumed = 0
+            else:
+                self.run_id = row[0]
+                connection.execute("UPDATE runs SET status = ?, updated_at = ? WHERE run_id = ?",
+                                   (STATUS_RUNNING, time.time(), self.run_id))
+            connection.execute(f"DELETE FROM {_quote(self.table)} WHERE run_id = ? AND row_id >= ?",
+                               (self.run_id, resumed))
+            # the summaries are built again when the run finishes
+            for table in (classes, values):
+                connection.execute(f"DELETE FROM {table} WHERE run_id = ?", (self.run_id,))
+            self.rows = resumed
+
+    def _write(self, chunk):
+        row_ids = range(self.rows, self.rows + len(chunk))
+        insert = f"INSERT INTO {_quote(self.table)} VALUES ({', '.join('?' * (len(self.columns) + 3))})"
+        connection = _connection()
+        with _Transaction(connection):
+            # the class of a row is numbered when the run finishes
+            connection.executemany(insert, zip(itertools.repeat(self.run_id), row_ids, itertools.repeat(-1),
+                                               *(_plain(chunk[name]) for name in self.columns)))
+        self.rows += len(chunk)
+
+    def _finish(self, metrics_summary):
+        """
+        number the equivalence classes, summarize them and mark the run as done. A class is a distinct tuple of
+        generalized quasi-identifiers, wherever its rows are in the output; the classes are numbered in the order of
+        their first row. The grouping runs in SQLite, so it does not hold the output in memory.
+        """
+        connection = _connection()
+        table = _quote(self.table)
+        classes, values = _quote(class_table(self.schema.dataset_id)), _quote(value_table(self.schema.dataset_id))
+        qi = ", ".join(_quote(name) for name in self.qi_list)
+        with _Transaction(connection):
+            connection.execute("DROP TABLE IF EXISTS temp.run_classes")
+            connection.execute(f"CREATE TEMP TABLE run_classes AS SELECT {qi}, count(*) AS size, min(row_id) AS first "
+                               f"FROM {table} WHERE run_id = ? GROUP BY {qi} ORDER BY first", (self.run_id,))
+            connection.execute(f"CREATE INDEX temp.run_classes_key ON run_classes ({qi})")
+            connection.execute(f"INSERT INTO {classes} SELECT ?, rowid - 1, size, {qi} FROM temp.run_classes",
+                               (self.run_id,))
+            match = " AND ".join(f"c.{_quote(name)} IS {table}.{_quote(name)}" for name in self.qi_list)
+            connection.execute(f"UPDATE {table} SET class_id = (SELECT c.rowid - 1 FROM temp.run_classes c "
+                               f"WHERE {match}) WHERE run_id = ?", (self.run_id,))
+            class_count = connection.execute("SELECT count(*) FROM temp.run_classes").fetchone()[0]
+            connection.execute("DROP TABLE temp.run_classes")
+            keys = ", ".join(f"min({_quote(name)})" for name in self.qi_list)
+            for name in self.sensitive:
+                connection.execute(f"INSERT INTO {values} SELECT run_id, class_id, ?, {_quote(name)}, count(*), {keys} "
+                                   f"FROM {table} WHERE run_id = ? AND {_quote(name)} IS NOT NULL "
+                                   f"GROUP BY class_id, {_quote(name)}", (name, self.run_id))
+            connection.execute("UPDATE runs SET status = ?, rows = ?, classes = ?, metrics = ?, updated_at = ? "
+                               "WHERE run_id = ?",
+                               (STATUS_DONE, self.rows, class_count, metrics_summary, time.time(), self.run_id))
+
+
+def store_results(schema, k, l, diversity_mode, df, metrics_summary="", chunk_rows=BATCH_ROWS, cut_estimation='exact',
+                  split_mode='median', generalization='local'):
+    """
+    write a whole anonymized data frame as the result of a run
+    :param df: the output, in output order, with the suppressed identifiers restored
+    :param cut_estimation: 'exact' or 'sampled', the cut estimation of the run
+    :param split_mode: 'median' or 'hierarchy', the split mode of the run
+    :param generalization: 'local' or 'full-domain', the generalization of the run
+    :return: the run_id, or None if the store failed
+    """
+    writer = ResultWriter(schema, k, l, diversity_mode, cut_estimation, split_mode, generalization)
+    writer.start(df.columns)
+    for start in range(0, len(df), chunk_rows):
+        writer.write(df.iloc[start:start + chunk_rows])
+    writer.finish(metrics_summary)
+    return writer.run_id
+
+
+def find_run(dataset, k, l=0, diversity_mode="distinct", cut_estimation='exact', split_mode='median',
+             generalization='local'):
+    """
+    :return: (run_id, status, rows, classes) of the last run with these parameters, or None
+    """
+    return _connection().execute("SELECT run_id, status, rows, classes FROM runs WHERE " + _RUN_KEY_CONDITION,
+                                 _run_key(registry.get_dataset(dataset), k, l, diversity_mode, cut_estimation,
+                                          split_mode, generalization)).fetchone()
+
+
+def preview(dataset, k, l=0, diversity_mode="distinct", first=None, last=None, columns=None, cut_estimation='exact',
+            split_mode='median', generalization='local'):
+    """
+    rows [first, last) of the output of a run, by a range query on (run_id, row_id)
+    :param dataset: the dataset ID (or input file name) in the registry
+    :param first: the first row, the preview_rows of the data set if None
+    :param columns: the columns to show, the preview_columns of the data set (or the first 6) if None
+    :return: the data frame, or None if the store has no completed run with these parameters
+    """
+    schema = registry.get_dataset(dataset)
+    run = find_run(dataset, k, l, diversity_mode, cut_estimation, split_mode, generalization)
+    if run is None or run[1] != STATUS_DONE:
+        return None
+    table = result_table(schema.dataset_id)
+    stored = _table_columns(_connection(), table)[3:]
+    if first is None:
+        first, last = schema.preview_rows
+    names = [name for name in (columns or schema.preview_columns) if name in stored] or stored[:6]
+    df = _frame(scan_columns(table, names, "run_id = ? AND row_id >= ? AND row_id < ?", (run[0], int(first), int(last))))
+    df.index = range(int(first), int(first) + len(df))
+    return df
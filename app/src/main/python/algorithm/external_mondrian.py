@@ -0,0 +1,248 @@
+# External-memory Mondrian for data sets larger than the heap
+#
+# 1. spill: the input is read in chunks, the quasi-identifiers are encoded as leaf_ids and written to a run file
+#    of int32 records (m leaf_ids + the row id) in the app-private spill directory
+# 2. partition: a run that does not fit the memory budget is cut at its median with two streaming passes
+#    (a histogram of the split dimension, then a pass that writes a left and a right run file).
+#    Rows equal to the median go left in file order until the left run holds exactly half of the rows, which
+#    is what the stable sort of the in-memory engine does, so both engines produce the same partitions.
+#    A run that fits the budget is loaded and finished by mondrian.anonymize().
+# 3. write: the generalized ranges are stored per row id in a memory-mapped file and joined with a second
+#    chunked read of the input, so the output keeps the input row order. Every partition is verified to hold k
+#    rows before anything is written. The chunks also go to the dataset store, which groups the rows of a class
+#    when the run finishes, so external runs are previewed and queried like the others.
+import os
+import shutil
+import tempfile
+import time
+
+import numpy as np
+import pandas as pd
+
+import algorithm.dataset_registry as registry
+import algorithm.dataset_store as dataset_store
+import algorithm.identifier_transform as id_transform
+import algorithm.mondrian as mondrian
+
+try:
+    import resource
+except ImportError:  # not available on every platform
+    resource = None
+
+DEFAULT_MEMORY_BUDGET_MB = 64
+CHUNK_ROWS = 200000
+
+
+def spill_root():
+    """
+    app-private directory for run files ($HOME is the app files directory under Chaquopy)
+    """
+    path = os.path.join(os.path.expanduser("~"), "spill")
+    os.makedirs(path, exist_ok=True)
+    return path
+
+
+def peak_rss_mb():
+    """
+    peak resident set size of the process in MB, or -1 if unknown
+    """
+    if resource is None:
+        return -1.0
+    return resource.getrusage(resource.RUSAGE_SELF).ru_maxrss / 1024.0  # ru_maxrss is in KB on Linux
+
+
+def read_run(path, width, chunk_rows=CHUNK_ROWS):
+    """
+    iterate over the records of a run file in chunks of chunk_rows records
+    """
+    with open(path, 'rb') as f:
+        while True:
+            chunk = np.fromfile(f, dtype=np.int32, count=chunk_rows * width)
+            if chunk.size == 0:
+                return
+            yield chunk.reshape(-1, width)
+
+
+def spill(schema, hierarchy_tree_dict, run_path, chunk_rows=CHUNK_ROWS):
+    """
+    encode the quasi-identifiers of the input chunk by chunk into one run file
+    :return: (number of rows, number of distinct leaf_ids per quasi-identifier)
+    """
+    qi_list = schema.qi_list
+    seen = [np.zeros(len(hierarchy_tree_dict[qi].leaf_id_dict) + 2, dtype=bool) for qi in qi_list]
+    n = 0
+    with open(run_path, 'wb') as f:
+        for chunk in pd.read_csv(schema.path, sep=schema.delimiter, chunksize=chunk_rows, usecols=qi_list):
+            codes = mondrian.map_text_to_num(chunk, qi_list, hierarchy_tree_dict)
+            records = np.empty((len(chunk), len(qi_list) + 1), dtype=np.int32)
+            records[:, :-1] = codes.T
+            records[:, -1] = np.arange(n, n + len(chunk), dtype=np.int32)
+            records.tofile(f)
+            for i in range(len(qi_list)):
+                seen[i][codes[i]] = True
+            n += len(chunk)
+    return n, [int(np.count_nonzero(s)) for s in seen]
+
+
+def k_anonymous_partitions(low, high, k):
+    """
+    check the partitions of a run finished in memory: the rows of a partition are consecutive and share their
+    ranges. A published class is a union of such groups, so if every group holds k rows, so does every class.
+    :param low: (m, n) lowest leaf_ids, in partition order
+    :param high: (m, n) highest leaf_ids, in partition order
+    :return: True if every group of consecutive rows with the same ranges holds at least k rows
+    """
+    bounds = np.vstack((low, high))
+    starts = np.flatnonzero(np.concatenate(([True], (bounds[:, 1:] != bounds[:, :-1]).any(axis=0))))
+    return int(np.diff(np.append(starts, bounds.shape[1])).min()) >= k
+
+
+def partition_external(run_path, count, m, dim, k, budget_rows, ranges, spill_dir, histogram_size, metrics=None):
+    """
+    partition a run file until every run fits the budget, then finish each run in memory; raises an Exception if a
+    finished run is not k-anonymous
+    :param ranges: memory-mapped (n, 2m) int32 array receiving low and high per row id
+    :param histogram_size: larger than the largest leaf_id of the split dimension
+    :return: the number of streaming splits
+    """
+    width = m + 1
+    splits = 0
+    stack = [(run_path, count)]
+    while stack:
+        path, count = stack.pop()
+        if count <= budget_rows:
+            records = np.fromfile(path, dtype=np.int32).reshape(count, width)
+            os.remove(path)
+            codes = np.ascontiguousarray(records[:, :m].T)
+            perm, low, high = mondrian.anonymize(codes, dim, k, metrics)
+            if not k_anonymous_partitions(low, high, k):
+                raise Exception("Not all partitions are k-anonymous")
+            row_ids = records[perm, m]
+            ranges[row_ids, :m] = low.T
+            ranges[row_ids, m:] = high.T
+            continue
+
+        # pass 1: histogram of the split dimension gives the median without sorting
+        histogram = np.zeros(histogram_size, dtype=np.int64)
+        for chunk in read_run(path, width):
+            histogram += np.bincount(chunk[:, dim], minlength=histogram_size)
+        mid = count // 2
+        cumulative = np.cumsum(histogram)
+        median = int(np.searchsorted(cumulative, mid, side='left'))
+        take_equal = mid - (int(cumulative[median - 1]) if median > 0 else 0)
+
+        # pass 2: write the left and the right run
+        left_path = os.path.join(spill_dir, f"run_{splits}_l.bin")
+        right_path = os.path.join(spill_dir, f"run_{splits}_r.bin")
+        taken = 0
+        with open(left_path, 'wb') as left, open(right_path, 'wb') as right:
+            for chunk in read_run(path, width):
+                values = chunk[:, dim]
+                go_left = values < median
+                equal = np.flatnonzero(values == median)[:max(0, take_equal - taken)]
+                go_left[equal] = True
+                taken += len(equal)
+                chunk[go_left].tofile(left)
+                chunk[~go_left].tofile(right)
+        os.remove(path)
+        splits += 1
+        # budget_rows >= 2k, so both halves of a run above the budget hold at least k rows
+        stack.append((right_path, count - mid))
+        stack.append((left_path, mid))
+    return splits
+
+
+def run_external(schema, k, output_path, memory_budget_mb=DEFAULT_MEMORY_BUDGET_MB, metrics=None, store=True):
+    """
+    anonymize a registered data set with bounded memory and write the result to output_path
+    :param store: also write the result to the dataset store, as the run of the data set with this k
+    :return: report dict with rows, splits, seconds, rows_per_second and peak_rss_mb
+    """
+    tic = time.time()
+    qi_list = schema.qi_list
+    m = len(qi_list)
+    hierarchy_tree_dict = registry.get_hierarchy_trees(schema)
+    spill_dir = tempfile.mkdtemp(prefix="mondrian_", dir=spill_root())
+    try:
+        run_path = os.path.join(spill_dir, "input.bin")
+        n, distinct = spill(schema, hierarchy_tree_dict, run_path)
+        if k > n:
+            raise ValueError(f"K = {k} is larger than the number of records ({n})")
+        # same dimension choice as mondrian.mondrian(): the quasi-identifier with the most distinct values
+        dim = int(np.argmax(distinct))
+        # a record is m + 1 int32 values; sorting in memory needs roughly four times that
+        budget_rows = max(2 * k, int(memory_budget_mb * 1024 * 1024 / (4 * (m + 1) * 4)))
+
+        ranges = np.lib.format.open_memmap(os.path.join(spill_dir, "ranges.npy"), mode='w+',
+                                           dtype=np.int32, shape=(n, 2 * m))
+        histogram_size = len(hierarchy_tree_dict[qi_list[dim]].leaf_id_dict) + 2
+        splits = partition_external(run_path, n, m, dim, k, budget_rows, ranges, spill_dir, histogram_size, metrics)
+        ranges.flush()
+
+        # write: join the ranges with a second chunked read of the input
+        results = dataset_store.ResultWriter(schema, k) if store else None
+        offset = 0
+        for chunk in pd.read_csv(schema.path, sep=schema.delimiter, chunksize=CHUNK_ROWS,
+                                 usecols=id_transform.usecols(schema)):
+            id_transform.apply(chunk, schema)
+            block = ranges[offset:offset + len(chunk)]
+            chunk = mondrian.map_num_to_text(chunk, qi_list, hierarchy_tree_dict, block[:, :m].T, block[:, m:].T,
+                                             schema.numeric_strategy)
+            chunk = id_transform.restore_suppressed(chunk, schema)
+            chunk.to_csv(output_path, mode='w' if offset == 0 else 'a', header=offset == 0, index=False,
+                         sep=schema.delimiter)
+            if results is not None:
+                if offset == 0:
+                    results.start(chunk.columns)
+                results.write(chunk)
+            offset += len(chunk)
+        del ranges
+        if results is not None:
+            results.finish(metrics.summary() if metrics is not None else "")
+    finally:
+        shutil.rmtree(spill_dir, ignore_errors=True)
+
+    elapsed = time.time() - tic
+    return {'rows': n, 'splits': splits, 'seconds': elapsed, 'rows_per_second': n / elapsed if elapsed else 0.0,
+            'peak_rss_mb': peak_rss_mb()}
+
+
+#### BENCHMARK ###################################################################
+
+
+def make_synthetic_dataset(path, n_rows, dataset="standard", seed=0):
+    """
+    write a CSV with the columns of a registered data set, QI values drawn from its hierarchy leaves
+    """
+    schema = registry.get_dataset(dataset)
+    hierarchy_tree_dict = registry.get_hierarchy_trees(schema)
+    rng = np.random.default_rng(seed)
+    leaves = {qi: np.array([leaf.value for leaf in hierarchy_tree_dict[qi].leaf_id_dict.values()], dtype=object)
+              for qi in schema.qi_list}
+    written = 0
+    while written < n_rows:
+        size = min(CHUNK_ROWS, n_rows - written)
+        chunk = pd.DataFrame({qi: values[rng.integers(0, len(values), size)] for qi, values in leaves.items()})
+        for identifier in schema.identifiers:
+            chunk[identifier] = np.arange(written, written + size)
+        chunk.to_csv(path, mode='w' if written == 0 else 'a', header=written == 0, index=False, sep=schema.delimiter)
+        written += size
+
+
+def benchmark_external(n_rows=5000000, k=10, memory_budget_mb=DEFAULT_MEMORY_BUDGET_MB):
+    """
+    throughput and peak RSS of the external engine on a synthetic data set of n_rows rows
+    """
+    work_dir = tempfile.mkdtemp(prefix="benchmark_", dir=spill_root())
+    try:
+        input_path = os.path.join(work_dir, "synthetic.csv")
+        make_synthetic_dataset(input_path, n_rows)
+        schema = registry.get_dataset("standard").with_path(input_path)
+        report = run_external(schema, k, os.path.join(work_dir, "anonymized.csv"), memory_budget_mb, store=False)
+    finally:
+        shutil.rmtree(work_dir, ignore_errors=True)
+    summary = (f"External Mondrian: {report['rows']} rows, K = {k}, budget = {memory_budget_mb} MB, "
+               f"{report['splits']} streaming splits, {report['seconds']:.1f} s, "
+               f"{report['rows_per_second']:.0f} rows/s, peak RSS = {report['peak_rss_mb']:.1f} MB")
+    print(summary)
+    return summary
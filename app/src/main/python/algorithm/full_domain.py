@@ -0,0 +1,242 @@
+# Full-domain generalization: a search of the generalization lattice, in the style of Incognito and OLA
+#
+# Mondrian recodes every partition on its own, so a column can publish overlapping values such as 17-35 and 30-41.
+# Full-domain generalization maps every value of a quasi-identifier to the same level of its hierarchy (e.g. every
+# age to its 10-year band of adult_hierarchy_age.csv), so the values of a column never overlap. A node of the lattice
+# is one level per quasi-identifier, 0 being the leaves; raising a level generalizes the node, and the top node maps
+# every value to '*'.
+#
+# k-anonymity is monotone on the lattice: the classes of a generalization are unions of classes, so every
+# generalization of a k-anonymous node is k-anonymous too. The search goes up the lattice one height (the sum of the
+# levels) at a time:
+# - a node with a k-anonymous child is k-anonymous without a check (pruned)
+# - any other node is checked on its frequency set, the count of every distinct generalized tuple. It is rolled up
+#   from the frequency set of a child, by mapping one quasi-identifier a level up and adding the counts of the tuples
+#   that merge, instead of rescanning the rows; only the bottom node is counted from the rows. All children of a
+#   checked node were checked and are not k-anonymous, so their frequency sets are in the cache of the previous height
+# - the nodes of one height are independent, so they are checked in parallel on a thread pool (the numpy sorts and
+#   reductions release the GIL); the frequency sets of a height are cached until the next height is done
+# - the search stops at the first height where every node is k-anonymous
+# The NCP of a node is a sum of per-quasi-identifier terms, known for every node without its frequency set. NCP only
+# grows with the levels, so the k-anonymous node with the lowest NCP is one of the checked nodes; it is published,
+# the lowest node first on ties.
+#
+# Generalized tuples are packed into one int64 key, with the number of leaves of every quasi-identifier as its radix,
+# so a roll-up is integer arithmetic on one array.
+#
+# full_domain() returns (perm, low, high) like mondrian.mondrian(): low and high are the smallest and the largest
+# leaf_id below the published node, so mondrian.map_num_to_text() publishes the node (or, for quasi-identifiers
+# published as numeric ranges, the range of its leaves) and the information-loss metrics are the same as Mondrian's.
+import os
+from concurrent.futures import ThreadPoolExecutor
+
+import numpy as np
+
+import algorithm.trace as trace
+
+# keys of packed tuples stay below this bound
+MAX_KEY = 1 << 62
+
+
+class Dimension:
+    """
+    the levels of the hierarchy of one quasi-identifier: the nodes j levels above the leaves (clamped at the root for
+    leaves closer to it), the index of every leaf at every level and the map of every level to the next
+    """
+    def __init__(self, hierarchy_tree):
+        leaves = sorted(hierarchy_tree.leaf_id_dict.values(), key=lambda leaf: int(leaf.leaf_id))
+        chains = []
+        for leaf in leaves:
+            chain, node = [], leaf
+            while node is not None:
+                chain.append(node)
+                node = node.parent
+            chains.append(chain)
+        leaf_ids = np.array([int(leaf.leaf_id) for leaf in leaves], dtype=np.int64)
+        self.height = max(len(chain) for chain in chains) - 1
+        self.radix = len(leaves)
+        # leaf_id -> index at level 0
+        self.leaf_index = np.zeros(int(leaf_ids.max()) + 1, dtype=np.int64)
+        self.leaf_index[leaf_ids] = np.arange(len(leaves))
+        # of_leaf[j][i]: the index at level j of leaf i; low[j] / high[j]: the leaf_id range of every node of level j
+        self.of_leaf, self.low, self.high = [], [], []
+        for j in range(self.height + 1):
+            index = {}
+            self.of_leaf.append(np.array([index.setdefault(chain[min(j, len(chain) - 1)], len(index))
+                                          for chain in chains], dtype=np.int64))
+            low = np.full(len(index), np.iinfo(np.int64).max, dtype=np.int64)
+            high = np.full(len(index), -1, dtype=np.int64)
+            np.minimum.at(low, self.of_leaf[j], leaf_ids)
+            np.maximum.at(high, self.of_leaf[j], leaf_ids)
+            self.low.append(low)
+            self.high.append(high)
+        # up[j][v]: the index at level j + 1 of node v of level j
+        self.up = []
+        for j in range(self.height):
+            up = np.empty(len(self.low[j]), dtype=np.int64)
+            up[self.of_leaf[j]] = self.of_leaf[j + 1]
+            self.up.append(up)
+
+
+class Lattice:
+    """
+    the generalization lattice of the quasi-identifiers of a data set, with the packed keys of its rows
+    """
+    def __init__(self, codes, qi_list, hierarchy_tree_dict, metrics):
+        """
+        :param codes: the encoded quasi-identifier matrix, rows in the order of qi_list
+        :param qi_list: the quasi-identifiers
+        :param hierarchy_tree_dict: the hierarchy tree dictionary
+        :param metrics: the InfoLossMetrics of the run, for the penalties of the nodes
+        """
+        self.dimensions = [Dimension(hierarchy_tree_dict[qi]) for qi in qi_list]
+        self.strides = []
+        stride = 1
+        for dimension in self.dimensions:
+            self.strides.append(stride)
+            stride *= dimension.radix
+        if stride > MAX_KEY:
+            raise ValueError(f"The quasi-identifiers have {stride} leaf combinations, "
+                             f"full-domain generalization packs at most {MAX_KEY}")
+        # level-0 index of every row, per quasi-identifier
+        self.leaf_indexes = [dimension.leaf_index[codes[i]] for i, dimension in enumerate(self.dimensions)]
+        # cost[i][j]: the certainty penalty of quasi-identifier i at level j, summed over the rows
+        self.cost = []
+        for i, dimension in enumerate(self.dimensions):
+            counts = np.bincount(self.leaf_indexes[i], minlength=dimension.radix)
+            costs = []
+            for j in range(dimension.height + 1):
+                level_counts = np.bincount(dimension.of_leaf[j], weights=counts, minlength=len(dimension.low[j]))
+                costs.append(sum(count * metrics.penalty(i, int(low), int(high))
+                                 for count, low, high in zip(level_counts, dimension.low[j], dimension.high[j])
+                                 if count))
+            self.cost.append(costs)
+
+    def loss(self, node):
+        """
+        the information loss of a node: its penalties summed over all cells, so NCP times the number of cells
+        """
+        return sum(cost[level] for cost, level in zip(self.cost, node))
+
+    def bottom(self):
+        """
+        the frequency set of the bottom node, counted from the rows
+        :return: (sorted distinct keys, counts)
+        """
+        keys = np.zeros(len(self.leaf_indexes[0]), dtype=np.int64)
+        for index, stride in zip(self.leaf_indexes, self.strides):
+            keys += index * stride
+        keys, counts = np.unique(keys, return_counts=True)
+        return keys, counts.astype(np.int64)
+
+    def roll_up(self, frequency_set, child, i):
+        """
+        the frequency set of the node that raises quasi-identifier i of a child by one level
+        :param frequency_set: (keys, counts) of the child
+        :param child: the levels of the child
+        :param i: the quasi-identifier to raise
+        :return: (sorted distinct keys, counts)
+        """
+        keys, counts = frequency_set
+        dimension, stride = self.dimensions[i], self.strides[i]
+        digits = keys // stride % dimension.radix
+        keys = keys + (dimension.up[child[i]][digits] - digits) * stride
+        keys, inverse = np.unique(keys, return_inverse=True)
+        return keys, np.bincount(inverse, weights=counts, minlength=len(keys)).astype(np.int64)
+
+    def heights(self):
+        """
+        :return: the levels of the top node
+        """
+        return tuple(dimension.height for dimension in self.dimensions)
+
+
+def search(lattice, k, threads=None):
+    """
+    the k-anonymous node with the lowest information loss, see the module comment
+    :param lattice: the Lattice of the data set
+    :param k: the k value for k-anonymity, at most the number of rows
+    :param threads: the threads that check the nodes of one height, default: one per CPU
+    :return: (node, dict with the number of nodes of the lattice, checked and pruned)
+    """
+    top = lattice.heights()
+    stats = {'nodes': int(np.prod([height + 1 for height in top])), 'checked': 1, 'pruned': 0}
+    bottom = (0,) * len(top)
+    frequency_set = lattice.bottom()
+    if frequency_set[1].min() >= k:
+        return bottom, stats
+    # the frequency sets of the nodes of the last height that are not k-anonymous
+    cache = {bottom: frequency_set}
+    anonymous = set()
+    candidates = []
+    level = [bottom]
+    with ThreadPoolExecutor(max_workers=threads or os.cpu_count() or 1) as pool:
+        for height in range(1, sum(top) + 1):
+            with trace.section(f"lattice height {height}"):
+                # Step 1: the nodes of this height, and the child to roll up from unless a child is k-anonymous
+                nodes = sorted({node[:i] + (node[i] + 1,) + node[i + 1:]
+                                for node in level for i in range(len(top)) if node[i] < top[i]})
+                checks = []
+                for node in nodes:
+                    children = [(node[:i] + (node[i] - 1,) + node[i + 1:], i) for i in range(len(top)) if node[i] > 0]
+                    if any(child in anonymous for child, _ in children):
+                        anonymous.add(node)
+                        stats['pruned'] += 1
+                    else:
+                        # the child with the smallest frequency set is the cheapest to roll up
+                        checks.append((node,) + min(children, key=lambda child: len(cache[child[0]][0])))
+
+                # Step 2: roll up and check the other nodes in parallel
+                frequency_sets = list(pool.map(lambda check: lattice.roll_up(cache[check[1]], check[1], check[2]),
+                                               checks))
+                stats['checked'] += len(checks)
+                cache = {}
+                for (node, _, _), frequency_set in zip(checks, frequency_sets):
+                    if frequency_set[1].min() >= k:
+                        anonymous.add(node)
+                        candidates.append(node)
+                    else:
+                        cache[node] = frequency_set
+                level = nodes
+                if not cache:
+                    # every node of this height is k-anonymous, and so is every node above
+                    break
+    return min(candidates, key=lambda node: (lattice.loss(node), sum(node), node)), stats
+
+
+def full_domain(codes, qi_list, k, hierarchy_tree_dict, metrics, threads=None):
+    """
+    full-domain generalization for k-anonymity
+    :param codes: the encoded quasi-identifier matrix, rows in the order of qi_list
+    :param qi_list: the quasi-identifiers to be used
+    :param k: the k value for k-anonymity, at most the number of rows
+    :param hierarchy_tree_dict: the hierarchy tree dictionary
+    :param metrics: the InfoLossMetrics of the run; every equivalence class is added to it
+    :param threads: the threads of the lattice search, default: one per CPU
+    :return: (perm, low, high) like mondrian.mondrian(): the rows are in the order of their equivalence classes
+    """
+    with trace.section("lattice"):
+        lattice = Lattice(codes, qi_list, hierarchy_tree_dict, metrics)
+    node, stats = search(lattice, k, threads)
+    print(f"Full-domain generalization: levels {dict(zip(qi_list, node))} of {dict(zip(qi_list, lattice.heights()))}; "
+          f"{stats['checked']} of {stats['nodes']} lattice nodes checked, {stats['pruned']} pruned")
+
+    # the generalized tuple of every row; the rows of a class are made consecutive
+    with trace.section("generalize classes"):
+        n = codes.shape[1]
+        levels = [dimension.of_leaf[level][index]
+                  for dimension, level, index in zip(lattice.dimensions, node, lattice.leaf_indexes)]
+        keys = np.zeros(n, dtype=np.int64)
+        for index, stride in zip(levels, lattice.strides):
+            keys += index * stride
+        perm = np.argsort(keys, kind='stable')
+        low = np.empty((len(qi_list), n), dtype=codes.dtype)
+        high = np.empty((len(qi_list), n), dtype=codes.dtype)
+        for i, (dimension, level, index) in enumerate(zip(lattice.dimensions, node, levels)):
+            low[i] = dimension.low[level][index[perm]]
+            high[i] = dimension.high[level][index[perm]]
+        sorted_keys = keys[perm]
+        starts = np.flatnonzero(np.concatenate(([True], sorted_keys[1:] != sorted_keys[:-1])))
+        for start, end in zip(starts, np.append(starts[1:], n)):
+            metrics.add_partition(int(end - start), low[:, start], high[:, start])
+    return perm, low, high
@@ -13,17 +13,26 @@ class HierarchyTreeNode:
         self.parent = parent
         self.children = []
         self.covered_subtree_nodes = set()
+        # number of leaves in the subtree of this node (1 for a leaf)
+        self.leaf_count = 0
+        # depth-first rank of the first leaf in the subtree; the subtree covers ranks [leaf_rank, leaf_rank + leaf_count)
+        self.leaf_rank = 0
+        # the first and the last leaf of the subtree in depth-first order
+        self.first_leaf = None
+        self.last_leaf = None
 
 
 
 class HierarchyTree:
     def __init__(self, file_path):
         df = pd.read_csv(file_path, header=None)
-        self.hierarchy_type = file_path.split('_')[2]
+        self.hierarchy_type = os.path.basename(file_path).split('_')[-1].split('.')[0]
         self.node_dict = build_tree(df)  # keys: values in data(since each value is unique in data), values: HierarchyTreeNode
         self.root = self.node_dict['*']
         self.leaf_id_dict = self.build_leaf_id_dict()  # keys are leaf_id, values are HierarchyTreeNode(leaves only)
         self.save_covered_subtree_nodes()
+        self.save_leaf_counts()
+        self.save_leaf_ranks()
 
 
     def build_leaf_id_dict(self):
@@ -44,6 +53,40 @@ class HierarchyTree:
                 parent.covered_subtree_nodes.add(node)
                 parent = parent.parent
 
+    def save_leaf_counts(self):
+        """
+        save the number of leaves below each node, so that the information loss of a generalization
+        can be looked up instead of counted
+        :return:
+        """
+        for leaf in self.leaf_id_dict.values():
+            node = leaf
+            while node:
+                node.leaf_count += 1
+                node = node.parent
+
+    def save_leaf_ranks(self):
+        """
+        number the leaves in depth-first order, so that the leaves below every node have consecutive ranks.
+        A partition can then be split along the children of a node by counting its rows per rank, without sorting
+        :return:
+        """
+        rank = 0
+        stack = [self.root]
+        while stack:
+            node = stack.pop()
+            node.leaf_rank = rank
+            if node.is_leaf:
+                rank += 1
+            stack.extend(reversed(node.children))
+        for node in self.node_dict.values():
+            first = last = node
+            while first.children:
+                first = first.children[0]
+            while last.children:
+                last = last.children[-1]
+            node.first_leaf, node.last_leaf = first, last
+
     def check_node_covered(self, node_value, check_node_value):
         """
         check if check_node is covered by node
@@ -0,0 +1,217 @@
+# Declared transforms of the identifier columns
+#
+# Every identifier column of the registry has a "transform":
+# - "suppress" (default): the column is not read at all (usecols) and is written back as the constant
+#   SUPPRESSED, a single-category categorical of one byte per row, at its position in the input header
+# - "pseudonymize": a keyed BLAKE2b hash of the value, stable across runs with the same key
+# - "encrypt": AES-256-CTR with a synthetic IV (a keyed hash of the value), so equal values give equal
+#   ciphertexts and decrypt_value() recovers the value with the key
+# Pseudonymization and encryption work on the distinct values of a column only (pandas.factorize), in batches
+# of BATCH_VALUES on a thread pool, and keep a per-value LRU cache of MAX_CACHED_VALUES tokens shared by concurrent
+# commands and batch jobs, so an identifier repeated across rows or runs is transformed once. The key is generated on
+# first use in the app-private key directory.
+import base64
+import hashlib
+import hmac
+import os
+import threading
+from collections import OrderedDict
+from concurrent.futures import ThreadPoolExecutor
+
+import numpy as np
+import pandas as pd
+
+SUPPRESS = 'suppress'
+PSEUDONYMIZE = 'pseudonymize'
+ENCRYPT = 'encrypt'
+TRANSFORMS = (SUPPRESS, PSEUDONYMIZE, ENCRYPT)
+
+SUPPRESSED = "****"
+BATCH_VALUES = 4096
+MAX_CACHED_VALUES = 1000000
+KEY_BYTES = 32
+TOKEN_BYTES = 16
+
+_key = None
+# transform -> {value: token}, least recently used first, guarded by _token_lock
+_token_cache = {PSEUDONYMIZE: OrderedDict(), ENCRYPT: OrderedDict()}
+_token_lock = threading.Lock()
+# input path -> (mtime, header)
+_header_cache = {}
+_executor = None
+
+
+def key_path():
+    """
+    the identifier key in the app-private files directory ($HOME under Chaquopy)
+    """
+    return os.path.join(os.path.expanduser("~"), "keys", "identifier.key")
+
+
+def load_key():
+    """
+    :return: the identifier key, generated on first use and kept readable by the app only
+    """
+    global _key
+    if _key is None:
+        path = key_path()
+        if not os.path.exists(path):
+            os.makedirs(os.path.dirname(path), exist_ok=True)
+            try:
+                fd = os.open(path, os.O_WRONLY | os.O_CREAT | os.O_EXCL, 0o600)
+                with os.fdopen(fd, 'wb') as f:
+                    f.write(os.urandom(KEY_BYTES))
+            except FileExistsError:  # created by a concurrent run
+                pass
+        with open(path, 'rb') as f:
+            _key = f.read()
+    return _key
+
+
+def _subkey(label):
+    return hmac.new(load_key(), label, hashlib.sha256).digest()
+
+
+def pseudonymize_values(values):
+    """
+    :param values: a batch of distinct values
+    :return: their pseudonyms, hex keyed BLAKE2b digests
+    """
+    key = _subkey(b'pseudonymize')
+    return [hashlib.blake2b(str(value).encode('utf-8'), key=key, digest_size=TOKEN_BYTES).hexdigest()
+            for value in values]
+
+
+def encrypt_values(values):
+    """
+    :param values: a batch of distinct values
+    :return: their tokens, urlsafe base64 of the synthetic IV followed by the AES-256-CTR ciphertext
+    """
+    # imported here so that suppression and pseudonymization do not need the cryptography package
+    from cryptography.hazmat.primitives.ciphers import Cipher, algorithms, modes
+    cipher_key = _subkey(b'encrypt')
+    iv_key = _subkey(b'iv')
+    tokens = []
+    for value in values:
+        data = str(value).encode('utf-8')
+        iv = hashlib.blake2b(data, key=iv_key, digest_size=16).digest()
+        encryptor = Cipher(algorithms.AES(cipher_key), modes.CTR(iv)).encryptor()
+        tokens.append(base64.urlsafe_b64encode(iv + encryptor.update(data) + encryptor.finalize()).decode('ascii'))
+    return tokens
+
+
+def decrypt_value(token):
+    """
+    :param token: a value produced by the "encrypt" transform
+    :return: the original value, as text
+    """
+    from cryptography.hazmat.primitives.ciphers import Cipher, algorithms, modes
+    raw = base64.urlsafe_b64decode(token)
+    decryptor = Cipher(algorithms.AES(_subkey(b'encrypt')), modes.CTR(raw[:16])).decryptor()
+    return (decryptor.update(raw[16:]) + decryptor.finalize()).decode('utf-8')
+
+
+_FUNCTIONS = {PSEUDONYMIZE: pseudonymize_values, ENCRYPT: encrypt_values}
+
+
+def _pool():
+    global _executor
+    if _executor is None:
+        _executor = ThreadPoolExecutor(max_workers=os.cpu_count() or 2, thread_name_prefix="identifier")
+    return _executor
+
+
+def transform_column(column, transform):
+    """
+    transform the distinct values of a column that are not cached yet, in parallel batches
+    :param column: a pandas Series
+    :param transform: PSEUDONYMIZE or ENCRYPT
+    :return: the transformed Series; missing values stay missing
+    """
+    codes, uniques = pd.factorize(column)
+    cache = _token_cache[transform]
+    # the tokens of this call: the cache may evict them while another command fills it
+    found = {}
+    missing = []
+    with _token_lock:
+        for value in uniques:
+            token = cache.get(value)
+            if token is None:
+                missing.append(value)
+            else:
+                cache.move_to_end(value)
+                found[value] = token
+    if missing:
+        batches = [missing[i:i + BATCH_VALUES] for i in range(0, len(missing), BATCH_VALUES)]
+        for batch, tokens in zip(batches, _pool().map(_FUNCTIONS[transform], batches)):
+            found.update(zip(batch, tokens))
+        with _token_lock:
+            for value in missing:
+                cache[value] = found[value]
+            # evict the least recently used values; the ones of this call were just used
+            while len(cache) > MAX_CACHED_VALUES:
+                cache.popitem(last=False)
+    tokens = np.array([found[value] for value in uniques] + [np.nan], dtype=object)
+    # code -1 (missing) picks the trailing NaN
+    return pd.Series(tokens[codes], index=column.index, name=column.name)
+
+
+def suppressed_columns(schema):
+    return [name for name in schema.identifiers if schema.identifier_transforms[name] == SUPPRESS]
+
+
+def usecols(schema):
+    """
+    :return: the usecols argument of pandas.read_csv that skips the suppressed identifiers, or None
+    """
+    suppressed = set(suppressed_columns(schema))
+    return (lambda name: name not in suppressed) if suppressed else None
+
+
+def apply(df, schema):
+    """
+    pseudonymize or encrypt the identifier columns of a data frame read with usecols(schema), in place
+    :return: the same data frame
+    """
+    for name in schema.identifiers:
+        transform = schema.identifier_transforms[name]
+        if transform != SUPPRESS and name in df.columns:
+            df[name] = transform_column(df[name], transform)
+    return df
+
+
+def read_csv(schema, **kwargs):
+    """
+    read the input of a data set with the suppressed identifiers dropped and the others transformed
+    :param kwargs: passed to pandas.read_csv, except chunksize
+    """
+    df = pd.read_csv(schema.path, sep=schema.delimiter, usecols=usecols(schema), **kwargs)
+    return apply(df, schema)
+
+
+def header(schema):
+    """
+    :return: the column names of the input file, read once per modification
+    """
+    mtime = os.path.getmtime(schema.path)
+    cached = _header_cache.get(schema.path)
+    if cached and cached[0] == mtime:
+        return cached[1]
+    columns = list(pd.read_csv(schema.path, sep=schema.delimiter, nrows=0).columns)
+    _header_cache[schema.path] = (mtime, columns)
+    return columns
+
+
+def restore_suppressed(df, schema):
+    """
+    insert the suppressed identifiers as constant columns at their input positions, in place, before writing
+    :return: the same data frame
+    """
+    suppressed = set(suppressed_columns(schema))
+    if not suppressed:
+        return df
+    constant = pd.Categorical.from_codes(np.zeros(len(df), dtype=np.int8), [SUPPRESSED])
+    for position, name in enumerate(header(schema)):
+        if name in suppressed and name not in df.columns:
+            df.insert(min(position, len(df.columns)), name, constant)
+    return df
@@ -1,11 +1,14 @@
 import pandas as pd
 import os
 
+import algorithm.dataset_store as dataset_store
+
 def get_csvfile(filename):
     """
     input = csv file
     the input will be converted to pandas dataframe
-    output = first 3 rows of the dataframe and file path
+    output = first 10 rows of the dataframe and file path
+    the rows come from the dataset store when the input was ingested, else from the first lines of the file
     """
 
     # Build the file path relative to the Python script
@@ -17,13 +20,21 @@ def get_csvfile(filename):
     print(f"parent: {parent_dir}")
     print(f"Constructed file path: {input_path}") # /data/data/com.example.pythoncalculation/files/chaquopy/AssetFinder/app/dataset.csv
 
+    try:
+        # a range query on row_id instead of parsing the file
+        df_short = dataset_store.preview_input(filename, 0, 10)
+    except Exception as e:
+        print(f"Error reading the dataset store: {str(e)}")
+        df_short = None
+    if df_short is not None:
+        print(df_short)
+        return df_short, input_path
+
     # Check if the file exists at the constructed path
     if not os.path.exists(input_path):
         return f"Error: File not found at {input_path}"
     try:
-        df = pd.read_csv(input_path)
-
-        df_short = df.head(10)
+        df_short = pd.read_csv(input_path, nrows=10)
         print(df_short)
 
         return df_short, input_path
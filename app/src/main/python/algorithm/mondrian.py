@@ -1,114 +1,796 @@
 # Multi-Dimensional Mondrian for k-anonymity
 import os
+import numpy as np
 import pandas as pd
 import time
 
 # custom library
-import algorithm.hierarchy_tree as h_tree
-# from algorithm.encryption import generate_fernet, encrypt_value     # Commenting out encryption imports
+import algorithm.dataset_store as dataset_store
+import algorithm.dataset_registry as registry
+import algorithm.full_domain as full_domain
+import algorithm.identifier_transform as id_transform
+import algorithm.snapshot as snapshot
+import algorithm.trace as trace
 
-def summarized(partition, dim, qi_list):
+
+class InfoLossMetrics:
     """
-    change the values of the quasi-identifiers columns to the range of the values in the partition
-    :param partition: the data frame to be anonymized
-    :param dim: the dimension to be summarized
-    :param qi_list: the quasi-identifiers to be used
-    :return: the anonymized data frame
+    information-loss metrics, accumulated while the partitions are finalized
+    - NCP: normalized certainty penalty. A generalized cell costs leaf_count(common ancestor) / leaf_count(root),
+      a cell that keeps its leaf costs 0. Averaged over all cells, so 0 <= NCP <= 1.
+    - DM: discernibility metric, the sum of the squared equivalence class sizes
+    - average equivalence class size, also normalized by k (C_avg)
+    Quasi-identifiers published as numeric ranges cost (high - low) / (max - min) of their leaf values instead.
+    An equivalence class is a distinct tuple of published labels, as in the output and the dataset store: partitions
+    whose ranges generalize to the same labels (e.g. ages 1-3 and 4-5 both published as "1-5") are one class.
+    """
+    def __init__(self, qi_list, hierarchy_tree_dict, k, numeric_strategy=None):
+        self.qi_list = qi_list
+        self.trees = [hierarchy_tree_dict[qi] for qi in qi_list]
+        self.k = k
+        numeric_strategy = numeric_strategy or {}
+        self.numeric_span = [numeric_span(tree) if numeric_strategy.get(qi) == registry.NUMERIC_RANGE else None
+                             for qi, tree in zip(qi_list, self.trees)]
+        self.as_range = [numeric_strategy.get(qi) == registry.NUMERIC_RANGE for qi in qi_list]
+        self.penalty_cache = [{} for _ in qi_list]  # (low, high) -> penalty, per quasi-identifier
+        self.label_cache = [{} for _ in qi_list]  # (low, high) -> published label, per quasi-identifier
+        self.ncp_sum = 0.0
+        self.n_rows = 0
+        self.classes = {}  # tuple of published labels -> rows
+
+    def penalty(self, i, leaf1_id, leaf2_id):
+        """
+        the certainty penalty of one cell generalized to the range [leaf1_id, leaf2_id] of quasi-identifier i
+        """
+        if leaf1_id == leaf2_id:
+            return 0.0
+        cache = self.penalty_cache[i]
+        key = (leaf1_id, leaf2_id)
+        if key not in cache:
+            tree = self.trees[i]
+            if self.numeric_span[i]:
+                span = float(tree.leaf_id_dict[str(leaf2_id)].value) - float(tree.leaf_id_dict[str(leaf1_id)].value)
+                cache[key] = abs(span) / self.numeric_span[i]
+            else:
+                ancestor = tree.find_common_ancestor(str(leaf1_id), str(leaf2_id))
+                cache[key] = ancestor.leaf_count / tree.root.leaf_count
+        return cache[key]
+
+    def label(self, i, leaf1_id, leaf2_id):
+        """
+        the published label of the range [leaf1_id, leaf2_id] of quasi-identifier i, see published_label()
+        """
+        cache = self.label_cache[i]
+        key = (leaf1_id, leaf2_id)
+        if key not in cache:
+            cache[key] = published_label(self.trees[i], leaf1_id, leaf2_id, self.as_range[i])
+        return cache[key]
+
+    def add_partition(self, size, low_values, high_values):
+        """
+        add the contribution of one finalized partition; it joins the class of its published labels. time: O(m)
+        """
+        labels = []
+        for i in range(len(self.qi_list)):
+            low, high = int(low_values[i]), int(high_values[i])
+            self.ncp_sum += size * self.penalty(i, low, high)
+            labels.append(self.label(i, low, high))
+        labels = tuple(labels)
+        self.classes[labels] = self.classes.get(labels, 0) + size
+        self.n_rows += size
+
+    def add_classes(self, classes):
+        """
+        add classes of rows that were finalized before, e.g. those of a checkpoint
+        :param classes: {tuple of published labels: rows}
+        """
+        for labels, size in classes.items():
+            self.classes[labels] = self.classes.get(labels, 0) + size
+
+    def as_dict(self):
+        cells = self.n_rows * len(self.qi_list)
+        n_classes = len(self.classes)
+        avg_class_size = self.n_rows / n_classes if n_classes else 0.0
+        return {
+            'k': self.k,
+            'ncp': self.ncp_sum / cells if cells else 0.0,
+            'discernibility': sum(size * size for size in self.classes.values()),
+            'equivalence_classes': n_classes,
+            'avg_class_size': avg_class_size,
+            'normalized_avg_class_size': avg_class_size / self.k,
+        }
+
+    def summary(self):
+        d = self.as_dict()
+        return (f"K = {d['k']}: NCP = {d['ncp']:.4f}, DM = {d['discernibility']}, "
+                f"classes = {d['equivalence_classes']}, avg class size = {d['avg_class_size']:.2f} "
+                f"(C_avg = {d['normalized_avg_class_size']:.2f})")
+
+
+def published_label(hierarchy_tree, leaf1_id, leaf2_id, as_range=False):
+    """
+    the text that stands for the range [leaf1_id, leaf2_id] of a quasi-identifier in the output
+    :param hierarchy_tree: the hierarchy tree of the quasi-identifier
+    :param as_range: publish "low-high" of the leaf values instead of their common ancestor
+    """
+    leaf1_id, leaf2_id = str(leaf1_id), str(leaf2_id)
+    if leaf1_id == leaf2_id:  # single leaf. e.g. 17
+        return hierarchy_tree.leaf_id_dict[leaf1_id].value
+    if as_range:  # numeric interval of the original values. e.g. 37-41
+        return f"{hierarchy_tree.leaf_id_dict[leaf1_id].value}-{hierarchy_tree.leaf_id_dict[leaf2_id].value}"
+    # interval. e.g. [9-16]
+    return hierarchy_tree.find_common_ancestor(leaf1_id, leaf2_id).value
+
+
+def numeric_span(hierarchy_tree):
+    """
+    max - min of the leaf values of a numeric hierarchy (1 if the span is empty)
     """
-    for qi in qi_list:
-        partition = partition.sort_values(by=qi)
-        if partition[qi].iloc[0] != partition[qi].iloc[-1]:
-            s = f"{partition[qi].iloc[0]}-{partition[qi].iloc[-1]}"
-            partition[qi] = [s] * partition[qi].size
-    return partition
+    values = [float(leaf.value) for leaf in hierarchy_tree.leaf_id_dict.values()]
+    return (max(values) - min(values)) or 1.0
 
 
-def anonymize(partition, ranks, k, qi_list):
+# metrics of the last anonymization run, read by the Java side after anonymize_execute()
+last_metrics = None
+
+
+def get_last_metrics_summary():
+    return last_metrics.summary() if last_metrics else "No metrics available"
+
+
+class DiversityConstraint:
+    """
+    l-diversity of one sensitive attribute, checked on per-partition histograms of its encoded values.
+    - distinct: a partition holds at least l distinct sensitive values
+    - entropy: the entropy of the sensitive values of a partition is at least log(l)
+    A histogram is a small count array indexed by the sensitive code, so a check costs O(|S|). The histogram of a
+    partition is carried down with it: a cut counts the rows of every part but the largest, and derives the largest
+    as the parent histogram minus the others, instead of rescanning the partition.
     """
-    recursively calls itself on the two halves of data
-    :param partition: the data frame to be anonymized
-    :param ranks: the ranks of the quasi-identifiers
+    DISTINCT = 'distinct'
+    ENTROPY = 'entropy'
+
+    def __init__(self, sensitive_codes, l, mode=DISTINCT):
+        if mode not in (self.DISTINCT, self.ENTROPY):
+            raise ValueError(f"Unknown l-diversity mode '{mode}'. Use '{self.DISTINCT}' or '{self.ENTROPY}'")
+        self.codes = sensitive_codes
+        self.size = int(sensitive_codes.max()) + 1 if len(sensitive_codes) else 1
+        self.l = l
+        self.mode = mode
+        self.log_l = np.log(l)
+
+    def histogram(self, idx):
+        return np.bincount(self.codes[idx], minlength=self.size)
+
+    def satisfied(self, histogram):
+        if self.mode == self.DISTINCT:
+            return np.count_nonzero(histogram) >= self.l
+        counts = histogram[histogram > 0]
+        p = counts / counts.sum()
+        return -(p * np.log(p)).sum() >= self.log_l - 1e-12
+
+
+def encode_sensitive(df, column):
+    """
+    encode a sensitive column as dense int codes 0..|S|-1 (missing values become one more code)
+    """
+    codes, uniques = pd.factorize(df[column])
+    codes = codes.astype(np.int32)
+    codes[codes < 0] = len(uniques)
+    return codes
+
+
+def summarized(codes, idx, low, high, offset, metrics=None):
+    """
+    record the range of the values of every quasi-identifier in the partition as its generalized value
+    :param codes: the encoded quasi-identifier matrix (one row of leaf_ids per quasi-identifier)
+    :param idx: the row indices of the partition
+    :param low: the lower ends of the generalized ranges, in output row order
+    :param high: the upper ends of the generalized ranges, in output row order
+    :param offset: the position of the partition in the output row order
+    :param metrics: optional InfoLossMetrics that receives the contribution of the partition
+    """
+    block = codes[:, idx]
+    record_partition(low, high, offset, len(idx), block.min(axis=1), block.max(axis=1), metrics)
+
+
+def record_partition(low, high, offset, length, block_low, block_high, metrics=None):
+    """
+    record the generalized range [block_low, block_high] of every quasi-identifier for the rows of a partition
+    :param offset: the position of the partition in the output row order
+    :param length: the number of rows of the partition
+    """
+    low[:, offset:offset + length] = block_low[:, np.newaxis]
+    high[:, offset:offset + length] = block_high[:, np.newaxis]
+    if metrics is not None:
+        metrics.add_partition(length, block_low, block_high)
+
+
+def anonymize(codes, dim, k, metrics=None, diversity=None, frontier=None):
+    """
+    splits the data in two halves along dim until a half would hold less than k records.
+    Partitions are (offset, length) windows over one permutation of the row indices, so no
+    sub-frame is copied or concatenated on the way down.
+    :param codes: the encoded quasi-identifier matrix (one row of leaf_ids per quasi-identifier)
+    :param dim: the index of the quasi-identifier to split on
     :param k: the k value for k-anonymity
+    :param metrics: optional InfoLossMetrics, filled as the partitions are finalized
+    :param diversity: optional DiversityConstraint. A cut is only made if both halves stay l-diverse
+    :param frontier: optional checkpoint.CheckpointedOutput. It may resume the stack from a checkpoint and is
+                     told every finalized output prefix, see algorithm/checkpoint.py
+    :return: (perm, low, high) - the output row order and the generalized range arrays
+    """
+    n = codes.shape[1]
+    perm = np.arange(n, dtype=np.int64)
+    low = np.empty_like(codes)
+    high = np.empty_like(codes)
+    root_histogram = None
+    if diversity is not None:
+        root_histogram = diversity.histogram(perm)
+        if not diversity.satisfied(root_histogram):
+            raise ValueError(f"The data set as a whole is not {diversity.l}-diverse ({diversity.mode})")
+    stack = [(0, n, root_histogram)]
+    if frontier is not None:
+        stack = frontier.start(codes, dim, perm, low, high, stack, diversity)
+    # recursion levels of the pending windows, only kept while tracing or profiling (see algorithm/trace.py)
+    tracer = trace.partition_tracer('median', n)
+    depths = [tracer.level_of(length) for _, length, _ in stack] if tracer.active else None
+    while stack:
+        offset, length, histogram = stack.pop()
+        if tracer.active:
+            depth = depths.pop()
+            started = tracer.begin_window(depth, length)
+        idx = perm[offset:offset + length]
+        idx = idx[np.argsort(codes[dim, idx], kind='stable')]
+        perm[offset:offset + length] = idx
+        mid = length // 2
+        allowed = mid >= k and length - mid >= k
+        left_histogram = right_histogram = None
+        if allowed and diversity is not None:
+            # the left half is the smaller one (mid <= length - mid): only it is counted, the right is derived
+            left_histogram = diversity.histogram(idx[:mid])
+            right_histogram = histogram - left_histogram
+            allowed = diversity.satisfied(left_histogram) and diversity.satisfied(right_histogram)
+        if allowed:
+            # right half is pushed first so that partitions are finalized in output order
+            stack.append((offset + mid, length - mid, right_histogram))
+            stack.append((offset, mid, left_histogram))
+            if tracer.active:
+                depths += (depth + 1, depth + 1)
+        else:
+            summarized(codes, idx, low, high, offset, metrics)
+            if tracer.active:
+                tracer.partition(length)
+            if frontier is not None:
+                frontier.finalized(offset + length, stack)
+        if tracer.active:
+            tracer.end_window(depth, length, started)
+    tracer.finish()
+    return perm, low, high
+
+
+SPLIT_MEDIAN = 'median'
+SPLIT_HIERARCHY = 'hierarchy'
+
+# local recoding by Mondrian, or full-domain generalization by a lattice search (see full_domain.py)
+GENERALIZATION_LOCAL = 'local'
+GENERALIZATION_FULL_DOMAIN = 'full-domain'
+
+
+def check_generalization(generalization, l=0, sample_size=0, split_mode=SPLIT_MEDIAN):
+    """
+    raise ValueError unless the generalization is known and supports the other options of the run:
+    full-domain generalization has no cut points to sample or to follow, nor l-diversity
+    """
+    if generalization == GENERALIZATION_LOCAL:
+        return
+    if generalization != GENERALIZATION_FULL_DOMAIN:
+        raise ValueError(f"Unknown generalization '{generalization}'. "
+                         f"Use '{GENERALIZATION_LOCAL}' or '{GENERALIZATION_FULL_DOMAIN}'")
+    if l > 1 or sample_size or split_mode != SPLIT_MEDIAN:
+        raise ValueError("full-domain generalization supports neither l-diversity, sampled cut estimation "
+                         "nor hierarchy cuts")
+
+
+def output_file_name(input_filename, k, l=0, diversity_mode=DiversityConstraint.DISTINCT, sample_size=0,
+                     split_mode=SPLIT_MEDIAN, generalization=GENERALIZATION_LOCAL):
+    """
+    the name of the anonymized file of a run: k_<k>_anonymized_<input> for the default options, with every other
+    option in the prefix, so runs with different options (e.g. the jobs of a batch) do not overwrite each other
+    :return: e.g. k_5_l_2_entropy_sampled_10000_hierarchy_anonymized_adult.csv
+    """
+    prefix = f'k_{k}'
+    if l > 1:
+        prefix += f'_l_{l}_{diversity_mode}'
+    if sample_size:
+        prefix += f'_sampled_{sample_size}'
+    if split_mode != SPLIT_MEDIAN:
+        prefix += f'_{split_mode}'
+    if generalization != GENERALIZATION_LOCAL:
+        prefix += f'_{generalization}'
+    return f'{prefix}_anonymized_{input_filename}'
+
+
+class ChildCuts:
+    """
+    cuts of the partitions along the children of the nodes of one categorical hierarchy. The leaf_ids are mapped to
+    depth-first leaf ranks once, so the rows below a child of a node are the rows with a rank in
+    [child.leaf_rank, child.leaf_rank + child.leaf_count).
+    """
+    def __init__(self, hierarchy_tree, leaf_ids):
+        rank_of_leaf_id = np.zeros(max(int(leaf_id) for leaf_id in hierarchy_tree.leaf_id_dict) + 2, dtype=np.int32)
+        for leaf_id, leaf in hierarchy_tree.leaf_id_dict.items():
+            rank_of_leaf_id[int(leaf_id)] = leaf.leaf_rank
+        self.ranks = rank_of_leaf_id[leaf_ids]
+        self.root_leaf_count = hierarchy_tree.root.leaf_count
+        self.nodes = {}  # node -> (child rank boundaries, child index of every rank below the node)
+
+    def node_layout(self, node):
+        layout = self.nodes.get(node)
+        if layout is None:
+            leaf_counts = np.array([child.leaf_count for child in node.children], dtype=np.int64)
+            boundaries = np.concatenate(([0], np.cumsum(leaf_counts)))
+            child_index = np.repeat(np.arange(len(node.children), dtype=np.int16), leaf_counts)
+            layout = self.nodes[node] = (boundaries, child_index)
+        return layout
+
+    def child_counts(self, node, idx):
+        """
+        :return: the number of rows of the partition below each child of node. One counting pass over the rows,
+                 then O(children) lookups in the prefix sums of the counts
+        """
+        boundaries, _ = self.node_layout(node)
+        counts = np.bincount(self.ranks[idx] - node.leaf_rank, minlength=node.leaf_count)
+        cumulative = np.concatenate(([0], np.cumsum(counts)))
+        return cumulative[boundaries[1:]] - cumulative[boundaries[:-1]]
+
+    def child_of_rows(self, node, idx):
+        """
+        :return: the child index of node for every row of the partition
+        """
+        _, child_index = self.node_layout(node)
+        return child_index[self.ranks[idx] - node.leaf_rank]
+
+
+def anonymize_hierarchy(codes, qi_list, hierarchy_tree_dict, k, numeric_columns=(), metrics=None,
+                        diversity=None):
+    """
+    Mondrian with hierarchy-aware cuts for the categorical quasi-identifiers (those not declared numeric in the
+    schema). A partition keeps the current generalization node of every categorical quasi-identifier and is cut
+    along the children of that node instead of at the median of arbitrary leaf_ids; numeric quasi-identifiers keep
+    median cuts. Each partition is cut on the quasi-identifier with the widest normalized range that allows a cut:
+    - categorical: leaf_count(node) / leaf_count(root). The cut is allowed if every non-empty child holds at least k
+      rows (and stays l-diverse). The decision costs one counting pass plus O(children), see ChildCuts; the rows are
+      grouped by child with a stable sort of the small child indices. With l-diversity, the sensitive histograms of
+      all children but the largest are counted and the largest is derived from the parent histogram. A node with one non-empty child is replaced
+      by that child without a cut.
+    - numeric: (max - min) / span of the leaf_ids, median cut as in anonymize()
+    A finalized partition publishes the node of every categorical quasi-identifier, so a generalized value never
+    straddles subtrees.
+    :param codes: the encoded quasi-identifier matrix, rows in the order of qi_list
     :param qi_list: the quasi-identifiers to be used
-    :return: the anonymized data frame
+    :param hierarchy_tree_dict: the hierarchy tree dictionary
+    :param k: the k value for k-anonymity
+    :param numeric_columns: the quasi-identifiers with ordered values, cut at the median
+    :param metrics: optional InfoLossMetrics, filled as the partitions are finalized
+    :param diversity: optional DiversityConstraint. A cut is only made if all parts stay l-diverse
+    :return: (perm, low, high) - see anonymize()
     """
-    # get the dimension with the highest rank
-    dim = ranks[0][0]
+    m, n = codes.shape
+    trees = [hierarchy_tree_dict[qi] for qi in qi_list]
+    cuts = [ChildCuts(tree, codes[i]) if qi not in numeric_columns else None
+            for i, (qi, tree) in enumerate(zip(qi_list, trees))]
+    spans = [max(1, max(int(leaf_id) for leaf_id in tree.leaf_id_dict) - min(int(leaf_id) for leaf_id in tree.leaf_id_dict))
+             for tree in trees]
+    perm = np.arange(n, dtype=np.int64)
+    low = np.empty_like(codes)
+    high = np.empty_like(codes)
+    root_histogram = None
+    if diversity is not None:
+        root_histogram = diversity.histogram(perm)
+        if not diversity.satisfied(root_histogram):
+            raise ValueError(f"The data set as a whole is not {diversity.l}-diverse ({diversity.mode})")
+    stack = [(0, n, tuple(tree.root if cut else None for tree, cut in zip(trees, cuts)), root_histogram)]
+    while stack:
+        offset, length, nodes, histogram = stack.pop()
+        idx = perm[offset:offset + length]
+        bounds = {}
+        candidates = []
+        for i in range(m):
+            if cuts[i] is not None:
+                if not nodes[i].is_leaf:
+                    candidates.append((nodes[i].leaf_count / cuts[i].root_leaf_count, i))
+            else:
+                values = codes[i, idx]
+                bounds[i] = (values.min(), values.max())
+                if bounds[i][1] > bounds[i][0]:
+                    candidates.append(((bounds[i][1] - bounds[i][0]) / spans[i], i))
+        candidates.sort(key=lambda candidate: candidate[0], reverse=True)
+
+        parts = None
+        for _, i in candidates:
+            if cuts[i] is not None:
+                node = nodes[i]
+                counts = cuts[i].child_counts(node, idx)
+                nonempty = np.flatnonzero(counts)
+                if len(nonempty) == 1:
+                    # all rows lie below one child: specialize without a cut and decide again
+                    child_nodes = nodes[:i] + (node.children[nonempty[0]],) + nodes[i + 1:]
+                    parts = [(offset, length, child_nodes, histogram)]
+                    break
+                if counts[nonempty].min() < k:
+                    continue
+                idx = idx[np.argsort(cuts[i].child_of_rows(node, idx), kind='stable')]
+                perm[offset:offset + length] = idx
+                starts = np.concatenate(([0], np.cumsum(counts[nonempty])))
+                child_histograms = [None] * len(nonempty)
+                if diversity is not None:
+                    # every child but the largest is counted; the largest is the parent minus the others
+                    largest = int(np.argmax(counts[nonempty]))
+                    remainder = histogram.copy()
+                    for j in range(len(nonempty)):
+                        if j != largest:
+                            child_histograms[j] = diversity.histogram(idx[starts[j]:starts[j + 1]])
+                            remainder -= child_histograms[j]
+                    child_histograms[largest] = remainder
+                    if not all(diversity.satisfied(child_histogram) for child_histogram in child_histograms):
+                        continue
+                parts = [(offset + int(start), int(end - start), nodes[:i] + (node.children[child],) + nodes[i + 1:],
+                          child_histogram)
+                         for child, start, end, child_histogram in zip(nonempty, starts[:-1], starts[1:],
+                                                                       child_histograms)]
+                break
+            else:
+                mid = length // 2
+                if mid < k or length - mid < k:
+                    continue
+                idx = idx[np.argsort(codes[i, idx], kind='stable')]
+                perm[offset:offset + length] = idx
+                left_histogram = right_histogram = None
+                if diversity is not None:
+                    # as in anonymize(): the smaller left half is counted, the right half derived
+                    left_histogram = diversity.histogram(idx[:mid])
+                    right_histogram = histogram - left_histogram
+                    if not (diversity.satisfied(left_histogram) and diversity.satisfied(right_histogram)):
+                        continue
+                parts = [(offset, mid, nodes, left_histogram), (offset + mid, length - mid, nodes, right_histogram)]
+                break
+
+        if parts:
+            # later parts are pushed first so that partitions are finalized in output order
+            stack.extend(reversed(parts))
+            continue
+        block_low = np.empty(m, dtype=codes.dtype)
+        block_high = np.empty(m, dtype=codes.dtype)
+        for i in range(m):
+            if cuts[i] is not None:
+                block_low[i] = int(nodes[i].first_leaf.leaf_id)
+                block_high[i] = int(nodes[i].last_leaf.leaf_id)
+            else:
+                block_low[i], block_high[i] = bounds[i]
+        record_partition(low, high, offset, length, block_low, block_high, metrics)
+    return perm, low, high
+
+
+def anonymize_sampled(codes, dim, k, sample_size, metrics=None, seed=0):
+    """
+    approximate Mondrian for very large inputs. The cut points are estimated on a random sample instead of
+    sorting every partition:
+    1. the cut tree is built on a sample of sample_size rows, with k scaled down to the sample
+    2. every row is routed through the tree in one pass per level (no sort of the full data)
+    3. repair: a leaf that received less than k rows is merged with its sibling subtree, bottom up,
+       so every published class holds at least k rows - the guarantee stays exact
+    :param codes: the encoded quasi-identifier matrix
+    :param dim: the index of the quasi-identifier to split on
+    :param k: the k value for k-anonymity
+    :param sample_size: the number of rows the cut points are estimated from
+    :param metrics: optional InfoLossMetrics, filled as the partitions are finalized
+    :param seed: seed of the sample
+    :return: (perm, low, high) - see anonymize()
+    """
+    n = codes.shape[1]
+    if n <= sample_size:
+        return anonymize(codes, dim, k, metrics)
+    rng = np.random.default_rng(seed)
+    sample = np.sort(codes[dim, rng.choice(n, size=sample_size, replace=False)])
+    k_sample = max(1, -(-k * sample_size // n))  # ceil(k * s / n)
+
+    # 1. cut tree on the sample. node: [threshold, left, right]; rows with value <= threshold go left
+    nodes = [[None, -1, -1]]
+    stack = [(0, 0, sample_size)]
+    while stack:
+        node, offset, length = stack.pop()
+        mid = length // 2
+        if mid < k_sample or length - mid < k_sample:
+            continue
+        threshold = sample[offset + mid - 1]
+        # ties: the cut moves to the end of the run of equal values, so no value is split across halves
+        cut = np.searchsorted(sample[offset:offset + length], threshold, side='right')
+        if cut < k_sample or length - cut < k_sample:
+            continue
+        nodes[node][0] = threshold
+        nodes[node][1], nodes[node][2] = len(nodes), len(nodes) + 1
+        nodes.append([None, -1, -1])
+        nodes.append([None, -1, -1])
+        stack.append((nodes[node][2], offset + cut, length - cut))
+        stack.append((nodes[node][1], offset, cut))
+
+    # 2. route all rows down the tree, one vectorized pass over the data per tree level
+    thresholds = np.array([t if t is not None else 0 for t, _, _ in nodes], dtype=codes.dtype)
+    lefts = np.array([left for _, left, _ in nodes], dtype=np.int32)
+    rights = np.array([right for _, _, right in nodes], dtype=np.int32)
+    assignment = np.zeros(n, dtype=np.int32)
+    values = codes[dim]
+    active = np.arange(n)
+    while len(active):
+        node = assignment[active]
+        active = active[lefts[node] >= 0]
+        node = assignment[active]
+        assignment[active] = np.where(values[active] <= thresholds[node], lefts[node], rights[node])
+    counts = np.bincount(assignment, minlength=len(nodes))
+
+    # 3. repair, children before parents: collapse a node if one of its children is a leaf below k
+    parent = np.full(len(nodes), -1, dtype=np.int32)
+    for node, (_, left, right) in enumerate(nodes):
+        if left >= 0:
+            parent[left] = parent[right] = node
+    for node in range(len(nodes) - 1, -1, -1):
+        threshold, left, right = nodes[node]
+        if left < 0:
+            continue
+        counts[node] = counts[left] + counts[right]
+        if (nodes[left][1] < 0 and counts[left] < k) or (nodes[right][1] < 0 and counts[right] < k):
+            nodes[node][1] = nodes[node][2] = -1
+
+    # every node resolves to the topmost leaf on its path; parents are resolved before their children
+    final = np.arange(len(nodes), dtype=np.int32)
+    for node in range(1, len(nodes)):
+        p = parent[node]
+        if final[p] != p or nodes[p][1] < 0:
+            final[node] = final[p]
+    # number the surviving leaves in tree order, left to right
+    leaf_rank = np.zeros(len(nodes), dtype=np.int32)
+    rank = 0
+    stack = [0]
+    while stack:
+        node = stack.pop()
+        if nodes[node][1] < 0:
+            leaf_rank[node] = rank
+            rank += 1
+            continue
+        stack.append(nodes[node][2])
+        stack.append(nodes[node][1])
+    row_leaf = leaf_rank[final[assignment]]
+
+    perm = np.argsort(row_leaf, kind='stable').astype(np.int64)
+    low = np.empty_like(codes)
+    high = np.empty_like(codes)
+    boundaries = np.flatnonzero(np.diff(row_leaf[perm])) + 1
+    for start, end in zip(np.r_[0, boundaries], np.r_[boundaries, n]):
+        summarized(codes, perm[start:end], low, high, start, metrics)
+    return perm, low, high
+
+
+# the weighted engine is used when the rows outnumber their distinct quasi-identifier tuples at least this much
+DEDUP_MIN_FACTOR = 1.5
+# rows of the sample that estimates the number of distinct tuples before deduplicate() is paid for
+DEDUP_SAMPLE_ROWS = 16384
+
+
+def estimate_distinct_tuples(codes, distinct_counts):
+    """
+    cheap estimate of the number of distinct quasi-identifier tuples, to skip deduplicate() when the rows cannot
+    repeat DEDUP_MIN_FACTOR times. The product of the distinct values per quasi-identifier is an upper bound and
+    their maximum a lower bound; only when the two disagree about the factor on a large input, the tuples of a
+    fixed sample are counted and scaled up (singletons by sqrt(n / sample), the GEE estimator).
+    :param codes: the encoded quasi-identifier matrix
+    :param distinct_counts: the number of distinct values of every quasi-identifier
+    :return: the estimated number of distinct tuples
+    """
+    n = codes.shape[1]
+    upper = min(float(n), float(np.prod(np.asarray(distinct_counts, dtype=np.float64))))
+    lower = max(distinct_counts)
+    if n >= DEDUP_MIN_FACTOR * upper:
+        return upper
+    if n < DEDUP_MIN_FACTOR * lower or n <= DEDUP_SAMPLE_ROWS:
+        # too many tuples for sure, or few enough rows for deduplicate() itself to decide
+        return lower
+    # every (n / sample)-th row, so the decision is the same on every run over the same input
+    sample = codes[:, ::n // DEDUP_SAMPLE_ROWS]
+    _, counts = np.unique(sample.T, axis=0, return_counts=True)
+    singletons = int(np.count_nonzero(counts == 1))
+    return np.sqrt(n / sample.shape[1]) * singletons + (len(counts) - singletons)
+
+
+
+def deduplicate(codes, dim):
+    """
+    collapse identical quasi-identifier tuples into weighted records. The tuples are packed into one int64 key per
+    row (mixed radix over the leaf_id ranges) when the ranges allow it, so the pre-pass is a single 1-D sort.
+    :param codes: the encoded quasi-identifier matrix
+    :param dim: the index of the quasi-identifier to order the tuples by
+    :return: (tuples, weights, row_tuple) - the distinct tuples as columns in stable order of dim, the number of
+             rows of every tuple, and the position of the tuple of every row
+    """
+    shift = codes.min(axis=1).astype(np.int64)
+    sizes = codes.max(axis=1).astype(np.int64) - shift + 1
+    if np.prod(sizes.astype(np.float64)) < 2.0 ** 62:
+        keys = np.ravel_multi_index(tuple(codes.astype(np.int64) - shift[:, np.newaxis]), tuple(sizes))
+        _, first, inverse, weights = np.unique(keys, return_index=True, return_inverse=True, return_counts=True)
+        tuples = codes[:, first]
+    else:
+        tuples, inverse, weights = np.unique(codes.T, axis=0, return_inverse=True, return_counts=True)
+        tuples = tuples.T
+    order = np.argsort(tuples[dim], kind='stable')
+    position = np.empty(len(order), dtype=np.int64)
+    position[order] = np.arange(len(order))
+    return np.ascontiguousarray(tuples[:, order]), weights[order], position[inverse.reshape(-1)]
 
-    partition = partition.sort_values(by=dim)
-    si = partition[dim].count()
-    mid = si // 2
-    left_partition = partition[:mid]
-    right_partition = partition[mid:]
-    if len(left_partition) >= k and len(right_partition) >= k:
-        return pd.concat([anonymize(left_partition, ranks, k, qi_list), anonymize(right_partition, ranks, k, qi_list)])
-    return summarized(partition, dim, qi_list)
+
+def anonymize_weighted(codes, dim, k, metrics=None, dedup=None, frontier=None):
+    """
+    anonymize() on the distinct quasi-identifier tuples instead of the rows. Every tuple carries the number of rows
+    it stands for; a window of tuples is cut at its weighted median (the tuple boundary closest to half of its
+    rows) if both halves hold at least k rows, so identical rows are never split across classes. The tuples are
+    sorted by dim once and every window stays a slice of that order, so a cut is a binary search on the prefix sums
+    of the weights. The output row order is known before partitioning: the rows of a tuple follow each other in
+    input order, so a finalized window of tuples is a finalized range of output rows.
+    :param codes: the encoded quasi-identifier matrix
+    :param dim: the index of the quasi-identifier to split on
+    :param k: the k value for k-anonymity
+    :param metrics: optional InfoLossMetrics, filled as the partitions are finalized
+    :param dedup: the result of deduplicate(codes, dim), if already computed
+    :param frontier: optional checkpoint.CheckpointedOutput, see anonymize(). Its pending windows are windows of
+                     tuples
+    :return: (perm, low, high) - see anonymize()
+    """
+    tuples, weights, row_tuple = dedup if dedup is not None else deduplicate(codes, dim)
+    # bounds[t] is the output offset of the rows of tuple t
+    bounds = np.zeros(len(weights) + 1, dtype=np.int64)
+    np.cumsum(weights, out=bounds[1:])
+    perm = np.argsort(row_tuple, kind='stable').astype(np.int64)
+    low = np.empty_like(codes)
+    high = np.empty_like(codes)
+    # pending windows of tuples as (offset, length, None), the layout of the stack of anonymize()
+    stack = [(0, len(weights), None)]
+    if frontier is not None:
+        stack = frontier.start(codes, dim, perm, low, high, stack, tuples=tuples)
+    tracer = trace.partition_tracer('weighted', int(bounds[-1]))
+    depths = [tracer.level_of(int(bounds[offset + length] - bounds[offset])) for offset, length, _ in stack] \
+        if tracer.active else None
+    while stack:
+        offset, length, _ = stack.pop()
+        start, end = offset, offset + length
+        total = int(bounds[end] - bounds[start])
+        if tracer.active:
+            depth = depths.pop()
+            started = tracer.begin_window(depth, total)
+        cut = None
+        if total >= 2 * k:
+            # first tuple boundary at or after half of the rows, and the one before it
+            after = start + int(np.searchsorted(bounds[start:end + 1], bounds[start] + total // 2))
+            best = None
+            for candidate in (after - 1, after):
+                if start < candidate < end:
+                    left = int(bounds[candidate] - bounds[start])
+                    if left >= k and total - left >= k and (best is None or abs(total - 2 * left) < best):
+                        cut, best = candidate, abs(total - 2 * left)
+        if cut is not None:
+            # right half is pushed first so that partitions are finalized in output order
+            stack.append((cut, end - cut, None))
+            stack.append((start, cut - start, None))
+            if tracer.active:
+                depths += (depth + 1, depth + 1)
+        else:
+            block = tuples[:, start:end]
+            record_partition(low, high, int(bounds[start]), total, block.min(axis=1), block.max(axis=1), metrics)
+            if tracer.active:
+                tracer.partition(total)
+            if frontier is not None:
+                frontier.finalized(int(bounds[end]), stack)
+        if tracer.active:
+            tracer.end_window(depth, total, started)
+    tracer.finish()
+    return perm, low, high
 
 
-def mondrian(partition, qi_list, k):
+def mondrian(codes, qi_list, k, metrics=None, diversity=None, sample_size=0, frontier=None,
+             split_mode=SPLIT_MEDIAN, hierarchy_tree_dict=None, numeric_columns=(), dedup=True):
     """
     Mondrian algorithm for k-anonymity.
-    :param partition: the data frame to be anonymized
+    :param codes: the encoded quasi-identifier matrix, rows in the order of qi_list
     :param qi_list: the quasi-identifiers to be used
     :param k: the k value for k-anonymity
-    :return: anonymized DataFrame where each group of records with the same quasi-identifiers has at least k records.
+    :param metrics: optional InfoLossMetrics, see anonymize()
+    :param diversity: optional DiversityConstraint, see anonymize()
+    :param sample_size: if > 0, estimate the cut points from a sample of this size (see anonymize_sampled())
+    :param frontier: optional checkpoint.CheckpointedOutput, see anonymize(). Only for exact median cuts
+    :param split_mode: 'median' (cut at the median leaf_id) or 'hierarchy' (cut categorical quasi-identifiers
+                       along the children of their generalization node, see anonymize_hierarchy())
+    :param hierarchy_tree_dict: the hierarchy tree dictionary, needed for 'hierarchy'
+    :param numeric_columns: the quasi-identifiers with ordered values, for 'hierarchy'
+    :param dedup: partition the distinct quasi-identifier tuples with weights (see anonymize_weighted()) when rows
+                  repeat at least DEDUP_MIN_FACTOR times on average. Exact median cuts without l-diversity only;
+                  the frontier then checkpoints windows of tuples
+    :return: (perm, low, high) - see anonymize()
     """
+    if split_mode == SPLIT_HIERARCHY:
+        if sample_size > 0 or frontier is not None:
+            raise ValueError("hierarchy cuts support neither sampled cut points nor checkpoints")
+        return anonymize_hierarchy(codes, qi_list, hierarchy_tree_dict, k, numeric_columns, metrics, diversity)
+    if split_mode != SPLIT_MEDIAN:
+        raise ValueError(f"Unknown split mode '{split_mode}'. Use '{SPLIT_MEDIAN}' or '{SPLIT_HIERARCHY}'")
     # find which quasi-identifier has the most distinct values
     ranks = {}
-    for qi in qi_list:
-        ranks[qi] = len(partition[qi].unique())
+    with trace.section("rank"):
+        for i, qi in enumerate(qi_list):
+            ranks[qi] = len(np.unique(codes[i]))
+    distinct = list(ranks.values())
     # sort the ranks in descending order
     ranks = [(key, value) for key, value in sorted(ranks.items(), key=lambda item: item[1], reverse=True)]
     # print(ranks)
-    return anonymize(partition, ranks, k, qi_list)
+    dim = qi_list.index(ranks[0][0])
+    if sample_size > 0:
+        if diversity is not None:
+            raise ValueError("l-diversity is only supported with exact cut points")
+        if frontier is not None:
+            raise ValueError("checkpoints are only supported with exact cut points")
+        return anonymize_sampled(codes, dim, k, sample_size, metrics)
+    if dedup and diversity is None and codes.shape[1] >= DEDUP_MIN_FACTOR * estimate_distinct_tuples(codes, distinct):
+        with trace.section("deduplicate"):
+            weighted = deduplicate(codes, dim)
+        if codes.shape[1] >= DEDUP_MIN_FACTOR * len(weighted[1]):
+            print(f"Partitioning {len(weighted[1])} distinct tuples of {codes.shape[1]} rows")
+            return anonymize_weighted(codes, dim, k, metrics, weighted, frontier)
+    return anonymize(codes, dim, k, metrics, diversity, frontier)
 
 
 def map_text_to_num(df, qi_list, hierarchy_tree_dict):
     """
-    the data frame with text values mapped to leaf_id(number). It would help to anonymize using mondrian algorithm
+    encode the quasi-identifier columns as leaf_id(number). It would help to anonymize using mondrian algorithm
     :param df: the data frame to be anonymized
     :param qi_list: the quasi-identifiers to be used
     :param hierarchy_tree_dict: the hierarchy tree dictionary
-    :return: the data frame with text values mapped to leaf_id(number).
+    :return: int32 matrix with one row of leaf_ids per quasi-identifier, in the order of qi_list
     """
+    codes = np.empty((len(qi_list), len(df)), dtype=np.int32)
     # Iterate over each column in quasi_identifiers
-    for column in qi_list:
+    for i, column in enumerate(qi_list):
         # Get the hierarchy tree for the current column
         hierarchy_tree = hierarchy_tree_dict[column]
         # Create a mapping of values to leaf_id
-        # for leaf_id, leaf in hierarchy_tree.leaf_id_dict.items():
-        #     print(column, type(leaf_id))
         if isinstance(df[column].iloc[0], str):
-            mapping = {leaf.value: leaf_id for leaf_id, leaf in hierarchy_tree.leaf_id_dict.items()}
+            mapping = {leaf.value: int(leaf_id) for leaf_id, leaf in hierarchy_tree.leaf_id_dict.items()}
         else:  # isinstance(df[column].iloc[0], int)
-            mapping = {int(leaf.value): leaf_id for leaf_id, leaf in hierarchy_tree.leaf_id_dict.items()}
-        # Replace the values in the current column with their corresponding leaf_id
-        df[column] = df[column].map(mapping)
-    return df
+            mapping = {int(leaf.value): int(leaf_id) for leaf_id, leaf in hierarchy_tree.leaf_id_dict.items()}
+        mapped = df[column].map(mapping)
+        if mapped.isnull().values.any():
+            print(f"Error: values of '{column}' not found in its hierarchy. They are mapped to leaf_id 1.")
+            mapped = mapped.fillna(1)
+        codes[i] = mapped.to_numpy(dtype=np.int32)
+    return codes
 
 
-def map_num_to_text(df, qi_list, hierarchy_tree_dict):
+def map_num_to_text(df, qi_list, hierarchy_tree_dict, low, high, numeric_strategy=None):
     """
-    the data frame with leaf_id(number) mapped to text values(original or generalized).
-    :param df: the data frame to be anonymized
+    replace the quasi-identifier columns with text values(original or generalized).
+    Each distinct (low, high) range is resolved against the hierarchy once, not once per row.
+    :param df: the data frame in output row order
     :param qi_list: the quasi-identifiers to be used
     :param hierarchy_tree_dict: the hierarchy tree dictionary
-    :return: the data frame with leaf_id(number) mapped to text values.
+    :param low: the lower ends of the generalized ranges, aligned with df
+    :param high: the upper ends of the generalized ranges, aligned with df
+    :param numeric_strategy: optional {column: "hierarchy" or "range"}. "range" publishes "low-high" of the values
+    :return: the data frame with leaf_id(number) ranges mapped to text values.
     """
-    # Iterate over each column in quasi_identifiers
-    for column in qi_list:  # time: O(m*n) = (m<<n) = O(n)
-        # Get the hierarchy tree for the current column
+    numeric_strategy = numeric_strategy or {}
+    for i, column in enumerate(qi_list):  # time: O(m*n) = (m<<n) = O(n)
         hierarchy_tree = hierarchy_tree_dict[column]
-        # Create a mapping of leaf_id to values
-        for i, value in df[column].items():
-            value = str(value)
-            if value.isdigit():  # single number. e.g. 17. time: O(1)
-                leaf = hierarchy_tree.leaf_id_dict[value]
-                df.at[i, column] = leaf.value
-            elif isinstance(value, str) and '-' in value:  # interval. e.g. [9-16]. time: O(1)
-                leaf1_id, leaf2_id = map(str, value.split('-'))  # value.strip('[]').split('-')
-                common_ancestor = hierarchy_tree.find_common_ancestor(leaf1_id, leaf2_id)
-                df.at[i, column] = common_ancestor.value
+        as_range = numeric_strategy.get(column) == registry.NUMERIC_RANGE
+        keys = low[i].astype(np.int64) << 32 | high[i].astype(np.int64)
+        unique_keys, inverse = np.unique(keys, return_inverse=True)
+        labels = [published_label(hierarchy_tree, key >> 32, key & 0xFFFFFFFF, as_range) for key in unique_keys]
+        df[column] = np.array(labels, dtype=object)[inverse]
     return df
 
 
@@ -127,41 +809,236 @@ def check_k_anonymity(df, qi_list, k):
             check_k_anonymity_flag = False
     return check_k_anonymity_flag
 
-def run_anonymize(qi_list, identifiers, data_file, hierarchy_file_dir, k=5):
+
+def check_l_diversity(df, qi_list, sensitive, l, mode=DiversityConstraint.DISTINCT):
+    """
+    check if every equivalence class of the published data is l-diverse in the sensitive column
+    """
+    for _, partition in df.groupby(qi_list):
+        counts = partition[sensitive].value_counts(dropna=False).to_numpy()
+        if mode == DiversityConstraint.DISTINCT:
+            if len(counts) < l:
+                return False
+        else:
+            p = counts / counts.sum()
+            if -(p * np.log(p)).sum() < np.log(l) - 1e-12:
+                return False
+    return True
+
+def encode_input(schema):
+    """
+    read the input from the dataset store (or the data file if the store has no fresh copy), transform the
+    identifiers and encode the quasi-identifiers as leaf_ids
+    :param schema: the DatasetSchema from the registry
+    :return: (df, codes, hierarchy_tree_dict); df has no suppressed identifier columns, they are restored by
+             id_transform.restore_suppressed() before writing
+    """
     # suppose n records(num of rows). k-anonymity. m quasi-identifiers. Calculate time complexity
-    df = pd.read_csv(data_file)
+    # suppressed identifiers are not read, the others are pseudonymized or encrypted per distinct value
+    df = dataset_store.read_input(schema)
+    if df is None:
+        df = id_transform.read_csv(schema)
+
+    # built once per data set and reused until a hierarchy file changes
+    hierarchy_tree_dict = registry.get_hierarchy_trees(schema)
+
+    codes = map_text_to_num(df, schema.qi_list, hierarchy_tree_dict)  # time: O(n*m) = (m<<n) = O(n)
+    return df, codes, hierarchy_tree_dict
 
-    # Commenting out encryption and using simple masking instead
-    # fernet = generate_fernet(" ")                                                                  # uncomment for encryption
-    for identifier in identifiers:
-        if identifier in df.columns:
-            df[identifier] = "****"               # simple suppression                               # comment out this for encryption
-            # df[identifier] = df[identifier].apply(lambda x: encrypt_value(x, fernet))              # uncomment for encryption
 
-    hierarchy_tree_dict = h_tree.build_all_hierarchy_tree(hierarchy_file_dir)
+def read_encoded(schema):
+    """
+    the encoded input of a data set, from its snapshot if the input has not changed since it was built
+    (see algorithm/snapshot.py), else from encode_input(), with a new snapshot written in the background
+    :param schema: the DatasetSchema from the registry
+    :return: (df, codes, hierarchy_tree_dict) as encode_input() returns them. The quasi-identifier columns of df
+             only hold placeholders when read from a snapshot, and codes is then memory-mapped read-only
+    """
+    tic = time.time()
+    with trace.section("snapshot load"):
+        cached = snapshot.load(schema)
+    if cached is not None:
+        df, codes = cached
+        print(f"Read '{schema.dataset_id}' from its snapshot in {time.time() - tic:.2f} seconds")
+        return df, codes, registry.get_hierarchy_trees(schema)
+    stat = snapshot.input_stat(schema)
+    with trace.section("read and encode"):
+        df, codes, hierarchy_tree_dict = encode_input(schema)
+    snapshot.store_async(schema, stat, df, codes)
+    print(f"Read and encoded '{schema.dataset_id}' in {time.time() - tic:.2f} seconds")
+    return df, codes, hierarchy_tree_dict
 
 
+def diversity_constraint(schema, df, l, diversity_mode=DiversityConstraint.DISTINCT):
+    """
+    :return: the DiversityConstraint of the first sensitive column of the schema, or None if l <= 1
+    """
+    if l <= 1:
+        return None
+    if not schema.sensitive:
+        raise ValueError(f"Dataset '{schema.dataset_id}' has no sensitive column for l-diversity")
+    return DiversityConstraint(encode_sensitive(df, schema.sensitive[0]), l, diversity_mode)
 
-    df = map_text_to_num(df, qi_list, hierarchy_tree_dict)  # time: O(n*m) = (m<<n) = O(n)
-    if df.isnull().values.any():
-        df.fillna(1, inplace=True)
-        print("Error: NaN values found in the data frame. Please remove or handle them before anonymizing the data.")
-        #return
+
+def run_anonymize(schema, k=5, l=0, diversity_mode=DiversityConstraint.DISTINCT, sample_size=0,
+                  split_mode=SPLIT_MEDIAN, generalization=GENERALIZATION_LOCAL):
+    """
+    :param schema: the DatasetSchema from the registry
+    :param k: the k value for k-anonymity
+    :param l: if > 1, every equivalence class is also l-diverse in the first sensitive column of the schema
+    :param diversity_mode: 'distinct' or 'entropy' l-diversity
+    :param sample_size: if > 0, estimate the cut points from a sample of this size instead of exact medians
+    :param split_mode: 'median' or 'hierarchy' cuts, see mondrian()
+    :param generalization: 'local' (Mondrian) or 'full-domain' (lattice search, see full_domain.py)
+    """
+    global last_metrics
+    check_generalization(generalization, l, sample_size, split_mode)
+    qi_list = schema.qi_list
+    df, codes, hierarchy_tree_dict = read_encoded(schema)
+    if k > len(df):
+        raise ValueError(f"K = {k} is larger than the number of records ({len(df)})")
+    metrics = InfoLossMetrics(qi_list, hierarchy_tree_dict, k, schema.numeric_strategy)
+    diversity = diversity_constraint(schema, df, l, diversity_mode)
 
     # calculation of ranks of the quasi-identifiers. time: O(n*m)
     # sort the ranks in descending order. time: O(m*log(m))
-    # anonymize. Recursively calls itself on the two halves of the data. time: O(n*log(n))
+    # anonymize. Splits the permutation windows in two halves until they are too small. time: O(n*log(n))
     # summarized. time: O(n)
     # total time complexity of mondrian: O(n*m + m*log(m) + n*log(n) + n) = O(n*m + n*log(n)) = (m<<n) = O(n*log(n))
-    df = mondrian(df, qi_list, k)
+    with trace.section("partition"):
+        if generalization == GENERALIZATION_FULL_DOMAIN:
+            perm, low, high = full_domain.full_domain(codes, qi_list, k, hierarchy_tree_dict, metrics)
+        else:
+            perm, low, high = mondrian(codes, qi_list, k, metrics, diversity, sample_size, split_mode=split_mode,
+                                       hierarchy_tree_dict=hierarchy_tree_dict, numeric_columns=schema.numeric_columns)
+    last_metrics = metrics
+    print(f"Information loss: {metrics.summary()}")
 
-    if not check_k_anonymity(df, qi_list, k):  # time: O(n*log(n))
-        raise Exception("Not all partitions are k-anonymous")
+    with trace.section("generalize"):
+        df = df.iloc[perm].reset_index(drop=True)
+        df = map_num_to_text(df, qi_list, hierarchy_tree_dict, low, high, schema.numeric_strategy)  # time: O(n*m) = (m<<n) = O(n)
 
-    df = map_num_to_text(df, qi_list, hierarchy_tree_dict)  # time: O(n*m) = (m<<n) = O(n)
+    with trace.section("verify"):
+        if not check_k_anonymity(df, qi_list, k):  # time: O(n*log(n))
+            raise Exception("Not all partitions are k-anonymous")
+        if diversity is not None and not check_l_diversity(df, qi_list, schema.sensitive[0], l, diversity_mode):
+            raise Exception(f"Not all partitions are {l}-diverse")
     # total time complexity: O(n*log(n))
 
-    return df
+    return id_transform.restore_suppressed(df, schema)
+
+
+def run_anonymize_to_file(schema, output_path, k=5, l=0, diversity_mode=DiversityConstraint.DISTINCT,
+                          checkpoint_path=None):
+    """
+    exact Mondrian with the partitions written to output_path as they are finalized, instead of building the
+    whole anonymized data frame first. With checkpoint_path the work frontier is checkpointed on the way, and a
+    run with the same parameters on the same input resumes from it (see algorithm/checkpoint.py).
+    :param schema: the DatasetSchema from the registry
+    :param output_path: the anonymized output file
+    :param k: the k value for k-anonymity
+    :param l: if > 1, every equivalence class is also l-diverse in the first sensitive column of the schema
+    :param diversity_mode: 'distinct' or 'entropy' l-diversity
+    :param checkpoint_path: the checkpoint file, or None
+    :return: the InfoLossMetrics of the run
+    """
+    # imported here because checkpoint imports this module
+    import algorithm.checkpoint as checkpoint
+    global last_metrics
+    qi_list = schema.qi_list
+    df, codes, hierarchy_tree_dict = read_encoded(schema)
+    if k > len(df):
+        raise ValueError(f"K = {k} is larger than the number of records ({len(df)})")
+    metrics = InfoLossMetrics(qi_list, hierarchy_tree_dict, k, schema.numeric_strategy)
+    diversity = diversity_constraint(schema, df, l, diversity_mode)
+
+    output = checkpoint.CheckpointedOutput(df, schema, k, metrics, output_path, checkpoint_path, l, diversity_mode)
+    try:
+        with trace.section("partition and write"):
+            mondrian(codes, qi_list, k, metrics, diversity, frontier=output)
+            output.finish()
+    finally:
+        output.close()
+    last_metrics = metrics
+    print(f"Information loss: {metrics.summary()}")
+    return metrics
+
+
+def sweep_k(k_values, schema):
+    """
+    information-loss metrics for several k values. The data is read and encoded once and the metrics are
+    collected while partitioning, so each k costs one partitioning pass and no output is written.
+    :return: list of metric dicts, one per k value
+    """
+    _, codes, hierarchy_tree_dict = read_encoded(schema)
+    results = []
+    for k in k_values:
+        metrics = InfoLossMetrics(schema.qi_list, hierarchy_tree_dict, k, schema.numeric_strategy)
+        mondrian(codes, schema.qi_list, k, metrics)
+        print(f"Information loss: {metrics.summary()}")
+        results.append(metrics.as_dict())
+    return results
+
+
+def benchmark_sampling(k, sample_sizes, dataset="standard"):
+    """
+    compare the exact engine with sampled cut points: run time of the partitioning and information loss
+    :return: one summary line per engine
+    """
+    schema = registry.get_dataset(dataset)
+    _, codes, hierarchy_tree_dict = read_encoded(schema)
+    lines = []
+    for sample_size in [0] + [int(size) for size in sample_sizes]:
+        metrics = InfoLossMetrics(schema.qi_list, hierarchy_tree_dict, k, schema.numeric_strategy)
+        tic = time.time()
+        mondrian(codes, schema.qi_list, k, metrics, sample_size=sample_size)
+        elapsed = time.time() - tic
+        d = metrics.as_dict()
+        engine = f"sampled ({sample_size})" if sample_size else "exact"
+        lines.append(f"{engine}: {elapsed:.3f} s, NCP = {d['ncp']:.4f}, classes = {d['equivalence_classes']}")
+        print(lines[-1])
+    return "\n".join(lines)
+
+
+def benchmark_dedup(k, dataset="standard"):
+    """
+    compare the row engine with the weighted engine on the distinct quasi-identifier tuples: run time of the
+    partitioning and information loss
+    :return: one summary line per engine
+    """
+    schema = registry.get_dataset(dataset)
+    _, codes, hierarchy_tree_dict = read_encoded(schema)
+    lines = []
+    for dedup in (False, True):
+        metrics = InfoLossMetrics(schema.qi_list, hierarchy_tree_dict, k, schema.numeric_strategy)
+        tic = time.time()
+        mondrian(codes, schema.qi_list, k, metrics, dedup=dedup)
+        elapsed = time.time() - tic
+        d = metrics.as_dict()
+        engine = "weighted tuples" if dedup else "rows"
+        lines.append(f"{engine}: {elapsed:.3f} s, NCP = {d['ncp']:.4f}, classes = {d['equivalence_classes']}")
+        print(lines[-1])
+    return "\n".join(lines)
+
+
+def compare_split_modes(k, dataset="standard"):
+    """
+    compare median cuts with hierarchy cuts of the categorical quasi-identifiers: run time and information loss
+    :return: one summary line per split mode
+    """
+    schema = registry.get_dataset(dataset)
+    _, codes, hierarchy_tree_dict = read_encoded(schema)
+    lines = []
+    for split_mode in (SPLIT_MEDIAN, SPLIT_HIERARCHY):
+        metrics = InfoLossMetrics(schema.qi_list, hierarchy_tree_dict, k, schema.numeric_strategy)
+        tic = time.time()
+        mondrian(codes, schema.qi_list, k, metrics, split_mode=split_mode, hierarchy_tree_dict=hierarchy_tree_dict,
+                 numeric_columns=schema.numeric_columns)
+        elapsed = time.time() - tic
+        d = metrics.as_dict()
+        lines.append(f"{split_mode}: {elapsed:.3f} s, NCP = {d['ncp']:.4f}, classes = {d['equivalence_classes']}")
+        print(lines[-1])
+    return "\n".join(lines)
 
 
 #### DUMMY FUNCTION TO EXECUTE THE ANONYMIZATION #################################
@@ -170,156 +1047,238 @@ def run_anonymize(qi_list, identifiers, data_file, hierarchy_file_dir, k=5):
 #################################################################################
 
 
-def anonymize_execute(k_value, input_filename="dataset.csv"):
+def anonymize_wearable(df, schema, k):
+    """
+    simple anonymization without hierarchy trees, for data sets registered with engine "rounding"
+    :param df: the input, read with id_transform.read_csv()
+    :return: the anonymized data frame
+    """
+    qi_list = list(schema.qi_list)
+    # Handle timestamp conversion for better readability
+    if 'timestamp' in df.columns:
+        # Replace comma with period in scientific notation
+        df['timestamp'] = df['timestamp'].astype(str).str.replace(',', '.')
+
+        # Convert to float, then to integer
+        df['timestamp'] = df['timestamp'].astype(float).astype('int64')
+
+        # Determine if timestamp is in seconds or milliseconds
+        # If timestamps are very large (> 10^12), they're likely in milliseconds
+        if df['timestamp'].iloc[0] > 10**12:
+            # Convert milliseconds to seconds for anonymization
+            df['timestamp_seconds'] = df['timestamp'] / 1000
+        else:
+            df['timestamp_seconds'] = df['timestamp']
+
+        # Add timestamp as a quasi-identifier for anonymization
+        if 'timestamp_seconds' not in qi_list and 'timestamp_seconds' in df.columns:
+            qi_list.append('timestamp_seconds')
+
+    # Perform simple anonymization without hierarchy tree
+    # Apply k-anonymity by grouping and generalization
+    for col in qi_list:
+        if col in df.columns:
+            # Simple generalization: round numeric values
+            if pd.api.types.is_numeric_dtype(df[col]):
+                df[col] = (df[col] // k) * k
+
+    # After anonymization, convert timestamp_seconds back to human readable form
+    if 'timestamp_seconds' in df.columns:
+        # Convert to datetime
+        df['datetime'] = pd.to_datetime(df['timestamp_seconds'], unit='s')
+
+        # Create a readable format
+        df['time'] = df['datetime'].dt.strftime('%Y-%m-%d %H:%M:%S')
+
+    # the identifiers were transformed when read; suppressed ones are written as a constant
+    return id_transform.restore_suppressed(df, schema)
+
+
+def anonymize_execute(k_value, dataset="standard", l_value=0, diversity_mode="distinct",
+                      cut_estimation="exact", sample_size=10000, storage="memory", memory_budget_mb=64,
+                      split_mode=SPLIT_MEDIAN, generalization=GENERALIZATION_LOCAL):
+    """
+    :param k_value: the k value for k-anonymity, any value from 2 up to the number of records
+    :param dataset: a dataset ID of the registry (input/datasets.json), or its input file name
+    :param l_value: if > 1, also enforce l-diversity of the sensitive column
+    :param diversity_mode: 'distinct' or 'entropy' l-diversity
+    :param cut_estimation: 'exact' (median of every partition) or 'sampled' (cut points estimated from a sample)
+    :param sample_size: the sample size of the 'sampled' cut estimation
+    :param storage: 'memory' (the whole data set is loaded) or 'external' (runs spilled to app-private files)
+    :param memory_budget_mb: the memory budget of the 'external' storage
+    :param split_mode: 'median' (cut at the median leaf_id) or 'hierarchy' (cut categorical quasi-identifiers
+                       along their hierarchy)
+    :param generalization: 'local' (Mondrian partitions, the default) or 'full-domain' (one hierarchy level per
+                           quasi-identifier, found by a lattice search, see full_domain.py)
+    """
+    global last_metrics
+    last_metrics = None
+    trace.clear_last_profile()
     tic = time.time()  # time count starts
     # dir/file path  #############################################################################
     current_dir = os.path.dirname(__file__)  # /data/data/com.example.pythoncalculation/files/chaquopy/AssetFinder/app/algorithm
     parent_dir = os.path.dirname(current_dir)  # /data/data/com.example.pythoncalculation/files/chaquopy/AssetFinder/app
-    input_dir = os.path.join(parent_dir, "input/") # /data/data/com.example.pythoncalculation/files/chaquopy/AssetFinder/app/input
     output_dir = os.path.join(parent_dir, "output/anonymized/") # /data/data/com.example.pythoncalculation/files/chaquopy/AssetFinder/app/output/anonymized
     # defining input #############################################################################
-    input_path = os.path.join(input_dir, input_filename) # /data/data/com.example.pythoncalculation/files/chaquopy/AssetFinder/app/input/dataset.csv
-    hierarchy_file_path = os.path.join(current_dir, "hierarchy/")  # /data/data/com.example.pythoncalculation/files/chaquopy/AssetFinder/app/algorithm/hierarchy
-    
-    # Set quasi-identifiers and identifiers based on the input file
-    if input_filename == "wearable_input_raw.csv":
-        # Wearable dataset structure - these are the columns we want to anonymize
-        qi_list = ['timestamp', 'acc_x', 'acc_y', 'acc_z', 'stress_level']
-        identifiers = ['patient_id']
-        # Semicolon delimiter
-        delimiter = ';'
-    else:
-        # Default fallback for unknown files
-        qi_list = ['sex', 'age', 'race', 'marital-status', 'education', 'native-country', 'workclass', 'occupation']
-        identifiers = ['ID', 'soc_sec_id', 'given_name', 'surname']
-        delimiter = ','
-    
-    k = k_value
+    try:
+        schema = registry.get_dataset(dataset)
+    except KeyError as e:
+        print(f"Error: {e}")
+        return f"Error: {e}"
+    input_filename = schema.file_name
+
+    k = int(k_value)
     # log ########################################################################################
-    print(f"Running anonymization on {input_filename}")
-    print(f"Using delimiter: {delimiter}")
-    print(f"Quasi-identifiers: {qi_list}")
-    print(f"Identifiers: {identifiers}")
+    print(f"Running anonymization on {schema.dataset_id} ({schema.path})")
+    print(f"Using delimiter: {schema.delimiter}")
+    print(f"Quasi-identifiers: {schema.qi_list}")
+    print(f"Identifiers: {schema.identifiers}")
     print(f"run_anonymize executing with K = {k}")
-    
+    l = int(l_value or 0)
+    if l > 1:
+        print(f"l-diversity: L = {l} ({diversity_mode}) on {schema.sensitive}")
+    sample_size = int(sample_size) if cut_estimation == 'sampled' else 0
+    if sample_size:
+        print(f"Cut points estimated from a sample of {sample_size} rows")
+    split_mode = str(split_mode)
+    if split_mode == SPLIT_HIERARCHY:
+        print("Categorical quasi-identifiers are cut along their hierarchy")
+    generalization = str(generalization)
+    if generalization == GENERALIZATION_FULL_DOMAIN:
+        print("Full-domain generalization: one hierarchy level per quasi-identifier")
+
     # anonymize_execute function call  ###########################################################
     try:
         # Check if the file exists
-        if not os.path.exists(input_path):
-            print(f"Error: Input file not found at {input_path}")
+        if not os.path.exists(schema.path):
+            print(f"Error: Input file not found at {schema.path}")
             return f"Error: Input file not found: {input_filename}"
-            
-        # Handle wearable data format
-        if input_filename == "wearable_input_raw.csv":
+
+        if schema.engine == 'rounding':
             try:
-                # Read with semicolon delimiter
-                df = pd.read_csv(input_path, sep=delimiter)
-                
-                # Handle timestamp conversion for better readability
-                if 'timestamp' in df.columns:
-                    # Replace comma with period in scientific notation
-                    df['timestamp'] = df['timestamp'].astype(str).str.replace(',', '.')
-                    
-                    # Convert to float, then to integer
-                    df['timestamp'] = df['timestamp'].astype(float).astype('int64')
-                    
-                    # Determine if timestamp is in seconds or milliseconds
-                    # If timestamps are very large (> 10^12), they're likely in milliseconds
-                    if df['timestamp'].iloc[0] > 10**12:
-                        # Convert milliseconds to seconds for anonymization
-                        df['timestamp_seconds'] = df['timestamp'] / 1000
-                    else:
-                        df['timestamp_seconds'] = df['timestamp']
-                    
-                    # Add timestamp as a quasi-identifier for anonymization
-                    if 'timestamp_seconds' not in qi_list and 'timestamp_seconds' in df.columns:
-                        qi_list.append('timestamp_seconds')
-                
-                # Perform simple anonymization without hierarchy tree
-                # Apply k-anonymity by grouping and generalization
-                for col in qi_list:
-                    if col in df.columns:
-                        # Simple generalization: round numeric values
-                        if pd.api.types.is_numeric_dtype(df[col]):
-                            df[col] = (df[col] // k) * k
-                
-                # After anonymization, convert timestamp_seconds back to human readable form
-                if 'timestamp_seconds' in df.columns:
-                    # Convert to datetime
-                    df['datetime'] = pd.to_datetime(df['timestamp_seconds'], unit='s')
-                    
-                    # Create a readable format
-                    df['time'] = df['datetime'].dt.strftime('%Y-%m-%d %H:%M:%S')
-                
-                # Apply simple masking to identifiers
-                for identifier in identifiers:
-                    if identifier in df.columns:
-                        df[identifier] = "****"
-                
+                df = anonymize_wearable(id_transform.read_csv(schema), schema, k)
+
                 # Return a preview
                 df_columns = [col for col in ['time', 'acc_x', 'acc_y', 'acc_z', 'stress_level', 'patient_id'] if col in df.columns]
                 if not df_columns:
                     df_columns = df.columns[:6]  # First 6 columns if specific columns not found
-                    
+
                 df_short = df[df_columns].iloc[:40]
                 print("Anonymized wearable data preview:")
                 print(df_short)
-                
+
                 # Save to output
                 os.makedirs(output_dir, exist_ok=True)  # Create output directory if it doesn't exist
-                output_file_path = os.path.join(output_dir, f'k_{k}_anonymized_{input_filename}')
-                df.to_csv(output_file_path, index=False, sep=delimiter)
+                output_file_path = os.path.join(output_dir, output_file_name(input_filename, k))
+                df.to_csv(output_file_path, index=False, sep=schema.delimiter)
                 print(f"Anonymized data saved to: {output_file_path}")
-                
+
                 # Log execution time
                 toc = time.time()
                 execution_time = toc - tic
                 print(f"Execution time: {execution_time:.2f} seconds")
-                
+
                 return df_short
             except Exception as e:
                 print(f"Error processing wearable data: {str(e)}")
                 return f"Error processing wearable data: {str(e)}"
-                
+
+        if storage == 'external':
+            # imported here because external_mondrian imports this module
+            import algorithm.external_mondrian as external_mondrian
+            if l > 1 or sample_size or split_mode != SPLIT_MEDIAN or generalization != GENERALIZATION_LOCAL:
+                return ("Error: external storage supports neither l-diversity, sampled cut estimation, hierarchy cuts "
+                        "nor full-domain generalization")
+            os.makedirs(output_dir, exist_ok=True)
+            output_file_path = os.path.join(output_dir, output_file_name(input_filename, k))
+            metrics = InfoLossMetrics(schema.qi_list, registry.get_hierarchy_trees(schema), k, schema.numeric_strategy)
+            report = external_mondrian.run_external(schema, k, output_file_path, int(memory_budget_mb), metrics)
+            last_metrics = metrics
+            print(f"Anonymized data saved to: {output_file_path}")
+            print(f"External storage: {report['rows']} rows, {report['splits']} streaming splits, "
+                  f"{report['rows_per_second']:.0f} rows/s, peak RSS = {report['peak_rss_mb']:.1f} MB")
+            df_short = dataset_store.preview(schema.dataset_id, k)
+            if df_short is None:
+                first, last = schema.preview_rows
+                df_short = pd.read_csv(output_file_path, sep=schema.delimiter, skiprows=range(1, first + 1),
+                                       nrows=last - first)
+                available_columns = [col for col in schema.preview_columns if col in df_short.columns]
+                df_short = df_short[available_columns] if available_columns else df_short.iloc[:, :6]
+            return df_short
+
+        if not sample_size and split_mode == SPLIT_MEDIAN and generalization == GENERALIZATION_LOCAL:
+            # exact median cuts: the output is streamed and checkpointed, an interrupted run resumes
+            import algorithm.checkpoint as checkpoint
+            os.makedirs(output_dir, exist_ok=True)
+            output_file_path = os.path.join(output_dir, output_file_name(input_filename, k, l, str(diversity_mode)))
+            run_anonymize_to_file(schema, output_file_path, k=k, l=l, diversity_mode=str(diversity_mode),
+                                  checkpoint_path=checkpoint.checkpoint_path(schema, k, l, str(diversity_mode)))
+            print(f"Anonymized data saved to: {output_file_path}")
+            print(f"Execution time: {time.time() - tic:.2f} seconds")
+            # a range query on the stored results instead of parsing the output file up to the preview rows
+            df_short = dataset_store.preview(schema.dataset_id, k, l, str(diversity_mode))
+            if df_short is None:
+                first, last = schema.preview_rows
+                df_short = pd.read_csv(output_file_path, sep=schema.delimiter, skiprows=range(1, first + 1),
+                                       nrows=last - first)
+                available_columns = [col for col in schema.preview_columns if col in df_short.columns]
+                df_short = df_short[available_columns] if available_columns else df_short.iloc[:, :6]
+            print(df_short)
+            return df_short
+
         # Regular dataset processing with hierarchy trees
-        data_frame = run_anonymize(qi_list, identifiers, input_path, hierarchy_file_path, k=k)
+        data_frame = run_anonymize(schema, k=k, l=l, diversity_mode=str(diversity_mode), sample_size=sample_size,
+                                   split_mode=split_mode, generalization=generalization)
         # output ####################################################################################
         os.makedirs(output_dir, exist_ok=True) # Create the directory if it doesn't exist
-        # specifying the csv file name with k-value
-        output_file_path = os.path.join(output_dir, f'k_{k}_anonymized_{input_filename}')
+        # specifying the csv file name with k-value and the other options
+        output_file_path = os.path.join(output_dir, output_file_name(input_filename, k, l, str(diversity_mode),
+                                                                     sample_size, split_mode, generalization))
         # saving the anonymized data to a new file in the same directory
         try:
-            data_frame.to_csv(output_file_path, index=False)
+            data_frame.to_csv(output_file_path, index=False, sep=schema.delimiter)
             print(f"Anonymized data saved to: {output_file_path}")
         except Exception as e:
             print(f"Error saving file: {str(e)}")
-        
+        dataset_store.store_results(schema, k, l, str(diversity_mode), data_frame,
+                                    last_metrics.summary() if last_metrics else "",
+                                    cut_estimation='sampled' if sample_size else 'exact', split_mode=split_mode,
+                                    generalization=generalization)
+
         # log 2 ######################################################################################
         toc = time.time() # time count stops here
         execution_time = toc - tic
         print(f"Execution time: {execution_time:.2f} seconds")
-        
+
         # result #####################################################################################
-        # For standard dataset, use standard columns
-        if input_filename == "dataset.csv":
-            result_columns = ['age', 'race', 'marital-status', 'education', 'native-country', 'soc_sec_id']
-            available_columns = [col for col in result_columns if col in data_frame.columns]
-            if available_columns:
-                df_short = data_frame[available_columns].iloc[850:890]
-            else:
-                df_short = data_frame.iloc[850:890, :6]  # First 6 columns
+        first, last = schema.preview_rows
+        available_columns = [col for col in schema.preview_columns if col in data_frame.columns]
+        if available_columns:
+            df_short = data_frame[available_columns].iloc[first:last]
         else:
-            # For other datasets, select appropriate columns or first few columns
-            try:
-                result_columns = qi_list[:5]
-                df_short = data_frame[result_columns].iloc[:40]
-            except:
-                # Fallback to first 6 columns
-                df_short = data_frame.iloc[:40, :6]
-                
+            df_short = data_frame.iloc[first:last, :6]  # First 6 columns
+
         print(df_short)
         return df_short
     except Exception as e:
         error_msg = f"Error in anonymization process: {str(e)}"
         print(error_msg)
-        return error_msg
\ No newline at end of file
+        return error_msg
+
+
+def sweep_execute(k_values, dataset="standard"):
+    """
+    information-loss metrics of a data set for every k in k_values
+    :return: one summary line per k value
+    """
+    results = sweep_k([int(k) for k in k_values], registry.get_dataset(dataset))
+    return "\n".join(
+        f"K = {d['k']}: NCP = {d['ncp']:.4f}, DM = {d['discernibility']}, avg class size = {d['avg_class_size']:.2f}"
+        for d in results)
+
+
+def list_datasets():
+    """
+    :return: the registered dataset IDs, comma-separated
+    """
+    return ",".join(registry.dataset_ids())
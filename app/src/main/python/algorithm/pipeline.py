@@ -0,0 +1,194 @@
+# Anonymization split into three stages, so that the Java job pipeline can overlap them across jobs:
+#   read_job       read the input, transform the identifiers and encode the quasi-identifiers
+#   partition_job  run Mondrian (or the full-domain lattice search) on the encoded columns and collect the
+#                  information loss
+#   write_job      map the ranges back to text, verify k-anonymity (and l-diversity) and write the output file
+#   run_external_job  jobs with external storage bound their own memory and run as a whole in the partition stage
+#   input_shape    the size of an input without reading it, for the memory estimate of the Java admission controller
+# Each stage takes the Job returned by read_job. The heavy parts (CSV parsing, numpy sorts) run in C,
+# so a stage of one job can progress while another job is in a different stage.
+import csv
+import os
+import time
+
+import algorithm.dataset_store as dataset_store
+import algorithm.dataset_registry as registry
+import algorithm.full_domain as full_domain
+import algorithm.identifier_transform as id_transform
+import algorithm.mondrian as mondrian
+import algorithm.snapshot as snapshot
+
+# bytes read from the start of an input to extrapolate its number of rows
+SHAPE_SAMPLE_BYTES = 1 << 16
+
+
+class Job:
+    """
+    state of one job while it moves through the stages; each stage fills what the next one needs
+    """
+    def __init__(self, schema, k, l=0, diversity_mode="distinct", sample_size=0, split_mode=mondrian.SPLIT_MEDIAN,
+                 generalization=mondrian.GENERALIZATION_LOCAL):
+        self.schema = schema
+        self.k = k
+        self.l = l
+        self.diversity_mode = diversity_mode
+        self.sample_size = sample_size
+        self.split_mode = split_mode
+        self.generalization = generalization
+        self.df = None
+        self.codes = None
+        self.hierarchy_tree_dict = None
+        self.diversity = None
+        self.metrics = None
+        self.perm = None
+        self.low = None
+        self.high = None
+        self.output_path = None
+        self.stage_seconds = {}
+
+
+def output_dir():
+    """
+    directory of the anonymized files, shared with anonymize_execute
+    """
+    current_dir = os.path.dirname(__file__)
+    return os.path.join(os.path.dirname(current_dir), "output/anonymized/")
+
+
+def read_job(dataset, k_value, l_value=0, diversity_mode="distinct", sample_size=0, split_mode=mondrian.SPLIT_MEDIAN,
+             generalization=mondrian.GENERALIZATION_LOCAL):
+    """
+    stage 1: read and encode a registered data set
+    :param dataset: the dataset ID (or input file name) in the registry
+    :param k_value: the k value for k-anonymity
+    :param l_value: l for l-diversity on the first sensitive column, 0 to disable
+    :param diversity_mode: 'distinct' or 'entropy'
+    :param sample_size: > 0 to estimate the cut points on a sample of this size
+    :param split_mode: 'median' or 'hierarchy' cuts, see mondrian.mondrian()
+    :param generalization: 'local' (Mondrian) or 'full-domain', see full_domain.py
+    :return: Job holding the encoded quasi-identifiers
+    """
+    tic = time.time()
+    schema = registry.get_dataset(dataset)
+    if schema.engine != 'mondrian':
+        raise ValueError(f"Dataset '{schema.dataset_id}' uses engine '{schema.engine}', batches need 'mondrian'")
+    job = Job(schema, int(k_value), int(l_value or 0), str(diversity_mode), int(sample_size or 0), str(split_mode),
+              str(generalization))
+    mondrian.check_generalization(job.generalization, job.l, job.sample_size, job.split_mode)
+    job.df, job.codes, job.hierarchy_tree_dict = mondrian.read_encoded(schema)
+    if job.k > len(job.df):
+        raise ValueError(f"K = {job.k} is larger than the number of records ({len(job.df)})")
+    if job.l > 1:
+        if not schema.sensitive:
+            raise ValueError(f"Dataset '{schema.dataset_id}' has no sensitive column for l-diversity")
+        job.diversity = mondrian.DiversityConstraint(mondrian.encode_sensitive(job.df, schema.sensitive[0]),
+                                                     job.l, job.diversity_mode)
+    job.stage_seconds['read'] = time.time() - tic
+    return job
+
+
+def partition_job(job):
+    """
+    stage 2: partition the encoded quasi-identifiers; the codes are released afterwards
+    :return: the same Job, holding perm, low and high
+    """
+    tic = time.time()
+    job.metrics = mondrian.InfoLossMetrics(job.schema.qi_list, job.hierarchy_tree_dict, job.k,
+                                           job.schema.numeric_strategy)
+    if job.generalization == mondrian.GENERALIZATION_FULL_DOMAIN:
+        job.perm, job.low, job.high = full_domain.full_domain(job.codes, job.schema.qi_list, job.k,
+                                                              job.hierarchy_tree_dict, job.metrics)
+    else:
+        job.perm, job.low, job.high = mondrian.mondrian(job.codes, job.schema.qi_list, job.k, job.metrics,
+                                                        job.diversity, job.sample_size, split_mode=job.split_mode,
+                                                        hierarchy_tree_dict=job.hierarchy_tree_dict,
+                                                        numeric_columns=job.schema.numeric_columns)
+    job.codes = None
+    job.stage_seconds['partition'] = time.time() - tic
+    return job
+
+
+def write_job(job):
+    """
+    stage 3: generalize, verify and write the output file and the results table of the dataset store
+    :return: the information-loss summary of the job
+    """
+    tic = time.time()
+    schema = job.schema
+    df = job.df.iloc[job.perm].reset_index(drop=True)
+    df = mondrian.map_num_to_text(df, schema.qi_list, job.hierarchy_tree_dict, job.low, job.high,
+                                  schema.numeric_strategy)
+    if not mondrian.check_k_anonymity(df, schema.qi_list, job.k):
+        raise Exception("Not all partitions are k-anonymous")
+    if job.diversity is not None and not mondrian.check_l_diversity(df, schema.qi_list, schema.sensitive[0], job.l,
+                                                                    job.diversity_mode):
+        raise Exception(f"Not all partitions are {job.l}-diverse")
+    df = id_transform.restore_suppressed(df, schema)
+    os.makedirs(output_dir(), exist_ok=True)
+    job.output_path = os.path.join(output_dir(), mondrian.output_file_name(
+        schema.file_name, job.k, job.l, job.diversity_mode, job.sample_size, job.split_mode, job.generalization))
+    df.to_csv(job.output_path, index=False, sep=schema.delimiter)
+    dataset_store.store_results(schema, job.k, job.l, job.diversity_mode, df, job.metrics.summary(),
+                                cut_estimation='sampled' if job.sample_size else 'exact', split_mode=job.split_mode,
+                                generalization=job.generalization)
+    # release the frames, the Job object may be kept by the Java side until the batch ends
+    job.df = job.perm = job.low = job.high = None
+    job.stage_seconds['write'] = time.time() - tic
+    return job.metrics.summary()
+
+
+def run_external_job(dataset, k_value, memory_budget_mb=64, l_value=0, cut_estimation="exact",
+                     split_mode=mondrian.SPLIT_MEDIAN, generalization=mondrian.GENERALIZATION_LOCAL):
+    """
+    anonymize a registered data set with external storage, all stages at once
+    :param l_value: must be 0 or 1, external storage does not support l-diversity
+    :param cut_estimation: must be 'exact', external storage does not support sampled cut estimation
+    :param split_mode: must be 'median', external storage does not support hierarchy cuts
+    :param generalization: must be 'local', external storage runs Mondrian
+    :return: the information-loss summary of the job
+    """
+    if (int(l_value or 0) > 1 or cut_estimation != 'exact' or split_mode != mondrian.SPLIT_MEDIAN
+            or generalization != mondrian.GENERALIZATION_LOCAL):
+        raise ValueError("external storage supports neither l-diversity, sampled cut estimation, hierarchy cuts "
+                         "nor full-domain generalization")
+    # imported here because external_mondrian imports mondrian, like in anonymize_execute
+    import algorithm.external_mondrian as external_mondrian
+    schema = registry.get_dataset(dataset)
+    k = int(k_value)
+    metrics = mondrian.InfoLossMetrics(schema.qi_list, registry.get_hierarchy_trees(schema), k, schema.numeric_strategy)
+    os.makedirs(output_dir(), exist_ok=True)
+    output_path = os.path.join(output_dir(), mondrian.output_file_name(schema.file_name, k))
+    external_mondrian.run_external(schema, k, output_path, int(memory_budget_mb), metrics)
+    return metrics.summary()
+
+
+def estimate_rows(path):
+    """
+    the number of data rows of a CSV file, exact for a file up to SHAPE_SAMPLE_BYTES, else extrapolated from the
+    mean line length of its first SHAPE_SAMPLE_BYTES
+    """
+    size = os.path.getsize(path)
+    with open(path, 'rb') as f:
+        sample = f.read(SHAPE_SAMPLE_BYTES)
+    lines = sample.count(b'\n')
+    if len(sample) == size:
+        if sample and not sample.endswith(b'\n'):
+            lines += 1
+        return max(0, lines - 1)
+    return max(1, size * lines // len(sample) - 1)
+
+
+def input_shape(dataset):
+    """
+    the shape of a registered data set's input, read from its snapshot metadata and its first bytes only
+    :param dataset: the dataset ID (or input file name) in the registry
+    :return: (rows, columns read, quasi-identifiers, True if a fresh snapshot replaces the read, engine)
+    """
+    schema = registry.get_dataset(dataset)
+    with open(schema.path, newline='', encoding='utf-8') as f:
+        header = next(csv.reader(f, delimiter=schema.delimiter), [])
+    columns = len(header) - len(set(id_transform.suppressed_columns(schema)) & set(header))
+    rows = snapshot.fresh_rows(schema) if schema.engine == 'mondrian' else None
+    if rows is not None:
+        return rows, columns, len(schema.qi_list), True, schema.engine
+    return estimate_rows(schema.path), columns, len(schema.qi_list), False, schema.engine
@@ -0,0 +1,246 @@
+# Pre-encoded snapshots of the input data sets
+#
+# Reading the CSV, transforming the identifiers and encoding the quasi-identifiers costs more than partitioning
+# on an input that rarely changes. A snapshot keeps the result of mondrian.encode_input() once per version of the
+# input, in ~/snapshots/<dataset_id>/ (the app-private files directory under Chaquopy):
+# - codes-<generation>.npy: the int32 leaf_id matrix, one row per quasi-identifier, loaded memory-mapped
+# - columns-<generation>.pkl: the other columns, with the identifiers already transformed
+# - meta.json: the fingerprint of the inputs, the column layout and the current generation
+# A snapshot is fresh while the size and mtime of the input file and the mtimes of its hierarchy files match the
+# fingerprint, and the quasi-identifiers and identifier transforms are unchanged. An input with a new mtime but
+# the same content hash (copied to the device again) only gets its fingerprint updated.
+# Every build writes a new generation and replaces meta.json last, so a reader sees either the old or the new
+# snapshot; old generations are removed afterwards and stay readable through the memory maps still open on them.
+#
+# Snapshots are built in the background: refresh_all() after the engine is loaded, refresh() on an MQTT
+# "dataset updated" message, and store_async() after a command had to read a stale input itself.
+import hashlib
+import json
+import os
+import re
+import threading
+from concurrent.futures import ThreadPoolExecutor
+
+import numpy as np
+import pandas as pd
+
+import algorithm.dataset_registry as registry
+
+FORMAT_VERSION = 1
+META_FILE = "meta.json"
+HASH_CHUNK = 1 << 20
+_GENERATION_FILE = re.compile(r"^(codes|columns)-(\d+)\.(npy|pkl)$")
+
+# dataset_id -> RLock, one build of a data set at a time
+_locks = {}
+_locks_guard = threading.Lock()
+_builder = None
+
+
+def snapshot_dir(dataset_id):
+    return os.path.join(os.path.expanduser("~"), "snapshots", dataset_id.lower())
+
+
+def _lock(dataset_id):
+    with _locks_guard:
+        return _locks.setdefault(dataset_id.lower(), threading.RLock())
+
+
+def content_hash(path):
+    """
+    :return: the hex BLAKE2b digest of a file, read in chunks
+    """
+    digest = hashlib.blake2b(digest_size=16)
+    with open(path, 'rb') as f:
+        for chunk in iter(lambda: f.read(HASH_CHUNK), b''):
+            digest.update(chunk)
+    return digest.hexdigest()
+
+
+def input_stat(schema):
+    """
+    the part of the fingerprint that is checked on every command: one stat() per file
+    """
+    st = os.stat(schema.path)
+    hierarchies = {column: os.stat(path).st_mtime_ns if os.path.exists(path) else 0
+                   for column, path in sorted(schema.hierarchy_files.items())}
+    return {'size': st.st_size, 'mtime_ns': st.st_mtime_ns, 'hierarchies': hierarchies}
+
+
+def _layout(schema):
+    return {'version': FORMAT_VERSION, 'path': schema.path, 'qi_list': list(schema.qi_list),
+            'transforms': dict(sorted(schema.identifier_transforms.items()))}
+
+
+def _read_meta(dataset_id):
+    try:
+        with open(os.path.join(snapshot_dir(dataset_id), META_FILE), encoding='utf-8') as f:
+            return json.load(f)
+    except (OSError, ValueError):
+        return None
+
+
+def _write_meta(dataset_id, meta):
+    path = os.path.join(snapshot_dir(dataset_id), META_FILE)
+    with open(path + ".tmp", 'w', encoding='utf-8') as f:
+        json.dump(meta, f)
+    os.replace(path + ".tmp", path)
+
+
+def is_fresh(schema, meta):
+    """
+    :param meta: the snapshot metadata, or None
+    :return: True if the snapshot was built from the current input, hierarchies and layout
+    """
+    if meta is None or meta.get('layout') != _layout(schema):
+        return False
+    stat = input_stat(schema)
+    if meta['stat'] == stat:
+        return True
+    old = meta['stat']
+    if old['hierarchies'] != stat['hierarchies'] or old['size'] != stat['size']:
+        return False
+    # same size, new mtime: a file copied again with the same content keeps its snapshot
+    if meta.get('hash') != content_hash(schema.path):
+        return False
+    with _lock(schema.dataset_id):
+        meta['stat'] = stat
+        _write_meta(schema.dataset_id, meta)
+    return True
+
+
+def fresh_rows(schema):
+    """
+    :param schema: the DatasetSchema from the registry
+    :return: the number of rows of a fresh snapshot, or None if there is none
+    """
+    meta = _read_meta(schema.dataset_id)
+    return meta['rows'] if is_fresh(schema, meta) else None
+
+
+def load(schema):
+    """
+    the encoded input of a fresh snapshot
+    :param schema: the DatasetSchema from the registry
+    :return: (df, codes) as mondrian.encode_input() returns them, with codes memory-mapped read-only,
+             or None if there is no fresh snapshot
+    """
+    meta = _read_meta(schema.dataset_id)
+    if not is_fresh(schema, meta):
+        return None
+    directory = snapshot_dir(schema.dataset_id)
+    generation = meta['generation']
+    try:
+        codes = np.load(os.path.join(directory, f"codes-{generation}.npy"), mmap_mode='r')
+        df = pd.read_pickle(os.path.join(directory, f"columns-{generation}.pkl"))
+    except (OSError, ValueError):  # replaced by a newer generation in the meantime
+        return None
+    if codes.shape != (len(schema.qi_list), len(df)):
+        return None
+    # the quasi-identifier columns are only written by mondrian.map_num_to_text(): keep their positions with
+    # single-category placeholders of one byte per row
+    placeholder = pd.Categorical.from_codes(np.zeros(len(df), dtype=np.int8), [''])
+    for position, name in enumerate(meta['columns']):
+        if name not in df.columns:
+            df.insert(position, name, placeholder)
+    return df, codes
+
+
+def store(schema, stat, columns, rest, codes, digest=None):
+    """
+    write a new generation of the snapshot of a data set
+    :param schema: the DatasetSchema from the registry
+    :param stat: input_stat() taken before the input was read
+    :param columns: the column order of the data frame of mondrian.encode_input()
+    :param rest: that data frame without the quasi-identifier columns
+    :param codes: the encoded quasi-identifiers of mondrian.encode_input()
+    :param digest: content_hash() of the input, computed here if None
+    :return: True if written, False if the input changed while it was encoded
+    """
+    dataset_id = schema.dataset_id
+    with _lock(dataset_id):
+        if digest is None:
+            digest = content_hash(schema.path)
+        if input_stat(schema) != stat:
+            return False
+        directory = snapshot_dir(dataset_id)
+        os.makedirs(directory, exist_ok=True)
+        old = _read_meta(dataset_id)
+        generation = old['generation'] + 1 if old else 1
+        np.save(os.path.join(directory, f"codes-{generation}.npy"), np.ascontiguousarray(codes, dtype=np.int32))
+        rest.to_pickle(os.path.join(directory, f"columns-{generation}.pkl"))
+        _write_meta(dataset_id, {'layout': _layout(schema), 'stat': stat, 'hash': digest, 'columns': list(columns),
+                                 'rows': len(rest), 'generation': generation})
+        for name in os.listdir(directory):
+            match = _GENERATION_FILE.match(name)
+            if match and int(match.group(2)) != generation:
+                os.remove(os.path.join(directory, name))
+    print(f"Snapshot of '{dataset_id}' written: {len(rest)} rows, generation {generation}")
+    return True
+
+
+def store_async(schema, stat, df, codes):
+    """
+    store() on the background builder thread, for a command that has just encoded a stale input.
+    The non-quasi-identifier columns are copied first, so the caller may go on with df.
+    :return: the Future of store()
+    """
+    global _builder
+    rest = df.drop(columns=schema.qi_list)
+    columns = list(df.columns)
+    if _builder is None:
+        _builder = ThreadPoolExecutor(max_workers=1, thread_name_prefix="snapshot")
+
+    def build():
+        try:
+            return store(schema, stat, columns, rest, codes)
+        except Exception as e:
+            print(f"Error writing the snapshot of '{schema.dataset_id}': {e}")
+            return False
+
+    return _builder.submit(build)
+
+
+def refresh(dataset, force=False):
+    """
+    (re)build the snapshot of a data set if its input changed
+    :param dataset: the dataset ID (or input file name) in the registry
+    :param force: rebuild even if the snapshot looks fresh, e.g. on a "dataset updated" message
+    :return: True if a new snapshot was written
+    """
+    # imported here because mondrian imports this module
+    import algorithm.mondrian as mondrian
+    schema = registry.get_dataset(dataset)
+    if schema.engine != 'mondrian':
+        return False
+    with _lock(schema.dataset_id):
+        if not force and is_fresh(schema, _read_meta(schema.dataset_id)):
+            return False
+        stat = input_stat(schema)
+        digest = content_hash(schema.path)
+        df, codes, _ = mondrian.encode_input(schema)
+        return store(schema, stat, list(df.columns), df.drop(columns=schema.qi_list), codes, digest)
+
+
+def refresh_all(force=False):
+    """
+    refresh() every registered Mondrian data set whose files exist, called on a background thread
+    :param force: rebuild the fresh snapshots too
+    :return: the number of snapshots written
+    """
+    written = 0
+    for dataset_id in snapshot_datasets():
+        try:
+            written += refresh(dataset_id, force)
+        except Exception as e:
+            print(f"Error refreshing the snapshot of '{dataset_id}': {e}")
+    return written
+
+
+def snapshot_datasets():
+    """
+    :return: the IDs of the Mondrian data sets with their input and hierarchy files present
+    """
+    return [dataset_id for dataset_id, schema in sorted(registry.load_registry().items())
+            if schema.engine == 'mondrian' and os.path.exists(schema.path)
+            and all(os.path.exists(path) for path in schema.hierarchy_files.values())]
@@ -0,0 +1,206 @@
+# Trace sections and partition profiles of the anonymization runs, instead of print() timing:
+#   section(name)        a named section around a stage (read, encode, rank, partition, generalize, ...). On the device
+#                        it is an android.os.Trace section, shown in a system trace (Perfetto) nested in the sections
+#                        of the Java side (com.example.pythoncalculation.trace.Tracer). Elsewhere, and while no trace
+#                        is recorded, it costs one check
+#   partition_tracer()   instruments one partitioning loop: a section per window of at least LEVEL_MIN_ROWS rows,
+#                        named after its recursion level, and in profiling mode a Profile
+#   Profile              the sizes of the finalized partitions and the time spent per recursion level of one run.
+#                        Enabled by set_profiling(True); it costs a clock read per window and no section
+# Whether a trace is recorded is asked once per loop, not once per window.
+import math
+import time
+from contextlib import contextmanager
+
+# smaller windows are not traced one by one: a section would cost more than their work
+LEVEL_MIN_ROWS = 4096
+# android.os.Trace rejects longer section names
+MAX_NAME_LENGTH = 127
+
+
+class NullBackend:
+    """
+    backend off the device: no section is ever recorded
+    """
+    def enabled(self):
+        return False
+
+    def begin(self, name):
+        pass
+
+    def end(self):
+        pass
+
+
+class AndroidBackend:
+    """
+    android.os.Trace through Chaquopy. Sections begin and end on the calling thread, which is the Java thread
+    that called into Python, so they nest in its Java sections
+    """
+    def __init__(self, trace_class):
+        self._trace = trace_class
+
+    def enabled(self):
+        return bool(self._trace.isEnabled())
+
+    def begin(self, name):
+        self._trace.beginSection(name[:MAX_NAME_LENGTH])
+
+    def end(self):
+        self._trace.endSection()
+
+
+def _default_backend():
+    try:
+        from java import jclass
+        return AndroidBackend(jclass("android.os.Trace"))
+    except Exception:  # not under Chaquopy on Android
+        return NullBackend()
+
+
+_backend = _default_backend()
+_profiling = False
+# Profile of the last partitioning loop run in profiling mode, read after the run like mondrian.last_metrics
+last_profile = None
+
+
+def set_backend(backend):
+    """
+    :param backend: an object with enabled(), begin(name) and end(), e.g. NullBackend()
+    """
+    global _backend
+    _backend = backend
+
+
+def set_profiling(enabled):
+    """
+    switch the profiling mode of the following runs on or off
+    :param enabled: True to collect a Profile per partitioning loop
+    """
+    global _profiling
+    _profiling = bool(enabled)
+
+
+def is_profiling():
+    return _profiling
+
+
+def clear_last_profile():
+    global last_profile
+    last_profile = None
+
+
+def get_last_profile_summary():
+    """
+    :return: the summary of the last Profile, or "" if the last run was not profiled
+    """
+    return last_profile.summary() if last_profile is not None else ""
+
+
+@contextmanager
+def section(name):
+    """
+    trace section around a block, if a trace is being recorded
+    :param name: the section name, e.g. "encode"
+    """
+    if not _backend.enabled():
+        yield
+        return
+    _backend.begin(name)
+    try:
+        yield
+    finally:
+        _backend.end()
+
+
+class Profile:
+    """
+    sizes of the finalized partitions and time per recursion level of one partitioning loop. The sizes are
+    reported in power-of-two buckets [2^b, 2^(b+1)), in the format of the Java PartitionProfile
+    """
+    def __init__(self, engine, rows):
+        self.engine = engine
+        self.rows = rows
+        self.level_windows = []
+        self.level_seconds = []
+        self.sizes = []
+
+    def add_window(self, depth, seconds):
+        while len(self.level_windows) <= depth:
+            self.level_windows.append(0)
+            self.level_seconds.append(0.0)
+        self.level_windows[depth] += 1
+        self.level_seconds[depth] += seconds
+
+    def add_partition(self, size):
+        self.sizes.append(size)
+
+    def size_buckets(self):
+        """
+        :return: {b: number of partitions with 2^b <= size < 2^(b+1)}
+        """
+        buckets = {}
+        for size in self.sizes:
+            bucket = size.bit_length() - 1
+            buckets[bucket] = buckets.get(bucket, 0) + 1
+        return buckets
+
+    def summary(self):
+        lines = [f"Profile ({self.engine}, {self.rows} rows): {len(self.sizes)} partitions"
+                 + (f", size min = {min(self.sizes)}, max = {max(self.sizes)}" if self.sizes else "")]
+        for bucket, count in sorted(self.size_buckets().items()):
+            lines.append(f"  sizes [{1 << bucket}, {1 << (bucket + 1)}): {count}")
+        for depth, (windows, seconds) in enumerate(zip(self.level_windows, self.level_seconds)):
+            if windows:
+                lines.append(f"  level {depth}: {windows} windows, {seconds * 1000:.2f} ms")
+        return "\n".join(lines)
+
+
+class PartitionTracer:
+    """
+    instrumentation of one partitioning loop; tracing and profiling are decided once at its start.
+    Callers guard every call with `if tracer.active:` so an uninstrumented loop pays one attribute read per window
+    """
+    def __init__(self, engine, rows):
+        self.rows = rows
+        self.tracing = _backend.enabled()
+        self.profile = Profile(engine, rows) if _profiling else None
+        self.active = self.tracing or self.profile is not None
+
+    def level_of(self, length):
+        """
+        :return: the recursion level of a window of length rows, for windows restored from a checkpoint
+        """
+        return max(0, int(round(math.log2(self.rows / length)))) if length else 0
+
+    def begin_window(self, depth, length):
+        """
+        :return: the start time of the window, for end_window()
+        """
+        if self.tracing and length >= LEVEL_MIN_ROWS:
+            _backend.begin(f"mondrian level {depth}: {length} rows")
+        return time.perf_counter() if self.profile is not None else 0.0
+
+    def end_window(self, depth, length, started):
+        if self.profile is not None:
+            self.profile.add_window(depth, time.perf_counter() - started)
+        if self.tracing and length >= LEVEL_MIN_ROWS:
+            _backend.end()
+
+    def partition(self, size):
+        if self.profile is not None:
+            self.profile.add_partition(size)
+
+    def finish(self):
+        global last_profile
+        if self.profile is not None:
+            last_profile = self.profile
+
+
+def partition_tracer(engine, rows):
+    """
+    :param engine: the name of the partitioning loop, e.g. "median" or "weighted"
+    :param rows: the rows of the run
+    :return: a PartitionTracer for one run of the loop
+    """
+    return PartitionTracer(engine, rows)
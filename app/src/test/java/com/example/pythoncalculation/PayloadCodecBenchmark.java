@@ -0,0 +1,130 @@
+package com.example.pythoncalculation;
+
+import com.example.pythoncalculation.codec.BinaryCodec;
+import com.example.pythoncalculation.codec.ColumnChunk;
+import com.google.gson.Gson;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the JSON and the binary MQTT payload encodings: bytes on the wire and decode latency.
+ * Runs on the host; the numbers are printed to standard output.
+ */
+public class PayloadCodecBenchmark {
+
+    private static final int WARMUP_ROUNDS = 20_000;
+    private static final int ROUNDS = 100_000;
+    private static final int BATCH_JOBS = 50;
+    private static final int CHUNK_ROWS = 10_000;
+    private static final int CHUNK_COLUMNS = 8;
+
+    private final Gson gson = new Gson();
+    private final BinaryCodec codec = new BinaryCodec();
+
+    private static AnonymizationCommand command(int index) {
+        AnonymizationCommand command = new AnonymizationCommand(5 + index, "standard");
+        command.setCommandId("cmd-" + index);
+        command.setLValue(2);
+        command.setDiversity("entropy");
+        command.setCutEstimation("sampled");
+        command.setSampleSize(10000);
+        command.setSplitMode("hierarchy");
+        return command;
+    }
+
+    @Test
+    public void commandRoundTrip() {
+        AnonymizationCommand original = command(7);
+        ByteBuffer encoded = codec.encodeCommand(original);
+        assertEquals(BinaryCodec.TYPE_COMMAND, codec.readType(encoded));
+        AnonymizationCommand decoded = codec.decodeCommand(encoded, new AnonymizationCommand());
+        assertEquals(original.toString(), decoded.toString());
+        assertFalse(encoded.hasRemaining());
+    }
+
+    @Test
+    public void batchRoundTrip() {
+        List<AnonymizationCommand> jobs = new ArrayList<>();
+        for (int i = 0; i < BATCH_JOBS; i++) {
+            jobs.add(command(i));
+        }
+        AnonymizationBatch original = new AnonymizationBatch("batch-1", jobs);
+        ByteBuffer encoded = codec.encodeBatch(original);
+        assertEquals(BinaryCodec.TYPE_BATCH, codec.readType(encoded));
+        assertEquals(original.toString(), codec.decodeBatch(encoded).toString());
+    }
+
+    @Test
+    public void columnsRoundTrip() {
+        String[] names = new String[CHUNK_COLUMNS];
+        int[] values = new int[CHUNK_COLUMNS * CHUNK_ROWS];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = "qi_" + i;
+        }
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (i * 31) % 97 + 1;
+        }
+        ByteBuffer encoded = codec.encodeColumns(names, values, CHUNK_ROWS);
+        assertEquals(BinaryCodec.TYPE_COLUMNS, codec.readType(encoded));
+        ColumnChunk chunk = codec.decodeColumns(encoded, new ColumnChunk());
+        assertEquals(CHUNK_COLUMNS, chunk.getColumnCount());
+        assertEquals("qi_3", chunk.getName(3));
+        assertEquals(values[5 * CHUNK_ROWS + 17], chunk.getValue(5, 17));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void truncatedPayloadIsRejected() {
+        ByteBuffer encoded = codec.encodeCommand(command(1));
+        ByteBuffer truncated = ByteBuffer.wrap(BinaryCodec.toArray(encoded), 0, 10);
+        codec.readType(truncated);
+        codec.decodeCommand(truncated, new AnonymizationCommand());
+    }
+
+    @Test
+    public void compareEncodings() {
+        AnonymizationCommand original = command(42);
+        byte[] json = gson.toJson(original).getBytes(StandardCharsets.UTF_8);
+        byte[] binary = BinaryCodec.toArray(codec.encodeCommand(original));
+
+        List<AnonymizationCommand> jobs = new ArrayList<>();
+        for (int i = 0; i < BATCH_JOBS; i++) {
+            jobs.add(command(i));
+        }
+        AnonymizationBatch batch = new AnonymizationBatch("batch-1", jobs);
+        int batchJson = gson.toJson(batch).getBytes(StandardCharsets.UTF_8).length;
+        int batchBinary = codec.encodeBatch(batch).remaining();
+
+        // Command decoding: JSON parses text into a new object, binary reads into a reused one
+        long jsonNanos = 0;
+        long binaryNanos = 0;
+        AnonymizationCommand target = new AnonymizationCommand();
+        ByteBuffer in = ByteBuffer.wrap(binary);
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+            long start = System.nanoTime();
+            AnonymizationCommand fromJson = gson.fromJson(new String(json, StandardCharsets.UTF_8), AnonymizationCommand.class);
+            long middle = System.nanoTime();
+            in.rewind();
+            codec.readType(in);
+            codec.decodeCommand(in, target);
+            long end = System.nanoTime();
+            if (round >= WARMUP_ROUNDS) {
+                jsonNanos += middle - start;
+                binaryNanos += end - middle;
+            }
+            assertEquals(fromJson.getKValue(), target.getKValue());
+        }
+
+        System.out.println("Command bytes:  JSON " + json.length + ", binary " + binary.length);
+        System.out.println("Batch of " + BATCH_JOBS + " bytes: JSON " + batchJson + ", binary " + batchBinary);
+        System.out.printf("Command decode: JSON %.0f ns, binary %.0f ns%n",
+                (double) jsonNanos / ROUNDS, (double) binaryNanos / ROUNDS);
+        assertTrue(binary.length < json.length);
+    }
+}
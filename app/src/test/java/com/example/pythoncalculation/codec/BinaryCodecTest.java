@@ -0,0 +1,235 @@
+package com.example.pythoncalculation.codec;
+
+import com.example.pythoncalculation.AnonymizationBatch;
+import com.example.pythoncalculation.AnonymizationCommand;
+import com.example.pythoncalculation.pipeline.JobProgress;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round-trips every message type of the binary encoding and checks that malformed payloads are rejected.
+ */
+public class BinaryCodecTest {
+
+    private static AnonymizationCommand command(String commandId, int kValue, String dataset) {
+        AnonymizationCommand command = new AnonymizationCommand(kValue, dataset);
+        command.setCommandId(commandId);
+        command.setLValue(3);
+        command.setDiversity("entropy");
+        command.setCutEstimation("sampled");
+        command.setSampleSize(20000);
+        command.setStorage("external");
+        command.setMemoryBudgetMb(128);
+        command.setSplitMode("hierarchy");
+        command.setGeneralization("full-domain");
+        return command;
+    }
+
+    private static void assertSameCommand(AnonymizationCommand expected, AnonymizationCommand actual) {
+        assertEquals(expected.getCommandId(), actual.getCommandId());
+        assertEquals(expected.getKValue(), actual.getKValue());
+        assertEquals(expected.getDataset(), actual.getDataset());
+        assertEquals(expected.getLValue(), actual.getLValue());
+        assertEquals(expected.getDiversity(), actual.getDiversity());
+        assertEquals(expected.getCutEstimation(), actual.getCutEstimation());
+        assertEquals(expected.getSampleSize(), actual.getSampleSize());
+        assertEquals(expected.getStorage(), actual.getStorage());
+        assertEquals(expected.getMemoryBudgetMb(), actual.getMemoryBudgetMb());
+        assertEquals(expected.getSplitMode(), actual.getSplitMode());
+        assertEquals(expected.getGeneralization(), actual.getGeneralization());
+    }
+
+    /**
+     * Reads a string as the encoding writes it. Progress and results are only decoded by subscribers.
+     */
+    private static String readString(ByteBuffer in) {
+        int length = in.getShort() & 0xFFFF;
+        if (length == 0xFFFF) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void commandRoundTrips() {
+        BinaryCodec codec = new BinaryCodec();
+        AnonymizationCommand command = command("c-1", 5, "adult");
+        ByteBuffer in = ByteBuffer.wrap(BinaryCodec.toArray(codec.encodeCommand(command)));
+        assertEquals(BinaryCodec.TYPE_COMMAND, codec.readType(in));
+        assertSameCommand(command, codec.decodeCommand(in, new AnonymizationCommand()));
+        assertFalse(in.hasRemaining());
+
+        // The defaults of the optional fields and a null ID survive as well
+        AnonymizationCommand plain = new AnonymizationCommand(2, "wearable");
+        in = ByteBuffer.wrap(BinaryCodec.toArray(codec.encodeCommand(plain)));
+        codec.readType(in);
+        AnonymizationCommand decoded = codec.decodeCommand(in, command("stale", 9, "stale"));
+        assertSameCommand(plain, decoded);
+        assertNull(decoded.getCommandId());
+    }
+
+    @Test
+    public void batchRoundTrips() {
+        BinaryCodec codec = new BinaryCodec();
+        AnonymizationBatch batch = new AnonymizationBatch("sweep-1",
+                Arrays.asList(command("j0", 2, "adult"), new AnonymizationCommand(10, "wearable")));
+        ByteBuffer in = ByteBuffer.wrap(BinaryCodec.toArray(codec.encodeBatch(batch)));
+        assertEquals(BinaryCodec.TYPE_BATCH, codec.readType(in));
+        AnonymizationBatch decoded = codec.decodeBatch(in);
+        assertEquals("sweep-1", decoded.getBatchId());
+        assertEquals(2, decoded.getJobs().size());
+        for (int i = 0; i < 2; i++) {
+            assertSameCommand(batch.getJobs().get(i), decoded.getJobs().get(i));
+        }
+    }
+
+    @Test
+    public void progressAndResultRoundTrip() {
+        BinaryCodec codec = new BinaryCodec();
+        JobProgress progress = new JobProgress("sweep-1", 3, "adult", 7, "anonymize", JobProgress.STATUS_FAILED, null);
+        ByteBuffer in = codec.encodeProgress(progress);
+        assertEquals(BinaryCodec.TYPE_PROGRESS, codec.readType(in));
+        assertEquals("sweep-1", readString(in));
+        assertEquals(3, in.getInt());
+        assertEquals("adult", readString(in));
+        assertEquals(7, in.getInt());
+        assertEquals("anonymize", readString(in));
+        assertEquals(JobProgress.STATUS_FAILED, readString(in));
+        assertNull(readString(in));
+        assertEquals(0, in.getInt());
+        assertEquals(0, in.getInt());
+        assertEquals(0, in.getInt());
+        assertEquals(0L, in.getLong());
+        assertEquals(0.0, in.getDouble(), 0.0);
+        assertFalse(in.hasRemaining());
+
+        String result = "NCP: 0.25\n\nAlter;Ort\n20-29;Z\u00fcrich \uD83C\uDFD4";
+        in = codec.encodeResult(command("c-2", 4, "adult"), "done", result);
+        assertEquals(BinaryCodec.TYPE_RESULT, codec.readType(in));
+        assertEquals("c-2", readString(in));
+        assertEquals(4, in.getInt());
+        assertEquals("adult", readString(in));
+        assertEquals("done", readString(in));
+        assertEquals(result, readString(in));
+        assertFalse(in.hasRemaining());
+    }
+
+    @Test
+    public void columnsRoundTripIntoAReusedChunk() {
+        BinaryCodec codec = new BinaryCodec();
+        ColumnChunk chunk = new ColumnChunk();
+        String[] names = {"age", "Geschlecht", "ort"};
+        int[] values = {1, 2, 3, 4, -5, 6, 7, 8, Integer.MAX_VALUE};
+        ByteBuffer in = ByteBuffer.wrap(BinaryCodec.toArray(codec.encodeColumns(names, values, 3)));
+        assertEquals(BinaryCodec.TYPE_COLUMNS, codec.readType(in));
+        codec.decodeColumns(in, chunk);
+        assertEquals(3, chunk.getColumnCount());
+        assertEquals(3, chunk.getRowCount());
+        assertEquals("Geschlecht", chunk.getName(1));
+        assertEquals(-5, chunk.getValue(1, 1));
+        assertEquals(Integer.MAX_VALUE, chunk.getValue(2, 2));
+
+        // A smaller chunk reuses the arrays; cached names are the same strings
+        int[] array = chunk.getValues();
+        String name = chunk.getName(0);
+        in = ByteBuffer.wrap(BinaryCodec.toArray(codec.encodeColumns(new String[]{"age"}, new int[]{42, 43}, 2)));
+        codec.readType(in);
+        codec.decodeColumns(in, chunk);
+        assertSame(array, chunk.getValues());
+        assertSame(name, chunk.getName(0));
+        assertEquals(43, chunk.getValue(0, 1));
+    }
+
+    @Test
+    public void nonAsciiAndNullStringsRoundTrip() {
+        BinaryCodec codec = new BinaryCodec();
+        // ASCII first, so the fast path has written bytes before it falls back to UTF-8
+        AnonymizationCommand command = command("abc-\u00e4-\u20ac-\uD834\uDD1E", 2, null);
+        ByteBuffer in = ByteBuffer.wrap(BinaryCodec.toArray(codec.encodeCommand(command)));
+        codec.readType(in);
+        AnonymizationCommand decoded = codec.decodeCommand(in, new AnonymizationCommand());
+        assertEquals("abc-\u00e4-\u20ac-\uD834\uDD1E", decoded.getCommandId());
+        assertNull(decoded.getDataset());
+    }
+
+    @Test
+    public void bufferGrowsForLargeMessages() {
+        BinaryCodec codec = new BinaryCodec();
+        // Larger than the initial buffer, ASCII and multi-byte
+        char[] chars = new char[20000];
+        Arrays.fill(chars, 'x');
+        String ascii = new String(chars);
+        Arrays.fill(chars, '\u00e9');
+        String accented = new String(chars);
+        ByteBuffer in = ByteBuffer.wrap(BinaryCodec.toArray(codec.encodeResult(command("c", 2, "adult"), "done", ascii)));
+        codec.readType(in);
+        readString(in);
+        in.getInt();
+        readString(in);
+        readString(in);
+        assertEquals(ascii, readString(in));
+
+        in = ByteBuffer.wrap(BinaryCodec.toArray(codec.encodeResult(command("c", 2, "adult"), "done", accented)));
+        codec.readType(in);
+        readString(in);
+        in.getInt();
+        readString(in);
+        readString(in);
+        assertEquals(accented, readString(in));
+
+        int[] values = new int[5000 * 2];
+        values[values.length - 1] = 99;
+        in = ByteBuffer.wrap(BinaryCodec.toArray(codec.encodeColumns(new String[]{"a", "b"}, values, 5000)));
+        codec.readType(in);
+        ColumnChunk chunk = codec.decodeColumns(in, new ColumnChunk());
+        assertEquals(99, chunk.getValue(1, 4999));
+
+        // The grown buffer still encodes small messages correctly
+        in = ByteBuffer.wrap(BinaryCodec.toArray(codec.encodeCommand(command("c-3", 3, "adult"))));
+        codec.readType(in);
+        assertEquals("c-3", codec.decodeCommand(in, new AnonymizationCommand()).getCommandId());
+        assertFalse(in.hasRemaining());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void olderVersionIsRejected() {
+        byte[] payload = BinaryCodec.toArray(new BinaryCodec().encodeCommand(command("c", 2, "adult")));
+        payload[1] = 2;
+        new BinaryCodec().readType(ByteBuffer.wrap(payload));
+    }
+
+    @Test
+    public void truncatedPayloadsAreRejected() {
+        BinaryCodec codec = new BinaryCodec();
+        byte[] command = BinaryCodec.toArray(codec.encodeCommand(command("c-1", 2, "adult")));
+        byte[] batch = BinaryCodec.toArray(codec.encodeBatch(new AnonymizationBatch("b",
+                Arrays.asList(command("j0", 2, "adult"), command("j1", 3, "adult")))));
+        byte[] columns = BinaryCodec.toArray(codec.encodeColumns(new String[]{"a"}, new int[]{1, 2, 3}, 3));
+        for (byte[] payload : Arrays.asList(command, batch, columns)) {
+            for (int length = 0; length < payload.length; length++) {
+                ByteBuffer in = ByteBuffer.wrap(Arrays.copyOf(payload, length));
+                try {
+                    int type = codec.readType(in);
+                    if (type == BinaryCodec.TYPE_COMMAND) {
+                        codec.decodeCommand(in, new AnonymizationCommand());
+                    } else if (type == BinaryCodec.TYPE_BATCH) {
+                        codec.decodeBatch(in);
+                    } else {
+                        codec.decodeColumns(in, new ColumnChunk());
+                    }
+                    fail("Accepted " + length + " of " + payload.length + " bytes");
+                } catch (IllegalArgumentException e) {
+                    // Expected
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.example.pythoncalculation.engine;
+
+import com.example.pythoncalculation.trace.PartitionProfile;
+import com.example.pythoncalculation.trace.Tracer;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the partitions of the Java Mondrian partitioner and its allocation profile.
+ * Runs on the host JVM, where the allocated bytes of a thread can be measured.
+ */
+public class MondrianPartitionerTest {
+
+    private static final int ROWS = 50_000;
+    private static final int QIS = 8;
+    private static final int WARMUP_RUNS = 30;
+    private static final int FEW_PARTITIONS_K = 500;
+    private static final int MEASUREMENT_BYTES = 256;
+
+    private static int[] randomCodes(int rows, int qis, long seed) {
+        Random random = new Random(seed);
+        int[] codes = new int[rows * qis];
+        for (int qi = 0; qi < qis; qi++) {
+            // Quasi-identifier i has 2 + 10 * i distinct leaf IDs, the last one is the split dimension
+            int leaves = 2 + 10 * qi;
+            for (int row = 0; row < rows; row++) {
+                codes[qi * rows + row] = 1 + random.nextInt(leaves);
+            }
+        }
+        return codes;
+    }
+
+    @Test
+    public void partitionsAreKAnonymousAndCoverTheirRows() {
+        int k = 7;
+        int[] codes = randomCodes(ROWS, QIS, 1);
+        MondrianPartitioner partitioner = new MondrianPartitioner(ROWS, QIS);
+        int partitions = partitioner.partition(codes, QIS, ROWS, k);
+        int[] perm = partitioner.getPerm();
+        int[] low = partitioner.getLow();
+        int[] high = partitioner.getHigh();
+
+        boolean[] seen = new boolean[ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            assertFalse("Row " + perm[i] + " appears twice", seen[perm[i]]);
+            seen[perm[i]] = true;
+            for (int qi = 0; qi < QIS; qi++) {
+                int code = codes[qi * ROWS + perm[i]];
+                assertTrue(low[qi * ROWS + i] <= code && code <= high[qi * ROWS + i]);
+            }
+        }
+
+        // Equivalence classes are runs of equal ranges in output order; adjacent partitions may share their ranges
+        int counted = 0;
+        int start = 0;
+        for (int i = 1; i <= ROWS; i++) {
+            if (i == ROWS || !sameRanges(low, high, start, i)) {
+                assertTrue("Class of " + (i - start) + " rows", i - start >= k);
+                counted++;
+                start = i;
+            }
+        }
+        // Median cuts stop below 2k rows
+        assertTrue(partitions > ROWS / (2 * k));
+        assertTrue(counted <= partitions);
+        assertEquals(partitions, partitioner.getPartitionCount());
+
+        // Partitions are finalized in output order and hold at least k rows each
+        int[] offsets = partitioner.getPartitionOffsets();
+        assertEquals(0, offsets[0]);
+        for (int p = 0; p < partitions; p++) {
+            int end = p + 1 < partitions ? offsets[p + 1] : ROWS;
+            assertTrue(end - offsets[p] >= k);
+        }
+    }
+
+    private static boolean sameRanges(int[] low, int[] high, int a, int b) {
+        for (int qi = 0; qi < QIS; qi++) {
+            if (low[qi * ROWS + a] != low[qi * ROWS + b] || high[qi * ROWS + a] != high[qi * ROWS + b]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Test
+    public void windowsAreCutOnTheSplitDimensionInOrder() {
+        int[] codes = randomCodes(ROWS, QIS, 2);
+        MondrianPartitioner partitioner = new MondrianPartitioner(ROWS, QIS);
+        partitioner.partition(codes, QIS, ROWS, 5);
+        int[] perm = partitioner.getPerm();
+        int base = (QIS - 1) * ROWS;
+        for (int i = 1; i < ROWS; i++) {
+            int previous = codes[base + perm[i - 1]];
+            int current = codes[base + perm[i]];
+            // Stable order of the split dimension, as mondrian.anonymize() produces
+            assertTrue(previous < current || (previous == current && perm[i - 1] < perm[i]));
+        }
+    }
+
+    @Test
+    public void wideValueRangesUseTwoRadixPasses() {
+        int rows = 1000;
+        int[] codes = new int[rows];
+        Random random = new Random(3);
+        for (int row = 0; row < rows; row++) {
+            codes[row] = random.nextInt() / 2;
+        }
+        MondrianPartitioner partitioner = new MondrianPartitioner(rows, 1);
+        partitioner.partition(codes, 1, rows, 10);
+        int[] perm = partitioner.getPerm();
+        for (int i = 1; i < rows; i++) {
+            assertTrue(codes[perm[i - 1]] <= codes[perm[i]]);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void runsLargerThanTheCapacityAreRejected() {
+        new MondrianPartitioner(10, 2).partition(new int[22], 2, 11, 2);
+    }
+
+    @Test
+    public void profiledRunsRecordEveryPartitionInBalancedSections() {
+        List<String> sections = new ArrayList<>();
+        int[] open = new int[1];
+        Tracer.setBackend(new Tracer.Backend() {
+            @Override
+            public boolean isEnabled() {
+                return true;
+            }
+
+            @Override
+            public void beginSection(String name) {
+                sections.add(name);
+                open[0]++;
+            }
+
+            @Override
+            public void endSection() {
+                open[0]--;
+                assertTrue(open[0] >= 0);
+            }
+        });
+        try {
+            PartitionProfile profile = new PartitionProfile();
+            MondrianPartitioner partitioner = new MondrianPartitioner(ROWS, QIS);
+            partitioner.setProfile(profile);
+            int partitions = partitioner.partition(randomCodes(ROWS, QIS, 5), QIS, ROWS, 2);
+
+            assertEquals(0, open[0]);
+            assertEquals("mondrian rank", sections.get(0));
+            assertTrue(sections.contains("mondrian level 0"));
+            // 50,000 rows halve to 3,125 at level 4, below the traced window size
+            assertTrue(sections.contains("mondrian level 3"));
+            assertFalse(sections.contains("mondrian level 4"));
+
+            assertEquals(partitions, profile.getPartitions());
+            long bucketed = 0;
+            for (int bucket = 0; bucket < 32; bucket++) {
+                bucketed += profile.getSizeBucket(bucket);
+            }
+            assertEquals(partitions, bucketed);
+            assertEquals(1, profile.getLevelWindows(0));
+            assertEquals(2, profile.getLevelWindows(1));
+            assertTrue(profile.summary().startsWith("Profile (median, " + ROWS + " rows): " + partitions + " partitions"));
+        } finally {
+            Tracer.setBackend(null);
+        }
+    }
+
+    @Test
+    public void steadyStateAllocatesNothingPerPartition() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        int[] codes = randomCodes(ROWS, QIS, 4);
+        MondrianPartitioner partitioner = new MondrianPartitioner(ROWS, QIS);
+        for (int run = 0; run < WARMUP_RUNS; run++) {
+            partitioner.partition(codes, QIS, ROWS, run % 2 == 0 ? 2 : FEW_PARTITIONS_K);
+        }
+
+        // The same rows into many and into few partitions: any allocation per partition shows as a difference
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        int many = partitioner.partition(codes, QIS, ROWS, 2);
+        long manyBytes = threads.getThreadAllocatedBytes(threadId) - before;
+        before = threads.getThreadAllocatedBytes(threadId);
+        int few = partitioner.partition(codes, QIS, ROWS, FEW_PARTITIONS_K);
+        long fewBytes = threads.getThreadAllocatedBytes(threadId) - before;
+
+        assertTrue(many > 10 * few);
+        assertEquals("Allocated bytes for " + many + " vs " + few + " partitions", fewBytes, manyBytes);
+        // What remains is the measurement itself, the same few bytes for any input
+        assertTrue("Allocated " + manyBytes + " bytes", manyBytes <= MEASUREMENT_BYTES);
+    }
+}
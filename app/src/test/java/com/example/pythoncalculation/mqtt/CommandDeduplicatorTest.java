@@ -0,0 +1,61 @@
+package com.example.pythoncalculation.mqtt;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that recorded command IDs are remembered across restarts, up to the most recent ones.
+ */
+public class CommandDeduplicatorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void onlyRecordedIdsAreDuplicates() throws IOException {
+        CommandDeduplicator deduplicator = new CommandDeduplicator(new File(folder.newFolder(), "ids.txt"));
+        // Checking does not record: a rejected command can be sent again with the same ID
+        assertFalse(deduplicator.contains("c1"));
+        assertFalse(deduplicator.contains("c1"));
+        deduplicator.record("c1");
+        assertTrue(deduplicator.contains("c1"));
+        assertFalse(deduplicator.contains("c2"));
+    }
+
+    @Test
+    public void recordedIdsAreReloaded() throws IOException {
+        File directory = folder.newFolder();
+        File file = new File(directory, "ids.txt");
+        CommandDeduplicator deduplicator = new CommandDeduplicator(file);
+        deduplicator.record("c1");
+        deduplicator.record("batch-1");
+
+        CommandDeduplicator reloaded = new CommandDeduplicator(file);
+        assertTrue(reloaded.contains("c1"));
+        assertTrue(reloaded.contains("batch-1"));
+        // The file is replaced by a rename, so no temporary file is left behind
+        assertArrayEquals(new String[]{"ids.txt"}, directory.list());
+    }
+
+    @Test
+    public void oldestIdsAreForgotten() throws IOException {
+        File file = new File(folder.newFolder(), "ids.txt");
+        CommandDeduplicator deduplicator = new CommandDeduplicator(file);
+        for (int i = 0; i <= 256; i++) {
+            deduplicator.record("c" + i);
+        }
+        // Recording an ID again does not move it
+        deduplicator.record("c1");
+
+        CommandDeduplicator reloaded = new CommandDeduplicator(file);
+        assertFalse(reloaded.contains("c0"));
+        assertTrue(reloaded.contains("c1"));
+        assertTrue(reloaded.contains("c256"));
+    }
+}
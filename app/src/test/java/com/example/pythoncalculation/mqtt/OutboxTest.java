@@ -0,0 +1,90 @@
+package com.example.pythoncalculation.mqtt;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the order, bound and persistence of the outbox.
+ */
+public class OutboxTest {
+
+    private static final String RESULTS = "anonymization/results";
+    private static final String PROGRESS = "anonymization/progress";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Drains the outbox and returns the published messages as "topic payload".
+     */
+    private static List<String> drain(Outbox outbox) {
+        List<String> published = new ArrayList<>();
+        outbox.drain((topic, payload) -> published.add(topic + " " + new String(payload, StandardCharsets.UTF_8)));
+        return published;
+    }
+
+    @Test
+    public void fullOutboxDropsProgressButNeverResults() throws IOException {
+        Outbox outbox = new Outbox(folder.newFolder(), 2);
+        outbox.enqueue(RESULTS, bytes("r1"));
+        outbox.enqueue(PROGRESS, bytes("p1"), "b/0", false);
+        outbox.enqueue(RESULTS, bytes("r2"));
+        outbox.enqueue(RESULTS, bytes("r3"));
+        outbox.enqueue(PROGRESS, bytes("p2"), "b/1", true);
+
+        // The intermediate message made room; the results and the final progress stay over the bound
+        assertEquals(4, outbox.size());
+        assertEquals(Arrays.asList(RESULTS + " r1", RESULTS + " r2", RESULTS + " r3", PROGRESS + " p2"), drain(outbox));
+        assertEquals(0, outbox.size());
+    }
+
+    @Test
+    public void newerProgressSupersedesTheQueuedOne() throws IOException {
+        Outbox outbox = new Outbox(folder.newFolder(), 10);
+        outbox.enqueue(PROGRESS, bytes("b/0 running 10%"), "b/0", false);
+        outbox.enqueue(PROGRESS, bytes("b/1 running 10%"), "b/1", false);
+        outbox.enqueue(RESULTS, bytes("r1"));
+        outbox.enqueue(PROGRESS, bytes("b/0 running 50%"), "b/0", false);
+        // The same key on another topic is a different message
+        outbox.enqueue(PROGRESS + "/binary", bytes("b/1 running 20%"), "b/1", false);
+        // The final state supersedes the queued one and is kept like a result
+        outbox.enqueue(PROGRESS, bytes("b/1 done"), "b/1", true);
+
+        assertEquals(Arrays.asList(RESULTS + " r1", PROGRESS + " b/0 running 50%",
+                PROGRESS + "/binary b/1 running 20%", PROGRESS + " b/1 done"), drain(outbox));
+    }
+
+    @Test
+    public void queuedMessagesAreReloadedInOrder() throws IOException {
+        File directory = folder.newFolder();
+        Outbox outbox = new Outbox(directory, 10);
+        outbox.enqueue(RESULTS, bytes("r1"));
+        outbox.enqueue(PROGRESS, bytes("b/0 running 10%"), "b/0", false);
+        outbox.enqueue(RESULTS, bytes("first line\nsecond line"));
+        // A refused message stays queued
+        assertEquals(0, outbox.drain((topic, payload) -> false));
+
+        Outbox reloaded = new Outbox(directory, 10);
+        assertEquals(3, reloaded.size());
+        // The reloaded progress message keeps its key, and new messages follow the reloaded ones
+        reloaded.enqueue(PROGRESS, bytes("b/0 running 60%"), "b/0", false);
+        reloaded.enqueue(RESULTS, bytes("r3"));
+        assertEquals(Arrays.asList(RESULTS + " r1", RESULTS + " first line\nsecond line",
+                PROGRESS + " b/0 running 60%", RESULTS + " r3"), drain(reloaded));
+        assertEquals(0, new Outbox(directory, 10).size());
+    }
+}
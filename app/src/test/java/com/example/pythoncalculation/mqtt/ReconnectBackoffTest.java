@@ -0,0 +1,37 @@
+package com.example.pythoncalculation.mqtt;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the reconnect delay doubles up to its cap within the jitter.
+ */
+public class ReconnectBackoffTest {
+
+    private static void assertWithinJitter(long expectedMs, long delayMs) {
+        assertTrue(delayMs + " is not within 20% of " + expectedMs,
+                delayMs >= expectedMs * 0.8 && delayMs <= expectedMs * 1.2);
+    }
+
+    @Test
+    public void delayDoublesUpToTheCap() {
+        ReconnectBackoff backoff = new ReconnectBackoff();
+        long expected = 1000;
+        for (int attempt = 0; attempt < 20; attempt++) {
+            assertWithinJitter(expected, backoff.nextDelayMs());
+            expected = Math.min(60000, expected * 2);
+        }
+    }
+
+    @Test
+    public void resetStartsOverAtTheMinimum() {
+        ReconnectBackoff backoff = new ReconnectBackoff();
+        for (int attempt = 0; attempt < 10; attempt++) {
+            backoff.nextDelayMs();
+        }
+        backoff.reset();
+        assertWithinJitter(1000, backoff.nextDelayMs());
+        assertWithinJitter(2000, backoff.nextDelayMs());
+    }
+}
@@ -0,0 +1,152 @@
+package com.example.pythoncalculation.pipeline;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that jobs are admitted while they fit the budget, in arrival order otherwise.
+ */
+public class AdmissionControllerTest {
+
+    private static final long MB = 1L << 20;
+
+    /**
+     * Starts a thread that admits a job and keeps its reservation in the returned reference.
+     */
+    private static Thread admitLater(AdmissionController controller, long bytes,
+                                     AtomicReference<AdmissionController.Reservation> admitted) {
+        Thread thread = new Thread(() -> {
+            try {
+                admitted.set(controller.admit(bytes, false, null));
+            } catch (InterruptedException e) {
+                // Left unadmitted
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Waits until the given number of jobs wait for memory.
+     */
+    private static void awaitWaiting(AdmissionController controller, int waiting) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (controller.getWaiting() != waiting) {
+            assertTrue("Jobs did not start waiting", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void jobsThatDoNotFitWaitForARelease() throws InterruptedException {
+        AdmissionController controller = new AdmissionController(100 * MB);
+        AdmissionController.Reservation first = controller.admit(60 * MB, false, null);
+        AdmissionController.Reservation second = controller.admit(40 * MB, false, null);
+        assertEquals(100 * MB, controller.getReservedBytes());
+
+        AtomicReference<AdmissionController.Reservation> third = new AtomicReference<>();
+        CountDownLatch notified = new CountDownLatch(1);
+        Thread thread = new Thread(() -> {
+            try {
+                third.set(controller.admit(50 * MB, false, (bytes, freeBytes) -> {
+                    assertEquals(0, freeBytes);
+                    notified.countDown();
+                }));
+            } catch (InterruptedException e) {
+                // Left unadmitted
+            }
+        });
+        thread.start();
+        assertTrue(notified.await(5, TimeUnit.SECONDS));
+        assertNull(third.get());
+
+        first.close();
+        thread.join(5000);
+        assertNotNull(third.get());
+        assertEquals(90 * MB, controller.getReservedBytes());
+
+        // Closing twice releases once
+        first.close();
+        second.close();
+        third.get().close();
+        assertEquals(0, controller.getReservedBytes());
+        assertEquals(0, controller.getRunning());
+    }
+
+    @Test
+    public void waitingJobsAreAdmittedInArrivalOrder() throws InterruptedException {
+        AdmissionController controller = new AdmissionController(100 * MB);
+        AdmissionController.Reservation running = controller.admit(70 * MB, false, null);
+
+        AtomicReference<AdmissionController.Reservation> large = new AtomicReference<>();
+        Thread largeThread = admitLater(controller, 80 * MB, large);
+        awaitWaiting(controller, 1);
+        // The small job would fit, but it is behind the large one
+        AtomicReference<AdmissionController.Reservation> small = new AtomicReference<>();
+        Thread smallThread = admitLater(controller, 10 * MB, small);
+        awaitWaiting(controller, 2);
+        assertNull(small.get());
+
+        running.close();
+        largeThread.join(5000);
+        smallThread.join(5000);
+        assertNotNull(large.get());
+        assertNotNull(small.get());
+        assertEquals(90 * MB, controller.getReservedBytes());
+    }
+
+    @Test
+    public void jobsLargerThanTheBudgetRunAlone() throws InterruptedException {
+        AdmissionController controller = new AdmissionController(100 * MB);
+        assertFalse(controller.fitsBudget(150 * MB));
+        AdmissionController.Reservation small = controller.admit(10 * MB, false, null);
+
+        AtomicReference<AdmissionController.Reservation> large = new AtomicReference<>();
+        Thread thread = admitLater(controller, 150 * MB, large);
+        awaitWaiting(controller, 1);
+        small.close();
+        thread.join(5000);
+        assertNotNull(large.get());
+        assertEquals(1, controller.getRunning());
+        large.get().close();
+    }
+
+    @Test
+    public void anInterruptedJobLeavesTheQueue() throws InterruptedException {
+        AdmissionController controller = new AdmissionController(100 * MB);
+        AdmissionController.Reservation running = controller.admit(90 * MB, false, null);
+
+        AtomicReference<AdmissionController.Reservation> interrupted = new AtomicReference<>();
+        Thread interruptedThread = admitLater(controller, 50 * MB, interrupted);
+        awaitWaiting(controller, 1);
+        AtomicReference<AdmissionController.Reservation> next = new AtomicReference<>();
+        Thread nextThread = admitLater(controller, 10 * MB, next);
+        awaitWaiting(controller, 2);
+
+        // The job at the head gives up; the one behind it fits and is admitted
+        interruptedThread.interrupt();
+        interruptedThread.join(5000);
+        nextThread.join(5000);
+        assertNull(interrupted.get());
+        assertNotNull(next.get());
+        assertEquals(100 * MB, controller.getReservedBytes());
+        running.close();
+        next.get().close();
+    }
+
+    @Test
+    public void snapshotsAndExternalStorageLowerTheEstimate() {
+        JobFootprint read = new JobFootprint(1_000_000, 10, 4, false, JobFootprint.ENGINE_MONDRIAN);
+        JobFootprint snapshot = new JobFootprint(1_000_000, 10, 4, true, JobFootprint.ENGINE_MONDRIAN);
+        assertTrue(snapshot.inMemoryBytes(false) < read.inMemoryBytes(false));
+        assertTrue(read.inMemoryBytes(false) < read.inMemoryBytes(true));
+        assertEquals(JobFootprint.BASE_BYTES + 64 * MB, JobFootprint.externalBytes(64));
+        assertTrue(read.supportsExternal());
+        assertFalse(new JobFootprint(1000, 5, 0, false, JobFootprint.ENGINE_ROUNDING).supportsExternal());
+    }
+}
@@ -0,0 +1,47 @@
+// Headless JVM build of the anonymization engine: a command-line runner and an MQTT worker
+// for servers (see HeadlessMain). It shares the Android-free sources of the app - the Java
+// Mondrian partitioner, the command model, the binary codec and the memory admission control -
+// instead of copying them.
+plugins {
+    application
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_11
+    targetCompatibility = JavaVersion.VERSION_11
+}
+
+val appSources = "../app/src/main/java"
+
+sourceSets {
+    main {
+        java {
+            srcDir(appSources)
+            include(
+                "com/example/pythoncalculation/headless/**",
+                "com/example/pythoncalculation/engine/**",
+                "com/example/pythoncalculation/codec/**",
+                "com/example/pythoncalculation/trace/Tracer.java",
+                "com/example/pythoncalculation/trace/PartitionProfile.java",
+                "com/example/pythoncalculation/bridge/ColumnBatch.java",
+                "com/example/pythoncalculation/pipeline/JobProgress.java",
+                "com/example/pythoncalculation/pipeline/JobFootprint.java",
+                "com/example/pythoncalculation/pipeline/AdmissionController.java",
+                "com/example/pythoncalculation/AnonymizationCommand.java",
+                "com/example/pythoncalculation/AnonymizationBatch.java"
+            )
+        }
+    }
+}
+
+application {
+    applicationName = "headless"
+    mainClass.set("com.example.pythoncalculation.headless.HeadlessMain")
+}
+
+dependencies {
+    implementation("com.google.code.gson:gson:2.10.1")
+    implementation("org.eclipse.paho:org.eclipse.paho.client.mqttv3:1.2.5")
+    implementation("org.hdrhistogram:HdrHistogram:2.1.12")
+    testImplementation(libs.junit)
+}
@@ -0,0 +1,119 @@
+package com.example.pythoncalculation.headless;
+
+import java.util.Arrays;
+
+/**
+ * BLAKE2b (RFC 7693) with an optional key and a digest of 1 to 64 bytes.
+ *
+ * The JDK has no BLAKE2, and identifier_transform.py pseudonymizes with keyed BLAKE2b
+ * (Python's hashlib.blake2b), so the headless runner needs it to produce the same tokens
+ * as the app for the same key. One-shot only: digest() hashes a complete message.
+ */
+final class Blake2b {
+
+    private static final long[] IV = {
+            0x6a09e667f3bcc908L, 0xbb67ae8584caa73bL, 0x3c6ef372fe94f82bL, 0xa54ff53a5f1d36f1L,
+            0x510e527fade682d1L, 0x9b05688c2b3e6c1fL, 0x1f83d9abfb41bd6bL, 0x5be0cd19137e2179L
+    };
+
+    private static final byte[][] SIGMA = {
+            {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15},
+            {14, 10, 4, 8, 9, 15, 13, 6, 1, 12, 0, 2, 11, 7, 5, 3},
+            {11, 8, 12, 0, 5, 2, 15, 13, 10, 14, 3, 6, 7, 1, 9, 4},
+            {7, 9, 3, 1, 13, 12, 11, 14, 2, 6, 5, 10, 4, 0, 15, 8},
+            {9, 0, 5, 7, 2, 4, 10, 15, 14, 1, 11, 12, 6, 8, 3, 13},
+            {2, 12, 6, 10, 0, 11, 8, 3, 4, 13, 7, 5, 15, 14, 1, 9},
+            {12, 5, 1, 15, 14, 13, 4, 10, 0, 7, 6, 3, 9, 2, 8, 11},
+            {13, 11, 7, 14, 12, 1, 3, 9, 5, 0, 15, 4, 8, 6, 2, 10},
+            {6, 15, 14, 9, 11, 3, 0, 8, 12, 2, 13, 7, 1, 4, 10, 5},
+            {10, 2, 8, 4, 7, 6, 1, 5, 15, 11, 9, 14, 3, 12, 13, 0}
+    };
+
+    private static final int BLOCK_BYTES = 128;
+
+    private Blake2b() {
+    }
+
+    /**
+     * Hashes a message.
+     *
+     * @param message The message
+     * @param key The key of at most 64 bytes, or an empty array
+     * @param digestSize The digest size in bytes, 1 to 64
+     * @return The digest
+     */
+    static byte[] digest(byte[] message, byte[] key, int digestSize) {
+        if (digestSize < 1 || digestSize > 64 || key.length > 64) {
+            throw new IllegalArgumentException("Digest size must be 1 to 64 bytes and the key at most 64 bytes");
+        }
+        long[] h = IV.clone();
+        h[0] ^= 0x01010000L ^ ((long) key.length << 8) ^ digestSize;
+        long[] m = new long[16];
+        long[] v = new long[16];
+
+        // A key is hashed as a first block of its own, padded with zeros
+        byte[] input = message;
+        if (key.length > 0) {
+            input = new byte[BLOCK_BYTES + message.length];
+            System.arraycopy(key, 0, input, 0, key.length);
+            System.arraycopy(message, 0, input, BLOCK_BYTES, message.length);
+        }
+        int blocks = Math.max(1, (input.length + BLOCK_BYTES - 1) / BLOCK_BYTES);
+        byte[] block = new byte[BLOCK_BYTES];
+        for (int b = 0; b < blocks; b++) {
+            int start = b * BLOCK_BYTES;
+            int length = Math.min(BLOCK_BYTES, input.length - start);
+            Arrays.fill(block, (byte) 0);
+            System.arraycopy(input, start, block, 0, Math.max(0, length));
+            boolean last = b == blocks - 1;
+            compress(h, m, v, block, start + Math.max(0, length), last);
+        }
+
+        byte[] out = new byte[digestSize];
+        for (int i = 0; i < digestSize; i++) {
+            out[i] = (byte) (h[i >>> 3] >>> (8 * (i & 7)));
+        }
+        return out;
+    }
+
+    private static void compress(long[] h, long[] m, long[] v, byte[] block, long counter, boolean last) {
+        for (int i = 0; i < 16; i++) {
+            long word = 0;
+            for (int j = 7; j >= 0; j--) {
+                word = (word << 8) | (block[i * 8 + j] & 0xFFL);
+            }
+            m[i] = word;
+        }
+        System.arraycopy(h, 0, v, 0, 8);
+        System.arraycopy(IV, 0, v, 8, 8);
+        v[12] ^= counter;
+        if (last) {
+            v[14] = ~v[14];
+        }
+        for (int round = 0; round < 12; round++) {
+            byte[] s = SIGMA[round % 10];
+            mix(v, 0, 4, 8, 12, m[s[0]], m[s[1]]);
+            mix(v, 1, 5, 9, 13, m[s[2]], m[s[3]]);
+            mix(v, 2, 6, 10, 14, m[s[4]], m[s[5]]);
+            mix(v, 3, 7, 11, 15, m[s[6]], m[s[7]]);
+            mix(v, 0, 5, 10, 15, m[s[8]], m[s[9]]);
+            mix(v, 1, 6, 11, 12, m[s[10]], m[s[11]]);
+            mix(v, 2, 7, 8, 13, m[s[12]], m[s[13]]);
+            mix(v, 3, 4, 9, 14, m[s[14]], m[s[15]]);
+        }
+        for (int i = 0; i < 8; i++) {
+            h[i] ^= v[i] ^ v[i + 8];
+        }
+    }
+
+    private static void mix(long[] v, int a, int b, int c, int d, long x, long y) {
+        v[a] = v[a] + v[b] + x;
+        v[d] = Long.rotateRight(v[d] ^ v[a], 32);
+        v[c] = v[c] + v[d];
+        v[b] = Long.rotateRight(v[b] ^ v[c], 24);
+        v[a] = v[a] + v[b] + y;
+        v[d] = Long.rotateRight(v[d] ^ v[a], 16);
+        v[c] = v[c] + v[d];
+        v[b] = Long.rotateRight(v[b] ^ v[c], 63);
+    }
+}
@@ -0,0 +1,153 @@
+package com.example.pythoncalculation.headless;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Publishes and subscribes on an MQTT broker through Paho, or on an InProcessBroker, so that the
+ * distributed coordinator and its shard workers run unchanged on devices and on one host.
+ *
+ * Subscriptions are made with QoS 1 and renewed after a reconnect; a listener receives the
+ * messages of its topic on the Paho callback thread, or on the delivery thread of the
+ * in-process subscription.
+ */
+final class BrokerConnection implements AutoCloseable {
+
+    private static final int QOS = 1;
+    private static final String SHARE_PREFIX = "$share/";
+
+    private final InProcessBroker broker;
+    private final MqttClient client;
+    // Subscription filter -> listener, renewed on reconnect
+    private final Map<String, InProcessBroker.Listener> listeners = new ConcurrentHashMap<>();
+
+    private BrokerConnection(InProcessBroker broker, MqttClient client) {
+        this.broker = broker;
+        this.client = client;
+    }
+
+    /**
+     * Get a connection to an in-process broker.
+     *
+     * @param broker The broker
+     */
+    static BrokerConnection of(InProcessBroker broker) {
+        return new BrokerConnection(broker, null);
+    }
+
+    /**
+     * Connects to an MQTT broker with a clean session; lost connections are re-established by Paho.
+     *
+     * @param brokerUrl The broker, e.g. tcp://192.168.8.126:1883
+     * @param clientId The client ID
+     * @return The connection
+     * @throws MqttException If the first connection fails
+     */
+    static BrokerConnection connect(String brokerUrl, String clientId) throws MqttException {
+        MqttClient client = new MqttClient(brokerUrl, clientId, new MemoryPersistence());
+        BrokerConnection connection = new BrokerConnection(null, client);
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setCleanSession(true);
+        options.setAutomaticReconnect(true);
+        client.setCallback(new MqttCallbackExtended() {
+            @Override
+            public void connectComplete(boolean reconnect, String serverURI) {
+                if (reconnect) {
+                    // A clean session loses its subscriptions
+                    for (String filter : connection.listeners.keySet()) {
+                        try {
+                            client.subscribe(filter, QOS);
+                        } catch (MqttException e) {
+                            System.err.println("Failed to subscribe to " + filter + ": " + e.getMessage());
+                        }
+                    }
+                }
+            }
+
+            @Override
+            public void connectionLost(Throwable cause) {
+                System.err.println("Connection lost, reconnecting: " + cause.getMessage());
+            }
+
+            @Override
+            public void messageArrived(String topic, MqttMessage message) {
+                connection.dispatch(topic, message.getPayload());
+            }
+
+            @Override
+            public void deliveryComplete(IMqttDeliveryToken token) {
+            }
+        });
+        client.connect(options);
+        return connection;
+    }
+
+    /**
+     * Subscribes to a topic or, with a $share/<group>/ prefix, joins a shared subscription.
+     *
+     * @param filter The topic, optionally prefixed with $share/<group>/
+     * @param listener The listener of the messages
+     * @throws MqttException If the subscription fails
+     */
+    void subscribe(String filter, InProcessBroker.Listener listener) throws MqttException {
+        if (broker != null) {
+            broker.subscribe(filter, listener);
+            return;
+        }
+        listeners.put(filter, listener);
+        client.subscribe(filter, QOS);
+    }
+
+    /**
+     * Publishes a message with QoS 1.
+     *
+     * @param topic The topic
+     * @param payload The payload
+     * @throws MqttException If the message cannot be sent
+     */
+    void publish(String topic, byte[] payload) throws MqttException {
+        if (broker != null) {
+            broker.publish(topic, payload);
+        } else {
+            client.publish(topic, payload, QOS, false);
+        }
+    }
+
+    /**
+     * Hands a Paho message to the listener of its topic; messages of a shared subscription
+     * arrive with the plain topic.
+     */
+    private void dispatch(String topic, byte[] payload) {
+        for (Map.Entry<String, InProcessBroker.Listener> entry : listeners.entrySet()) {
+            String filter = entry.getKey();
+            if (filter.startsWith(SHARE_PREFIX)) {
+                filter = filter.substring(filter.indexOf('/', SHARE_PREFIX.length()) + 1);
+            }
+            if (filter.equals(topic)) {
+                entry.getValue().messageArrived(topic, payload);
+            }
+        }
+    }
+
+    /**
+     * Disconnects from the MQTT broker; an in-process broker is left to its owner.
+     */
+    @Override
+    public void close() {
+        try {
+            if (client != null && client.isConnected()) {
+                client.disconnect();
+            }
+        } catch (MqttException e) {
+            System.err.println("Failed to disconnect: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package com.example.pythoncalculation.headless;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A delimited text file held column by column, as the strings of the file.
+ *
+ * Fields follow the quoting of pandas.read_csv() and DataFrame.to_csv(): a field that holds the
+ * delimiter, a quote or a line break is enclosed in double quotes, with quotes doubled. Values
+ * are not converted, so a cell is written back exactly as it was read.
+ */
+public final class CsvTable {
+
+    /**
+     * Bytes read from the start of a file to extrapolate its number of rows.
+     */
+    private static final int SAMPLE_BYTES = 1 << 16;
+
+    private final String[] header;
+    private final String[][] columns;
+    private final int rowCount;
+
+    /**
+     * Receives the rows of scan().
+     */
+    public interface RowVisitor {
+        /**
+         * @param fields The fields of the row, reused for the next row
+         */
+        void row(List<String> fields) throws IOException;
+    }
+
+    private CsvTable(String[] header, String[][] columns, int rowCount) {
+        this.header = header;
+        this.columns = columns;
+        this.rowCount = rowCount;
+    }
+
+    /**
+     * Reads a file with a header row.
+     *
+     * @param file The file
+     * @param delimiter The field delimiter
+     * @param skipped Columns that are not kept (their header entries are); may be empty
+     * @return The table
+     * @throws IOException If the file cannot be read or a row has the wrong number of fields
+     */
+    public static CsvTable read(File file, char delimiter, Set<String> skipped) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            List<String> fields = new ArrayList<>();
+            if (!readRecord(reader, delimiter, fields)) {
+                throw new IOException("Empty input file " + file);
+            }
+            String[] header = fields.toArray(new String[0]);
+            int width = header.length;
+            List<List<String>> values = new ArrayList<>(width);
+            for (String name : header) {
+                values.add(skipped.contains(name) ? null : new ArrayList<>());
+            }
+            int rowCount = 0;
+            while (readRecord(reader, delimiter, fields)) {
+                if (fields.size() == 1 && fields.get(0).isEmpty()) {
+                    continue; // blank line
+                }
+                if (fields.size() != width) {
+                    throw new IOException("Row " + (rowCount + 1) + " of " + file + " has " + fields.size()
+                            + " fields, expected " + width);
+                }
+                for (int c = 0; c < width; c++) {
+                    List<String> column = values.get(c);
+                    if (column != null) {
+                        column.add(fields.get(c));
+                    }
+                }
+                rowCount++;
+            }
+            String[][] columns = new String[width][];
+            for (int c = 0; c < width; c++) {
+                columns[c] = values.get(c) != null ? values.get(c).toArray(new String[0]) : null;
+            }
+            return new CsvTable(header, columns, rowCount);
+        }
+    }
+
+    /**
+     * Streams the rows of a file with a header row, without keeping them.
+     *
+     * @param file The file
+     * @param delimiter The field delimiter
+     * @param visitor Receives every data row, blank lines excepted
+     * @return The column names
+     * @throws IOException If the file cannot be read, a row has the wrong number of fields or the visitor fails
+     */
+    public static String[] scan(File file, char delimiter, RowVisitor visitor) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            List<String> fields = new ArrayList<>();
+            if (!readRecord(reader, delimiter, fields)) {
+                throw new IOException("Empty input file " + file);
+            }
+            String[] header = fields.toArray(new String[0]);
+            int rowCount = 0;
+            while (readRecord(reader, delimiter, fields)) {
+                if (fields.size() == 1 && fields.get(0).isEmpty()) {
+                    continue; // blank line
+                }
+                if (fields.size() != header.length) {
+                    throw new IOException("Row " + (rowCount + 1) + " of " + file + " has " + fields.size()
+                            + " fields, expected " + header.length);
+                }
+                visitor.row(fields);
+                rowCount++;
+            }
+            return header;
+        }
+    }
+
+    /**
+     * Reads the header row of a file.
+     *
+     * @param file The file
+     * @param delimiter The field delimiter
+     * @return The column names
+     * @throws IOException If the file cannot be read or is empty
+     */
+    public static String[] readHeader(File file, char delimiter) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            List<String> fields = new ArrayList<>();
+            if (!readRecord(reader, delimiter, fields)) {
+                throw new IOException("Empty input file " + file);
+            }
+            return fields.toArray(new String[0]);
+        }
+    }
+
+    /**
+     * Estimates the number of data rows of a file without reading it: exact for a file up to
+     * SAMPLE_BYTES, else extrapolated from the mean line length of its first SAMPLE_BYTES, like
+     * algorithm.pipeline.estimate_rows().
+     *
+     * @param file The file, with a header row
+     * @return The estimated number of rows
+     * @throws IOException If the file cannot be read
+     */
+    public static long estimateRows(File file) throws IOException {
+        long size = file.length();
+        byte[] sample = new byte[(int) Math.min(size, SAMPLE_BYTES)];
+        int length = 0;
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            for (int n; length < sample.length && (n = in.read(sample, length, sample.length - length)) > 0; ) {
+                length += n;
+            }
+        }
+        long lines = 0;
+        for (int i = 0; i < length; i++) {
+            if (sample[i] == '\n') {
+                lines++;
+            }
+        }
+        if (length == size) {
+            if (length > 0 && sample[length - 1] != '\n') {
+                lines++;
+            }
+            return Math.max(0, lines - 1);
+        }
+        return Math.max(1, size * lines / length - 1);
+    }
+
+    /**
+     * Reads one record, which may span lines inside quotes.
+     *
+     * @return False at the end of the input
+     */
+    private static boolean readRecord(BufferedReader reader, char delimiter, List<String> fields) throws IOException {
+        fields.clear();
+        String line = reader.readLine();
+        if (line == null) {
+            return false;
+        }
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        int i = 0;
+        while (true) {
+            if (i == line.length()) {
+                if (!quoted) {
+                    break;
+                }
+                // A line break inside quotes belongs to the field
+                String next = reader.readLine();
+                if (next == null) {
+                    throw new IOException("Unterminated quoted field");
+                }
+                field.append('\n');
+                line = next;
+                i = 0;
+                continue;
+            }
+            char c = line.charAt(i++);
+            if (quoted) {
+                if (c == '"') {
+                    if (i < line.length() && line.charAt(i) == '"') {
+                        field.append('"');
+                        i++;
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == delimiter) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else if (c != '\r') {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return true;
+    }
+
+    /**
+     * Appends a field with the quoting of DataFrame.to_csv().
+     *
+     * @param out The output
+     * @param value The field value
+     * @param delimiter The field delimiter
+     */
+    public static void appendField(StringBuilder out, String value, char delimiter) {
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == delimiter || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            out.append(value);
+            return;
+        }
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                out.append('"');
+            }
+            out.append(c);
+        }
+        out.append('"');
+    }
+
+    /**
+     * Get the column names of the file, skipped columns included.
+     */
+    public String[] getHeader() {
+        return header;
+    }
+
+    /**
+     * Get the values of a column.
+     *
+     * @param name The column name
+     * @return The values in row order, or null if the column was skipped or does not exist
+     */
+    public String[] column(String name) {
+        for (int c = 0; c < header.length; c++) {
+            if (header[c].equals(name)) {
+                return columns[c];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Replaces the values of a column.
+     *
+     * @param name The column name
+     * @param values The new values in row order
+     */
+    public void setColumn(String name, String[] values) {
+        for (int c = 0; c < header.length; c++) {
+            if (header[c].equals(name)) {
+                columns[c] = values;
+                return;
+            }
+        }
+        throw new IllegalArgumentException("Unknown column '" + name + "'");
+    }
+
+    /**
+     * Get the number of data rows.
+     */
+    public int getRowCount() {
+        return rowCount;
+    }
+}
@@ -0,0 +1,246 @@
+package com.example.pythoncalculation.headless;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * One data set of a registry descriptor (input/datasets.json), the Java counterpart of
+ * algorithm.dataset_registry.DatasetSchema. Paths are resolved against the descriptor like the
+ * app does: the input file against the descriptor directory, the hierarchy files against its
+ * "hierarchy_dir".
+ */
+public final class DatasetSchema {
+
+    public static final String ROLE_QI = "qi";
+    public static final String ROLE_IDENTIFIER = "identifier";
+
+    public static final String NUMERIC_RANGE = "range";
+
+    public static final String TRANSFORM_SUPPRESS = "suppress";
+    public static final String TRANSFORM_PSEUDONYMIZE = "pseudonymize";
+    public static final String TRANSFORM_ENCRYPT = "encrypt";
+
+    private final String datasetId;
+    private final JsonObject descriptor;
+    private final File baseDir;
+    private final File hierarchyDir;
+    private final File path;
+    private final char delimiter;
+    private final String engine;
+    private final List<String> qiList = new ArrayList<>();
+    private final Map<String, String> identifierTransforms = new LinkedHashMap<>();
+    private final Map<String, File> hierarchyFiles = new LinkedHashMap<>();
+    private final Map<String, String> numericStrategy = new LinkedHashMap<>();
+    private final List<String> previewColumns = new ArrayList<>();
+    private final int previewFirst;
+    private final int previewLast;
+
+    private DatasetSchema(String datasetId, JsonObject descriptor, File baseDir, File hierarchyDir, File path) {
+        this.datasetId = datasetId;
+        this.descriptor = descriptor;
+        this.baseDir = baseDir;
+        this.hierarchyDir = hierarchyDir;
+        this.path = path != null ? path : new File(baseDir, descriptor.get("file").getAsString());
+        String delimiterValue = descriptor.has("delimiter") ? descriptor.get("delimiter").getAsString() : ",";
+        if (delimiterValue.length() != 1) {
+            throw new IllegalArgumentException("Dataset '" + datasetId + "': the delimiter must be one character");
+        }
+        this.delimiter = delimiterValue.charAt(0);
+        this.engine = descriptor.has("engine") ? descriptor.get("engine").getAsString() : "mondrian";
+
+        JsonObject columns = descriptor.has("columns") ? descriptor.getAsJsonObject("columns") : new JsonObject();
+        for (Map.Entry<String, JsonElement> entry : columns.entrySet()) {
+            String name = entry.getKey();
+            JsonObject column = entry.getValue().getAsJsonObject();
+            String role = column.get("role").getAsString();
+            if (ROLE_QI.equals(role)) {
+                qiList.add(name);
+                numericStrategy.put(name, column.has("numeric") ? column.get("numeric").getAsString() : "hierarchy");
+            } else if (ROLE_IDENTIFIER.equals(role)) {
+                String transform = column.has("transform") ? column.get("transform").getAsString() : TRANSFORM_SUPPRESS;
+                if (!TRANSFORM_SUPPRESS.equals(transform) && !TRANSFORM_PSEUDONYMIZE.equals(transform)
+                        && !TRANSFORM_ENCRYPT.equals(transform)) {
+                    throw new IllegalArgumentException("Dataset '" + datasetId + "': unknown transform '" + transform
+                            + "' of identifier '" + name + "'");
+                }
+                identifierTransforms.put(name, transform);
+            }
+            if (column.has("hierarchy")) {
+                hierarchyFiles.put(name, new File(hierarchyDir, column.get("hierarchy").getAsString()));
+            }
+        }
+
+        if (descriptor.has("preview_columns")) {
+            for (JsonElement column : descriptor.getAsJsonArray("preview_columns")) {
+                previewColumns.add(column.getAsString());
+            }
+        } else {
+            previewColumns.addAll(qiList.subList(0, Math.min(5, qiList.size())));
+        }
+        if (descriptor.has("preview_rows")) {
+            previewFirst = descriptor.getAsJsonArray("preview_rows").get(0).getAsInt();
+            previewLast = descriptor.getAsJsonArray("preview_rows").get(1).getAsInt();
+        } else {
+            previewFirst = 0;
+            previewLast = 40;
+        }
+    }
+
+    /**
+     * Loads every data set of a descriptor.
+     *
+     * @param descriptorFile The descriptor, e.g. app/src/main/python/input/datasets.json
+     * @return The data sets by lower-case ID, in descriptor order
+     * @throws IOException If the descriptor cannot be read
+     */
+    public static Map<String, DatasetSchema> load(File descriptorFile) throws IOException {
+        JsonObject descriptor;
+        try (Reader reader = Files.newBufferedReader(descriptorFile.toPath(), StandardCharsets.UTF_8)) {
+            descriptor = JsonParser.parseReader(reader).getAsJsonObject();
+        }
+        File baseDir = descriptorFile.getAbsoluteFile().getParentFile();
+        String hierarchyDirName = descriptor.has("hierarchy_dir") ? descriptor.get("hierarchy_dir").getAsString() : ".";
+        File hierarchyDir = new File(baseDir, hierarchyDirName).toPath().normalize().toFile();
+        Map<String, DatasetSchema> datasets = new LinkedHashMap<>();
+        JsonObject entries = descriptor.has("datasets") ? descriptor.getAsJsonObject("datasets") : new JsonObject();
+        for (Map.Entry<String, JsonElement> entry : entries.entrySet()) {
+            datasets.put(entry.getKey().toLowerCase(Locale.ROOT),
+                    new DatasetSchema(entry.getKey(), entry.getValue().getAsJsonObject(), baseDir, hierarchyDir, null));
+        }
+        return datasets;
+    }
+
+    /**
+     * Looks a data set up by its ID or by its input file name, like dataset_registry.get_dataset().
+     *
+     * @param datasets The data sets of load()
+     * @param name A dataset ID or an input file name
+     * @return The data set
+     * @throws IllegalArgumentException If no data set matches
+     */
+    public static DatasetSchema find(Map<String, DatasetSchema> datasets, String name) {
+        DatasetSchema schema = datasets.get(name.toLowerCase(Locale.ROOT));
+        if (schema != null) {
+            return schema;
+        }
+        for (DatasetSchema candidate : datasets.values()) {
+            if (candidate.path.getName().equals(name)) {
+                return candidate;
+            }
+        }
+        throw new IllegalArgumentException("Unknown dataset '" + name + "'. Registered: " + String.join(", ", datasets.keySet()));
+    }
+
+    /**
+     * The same data set for another input file with the same columns.
+     *
+     * @param input The input file
+     * @return A copy reading input
+     */
+    public DatasetSchema withPath(File input) {
+        return new DatasetSchema(datasetId, descriptor, baseDir, hierarchyDir, input);
+    }
+
+    /**
+     * The same data set with its pseudonymized and encrypted identifiers already transformed, e.g.
+     * by a DistributedCoordinator: they are copied as they are, suppressed identifiers stay
+     * suppressed.
+     *
+     * @return A copy without the pseudonymize and encrypt transforms
+     */
+    public DatasetSchema withIdentifiersTransformed() {
+        DatasetSchema schema = new DatasetSchema(datasetId, descriptor, baseDir, hierarchyDir, path);
+        schema.identifierTransforms.values().removeIf(transform -> !TRANSFORM_SUPPRESS.equals(transform));
+        return schema;
+    }
+
+    /**
+     * Get the ID of the data set.
+     */
+    public String getDatasetId() {
+        return datasetId;
+    }
+
+    /**
+     * Get the CSV file of the data set.
+     */
+    public File getPath() {
+        return path;
+    }
+
+    /**
+     * Get the field delimiter of the CSV file.
+     */
+    public char getDelimiter() {
+        return delimiter;
+    }
+
+    /**
+     * Get the anonymization engine of the data set.
+     */
+    public String getEngine() {
+        return engine;
+    }
+
+    /**
+     * Get the quasi-identifiers, in partitioning order.
+     */
+    public List<String> getQiList() {
+        return Collections.unmodifiableList(qiList);
+    }
+
+    /**
+     * Get the transform of each identifier column.
+     */
+    public Map<String, String> getIdentifierTransforms() {
+        return Collections.unmodifiableMap(identifierTransforms);
+    }
+
+    /**
+     * Get the hierarchy file of each quasi-identifier.
+     */
+    public Map<String, File> getHierarchyFiles() {
+        return Collections.unmodifiableMap(hierarchyFiles);
+    }
+
+    /**
+     * Whether a quasi-identifier is published as "low-high" of its original values.
+     */
+    public boolean isNumericRange(String qi) {
+        return NUMERIC_RANGE.equals(numericStrategy.get(qi));
+    }
+
+    /**
+     * Get the columns of the result preview.
+     */
+    public List<String> getPreviewColumns() {
+        return Collections.unmodifiableList(previewColumns);
+    }
+
+    /**
+     * Get the number of leading rows of the result preview.
+     */
+    public int getPreviewFirst() {
+        return previewFirst;
+    }
+
+    /**
+     * Get the number of trailing rows of the result preview.
+     */
+    public int getPreviewLast() {
+        return previewLast;
+    }
+}
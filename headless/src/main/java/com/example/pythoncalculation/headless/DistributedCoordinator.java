@@ -0,0 +1,824 @@
+package com.example.pythoncalculation.headless;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PushbackReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a Mondrian anonymization across several devices: the coordinator makes the top cuts and
+ * ShardWorkers anonymize the resulting sub-boxes, so a data set is not bounded by one device.
+ *
+ * The steps of run():
+ * 1. stream the quasi-identifiers of the input into a QiSketch, without keeping the rows
+ * 2. cut the quasi-identifier with the most distinct values (the cut dimension of
+ *    MondrianPartitioner) at its median, then the largest box again, until there is a box per
+ *    shard or no box can be cut with k rows on both sides. Cuts fall between distinct values, so
+ *    the boxes are disjoint in the value space and every row has one box
+ * 3. stream the input again into one spool file per box; suppressed identifiers are blanked and
+ *    pseudonymized or encrypted ones transformed, so their raw values never leave the coordinator
+ * 4. offer every box on SHARD_TOPIC, a shared subscription of the workers, so each box goes to
+ *    one of them. The offer holds no rows
+ * 5. stream the spool file of a box to the worker that claims it on TRANSFER_TOPIC, in chunks of
+ *    CHUNK_CHARS on the worker's data topic. Every claimed box streams on its own thread, so the
+ *    workers receive their boxes at the same time. A chunk is sent once the worker has
+ *    acknowledged all but WINDOW_CHUNKS - 1 of the chunks of its box before it, so neither side
+ *    holds more than a window per box
+ * 6. collect the equivalence-class summaries of the workers from SUMMARY_TOPIC and verify them:
+ *    every box is anonymized once with all its rows, and every class of the merged output (the
+ *    classes of all boxes, identical generalized values joined) holds at least k rows
+ * 7. merge the metrics and write the manifest of the output: the anonymized rows of every box stay
+ *    in a part file on its worker, and the output is the parts in box order
+ *
+ * So the coordinator holds the sketch, a chunk per box and the class summaries, and no message
+ * holds more than a chunk. The boxes are anonymized with exact median cuts by HeadlessEngine, like a single
+ * run, so the workers must share the hierarchies and the descriptor.
+ */
+public final class DistributedCoordinator implements AutoCloseable {
+
+    public static final String SHARD_TOPIC = "anonymization/distributed/shards";
+    /**
+     * Claims of offered boxes and acknowledgements of received chunks, from the workers.
+     */
+    public static final String TRANSFER_TOPIC = "anonymization/distributed/transfers";
+    /**
+     * The prefix of the data topic of a worker, followed by its worker ID.
+     */
+    public static final String DATA_TOPIC = "anonymization/distributed/data/";
+    public static final String SUMMARY_TOPIC = "anonymization/distributed/summaries";
+    /**
+     * The shared subscription group of the workers on SHARD_TOPIC.
+     */
+    public static final String SHARD_GROUP = "shards";
+    /**
+     * The characters of the spool file in one data message.
+     */
+    static final int CHUNK_CHARS = 256 * 1024;
+    /**
+     * The chunks of a box in flight before the coordinator waits for an acknowledgement.
+     */
+    static final int WINDOW_CHUNKS = 4;
+    // Queued by onSummary() when the last summary of a run arrived, so that run() stops waiting for claims
+    private static final JsonObject SUMMARIES_DONE = new JsonObject();
+    // Queued when the transfer of a box failed, see Job.transferFailure
+    private static final JsonObject TRANSFER_FAILED = new JsonObject();
+
+    /**
+     * A box of the top cuts: a range of leaf IDs of the cut dimension.
+     */
+    public static final class Shard {
+        private final int index;
+        private final int lowLeaf;
+        private final int highLeaf;
+        private final long rows;
+
+        Shard(int index, int lowLeaf, int highLeaf, long rows) {
+            this.index = index;
+            this.lowLeaf = lowLeaf;
+            this.highLeaf = highLeaf;
+            this.rows = rows;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public int getLowLeaf() {
+            return lowLeaf;
+        }
+
+        public int getHighLeaf() {
+            return highLeaf;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+    }
+
+    /**
+     * The anonymized rows of a box, in a file on the worker that anonymized it.
+     */
+    public static final class Part {
+        private final int shard;
+        private final String worker;
+        private final String file;
+        private final long rows;
+
+        Part(int shard, String worker, String file, long rows) {
+            this.shard = shard;
+            this.worker = worker;
+            this.file = file;
+            this.rows = rows;
+        }
+
+        public int getShard() {
+            return shard;
+        }
+
+        /**
+         * Get the ID of the worker that holds the part.
+         */
+        public String getWorker() {
+            return worker;
+        }
+
+        /**
+         * Get the path of the part on its worker: a CSV file with the header row.
+         */
+        public String getFile() {
+            return file;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+    }
+
+    /**
+     * The outcome of a distributed run.
+     */
+    public static final class Result {
+        private final InfoLossMetrics metrics;
+        private final String preview;
+        private final File output;
+        private final long rowCount;
+        private final int classCount;
+        private final List<Shard> shards;
+        private final List<Part> parts;
+        private final long elapsedMs;
+
+        Result(InfoLossMetrics metrics, String preview, File output, long rowCount, int classCount, List<Shard> shards,
+               List<Part> parts, long elapsedMs) {
+            this.metrics = metrics;
+            this.preview = preview;
+            this.output = output;
+            this.rowCount = rowCount;
+            this.classCount = classCount;
+            this.shards = shards;
+            this.parts = parts;
+            this.elapsedMs = elapsedMs;
+        }
+
+        /**
+         * Get the metrics merged from the shards; their classes are those of the merged output.
+         */
+        public InfoLossMetrics getMetrics() {
+            return metrics;
+        }
+
+        /**
+         * Get the preview of the first shard, the first rows of the output.
+         */
+        public String getPreview() {
+            return preview;
+        }
+
+        /**
+         * Get the manifest of the output, a JSON file that lists the parts in box order.
+         */
+        public File getOutput() {
+            return output;
+        }
+
+        public long getRowCount() {
+            return rowCount;
+        }
+
+        /**
+         * Get the number of distinct generalized quasi-identifier tuples of the merged output.
+         */
+        public int getClassCount() {
+            return classCount;
+        }
+
+        public List<Shard> getShards() {
+            return shards;
+        }
+
+        /**
+         * Get the parts of the output, in box order.
+         */
+        public List<Part> getParts() {
+            return parts;
+        }
+
+        public long getElapsedMs() {
+            return elapsedMs;
+        }
+
+        /**
+         * Get the result text in the format of HeadlessEngine.Result.toResultText().
+         */
+        public String toResultText() {
+            return metrics.summary() + "\n\n" + preview;
+        }
+    }
+
+    /**
+     * The state of one run: the claims of its boxes, the chunks each box's worker acknowledged and
+     * the summaries, by shard index.
+     */
+    private static final class Job {
+        final Map<Integer, JsonObject> summaries = new ConcurrentHashMap<>();
+        final BlockingQueue<JsonObject> claims = new LinkedBlockingQueue<>();
+        // Guarded by the job, which is notified on every acknowledgement
+        final Map<Integer, Long> received = new HashMap<>();
+        final CountDownLatch done;
+        // The first failed transfer, set before TRANSFER_FAILED is queued
+        volatile IOException transferFailure;
+
+        Job(int shards) {
+            done = new CountDownLatch(shards);
+        }
+    }
+
+    private final BrokerConnection connection;
+    private final long timeoutSeconds;
+    private final IdentifierTransform identifiers;
+    private final Gson gson = new Gson();
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+
+    /**
+     * A coordinator on an in-process broker, e.g. with ShardWorkers in the same JVM.
+     *
+     * @param broker The broker
+     * @param timeoutSeconds How long a run waits for the transfer and the anonymization of its shards
+     * @param keyFile The identifier key of pseudonymized and encrypted identifiers
+     * @throws IOException If the key cannot be read or created
+     */
+    public DistributedCoordinator(InProcessBroker broker, long timeoutSeconds, File keyFile) throws IOException {
+        this(BrokerConnection.of(broker), timeoutSeconds, keyFile);
+    }
+
+    /**
+     * A coordinator on an MQTT broker.
+     *
+     * @param brokerUrl The broker, e.g. tcp://192.168.8.126:1883
+     * @param clientId The client ID
+     * @param timeoutSeconds How long a run waits for the transfer and the anonymization of its shards
+     * @param keyFile The identifier key of pseudonymized and encrypted identifiers
+     * @throws MqttException If the connection fails
+     * @throws IOException If the key cannot be read or created
+     */
+    public DistributedCoordinator(String brokerUrl, String clientId, long timeoutSeconds, File keyFile)
+            throws MqttException, IOException {
+        this(BrokerConnection.connect(brokerUrl, clientId), timeoutSeconds, keyFile);
+    }
+
+    private DistributedCoordinator(BrokerConnection connection, long timeoutSeconds, File keyFile) throws IOException {
+        this.connection = connection;
+        this.timeoutSeconds = timeoutSeconds;
+        try {
+            this.identifiers = new IdentifierTransform(keyFile);
+            connection.subscribe(SUMMARY_TOPIC, this::onSummary);
+            connection.subscribe(TRANSFER_TOPIC, this::onTransfer);
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        } catch (MqttException e) {
+            connection.close();
+            throw new IllegalStateException("Failed to subscribe to the summaries and transfers: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Anonymizes a data set across the workers.
+     *
+     * @param schema The data set; its engine must be "mondrian"
+     * @param k The K value, from 1 to the number of records
+     * @param output The manifest of the output, see Result.getOutput()
+     * @param shardCount The number of boxes to cut, usually the number of workers
+     * @return The merged metrics and the preview
+     * @throws IOException If a file cannot be read or written, or the shards do not arrive in time
+     * @throws IllegalArgumentException If the data set or K is not supported
+     * @throws IllegalStateException If a shard fails or the merged output is not k-anonymous
+     */
+    public Result run(DatasetSchema schema, int k, File output, int shardCount) throws IOException {
+        long start = System.nanoTime();
+        if (!"mondrian".equals(schema.getEngine())) {
+            throw new IllegalArgumentException("Dataset '" + schema.getDatasetId() + "' uses engine '"
+                    + schema.getEngine() + "', the distributed runner needs 'mondrian'");
+        }
+        if (k < 1) {
+            throw new IllegalArgumentException("K must be at least 1");
+        }
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("Shards must be at least 1");
+        }
+        List<String> qiList = schema.getQiList();
+        int qiCount = qiList.size();
+        HierarchyTree[] trees = new HierarchyTree[qiCount];
+        for (int i = 0; i < qiCount; i++) {
+            File file = schema.getHierarchyFiles().get(qiList.get(i));
+            if (file == null) {
+                throw new IllegalArgumentException("Quasi-identifier '" + qiList.get(i) + "' has no hierarchy file");
+            }
+            trees[i] = new HierarchyTree(file);
+        }
+        int[] qiColumns = new int[qiCount];
+        String[] header = CsvTable.readHeader(schema.getPath(), schema.getDelimiter());
+        for (int i = 0; i < qiCount; i++) {
+            qiColumns[i] = Arrays.asList(header).indexOf(qiList.get(i));
+            if (qiColumns[i] < 0) {
+                throw new IllegalArgumentException("Quasi-identifier '" + qiList.get(i) + "' is not in " + schema.getPath());
+            }
+        }
+
+        // Step 1: sketch the quasi-identifiers; unmapped values are leaf 1, like in HeadlessEngine
+        QiSketch sketch = new QiSketch(qiCount);
+        int[] leafIds = new int[qiCount];
+        CsvTable.scan(schema.getPath(), schema.getDelimiter(), fields -> {
+            for (int i = 0; i < qiCount; i++) {
+                leafIds[i] = leafId(trees[i], fields.get(qiColumns[i]));
+            }
+            sketch.add(leafIds);
+        });
+        if (k > sketch.getRows()) {
+            throw new IllegalArgumentException("K = " + k + " is larger than the number of records ("
+                    + sketch.getRows() + ")");
+        }
+
+        // Step 2: the top cuts
+        int dim = sketch.widestDimension();
+        List<Shard> shards = cut(sketch.histogram(dim), k, shardCount);
+        int[] shardLows = new int[shards.size()];
+        for (int s = 0; s < shardLows.length; s++) {
+            shardLows[s] = shards.get(s).getLowLeaf();
+        }
+
+        // Step 3: one spool file per box, suppressed identifiers blanked, the other identifiers transformed
+        String[] transforms = new String[header.length];
+        for (int c = 0; c < header.length; c++) {
+            transforms[c] = schema.getIdentifierTransforms().get(header[c]);
+        }
+        File spoolDir = Files.createTempDirectory("shards").toFile();
+        String jobId = UUID.randomUUID().toString();
+        Job job = new Job(shards.size());
+        jobs.put(jobId, job);
+        try {
+            File[] spools = spool(schema, header, transforms, qiColumns[dim], trees[dim], shardLows, spoolDir);
+
+            // Step 4: offer the boxes, without their rows
+            for (Shard shard : shards) {
+                JsonObject message = new JsonObject();
+                message.addProperty("jobId", jobId);
+                message.addProperty("dataset", schema.getDatasetId());
+                message.addProperty("kValue", k);
+                message.addProperty("shard", shard.getIndex());
+                message.addProperty("shards", shards.size());
+                message.addProperty("dimension", qiList.get(dim));
+                message.addProperty("low", trees[dim].leafValue(shard.getLowLeaf()));
+                message.addProperty("high", trees[dim].leafValue(shard.getHighLeaf()));
+                message.addProperty("rows", shard.getRows());
+                publish(SHARD_TOPIC, message, "shard " + shard.getIndex());
+            }
+
+            // Step 5: stream every box to the worker that claims it, each on its own thread, until all summaries arrived
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+            Map<Integer, String> assigned = new HashMap<>();
+            ExecutorService transfers = Executors.newFixedThreadPool(shards.size(), r -> {
+                Thread thread = new Thread(r, "shard-transfer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            try {
+                while (job.done.getCount() > 0) {
+                    JsonObject claim = nextClaim(job, shards, deadline);
+                    if (claim == SUMMARIES_DONE) {
+                        continue;
+                    }
+                    if (claim == TRANSFER_FAILED) {
+                        throw new IOException(job.transferFailure.getMessage(), job.transferFailure);
+                    }
+                    int index = claim.get("shard").getAsInt();
+                    String worker = claim.get("worker").getAsString();
+                    if (index < 0 || index >= spools.length) {
+                        continue;
+                    }
+                    String owner = assigned.putIfAbsent(index, worker);
+                    if (owner == null) {
+                        File spool = spools[index];
+                        transfers.execute(() -> {
+                            try {
+                                stream(job, jobId, index, worker, spool, deadline);
+                            } catch (IOException e) {
+                                if (job.transferFailure == null) {
+                                    job.transferFailure = e;
+                                    job.claims.add(TRANSFER_FAILED);
+                                }
+                            }
+                        });
+                    } else if (!owner.equals(worker)) {
+                        // An offer delivered twice (QoS 1) reached a second worker, which drops the box
+                        JsonObject cancel = new JsonObject();
+                        cancel.addProperty("jobId", jobId);
+                        cancel.addProperty("shard", index);
+                        cancel.addProperty("cancelled", true);
+                        publish(DATA_TOPIC + worker, cancel, "the cancel of shard " + index);
+                    }
+                }
+            } finally {
+                // A transfer still waiting for acknowledgements when the run ends is interrupted
+                transfers.shutdownNow();
+            }
+
+            // Step 6: verify the summaries
+            Map<List<String>, Long> classes = verify(job, shards, k, sketch.getRows());
+
+            // Step 7: merge the metrics and write the manifest of the parts
+            InfoLossMetrics metrics = new InfoLossMetrics(schema, trees, k);
+            List<Part> parts = new ArrayList<>(shards.size());
+            JsonArray partArray = new JsonArray();
+            for (Shard shard : shards) {
+                JsonObject summary = job.summaries.get(shard.getIndex());
+                metrics.addShard(shard.getRows(), summary.get("ncp").getAsDouble());
+                Part part = new Part(shard.getIndex(), summary.get("worker").getAsString(),
+                        summary.get("output").getAsString(), shard.getRows());
+                parts.add(part);
+                partArray.add(gson.toJsonTree(part));
+            }
+            for (Map.Entry<List<String>, Long> merged : classes.entrySet()) {
+                metrics.addClass(merged.getKey(), merged.getValue());
+            }
+            JsonObject manifest = new JsonObject();
+            manifest.addProperty("dataset", schema.getDatasetId());
+            manifest.addProperty("kValue", k);
+            manifest.addProperty("rows", sketch.getRows());
+            manifest.addProperty("classes", classes.size());
+            manifest.addProperty("metrics", metrics.summary());
+            manifest.add("parts", partArray);
+            File dir = output.getAbsoluteFile().getParentFile();
+            if (dir != null) {
+                Files.createDirectories(dir.toPath());
+            }
+            try (Writer writer = Files.newBufferedWriter(output.toPath(), StandardCharsets.UTF_8)) {
+                gson.toJson(manifest, writer);
+            }
+            String preview = job.summaries.get(0).get("preview").getAsString();
+            return new Result(metrics, preview, output, sketch.getRows(), classes.size(), shards, parts,
+                    (System.nanoTime() - start) / 1_000_000);
+        } finally {
+            jobs.remove(jobId);
+            File[] left = spoolDir.listFiles();
+            if (left != null) {
+                for (File file : left) {
+                    Files.deleteIfExists(file.toPath());
+                }
+            }
+            Files.deleteIfExists(spoolDir.toPath());
+        }
+    }
+
+    private static int leafId(HierarchyTree tree, String value) {
+        Integer leafId = tree.leafId(value);
+        return leafId != null ? leafId : 1;
+    }
+
+    /**
+     * Cuts the histogram of the cut dimension into boxes: the box with the most rows is cut at its
+     * median, between two distinct values, while both halves keep k rows.
+     *
+     * @param histogram Pairs of leaf ID and row count, sorted by leaf ID
+     * @param k The K value
+     * @param shardCount The number of boxes wanted
+     * @return The boxes in leaf ID order
+     */
+    static List<Shard> cut(long[][] histogram, int k, int shardCount) {
+        long[] prefix = new long[histogram.length + 1];
+        for (int i = 0; i < histogram.length; i++) {
+            prefix[i + 1] = prefix[i] + histogram[i][1];
+        }
+        // Boxes as [from, to) ranges of the histogram, in leaf ID order; final boxes cannot be cut
+        List<int[]> boxes = new ArrayList<>();
+        boxes.add(new int[] {0, histogram.length});
+        List<Boolean> isFinal = new ArrayList<>();
+        isFinal.add(false);
+        while (boxes.size() < shardCount) {
+            int largest = -1;
+            for (int b = 0; b < boxes.size(); b++) {
+                if (!isFinal.get(b) && (largest < 0 || rows(prefix, boxes.get(b)) > rows(prefix, boxes.get(largest)))) {
+                    largest = b;
+                }
+            }
+            if (largest < 0) {
+                break;
+            }
+            int from = boxes.get(largest)[0];
+            int to = boxes.get(largest)[1];
+            long total = prefix[to] - prefix[from];
+            int best = -1;
+            long bestDistance = Long.MAX_VALUE;
+            for (int split = from + 1; split < to; split++) {
+                long left = prefix[split] - prefix[from];
+                long distance = Math.abs(2 * left - total);
+                if (left >= k && total - left >= k && distance < bestDistance) {
+                    best = split;
+                    bestDistance = distance;
+                }
+            }
+            if (best < 0) {
+                isFinal.set(largest, true);
+                continue;
+            }
+            boxes.set(largest, new int[] {from, best});
+            boxes.add(largest + 1, new int[] {best, to});
+            isFinal.add(largest + 1, false);
+        }
+        List<Shard> shards = new ArrayList<>(boxes.size());
+        for (int[] box : boxes) {
+            shards.add(new Shard(shards.size(), (int) histogram[box[0]][0], (int) histogram[box[1] - 1][0],
+                    rows(prefix, box)));
+        }
+        return shards;
+    }
+
+    private static long rows(long[] prefix, int[] box) {
+        return prefix[box[1]] - prefix[box[0]];
+    }
+
+    /**
+     * Streams the input into one file per box, each with the header row.
+     *
+     * @param transforms The identifier transform of every column, null for the other columns
+     * @param shardLows The lowest leaf ID of every box, ascending
+     * @return The spool file of every box
+     */
+    private File[] spool(DatasetSchema schema, String[] header, String[] transforms, int dimColumn,
+                         HierarchyTree dimTree, int[] shardLows, File spoolDir) throws IOException {
+        char delimiter = schema.getDelimiter();
+        File[] spools = new File[shardLows.length];
+        Writer[] writers = new Writer[shardLows.length];
+        try {
+            StringBuilder line = new StringBuilder();
+            for (int c = 0; c < header.length; c++) {
+                if (c > 0) {
+                    line.append(delimiter);
+                }
+                CsvTable.appendField(line, header[c], delimiter);
+            }
+            String headerLine = line.append('\n').toString();
+            for (int s = 0; s < shardLows.length; s++) {
+                spools[s] = new File(spoolDir, "shard-" + s + ".csv");
+                writers[s] = Files.newBufferedWriter(spools[s].toPath(), StandardCharsets.UTF_8);
+                writers[s].write(headerLine);
+            }
+            CsvTable.scan(schema.getPath(), delimiter, fields -> {
+                // The box of the row: the last one starting at or below its leaf ID
+                int position = Arrays.binarySearch(shardLows, leafId(dimTree, fields.get(dimColumn)));
+                int shard = position >= 0 ? position : Math.max(0, -position - 2);
+                line.setLength(0);
+                for (int c = 0; c < fields.size(); c++) {
+                    if (c > 0) {
+                        line.append(delimiter);
+                    }
+                    String value = fields.get(c);
+                    if (c < transforms.length && transforms[c] != null) {
+                        value = DatasetSchema.TRANSFORM_SUPPRESS.equals(transforms[c])
+                                ? "" : identifiers.token(value, transforms[c]);
+                    }
+                    CsvTable.appendField(line, value, delimiter);
+                }
+                writers[shard].write(line.append('\n').toString());
+            });
+        } finally {
+            for (Writer writer : writers) {
+                if (writer != null) {
+                    writer.close();
+                }
+            }
+        }
+        return spools;
+    }
+
+    /**
+     * Waits for the next claim of a box, or for the last summary.
+     *
+     * @return The claim, or SUMMARIES_DONE
+     * @throws IOException If nothing arrives before the deadline
+     */
+    private JsonObject nextClaim(Job job, List<Shard> shards, long deadline) throws IOException {
+        try {
+            JsonObject claim = job.claims.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            if (claim != null) {
+                return claim;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the shards", e);
+        }
+        List<Integer> missing = new ArrayList<>();
+        for (Shard shard : shards) {
+            if (!job.summaries.containsKey(shard.getIndex())) {
+                missing.add(shard.getIndex());
+            }
+        }
+        throw new IOException("Shards " + missing + " were not anonymized within " + timeoutSeconds + " s");
+    }
+
+    /**
+     * Streams the spool file of a box to a worker in chunks of CHUNK_CHARS, at most WINDOW_CHUNKS
+     * of them unacknowledged, and deletes it. Runs on a transfer thread of the run.
+     */
+    private void stream(Job job, String jobId, int shard, String worker, File spool, long deadline)
+            throws IOException {
+        char[] buffer = new char[CHUNK_CHARS];
+        long sequence = 0;
+        try (PushbackReader reader = new PushbackReader(Files.newBufferedReader(spool.toPath(), StandardCharsets.UTF_8))) {
+            // The spool holds at least the header row, so there is a first chunk
+            String chunk = readChunk(reader, buffer);
+            while (chunk != null) {
+                String following = readChunk(reader, buffer);
+                awaitReceived(job, shard, sequence + 1 - WINDOW_CHUNKS, deadline);
+                JsonObject message = new JsonObject();
+                message.addProperty("jobId", jobId);
+                message.addProperty("shard", shard);
+                message.addProperty("sequence", sequence);
+                message.addProperty("last", following == null);
+                message.addProperty("rows", chunk);
+                publish(DATA_TOPIC + worker, message, "chunk " + sequence + " of shard " + shard);
+                sequence++;
+                chunk = following;
+            }
+        }
+        Files.deleteIfExists(spool.toPath());
+    }
+
+    /**
+     * Reads up to buffer.length characters; a surrogate pair is never split across chunks.
+     *
+     * @return The characters, or null at the end of the file
+     */
+    private static String readChunk(PushbackReader reader, char[] buffer) throws IOException {
+        int length = 0;
+        while (length < buffer.length) {
+            int read = reader.read(buffer, length, buffer.length - length);
+            if (read < 0) {
+                break;
+            }
+            length += read;
+        }
+        if (length == buffer.length && Character.isHighSurrogate(buffer[length - 1])) {
+            reader.unread(buffer[--length]);
+        }
+        return length > 0 ? new String(buffer, 0, length) : null;
+    }
+
+    /**
+     * Waits until the worker of a box acknowledged a number of its chunks.
+     */
+    private void awaitReceived(Job job, int shard, long chunks, long deadline) throws IOException {
+        synchronized (job) {
+            while (job.received.getOrDefault(shard, 0L) < chunks) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new IOException("Shard " + shard + " was not received within " + timeoutSeconds + " s");
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(job, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while streaming shard " + shard, e);
+                }
+            }
+        }
+    }
+
+    private void publish(String topic, JsonObject message, String what) throws IOException {
+        try {
+            connection.publish(topic, gson.toJson(message).getBytes(StandardCharsets.UTF_8));
+        } catch (MqttException e) {
+            throw new IOException("Failed to publish " + what + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Verifies the summaries of a run: every shard succeeded with all its rows in classes of at
+     * least k rows, and so does every class of the merged output.
+     *
+     * @return The rows of every class of the merged output, by its generalized values
+     */
+    private static Map<List<String>, Long> verify(Job job, List<Shard> shards, int k, long totalRows) {
+        Map<List<String>, Long> merged = new HashMap<>();
+        long rows = 0;
+        for (Shard shard : shards) {
+            JsonObject summary = job.summaries.get(shard.getIndex());
+            if (!"done".equals(summary.get("status").getAsString())) {
+                throw new IllegalStateException("Shard " + shard.getIndex() + " failed: "
+                        + (summary.has("error") ? summary.get("error").getAsString() : "unknown error"));
+            }
+            long shardRows = 0;
+            for (JsonElement element : summary.getAsJsonArray("classes")) {
+                // [size, generalized value of every quasi-identifier]
+                JsonArray summaryClass = element.getAsJsonArray();
+                long size = summaryClass.get(0).getAsLong();
+                if (size < k) {
+                    throw new IllegalStateException("Shard " + shard.getIndex() + " has a class of " + size
+                            + " rows, K = " + k);
+                }
+                List<String> values = new ArrayList<>(summaryClass.size() - 1);
+                for (int i = 1; i < summaryClass.size(); i++) {
+                    values.add(summaryClass.get(i).getAsString());
+                }
+                merged.merge(values, size, Long::sum);
+                shardRows += size;
+            }
+            if (shardRows != shard.getRows()) {
+                throw new IllegalStateException("Shard " + shard.getIndex() + " returned " + shardRows + " of its "
+                        + shard.getRows() + " rows");
+            }
+            rows += shardRows;
+        }
+        if (rows != totalRows) {
+            throw new IllegalStateException("The shards hold " + rows + " of " + totalRows + " rows");
+        }
+        for (Map.Entry<List<String>, Long> entry : merged.entrySet()) {
+            if (entry.getValue() < k) {
+                throw new IllegalStateException("Class " + entry.getKey() + " has " + entry.getValue() + " rows, K = " + k);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Records a claim or an acknowledgement of a worker. Runs on the broker thread.
+     */
+    private void onTransfer(String topic, byte[] payload) {
+        JsonObject transfer;
+        try {
+            transfer = JsonParser.parseString(new String(payload, StandardCharsets.UTF_8)).getAsJsonObject();
+        } catch (JsonParseException | IllegalStateException e) {
+            System.err.println("Invalid transfer on " + topic + ": " + e.getMessage());
+            return;
+        }
+        Job job = transfer.has("jobId") ? jobs.get(transfer.get("jobId").getAsString()) : null;
+        if (job == null || !transfer.has("shard") || !transfer.has("worker") || !transfer.has("received")) {
+            return; // another coordinator's, or a run that ended
+        }
+        long received = transfer.get("received").getAsLong();
+        if (received == 0) {
+            job.claims.add(transfer);
+            return;
+        }
+        synchronized (job) {
+            job.received.merge(transfer.get("shard").getAsInt(), received, Math::max);
+            job.notifyAll();
+        }
+    }
+
+    /**
+     * Records the summary of a shard. Runs on the broker thread.
+     */
+    private void onSummary(String topic, byte[] payload) {
+        JsonObject summary;
+        try {
+            summary = JsonParser.parseString(new String(payload, StandardCharsets.UTF_8)).getAsJsonObject();
+        } catch (JsonParseException | IllegalStateException e) {
+            System.err.println("Invalid summary on " + topic + ": " + e.getMessage());
+            return;
+        }
+        Job job = summary.has("jobId") ? jobs.get(summary.get("jobId").getAsString()) : null;
+        if (job == null || !summary.has("shard")) {
+            return; // another coordinator's, or a run that timed out
+        }
+        // A shard delivered twice (QoS 1) counts once
+        if (job.summaries.putIfAbsent(summary.get("shard").getAsInt(), summary) == null) {
+            job.done.countDown();
+            if (job.done.getCount() == 0) {
+                job.claims.add(SUMMARIES_DONE);
+            }
+        }
+    }
+
+    /**
+     * Disconnects from the MQTT broker.
+     */
+    @Override
+    public void close() {
+        connection.close();
+    }
+}
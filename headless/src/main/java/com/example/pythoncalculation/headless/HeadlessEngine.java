@@ -0,0 +1,538 @@
+package com.example.pythoncalculation.headless;
+
+import com.example.pythoncalculation.engine.MondrianPartitioner;
+import com.example.pythoncalculation.pipeline.AdmissionController;
+import com.example.pythoncalculation.pipeline.JobFootprint;
+import com.example.pythoncalculation.trace.PartitionProfile;
+import com.example.pythoncalculation.trace.Tracer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs a Mondrian anonymization on the JVM, without Android or Python.
+ *
+ * The steps are those of mondrian.run_anonymize_to_file() with exact median cuts:
+ * 1. read the input, without the suppressed identifiers, and transform the other identifiers
+ * 2. encode the quasi-identifiers as leaf IDs of their hierarchies
+ * 3. partition with MondrianPartitioner, the Java counterpart of mondrian.anonymize()
+ * 4. collect the information-loss metrics of the partitions
+ * 5. generalize every distinct range to the common ancestor of its leaves, or to "low-high" of
+ *    the original values for numeric ranges
+ * 6. write the rows in partition order, with the suppressed identifiers as SUPPRESSED
+ * Columns are encoded, generalized and formatted in parallel on a pool of the given number of
+ * threads. The partitioner and the hierarchy trees are kept between runs, so a worker that runs
+ * many commands reuses them.
+ *
+ * A run and each of its steps are Tracer sections ("headless <step>"); with profiling on, the
+ * result also holds the PartitionProfile of the partitioner.
+ *
+ * Engines that share a heap (the workers of a load test) can share an AdmissionController: a run
+ * then reserves its estimated peak memory (JobFootprint.javaEngineBytes()) before it reads its
+ * input, and waits while the other runs hold the budget.
+ *
+ * An instance runs one command at a time.
+ */
+public final class HeadlessEngine implements AutoCloseable {
+
+    public static final String SUPPRESSED = "****";
+    private static final int FORMAT_BLOCK_ROWS = 65536;
+
+    /**
+     * The outcome of a run.
+     */
+    public static final class Result {
+        private final InfoLossMetrics metrics;
+        private final String preview;
+        private final File output;
+        private final int rowCount;
+        private final long elapsedMs;
+        private final String profile;
+
+        Result(InfoLossMetrics metrics, String preview, File output, int rowCount, long elapsedMs, String profile) {
+            this.metrics = metrics;
+            this.preview = preview;
+            this.output = output;
+            this.rowCount = rowCount;
+            this.elapsedMs = elapsedMs;
+            this.profile = profile;
+        }
+
+        public InfoLossMetrics getMetrics() {
+            return metrics;
+        }
+
+        public String getPreview() {
+            return preview;
+        }
+
+        public File getOutput() {
+            return output;
+        }
+
+        public int getRowCount() {
+            return rowCount;
+        }
+
+        public long getElapsedMs() {
+            return elapsedMs;
+        }
+
+        /**
+         * Get the partition profile summary of the run.
+         *
+         * @return The summary, or null if profiling was off
+         */
+        public String getProfile() {
+            return profile;
+        }
+
+        /**
+         * Get the result text of a command, like AnonymizationService publishes it:
+         * the metrics summary (and the profile, if any), a blank line and the preview.
+         */
+        public String toResultText() {
+            return metrics.summary() + (profile != null ? "\n" + profile : "") + "\n\n" + preview;
+        }
+    }
+
+    private final int threads;
+    private final ExecutorService pool;
+    private final IdentifierTransform identifiers;
+    // hierarchy file -> (last modified, tree)
+    private final Map<File, Object[]> treeCache = new HashMap<>();
+    private MondrianPartitioner partitioner;
+    private int rowCapacity;
+    private int qiCapacity;
+    private final PartitionProfile profile = new PartitionProfile();
+    private volatile boolean profiling;
+    private boolean stepOpen;
+    private volatile AdmissionController admission;
+
+    /**
+     * @param threads The threads used inside a run
+     * @param keyFile The identifier key of pseudonymized and encrypted identifiers
+     * @throws IOException If the key cannot be read or created
+     */
+    public HeadlessEngine(int threads, File keyFile) throws IOException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Threads must be at least 1");
+        }
+        this.threads = threads;
+        this.pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "engine");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.identifiers = new IdentifierTransform(keyFile);
+    }
+
+    /**
+     * Anonymizes a data set with exact median cuts.
+     *
+     * @param schema The data set; its engine must be "mondrian"
+     * @param k The K value, from 1 to the number of records
+     * @param output The anonymized output file
+     * @return The metrics and preview of the run
+     * @throws IOException If a file cannot be read or written
+     * @throws IllegalArgumentException If the data set or K is not supported
+     */
+    public synchronized Result run(DatasetSchema schema, int k, File output) throws IOException {
+        AdmissionController.Reservation reservation = admit(schema);
+        Tracer.begin("headless run K=" + k + " " + schema.getDatasetId());
+        try {
+            return runSteps(schema, k, output);
+        } finally {
+            endStep();
+            Tracer.end();
+            if (reservation != null) {
+                reservation.close();
+            }
+        }
+    }
+
+    /**
+     * Reserves the estimated peak memory of a run on the admission controller, if there is one.
+     *
+     * @return The reservation, or null without an admission controller
+     */
+    private AdmissionController.Reservation admit(DatasetSchema schema) throws IOException {
+        AdmissionController controller = admission;
+        if (controller == null) {
+            return null;
+        }
+        Set<String> suppressed = suppressedColumns(schema);
+        int columns = 0;
+        for (String name : CsvTable.readHeader(schema.getPath(), schema.getDelimiter())) {
+            if (!suppressed.contains(name)) {
+                columns++;
+            }
+        }
+        JobFootprint footprint = new JobFootprint(CsvTable.estimateRows(schema.getPath()), columns,
+                schema.getQiList().size(), false, JobFootprint.ENGINE_MONDRIAN);
+        try {
+            return controller.admit(footprint.javaEngineBytes(), false, null);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for memory");
+        }
+    }
+
+    /**
+     * Get the identifiers that are suppressed, and therefore not read.
+     */
+    private static Set<String> suppressedColumns(DatasetSchema schema) {
+        Set<String> suppressed = new HashSet<>();
+        for (Map.Entry<String, String> identifier : schema.getIdentifierTransforms().entrySet()) {
+            if (DatasetSchema.TRANSFORM_SUPPRESS.equals(identifier.getValue())) {
+                suppressed.add(identifier.getKey());
+            }
+        }
+        return suppressed;
+    }
+
+    /**
+     * Begins the trace section of the next step of a run, ending the one of the previous step.
+     */
+    private void step(String name) {
+        endStep();
+        Tracer.begin(name);
+        stepOpen = true;
+    }
+
+    private void endStep() {
+        if (stepOpen) {
+            stepOpen = false;
+            Tracer.end();
+        }
+    }
+
+    private Result runSteps(DatasetSchema schema, int k, File output) throws IOException {
+        long start = System.nanoTime();
+        if (!"mondrian".equals(schema.getEngine())) {
+            throw new IllegalArgumentException("Dataset '" + schema.getDatasetId() + "' uses engine '"
+                    + schema.getEngine() + "', the headless runner needs 'mondrian'");
+        }
+        List<String> qiList = schema.getQiList();
+        int qiCount = qiList.size();
+
+        // Step 1: read, without the suppressed identifiers
+        step("headless read");
+        Set<String> suppressed = suppressedColumns(schema);
+        CsvTable table = CsvTable.read(schema.getPath(), schema.getDelimiter(), suppressed);
+        int rowCount = table.getRowCount();
+        if (k < 1) {
+            throw new IllegalArgumentException("K must be at least 1");
+        }
+        if (k > rowCount) {
+            throw new IllegalArgumentException("K = " + k + " is larger than the number of records (" + rowCount + ")");
+        }
+        for (Map.Entry<String, String> identifier : schema.getIdentifierTransforms().entrySet()) {
+            String[] values = table.column(identifier.getKey());
+            if (values != null && !suppressed.contains(identifier.getKey())) {
+                table.setColumn(identifier.getKey(), identifiers.transformColumn(values, identifier.getValue(), pool));
+            }
+        }
+
+        // Step 2: encode the quasi-identifiers, one column per task
+        step("headless encode");
+        HierarchyTree[] trees = new HierarchyTree[qiCount];
+        for (int i = 0; i < qiCount; i++) {
+            trees[i] = hierarchyTree(schema, qiList.get(i));
+        }
+        int[] codes = new int[qiCount * rowCount];
+        List<Callable<Void>> encoders = new ArrayList<>();
+        for (int i = 0; i < qiCount; i++) {
+            int qi = i;
+            String[] values = table.column(qiList.get(qi));
+            if (values == null) {
+                throw new IllegalArgumentException("Quasi-identifier '" + qiList.get(qi) + "' is not in " + schema.getPath());
+            }
+            encoders.add(() -> {
+                int unmapped = 0;
+                for (int row = 0; row < rowCount; row++) {
+                    Integer leafId = trees[qi].leafId(values[row]);
+                    if (leafId == null) {
+                        unmapped++;
+                    }
+                    codes[qi * rowCount + row] = leafId != null ? leafId : 1;
+                }
+                if (unmapped > 0) {
+                    System.err.println("Error: " + unmapped + " values of '" + qiList.get(qi)
+                            + "' not found in its hierarchy. They are mapped to leaf_id 1.");
+                }
+                return null;
+            });
+        }
+        invokeAll(encoders);
+
+        // Step 3: partition, on a partitioner kept while it is large enough
+        step("headless partition");
+        if (partitioner == null || rowCount > rowCapacity || qiCount > qiCapacity) {
+            rowCapacity = Math.max(rowCount, rowCapacity);
+            qiCapacity = Math.max(qiCount, qiCapacity);
+            partitioner = new MondrianPartitioner(rowCapacity, qiCapacity);
+        }
+        boolean profiled = profiling;
+        partitioner.setProfile(profiled ? profile : null);
+        int partitions = partitioner.partition(codes, qiCount, rowCount, k);
+        int[] perm = partitioner.getPerm();
+        int[] low = partitioner.getLow();
+        int[] high = partitioner.getHigh();
+
+        // Step 4: metrics, from the first row of every partition
+        step("headless metrics");
+        InfoLossMetrics metrics = new InfoLossMetrics(schema, trees, k);
+        int[] offsets = partitioner.getPartitionOffsets();
+        int[] partitionLow = new int[qiCount];
+        int[] partitionHigh = new int[qiCount];
+        for (int p = 0; p < partitions; p++) {
+            int offset = offsets[p];
+            int end = p + 1 < partitions ? offsets[p + 1] : rowCount;
+            for (int qi = 0; qi < qiCount; qi++) {
+                partitionLow[qi] = low[qi * rowCount + offset];
+                partitionHigh[qi] = high[qi * rowCount + offset];
+            }
+            metrics.addPartition(end - offset, partitionLow, partitionHigh);
+        }
+
+        // Step 5: generalized labels per quasi-identifier, each distinct range resolved once
+        step("headless generalize");
+        String[][] labels = new String[qiCount][];
+        List<Callable<Void>> generalizers = new ArrayList<>();
+        for (int i = 0; i < qiCount; i++) {
+            int qi = i;
+            boolean asRange = schema.isNumericRange(qiList.get(qi));
+            generalizers.add(() -> {
+                Map<Long, String> cache = new HashMap<>();
+                String[] column = new String[rowCount];
+                int base = qi * rowCount;
+                for (int row = 0; row < rowCount; row++) {
+                    int leaf1 = low[base + row];
+                    int leaf2 = high[base + row];
+                    long key = (long) leaf1 << 32 | (leaf2 & 0xFFFFFFFFL);
+                    String label = cache.get(key);
+                    if (label == null) {
+                        label = trees[qi].label(leaf1, leaf2, asRange);
+                        cache.put(key, label);
+                    }
+                    column[row] = label;
+                }
+                labels[qi] = column;
+                return null;
+            });
+        }
+        invokeAll(generalizers);
+
+        // Step 6: write, quasi-identifiers in output order, the other columns through perm
+        step("headless write");
+        String[] header = table.getHeader();
+        String[][] columns = new String[header.length][];
+        boolean[] inOutputOrder = new boolean[header.length];
+        for (int c = 0; c < header.length; c++) {
+            int qi = qiList.indexOf(header[c]);
+            inOutputOrder[c] = qi >= 0;
+            columns[c] = qi >= 0 ? labels[qi] : suppressed.contains(header[c]) ? null : table.column(header[c]);
+        }
+        write(output, header, columns, inOutputOrder, perm, rowCount, schema.getDelimiter());
+        String preview = preview(schema, header, columns, inOutputOrder, perm, rowCount);
+        return new Result(metrics, preview, output, rowCount, (System.nanoTime() - start) / 1_000_000,
+                profiled ? profile.summary() : null);
+    }
+
+    /**
+     * Get the value of a cell of the output.
+     *
+     * @param position The output row
+     */
+    private static String cell(String[][] columns, boolean[] inOutputOrder, int c, int[] perm, int position) {
+        String[] column = columns[c];
+        if (column == null) {
+            return SUPPRESSED;
+        }
+        return column[inOutputOrder[c] ? position : perm[position]];
+    }
+
+    /**
+     * Writes the output in blocks of FORMAT_BLOCK_ROWS rows, one block per thread at a time:
+     * the blocks are formatted in parallel and written in order.
+     */
+    private void write(File output, String[] header, String[][] columns, boolean[] inOutputOrder, int[] perm,
+                       int rowCount, char delimiter) throws IOException {
+        File dir = output.getAbsoluteFile().getParentFile();
+        if (dir != null) {
+            Files.createDirectories(dir.toPath());
+        }
+        try (Writer writer = Files.newBufferedWriter(output.toPath(), StandardCharsets.UTF_8)) {
+            StringBuilder line = new StringBuilder();
+            for (int c = 0; c < header.length; c++) {
+                if (c > 0) {
+                    line.append(delimiter);
+                }
+                CsvTable.appendField(line, header[c], delimiter);
+            }
+            writer.write(line.append('\n').toString());
+
+            int start = 0;
+            while (start < rowCount) {
+                List<Future<String>> blocks = new ArrayList<>();
+                for (int t = 0; t < threads && start < rowCount; t++) {
+                    int from = start;
+                    int to = Math.min(rowCount, start + FORMAT_BLOCK_ROWS);
+                    blocks.add(pool.submit(() -> {
+                        StringBuilder block = new StringBuilder();
+                        for (int position = from; position < to; position++) {
+                            for (int c = 0; c < header.length; c++) {
+                                if (c > 0) {
+                                    block.append(delimiter);
+                                }
+                                CsvTable.appendField(block, cell(columns, inOutputOrder, c, perm, position), delimiter);
+                            }
+                            block.append('\n');
+                        }
+                        return block.toString();
+                    }));
+                    start = to;
+                }
+                for (Future<String> block : blocks) {
+                    writer.write(get(block));
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the preview rows and columns of the data set as a right-aligned text table,
+     * the part of the output the app shows. Falls back to the first 6 columns.
+     */
+    private static String preview(DatasetSchema schema, String[] header, String[][] columns, boolean[] inOutputOrder,
+                                  int[] perm, int rowCount) {
+        List<Integer> shown = new ArrayList<>();
+        for (String name : schema.getPreviewColumns()) {
+            for (int c = 0; c < header.length; c++) {
+                if (header[c].equals(name)) {
+                    shown.add(c);
+                }
+            }
+        }
+        if (shown.isEmpty()) {
+            for (int c = 0; c < Math.min(6, header.length); c++) {
+                shown.add(c);
+            }
+        }
+        int first = Math.min(schema.getPreviewFirst(), rowCount);
+        int last = Math.min(schema.getPreviewLast(), rowCount);
+
+        String[][] cells = new String[last - first + 1][shown.size() + 1];
+        cells[0][0] = "";
+        for (int j = 0; j < shown.size(); j++) {
+            cells[0][j + 1] = header[shown.get(j)];
+        }
+        for (int position = first; position < last; position++) {
+            String[] row = cells[position - first + 1];
+            row[0] = Integer.toString(position - first);
+            for (int j = 0; j < shown.size(); j++) {
+                row[j + 1] = cell(columns, inOutputOrder, shown.get(j), perm, position);
+            }
+        }
+        int[] widths = new int[shown.size() + 1];
+        for (String[] row : cells) {
+            for (int j = 0; j < row.length; j++) {
+                widths[j] = Math.max(widths[j], row[j].length());
+            }
+        }
+        StringBuilder text = new StringBuilder();
+        for (String[] row : cells) {
+            for (int j = 0; j < row.length; j++) {
+                if (j > 0) {
+                    text.append("  ");
+                }
+                for (int pad = row[j].length(); pad < widths[j]; pad++) {
+                    text.append(' ');
+                }
+                text.append(row[j]);
+            }
+            text.append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Set the admission controller shared with other engines on the same heap.
+     *
+     * @param admission The controller, or null to run without admission control
+     */
+    public void setAdmission(AdmissionController admission) {
+        this.admission = admission;
+    }
+
+    /**
+     * Set whether the following runs record a PartitionProfile.
+     *
+     * @param profiling True to profile the partitioning
+     */
+    public void setProfiling(boolean profiling) {
+        this.profiling = profiling;
+    }
+
+    private HierarchyTree hierarchyTree(DatasetSchema schema, String qi) throws IOException {
+        File file = schema.getHierarchyFiles().get(qi);
+        if (file == null) {
+            throw new IllegalArgumentException("Quasi-identifier '" + qi + "' has no hierarchy file");
+        }
+        long modified = file.lastModified();
+        Object[] cached = treeCache.get(file);
+        if (cached != null && (Long) cached[0] == modified) {
+            return (HierarchyTree) cached[1];
+        }
+        HierarchyTree tree = new HierarchyTree(file);
+        treeCache.put(file, new Object[] {modified, tree});
+        return tree;
+    }
+
+    private void invokeAll(List<Callable<Void>> tasks) {
+        try {
+            for (Future<Void> future : pool.invokeAll(tasks)) {
+                get(future);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted", e);
+        }
+    }
+
+    private static <T> T get(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    @Override
+    public void close() {
+        pool.shutdownNow();
+    }
+}
@@ -0,0 +1,331 @@
+package com.example.pythoncalculation.headless;
+
+import com.example.pythoncalculation.pipeline.AdmissionController;
+import com.example.pythoncalculation.trace.Tracer;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Command-line entry point of the headless runner.
+ *
+ * One run:
+ *   headless --input dataset.csv --k 10 --schema datasets.json --out k_10.csv [--dataset standard] [--threads 4]
+ * The data set is looked up in the descriptor by --dataset, else by the file name of --input;
+ * --input replaces its file. The metrics are printed in the format of the app.
+ *
+ * Worker:
+ *   headless --worker --broker tcp://host:1883 --schema datasets.json --out output/ [--group servers]
+ * takes commands from anonymization/commands like the app and writes the files to --out.
+ *
+ * Load test:
+ *   headless --load --schema datasets.json --out output/ --mix standard:10:3,wearable:5 --count 200 --rate 2
+ * runs --workers workers on an in-process broker and sends them a generated (--mix, --count,
+ * --rate, --seed) or replayed (--replay) stream of commands, at most --concurrency in flight.
+ * --record saves the stream for --replay, --report writes the latency histogram (.hgrm).
+ * The workers share one AdmissionController over the heap (--memory-budget MB, default: three
+ * quarters of the maximum heap), so concurrent runs queue instead of running out of memory.
+ *
+ * Distributed run:
+ *   headless --distributed --schema datasets.json --dataset standard --k 10 --out k_10.json [--workers 4] [--shards 4]
+ * cuts the data set into --shards boxes (default: --workers) and anonymizes them on --workers
+ * ShardWorkers on an in-process broker, or, with --broker, on the shard workers connected to that
+ * broker (headless --shard-worker --broker tcp://host:1883 --schema datasets.json [--out parts/]).
+ * The workers keep the anonymized parts and --out is their manifest. The merged output is verified
+ * to be k-anonymous; --timeout bounds the transfer and the anonymization of the shards.
+ *
+ * All modes accept --threads (default: the available processors) and --key, the identifier key
+ * of pseudonymized and encrypted identifiers (default: ~/keys/identifier.key, as on the device).
+ * --trace jfr records the trace sections as JFR events (while a flight recording runs, e.g. with
+ * -XX:StartFlightRecording), --profile adds the partition profile of every run to its metrics.
+ */
+public final class HeadlessMain {
+
+    private static final String USAGE = String.join("\n",
+            "Usage:",
+            "  headless --input <csv> --k <k> --schema <datasets.json> --out <csv> [--dataset <id>] [--threads <n>] [--key <file>]",
+            "  headless --worker --broker <url> --schema <datasets.json> --out <dir> [--group <name>] [--client-id <id>]",
+            "  headless --load --schema <datasets.json> --out <dir> (--mix <dataset:k[:weight],...> --count <n> | --replay <file>)",
+            "           [--rate <commands/s>] [--concurrency <n>] [--workers <n>] [--seed <n>] [--record <file>]",
+            "           [--report <file.hgrm>] [--timeout <s>] [--memory-budget <MB>]",
+            "  headless --distributed --schema <datasets.json> --dataset <id> --k <k> --out <manifest.json> [--input <csv>]",
+            "           [--workers <n>] [--shards <n>] [--broker <url>] [--timeout <s>]",
+            "  headless --shard-worker --broker <url> --schema <datasets.json> [--out <dir>] [--client-id <id>]",
+            "  All modes: [--threads <n>] [--key <file>] [--trace jfr] [--profile]");
+
+    private HeadlessMain() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options;
+        try {
+            options = parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+        int threads = options.containsKey("threads")
+                ? Integer.parseInt(options.get("threads")) : Runtime.getRuntime().availableProcessors();
+        File keyFile = options.containsKey("key")
+                ? new File(options.get("key")) : new File(System.getProperty("user.home"), "keys/identifier.key");
+        File descriptor = new File(require(options, "schema"));
+        if (options.containsKey("trace")) {
+            if (!"jfr".equals(options.get("trace"))) {
+                System.err.println("Unknown --trace backend '" + options.get("trace") + "'");
+                System.exit(2);
+                return;
+            }
+            Tracer.setBackend(new JfrTraceBackend());
+        }
+        boolean profiling = options.containsKey("profile");
+
+        if (options.containsKey("load")) {
+            System.exit(runLoad(options, descriptor, threads, keyFile, profiling));
+            return;
+        }
+
+        if (options.containsKey("distributed")) {
+            System.exit(runDistributed(options, descriptor, threads, keyFile));
+            return;
+        }
+
+        HeadlessEngine engine = new HeadlessEngine(threads, keyFile);
+        engine.setProfiling(profiling);
+        if (options.containsKey("shard-worker")) {
+            String clientId = options.containsKey("client-id")
+                    ? options.get("client-id") : "shard-" + InetAddress.getLocalHost().getHostName();
+            File parts = options.containsKey("out") ? new File(options.get("out")) : Files.createTempDirectory("shards").toFile();
+            ShardWorker worker = new ShardWorker(descriptor, parts, engine);
+            CountDownLatch stopped = new CountDownLatch(1);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                worker.stop();
+                engine.close();
+                stopped.countDown();
+            }));
+            worker.start(require(options, "broker"), clientId);
+            System.out.println("Waiting for shards on " + DistributedCoordinator.SHARD_TOPIC + ", parts go to " + parts);
+            stopped.await();
+            return;
+        }
+        if (options.containsKey("worker")) {
+            String clientId = options.containsKey("client-id")
+                    ? options.get("client-id") : "headless-" + InetAddress.getLocalHost().getHostName();
+            MqttWorker worker = new MqttWorker(require(options, "broker"), clientId, options.get("group"),
+                    descriptor, new File(require(options, "out")), engine);
+            CountDownLatch stopped = new CountDownLatch(1);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                worker.stop();
+                engine.close();
+                stopped.countDown();
+            }));
+            worker.start();
+            stopped.await();
+            return;
+        }
+
+        try {
+            File input = new File(require(options, "input"));
+            int k = Integer.parseInt(require(options, "k"));
+            DatasetSchema schema = DatasetSchema.find(DatasetSchema.load(descriptor),
+                    options.getOrDefault("dataset", input.getName())).withPath(input);
+            HeadlessEngine.Result result = engine.run(schema, k, new File(require(options, "out")));
+            System.out.println(result.getMetrics().summary());
+            if (result.getProfile() != null) {
+                System.out.println(result.getProfile());
+            }
+            System.out.println();
+            System.out.print(result.getPreview());
+            System.out.println("Anonymized " + result.getRowCount() + " rows to " + result.getOutput() + " in "
+                    + result.getElapsedMs() + " ms");
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(1);
+        } finally {
+            engine.close();
+        }
+    }
+
+    /**
+     * Runs a load test against workers on an in-process broker.
+     *
+     * @return The exit code: 0 if every command succeeded, 1 otherwise
+     */
+    private static int runLoad(Map<String, String> options, File descriptor, int threads, File keyFile,
+                               boolean profiling) throws IOException, InterruptedException {
+        // Step 1: Plan the stream
+        List<LoadGenerator.PlannedCommand> plan;
+        double rate = Double.parseDouble(options.getOrDefault("rate", "0"));
+        boolean openLoop = rate > 0;
+        try {
+            if (options.containsKey("replay")) {
+                plan = LoadGenerator.replay(new File(options.get("replay")));
+                openLoop = true;
+            } else {
+                plan = LoadGenerator.generate(LoadGenerator.MixEntry.parse(require(options, "mix")),
+                        Integer.parseInt(require(options, "count")), rate,
+                        Long.parseLong(options.getOrDefault("seed", "1")));
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            return 1;
+        }
+        if (options.containsKey("record")) {
+            LoadGenerator.record(plan, new File(options.get("record")));
+        }
+
+        // Step 2: Start the workers, each with its own engine and output directory
+        int workerCount = Integer.parseInt(options.getOrDefault("workers", "1"));
+        int concurrency = Integer.parseInt(options.getOrDefault("concurrency", String.valueOf(workerCount)));
+        File outputDir = new File(require(options, "out"));
+        AdmissionController admission = new AdmissionController(options.containsKey("memory-budget")
+                ? Long.parseLong(options.get("memory-budget")) << 20 : AdmissionController.budgetFromMaxHeap());
+        List<HeadlessEngine> engines = new ArrayList<>();
+        List<MqttWorker> workers = new ArrayList<>();
+        LoadGenerator.Report report;
+        try (InProcessBroker broker = new InProcessBroker()) {
+            try {
+                for (int i = 1; i <= workerCount; i++) {
+                    HeadlessEngine engine = new HeadlessEngine(Math.max(1, threads / workerCount), keyFile);
+                    engine.setProfiling(profiling);
+                    engine.setAdmission(admission);
+                    engines.add(engine);
+                    MqttWorker worker = new MqttWorker(null, "load-worker-" + i, workerCount > 1 ? "load" : null,
+                            descriptor, new File(outputDir, "worker-" + i), engine);
+                    worker.setVerbose(false);
+                    worker.start(broker);
+                    workers.add(worker);
+                }
+
+                // Step 3: Send the stream and report the latencies
+                System.out.println("Sending " + plan.size() + " commands to " + workerCount + " worker(s)"
+                        + (openLoop ? "" : " as fast as " + concurrency + " in flight allow"));
+                report = new LoadGenerator(broker, concurrency,
+                        Long.parseLong(options.getOrDefault("timeout", "600"))).run(plan, openLoop);
+            } finally {
+                for (MqttWorker worker : workers) {
+                    worker.stop();
+                }
+                for (HeadlessEngine engine : engines) {
+                    engine.close();
+                }
+            }
+        }
+        System.out.println(report.summary());
+        if (options.containsKey("report")) {
+            report.writeHistogram(new File(options.get("report")));
+            System.out.println("Latency histogram written to " + options.get("report"));
+        }
+        return report.getFailed() == 0 && report.getLost() == 0 ? 0 : 1;
+    }
+
+    /**
+     * Runs a distributed anonymization, on local shard workers or on those of a broker.
+     *
+     * @return The exit code: 0 if the merged output was verified, 1 otherwise
+     */
+    private static int runDistributed(Map<String, String> options, File descriptor, int threads, File keyFile)
+            throws IOException, MqttException {
+        DatasetSchema schema;
+        int k;
+        try {
+            schema = DatasetSchema.find(DatasetSchema.load(descriptor), require(options, "dataset"));
+            if (options.containsKey("input")) {
+                schema = schema.withPath(new File(options.get("input")));
+            }
+            k = Integer.parseInt(require(options, "k"));
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            return 1;
+        }
+        int workerCount = Integer.parseInt(options.getOrDefault("workers", "2"));
+        int shards = Integer.parseInt(options.getOrDefault("shards", String.valueOf(workerCount)));
+        long timeout = Long.parseLong(options.getOrDefault("timeout", "600"));
+        File output = new File(require(options, "out"));
+
+        List<HeadlessEngine> engines = new ArrayList<>();
+        List<ShardWorker> workers = new ArrayList<>();
+        InProcessBroker broker = null;
+        DistributedCoordinator coordinator;
+        if (options.containsKey("broker")) {
+            coordinator = new DistributedCoordinator(options.get("broker"),
+                    "coordinator-" + InetAddress.getLocalHost().getHostName(), timeout, keyFile);
+        } else {
+            // Local shard workers, each with its own engine, on an in-process broker
+            broker = new InProcessBroker();
+            coordinator = new DistributedCoordinator(broker, timeout, keyFile);
+            for (int i = 1; i <= workerCount; i++) {
+                HeadlessEngine engine = new HeadlessEngine(Math.max(1, threads / workerCount), keyFile);
+                engines.add(engine);
+                ShardWorker worker = new ShardWorker(descriptor, Files.createTempDirectory("shard-worker-" + i).toFile(),
+                        engine);
+                worker.start(broker);
+                workers.add(worker);
+            }
+        }
+        try {
+            DistributedCoordinator.Result result = coordinator.run(schema, k, output, shards);
+            System.out.println(result.getMetrics().summary());
+            System.out.println();
+            System.out.print(result.getPreview());
+            System.out.println("Anonymized " + result.getRowCount() + " rows in " + result.getShards().size()
+                    + " shards, parts listed in " + result.getOutput() + ", in " + result.getElapsedMs() + " ms; "
+                    + result.getClassCount() + " classes of at least " + k + " rows");
+            return 0;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Error: " + e.getMessage());
+            return 1;
+        } finally {
+            coordinator.close();
+            for (ShardWorker worker : workers) {
+                worker.stop();
+            }
+            for (HeadlessEngine engine : engines) {
+                engine.close();
+            }
+            if (broker != null) {
+                broker.close();
+            }
+        }
+    }
+
+    /**
+     * Parses "--name value" pairs; --worker, --load, --distributed, --shard-worker and --profile take no value.
+     */
+    static Map<String, String> parse(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument '" + args[i] + "'");
+            }
+            String name = args[i].substring(2);
+            if (name.equals("worker") || name.equals("load") || name.equals("distributed") || name.equals("shard-worker")
+                    || name.equals("profile")) {
+                options.put(name, "true");
+            } else if (i + 1 < args.length) {
+                options.put(name, args[++i]);
+            } else {
+                throw new IllegalArgumentException("Missing value of --" + name);
+            }
+        }
+        return options;
+    }
+
+    private static String require(Map<String, String> options, String name) {
+        String value = options.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing --" + name);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,175 @@
+package com.example.pythoncalculation.headless;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Generalization hierarchy of one quasi-identifier, the Java counterpart of
+ * algorithm.hierarchy_tree.HierarchyTree.
+ *
+ * A hierarchy file has one row per leaf: the leaf ID, the leaf value, its ancestors and the root
+ * "*" last, e.g. "1,1,1-5,1-10,1-20,*". Node values are unique within a file, so nodes are looked
+ * up by value, and leaves by their ID, like the Python tree.
+ */
+public final class HierarchyTree {
+
+    /**
+     * A node of the tree.
+     */
+    static final class Node {
+        final String value;
+        final Node parent;
+        final int depth;
+        int leafCount;
+
+        Node(String value, Node parent) {
+            this.value = value;
+            this.parent = parent;
+            this.depth = parent != null ? parent.depth + 1 : 0;
+        }
+    }
+
+    private final Node root = new Node("*", null);
+    private final Map<String, Node> nodes = new HashMap<>();
+    private final Map<Integer, Node> leavesById = new HashMap<>();
+    private final Map<String, Integer> leafIdsByValue = new HashMap<>();
+
+    /**
+     * Reads a hierarchy file.
+     *
+     * @param file The hierarchy CSV
+     * @throws IOException If the file cannot be read
+     */
+    public HierarchyTree(File file) throws IOException {
+        nodes.put(root.value, root);
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] row = line.split(",", -1);
+                // From the root (last column) down to the leaf (second column)
+                Node parent = root;
+                for (int i = row.length - 2; i >= 1; i--) {
+                    Node node = nodes.get(row[i]);
+                    if (node == null) {
+                        node = new Node(row[i], parent);
+                        nodes.put(row[i], node);
+                    }
+                    parent = node;
+                }
+                int leafId = Integer.parseInt(row[0].trim());
+                leavesById.put(leafId, parent);
+                leafIdsByValue.put(parent.value, leafId);
+            }
+        }
+        for (Node leaf : leavesById.values()) {
+            for (Node node = leaf; node != null; node = node.parent) {
+                node.leafCount++;
+            }
+        }
+    }
+
+    /**
+     * Get the leaf ID of a value.
+     *
+     * @param value A leaf value
+     * @return The leaf ID, or null if the value is not a leaf
+     */
+    public Integer leafId(String value) {
+        return leafIdsByValue.get(value);
+    }
+
+    /**
+     * Get the value of a leaf.
+     *
+     * @param leafId A leaf ID
+     * @return The leaf value
+     */
+    public String leafValue(int leafId) {
+        return leaf(leafId).value;
+    }
+
+    /**
+     * Get the most specific node that covers two leaves.
+     * E.g. the common ancestor of 'Doctorate' and 'Masters' is 'Graduate'.
+     *
+     * @param leaf1Id The first leaf ID
+     * @param leaf2Id The second leaf ID
+     * @return The value of the common ancestor
+     */
+    public String commonAncestor(int leaf1Id, int leaf2Id) {
+        return commonAncestorNode(leaf1Id, leaf2Id).value;
+    }
+
+    /**
+     * Get the text that stands for a range of leaves in the output: the leaf value for a single
+     * leaf, "low-high" of the leaf values for a numeric range, otherwise the common ancestor.
+     *
+     * @param leaf1Id The lower leaf ID
+     * @param leaf2Id The upper leaf ID
+     * @param asRange Whether the quasi-identifier is published as a numeric range
+     * @return The published label
+     */
+    public String label(int leaf1Id, int leaf2Id, boolean asRange) {
+        if (leaf1Id == leaf2Id) {
+            return leafValue(leaf1Id);
+        }
+        return asRange ? leafValue(leaf1Id) + "-" + leafValue(leaf2Id) : commonAncestor(leaf1Id, leaf2Id);
+    }
+
+    /**
+     * Get the certainty penalty of a cell generalized to the common ancestor of two leaves:
+     * the leaves below the ancestor over all leaves, 0 for a single leaf.
+     */
+    public double penalty(int leaf1Id, int leaf2Id) {
+        if (leaf1Id == leaf2Id) {
+            return 0.0;
+        }
+        return (double) commonAncestorNode(leaf1Id, leaf2Id).leafCount / root.leafCount;
+    }
+
+    /**
+     * Get max - min of the leaf values of a numeric hierarchy, 1 if the span is empty.
+     */
+    public double numericSpan() {
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (Node leaf : leavesById.values()) {
+            double value = Double.parseDouble(leaf.value);
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        return max > min ? max - min : 1.0;
+    }
+
+    private Node leaf(int leafId) {
+        Node leaf = leavesById.get(leafId);
+        if (leaf == null) {
+            throw new IllegalArgumentException("Unknown leaf ID " + leafId);
+        }
+        return leaf;
+    }
+
+    private Node commonAncestorNode(int leaf1Id, int leaf2Id) {
+        Node a = leaf(leaf1Id);
+        Node b = leaf(leaf2Id);
+        while (a.depth > b.depth) {
+            a = a.parent;
+        }
+        while (b.depth > a.depth) {
+            b = b.parent;
+        }
+        while (a != b) {
+            a = a.parent;
+            b = b.parent;
+        }
+        return a;
+    }
+}
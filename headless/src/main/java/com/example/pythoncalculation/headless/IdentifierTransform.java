@@ -0,0 +1,226 @@
+package com.example.pythoncalculation.headless;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Pseudonymization and encryption of identifier columns, token for token the same as
+ * algorithm/identifier_transform.py for the same key file:
+ * - "pseudonymize": hex of a keyed BLAKE2b digest of 16 bytes
+ * - "encrypt": urlsafe base64 of a synthetic IV (keyed BLAKE2b of the value) followed by the
+ *   AES-256-CTR ciphertext
+ * The sub-keys are HMAC-SHA256 of the key file with a label. Only the distinct values of a column
+ * are transformed, in batches of BATCH_VALUES on the engine's thread pool, and the tokens are kept
+ * in a least-recently-used cache of MAX_CACHED_VALUES per transform, so a repeated identifier is
+ * processed once. Empty cells stay empty.
+ */
+final class IdentifierTransform {
+
+    static final int BATCH_VALUES = 4096;
+    static final int MAX_CACHED_VALUES = 1_000_000;
+    private static final int KEY_BYTES = 32;
+    private static final int TOKEN_BYTES = 16;
+
+    private final byte[] pseudonymizeKey;
+    private final byte[] cipherKey;
+    private final byte[] ivKey;
+    private final Map<String, Map<String, String>> tokenCache = new HashMap<>();
+
+    /**
+     * @param keyFile The identifier key, created with KEY_BYTES random bytes if it does not exist
+     * @throws IOException If the key cannot be read or created
+     */
+    IdentifierTransform(File keyFile) throws IOException {
+        byte[] key = loadKey(keyFile);
+        pseudonymizeKey = subkey(key, "pseudonymize");
+        cipherKey = subkey(key, "encrypt");
+        ivKey = subkey(key, "iv");
+        tokenCache.put(DatasetSchema.TRANSFORM_PSEUDONYMIZE, newCache());
+        tokenCache.put(DatasetSchema.TRANSFORM_ENCRYPT, newCache());
+    }
+
+    /**
+     * Creates a token cache that evicts its least recently used value beyond MAX_CACHED_VALUES.
+     * Callers synchronize on it.
+     */
+    private static Map<String, String> newCache() {
+        return new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > MAX_CACHED_VALUES;
+            }
+        };
+    }
+
+    private static byte[] loadKey(File keyFile) throws IOException {
+        if (!keyFile.exists()) {
+            File dir = keyFile.getAbsoluteFile().getParentFile();
+            if (dir != null) {
+                Files.createDirectories(dir.toPath());
+            }
+            byte[] key = new byte[KEY_BYTES];
+            new SecureRandom().nextBytes(key);
+            try {
+                Files.write(keyFile.toPath(), key, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                try {
+                    Files.setPosixFilePermissions(keyFile.toPath(), PosixFilePermissions.fromString("rw-------"));
+                } catch (UnsupportedOperationException e) {
+                    // Not a POSIX file system; the key keeps the default permissions
+                }
+            } catch (FileAlreadyExistsException e) {
+                // Created by a concurrent run
+            }
+        }
+        return Files.readAllBytes(keyFile.toPath());
+    }
+
+    private static byte[] subkey(byte[] key, String label) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(label.getBytes(StandardCharsets.US_ASCII));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HMAC-SHA256 is not available", e);
+        }
+    }
+
+    /**
+     * Transforms one value.
+     *
+     * @param value A non-empty value
+     * @param transform TRANSFORM_PSEUDONYMIZE or TRANSFORM_ENCRYPT
+     * @return Its token
+     */
+    String transform(String value, String transform) {
+        byte[] data = value.getBytes(StandardCharsets.UTF_8);
+        if (DatasetSchema.TRANSFORM_PSEUDONYMIZE.equals(transform)) {
+            StringBuilder hex = new StringBuilder(TOKEN_BYTES * 2);
+            for (byte b : Blake2b.digest(data, pseudonymizeKey, TOKEN_BYTES)) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        }
+        byte[] iv = Blake2b.digest(data, ivKey, 16);
+        try {
+            Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(iv));
+            byte[] ciphertext = cipher.doFinal(data);
+            byte[] token = new byte[iv.length + ciphertext.length];
+            System.arraycopy(iv, 0, token, 0, iv.length);
+            System.arraycopy(ciphertext, 0, token, iv.length, ciphertext.length);
+            return Base64.getUrlEncoder().encodeToString(token);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES-256-CTR is not available", e);
+        }
+    }
+
+    /**
+     * Transforms one cell through the token cache, for callers that stream rows instead of
+     * reading columns, e.g. the DistributedCoordinator.
+     *
+     * @param value The cell
+     * @param transform TRANSFORM_PSEUDONYMIZE or TRANSFORM_ENCRYPT
+     * @return Its token, or the empty string for an empty cell
+     */
+    String token(String value, String transform) {
+        if (value.isEmpty()) {
+            return "";
+        }
+        Map<String, String> cache = tokenCache.get(transform);
+        String token;
+        synchronized (cache) {
+            token = cache.get(value);
+        }
+        if (token == null) {
+            token = transform(value, transform);
+            synchronized (cache) {
+                cache.put(value, token);
+            }
+        }
+        return token;
+    }
+
+    /**
+     * Transforms the values of a column that are not cached yet, in parallel batches.
+     *
+     * @param values The column
+     * @param transform TRANSFORM_PSEUDONYMIZE or TRANSFORM_ENCRYPT
+     * @param pool The thread pool of the batches
+     * @return The transformed column
+     */
+    String[] transformColumn(String[] values, String transform, ExecutorService pool) {
+        Map<String, String> cache = tokenCache.get(transform);
+        Set<String> distinct = new LinkedHashSet<>();
+        for (String value : values) {
+            if (!value.isEmpty()) {
+                distinct.add(value);
+            }
+        }
+        // The tokens of this call: the cache may evict them while another column fills it
+        Map<String, String> found = new ConcurrentHashMap<>();
+        List<String> missing = new ArrayList<>();
+        synchronized (cache) {
+            for (String value : distinct) {
+                String token = cache.get(value);
+                if (token == null) {
+                    missing.add(value);
+                } else {
+                    found.put(value, token);
+                }
+            }
+        }
+        List<Future<?>> batches = new ArrayList<>();
+        for (int start = 0; start < missing.size(); start += BATCH_VALUES) {
+            List<String> batch = missing.subList(start, Math.min(missing.size(), start + BATCH_VALUES));
+            batches.add(pool.submit(() -> {
+                for (String value : batch) {
+                    found.put(value, transform(value, transform));
+                }
+            }));
+        }
+        for (Future<?> batch : batches) {
+            try {
+                batch.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while transforming identifiers", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Failed to transform identifiers", e.getCause());
+            }
+        }
+        synchronized (cache) {
+            for (String value : missing) {
+                cache.put(value, found.get(value));
+            }
+        }
+        String[] tokens = new String[values.length];
+        for (int i = 0; i < values.length; i++) {
+            tokens[i] = values[i].isEmpty() ? "" : found.get(values[i]);
+        }
+        return tokens;
+    }
+}
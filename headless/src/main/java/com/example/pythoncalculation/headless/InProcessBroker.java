@@ -0,0 +1,140 @@
+package com.example.pythoncalculation.headless;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process stand-in for the MQTT broker, so that the load generator and the workers run in one
+ * JVM without a network or an outside broker.
+ *
+ * It keeps the delivery semantics the app relies on:
+ * - a subscription receives the messages of its exact topic in publication order, on its own
+ *   delivery thread (like the Paho callback thread of a client)
+ * - subscriptions to $share/<group>/<topic> share the messages of the topic: each message goes
+ *   to one member of the group, in turn
+ * Messages are delivered once and never retained; wildcards are not supported.
+ */
+public final class InProcessBroker implements AutoCloseable {
+
+    private static final String SHARE_PREFIX = "$share/";
+
+    /**
+     * Receives the messages of a subscription.
+     */
+    public interface Listener {
+        void messageArrived(String topic, byte[] payload);
+    }
+
+    private static final class Subscription {
+        final String topic;
+        final String group;
+        final Listener listener;
+        final ExecutorService delivery;
+
+        Subscription(String topic, String group, Listener listener, String name) {
+            this.topic = topic;
+            this.group = group;
+            this.listener = listener;
+            this.delivery = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    // Next member of each shared group, by "<group>/<topic>"
+    private final Map<String, AtomicInteger> nextMember = new ConcurrentHashMap<>();
+    private final AtomicInteger subscriptionCount = new AtomicInteger();
+
+    /**
+     * Subscribes to a topic or, with a $share/<group>/ prefix, joins a shared subscription.
+     *
+     * @param filter The topic, optionally prefixed with $share/<group>/
+     * @param listener The listener of the messages
+     */
+    public void subscribe(String filter, Listener listener) {
+        String topic = filter;
+        String group = null;
+        if (filter.startsWith(SHARE_PREFIX)) {
+            int slash = filter.indexOf('/', SHARE_PREFIX.length());
+            if (slash < 0) {
+                throw new IllegalArgumentException("Invalid shared subscription '" + filter + "'");
+            }
+            group = filter.substring(SHARE_PREFIX.length(), slash);
+            topic = filter.substring(slash + 1);
+        }
+        subscriptions.add(new Subscription(topic, group, listener,
+                "broker-" + subscriptionCount.incrementAndGet()));
+    }
+
+    /**
+     * Publishes a message to the subscriptions of its topic.
+     *
+     * @param topic The topic
+     * @param payload The payload, not copied
+     */
+    public void publish(String topic, byte[] payload) {
+        // Step 1: Plain subscriptions each get the message, shared groups collect their members
+        Map<String, List<Subscription>> groups = null;
+        for (Subscription subscription : subscriptions) {
+            if (!subscription.topic.equals(topic)) {
+                continue;
+            }
+            if (subscription.group == null) {
+                deliver(subscription, topic, payload);
+            } else {
+                if (groups == null) {
+                    groups = new HashMap<>();
+                }
+                groups.computeIfAbsent(subscription.group, g -> new ArrayList<>()).add(subscription);
+            }
+        }
+        if (groups == null) {
+            return;
+        }
+        // Step 2: One member of each shared group gets the message, in turn
+        for (Map.Entry<String, List<Subscription>> entry : groups.entrySet()) {
+            List<Subscription> members = entry.getValue();
+            AtomicInteger next = nextMember.computeIfAbsent(entry.getKey() + "/" + topic, key -> new AtomicInteger());
+            deliver(members.get(Math.floorMod(next.getAndIncrement(), members.size())), topic, payload);
+        }
+    }
+
+    private static void deliver(Subscription subscription, String topic, byte[] payload) {
+        subscription.delivery.execute(() -> {
+            try {
+                subscription.listener.messageArrived(topic, payload);
+            } catch (RuntimeException e) {
+                System.err.println("Listener of " + topic + " failed: " + e);
+            }
+        });
+    }
+
+    /**
+     * Delivers the queued messages and stops the delivery threads.
+     */
+    @Override
+    public void close() {
+        for (Subscription subscription : subscriptions) {
+            subscription.delivery.shutdown();
+        }
+        try {
+            for (Subscription subscription : subscriptions) {
+                subscription.delivery.awaitTermination(10, TimeUnit.SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        subscriptions.clear();
+    }
+}
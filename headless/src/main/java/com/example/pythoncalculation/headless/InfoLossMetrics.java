@@ -0,0 +1,163 @@
+package com.example.pythoncalculation.headless;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Information-loss metrics of a run, the Java counterpart of mondrian.InfoLossMetrics, with the
+ * same summary line, so results of the app and of a server can be compared directly:
+ * - NCP: normalized certainty penalty, averaged over all cells (0 <= NCP <= 1)
+ * - DM: discernibility metric, the sum of the squared equivalence class sizes
+ * - average equivalence class size, also normalized by k (C_avg)
+ * Quasi-identifiers published as numeric ranges cost (high - low) / (max - min) of their leaf values.
+ * An equivalence class is a distinct tuple of published labels, as in the output: partitions whose
+ * ranges generalize to the same labels are one class.
+ */
+public final class InfoLossMetrics {
+
+    private final HierarchyTree[] trees;
+    private final double[] numericSpan;
+    private final boolean[] asRange;
+    private final List<Map<Long, Double>> penaltyCache;
+    private final List<Map<Long, String>> labelCache;
+    private final Map<List<String>, long[]> classes = new HashMap<>();
+    private final int k;
+    private double ncpSum;
+    private long rows;
+
+    /**
+     * @param schema The data set
+     * @param trees The hierarchy trees of its quasi-identifiers, in the order of getQiList()
+     * @param k The K value of the run
+     */
+    public InfoLossMetrics(DatasetSchema schema, HierarchyTree[] trees, int k) {
+        this.trees = trees;
+        this.k = k;
+        List<String> qiList = schema.getQiList();
+        numericSpan = new double[trees.length];
+        asRange = new boolean[trees.length];
+        penaltyCache = new ArrayList<>(trees.length);
+        labelCache = new ArrayList<>(trees.length);
+        for (int i = 0; i < trees.length; i++) {
+            asRange[i] = schema.isNumericRange(qiList.get(i));
+            numericSpan[i] = asRange[i] ? trees[i].numericSpan() : 0.0;
+            penaltyCache.add(new HashMap<>());
+            labelCache.add(new HashMap<>());
+        }
+    }
+
+    /**
+     * Adds the contribution of one finalized partition; it joins the class of its published labels.
+     *
+     * @param size The rows of the partition
+     * @param low The lower end of each quasi-identifier's range
+     * @param high The upper end of each quasi-identifier's range
+     */
+    public void addPartition(int size, int[] low, int[] high) {
+        String[] labels = new String[trees.length];
+        for (int i = 0; i < trees.length; i++) {
+            ncpSum += size * penalty(i, low[i], high[i]);
+            labels[i] = label(i, low[i], high[i]);
+        }
+        addClass(Arrays.asList(labels), size);
+        rows += size;
+    }
+
+    /**
+     * Adds the NCP of a shard anonymized elsewhere, e.g. by a ShardWorker, with the same
+     * hierarchies and K. Its classes are added with addClass(), so that classes of different
+     * shards with the same labels are joined.
+     *
+     * @param size The rows of the shard
+     * @param ncp The NCP of the shard
+     */
+    public void addShard(long size, double ncp) {
+        ncpSum += ncp * size * trees.length;
+        rows += size;
+    }
+
+    /**
+     * Adds rows to an equivalence class, e.g. one of a shard summary.
+     *
+     * @param labels The published label of every quasi-identifier
+     * @param size The rows
+     */
+    public void addClass(List<String> labels, long size) {
+        classes.computeIfAbsent(labels, key -> new long[1])[0] += size;
+    }
+
+    private String label(int i, int leaf1Id, int leaf2Id) {
+        long key = (long) leaf1Id << 32 | (leaf2Id & 0xFFFFFFFFL);
+        String label = labelCache.get(i).get(key);
+        if (label == null) {
+            label = trees[i].label(leaf1Id, leaf2Id, asRange[i]);
+            labelCache.get(i).put(key, label);
+        }
+        return label;
+    }
+
+    private double penalty(int i, int leaf1Id, int leaf2Id) {
+        if (leaf1Id == leaf2Id) {
+            return 0.0;
+        }
+        long key = (long) leaf1Id << 32 | (leaf2Id & 0xFFFFFFFFL);
+        Double cached = penaltyCache.get(i).get(key);
+        if (cached == null) {
+            HierarchyTree tree = trees[i];
+            if (numericSpan[i] > 0) {
+                double span = Double.parseDouble(tree.leafValue(leaf2Id)) - Double.parseDouble(tree.leafValue(leaf1Id));
+                cached = Math.abs(span) / numericSpan[i];
+            } else {
+                cached = tree.penalty(leaf1Id, leaf2Id);
+            }
+            penaltyCache.get(i).put(key, cached);
+        }
+        return cached;
+    }
+
+    /**
+     * Get the normalized certainty penalty.
+     */
+    public double getNcp() {
+        long cells = rows * trees.length;
+        return cells > 0 ? ncpSum / cells : 0.0;
+    }
+
+    /**
+     * Get the discernibility metric.
+     */
+    public long getDiscernibility() {
+        long dm = 0;
+        for (long[] size : classes.values()) {
+            dm += size[0] * size[0];
+        }
+        return dm;
+    }
+
+    /**
+     * Get the number of equivalence classes.
+     */
+    public long getEquivalenceClasses() {
+        return classes.size();
+    }
+
+    /**
+     * Get the average equivalence class size.
+     */
+    public double getAvgClassSize() {
+        return classes.isEmpty() ? 0.0 : (double) rows / classes.size();
+    }
+
+    /**
+     * Get the metrics in the format of mondrian.InfoLossMetrics.summary().
+     */
+    public String summary() {
+        double avg = getAvgClassSize();
+        return String.format(Locale.ROOT, "K = %d: NCP = %.4f, DM = %d, classes = %d, avg class size = %.2f (C_avg = %.2f)",
+                k, getNcp(), getDiscernibility(), classes.size(), avg, avg / k);
+    }
+}
@@ -0,0 +1,53 @@
+package com.example.pythoncalculation.headless;
+
+import com.example.pythoncalculation.trace.Tracer;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import java.util.ArrayDeque;
+
+/**
+ * Tracer backend writing every section as a JFR event with its duration, so a run recorded with
+ * -XX:StartFlightRecording (or jcmd JFR.start) shows its stages in JDK Mission Control next to the
+ * samples of the JFR profiler. Sections are only recorded while a recording has the event enabled.
+ */
+final class JfrTraceBackend implements Tracer.Backend {
+
+    @Name("com.example.pythoncalculation.TraceSection")
+    @Label("Trace Section")
+    @Category("Anonymization")
+    static final class SectionEvent extends Event {
+        @Label("Name")
+        String name;
+    }
+
+    private static final EventType SECTION_TYPE = EventType.getEventType(SectionEvent.class);
+
+    // Open sections of each thread, innermost last
+    private final ThreadLocal<ArrayDeque<SectionEvent>> open = ThreadLocal.withInitial(ArrayDeque::new);
+
+    @Override
+    public boolean isEnabled() {
+        return SECTION_TYPE.isEnabled();
+    }
+
+    @Override
+    public void beginSection(String name) {
+        SectionEvent event = new SectionEvent();
+        event.name = name;
+        event.begin();
+        open.get().addLast(event);
+    }
+
+    @Override
+    public void endSection() {
+        SectionEvent event = open.get().pollLast();
+        if (event != null) {
+            event.commit();
+        }
+    }
+}
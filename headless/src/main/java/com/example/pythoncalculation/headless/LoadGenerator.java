@@ -0,0 +1,412 @@
+package com.example.pythoncalculation.headless;
+
+import com.example.pythoncalculation.AnonymizationCommand;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import org.HdrHistogram.Histogram;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends a stream of anonymization commands at a configurable rate and concurrency, and measures the
+ * latency from each command to its result on anonymization/results.
+ *
+ * The stream is either generated from a mix of data sets and K values, or replayed from a
+ * recording (one {"offsetMs": ..., "command": {...}} object per line, as written by record()).
+ * With a rate, or when replaying, commands are sent open-loop at their planned times and the
+ * latency is measured from the planned time, so a backlog of the workers shows up in the tail
+ * instead of slowing the generator down (coordinated omission). Without a rate, the next command is
+ * sent as soon as fewer than `concurrency` commands are in flight. A command whose result does not
+ * come within the timeout, e.g. a duplicate ID the worker drops, is given up as lost and frees its slot.
+ *
+ * Latencies are recorded in microseconds in an HdrHistogram; see Report.
+ */
+public final class LoadGenerator {
+
+    // Latencies are tracked from 1 us to an hour with 3 significant digits
+    private static final long HIGHEST_LATENCY_US = TimeUnit.HOURS.toMicros(1);
+    private static final int SIGNIFICANT_DIGITS = 3;
+
+    private final InProcessBroker broker;
+    private final int concurrency;
+    private final long timeoutSeconds;
+    private final Gson gson = new Gson();
+
+    /**
+     * One entry of the command mix, written dataset:k[:weight].
+     */
+    public static final class MixEntry {
+        private final String dataset;
+        private final int kValue;
+        private final int weight;
+
+        MixEntry(String dataset, int kValue, int weight) {
+            this.dataset = dataset;
+            this.kValue = kValue;
+            this.weight = weight;
+        }
+
+        /**
+         * Parses a comma-separated mix, e.g. "standard:10:3,wearable:5".
+         *
+         * @param mix The mix
+         * @return The entries
+         */
+        public static List<MixEntry> parse(String mix) {
+            List<MixEntry> entries = new ArrayList<>();
+            for (String item : mix.split(",")) {
+                String[] parts = item.trim().split(":");
+                if (parts.length < 2 || parts.length > 3) {
+                    throw new IllegalArgumentException("Invalid mix entry '" + item + "', expected dataset:k[:weight]");
+                }
+                try {
+                    int weight = parts.length == 3 ? Integer.parseInt(parts[2]) : 1;
+                    if (weight < 1) {
+                        throw new IllegalArgumentException("The weight of '" + item + "' must be positive");
+                    }
+                    entries.add(new MixEntry(parts[0], Integer.parseInt(parts[1]), weight));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid number in mix entry '" + item + "'");
+                }
+            }
+            return entries;
+        }
+    }
+
+    /**
+     * A command and the time it is due, relative to the start of the run.
+     */
+    public static final class PlannedCommand {
+        private final long offsetMs;
+        private final AnonymizationCommand command;
+
+        PlannedCommand(long offsetMs, AnonymizationCommand command) {
+            this.offsetMs = offsetMs;
+            this.command = command;
+        }
+
+        /**
+         * Get the time the command is due, in milliseconds after the start.
+         */
+        public long getOffsetMs() {
+            return offsetMs;
+        }
+
+        /**
+         * Get the command.
+         */
+        public AnonymizationCommand getCommand() {
+            return command;
+        }
+    }
+
+    /**
+     * @param broker The broker of the workers
+     * @param concurrency The most commands in flight
+     * @param timeoutSeconds How long to wait for a free slot, and for outstanding results after the last command
+     */
+    public LoadGenerator(InProcessBroker broker, int concurrency, long timeoutSeconds) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("The concurrency must be at least 1");
+        }
+        if (timeoutSeconds < 1) {
+            throw new IllegalArgumentException("The timeout must be at least 1 second");
+        }
+        this.broker = broker;
+        this.concurrency = concurrency;
+        this.timeoutSeconds = timeoutSeconds;
+    }
+
+    /**
+     * Generates a stream of commands drawn from a weighted mix.
+     *
+     * @param mix The data sets and K values
+     * @param count The number of commands
+     * @param rate Commands per second, or 0 to send them as fast as the concurrency allows
+     * @param seed The seed of the draws, so a stream can be generated again
+     * @return The commands, in order
+     */
+    public static List<PlannedCommand> generate(List<MixEntry> mix, int count, double rate, long seed) {
+        int totalWeight = 0;
+        for (MixEntry entry : mix) {
+            totalWeight += entry.weight;
+        }
+        Random random = new Random(seed);
+        List<PlannedCommand> plan = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int draw = random.nextInt(totalWeight);
+            MixEntry entry = mix.get(0);
+            for (MixEntry candidate : mix) {
+                draw -= candidate.weight;
+                if (draw < 0) {
+                    entry = candidate;
+                    break;
+                }
+            }
+            AnonymizationCommand command = new AnonymizationCommand(entry.kValue, entry.dataset);
+            command.setCommandId("load-" + seed + "-" + i);
+            long offsetMs = rate > 0 ? Math.round(i * 1000.0 / rate) : 0;
+            plan.add(new PlannedCommand(offsetMs, command));
+        }
+        return plan;
+    }
+
+    /**
+     * Reads a recorded stream. Results are matched to commands by commandId: a command without one
+     * gets "replay-" and its line number, and a command ID must not repeat.
+     *
+     * @param file One {"offsetMs": ..., "command": {...}} object per line
+     * @return The commands, in order
+     * @throws IOException If the file cannot be read
+     */
+    public static List<PlannedCommand> replay(File file) throws IOException {
+        Gson gson = new Gson();
+        List<PlannedCommand> plan = new ArrayList<>();
+        Set<String> commandIds = new HashSet<>();
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                try {
+                    JsonObject json = JsonParser.parseString(line).getAsJsonObject();
+                    AnonymizationCommand command = gson.fromJson(json.get("command"), AnonymizationCommand.class);
+                    if (command == null || !command.isValid()) {
+                        throw new IllegalArgumentException("Invalid command on line " + lineNumber + " of " + file);
+                    }
+                    if (command.getCommandId() == null) {
+                        command.setCommandId("replay-" + lineNumber);
+                    }
+                    if (!commandIds.add(command.getCommandId())) {
+                        throw new IllegalArgumentException("Duplicate commandId '" + command.getCommandId()
+                                + "' on line " + lineNumber + " of " + file);
+                    }
+                    plan.add(new PlannedCommand(json.get("offsetMs").getAsLong(), command));
+                } catch (JsonParseException | IllegalStateException | NullPointerException e) {
+                    throw new IllegalArgumentException("Invalid line " + lineNumber + " of " + file + ": " + e.getMessage());
+                }
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * Writes a stream in the format of replay().
+     *
+     * @param plan The commands
+     * @param file The recording
+     * @throws IOException If the file cannot be written
+     */
+    public static void record(List<PlannedCommand> plan, File file) throws IOException {
+        Gson gson = new Gson();
+        try (BufferedWriter writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            for (PlannedCommand planned : plan) {
+                JsonObject json = new JsonObject();
+                json.addProperty("offsetMs", planned.offsetMs);
+                json.add("command", gson.toJsonTree(planned.command));
+                writer.write(gson.toJson(json));
+                writer.newLine();
+            }
+        }
+    }
+
+    /**
+     * Sends the commands and waits for their results.
+     *
+     * @param plan The commands, in order of their offsets, with distinct command IDs
+     * @param openLoop True to send each command at its offset and measure from it, false to send
+     *                 as fast as the concurrency allows and measure from the actual send
+     * @return The latencies and counts of the run
+     * @throws InterruptedException If interrupted while sending or waiting
+     */
+    public Report run(List<PlannedCommand> plan, boolean openLoop) throws InterruptedException {
+        Report report = new Report(plan.size());
+        Map<String, Long> inFlight = new ConcurrentHashMap<>();
+        Semaphore slots = new Semaphore(concurrency);
+        CountDownLatch remaining = new CountDownLatch(plan.size());
+        int expired = 0;
+
+        // Step 1: Results are matched to their commands by commandId
+        broker.subscribe(MqttWorker.RESULT_TOPIC, (topic, payload) -> {
+            long now = System.nanoTime();
+            String commandId;
+            String status;
+            try {
+                JsonObject json = JsonParser.parseString(new String(payload, StandardCharsets.UTF_8)).getAsJsonObject();
+                commandId = json.get("commandId").getAsString();
+                status = json.get("status").getAsString();
+            } catch (JsonParseException | IllegalStateException | NullPointerException | UnsupportedOperationException e) {
+                System.err.println("Invalid result: " + e.getMessage());
+                return;
+            }
+            Long sentAt = inFlight.remove(commandId);
+            if (sentAt == null) {
+                return;
+            }
+            report.recordResult(TimeUnit.NANOSECONDS.toMicros(now - sentAt), "done".equals(status));
+            slots.release();
+            remaining.countDown();
+        });
+
+        // Step 2: Send each command when it is due and a slot is free
+        long start = System.nanoTime();
+        for (PlannedCommand planned : plan) {
+            long due = start + TimeUnit.MILLISECONDS.toNanos(planned.offsetMs);
+            long wait;
+            while ((wait = due - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+            // A result that never comes would hold its slot forever: after the timeout, the oldest
+            // command in flight is given up as lost and its slot is taken over
+            while (!slots.tryAcquire(timeoutSeconds, TimeUnit.SECONDS)) {
+                if (expireOldest(inFlight)) {
+                    expired++;
+                    remaining.countDown();
+                    break;
+                }
+            }
+            long sentAt = openLoop ? due : System.nanoTime();
+            if (planned.command.getCommandId() == null
+                    || inFlight.putIfAbsent(planned.command.getCommandId(), sentAt) != null) {
+                throw new IllegalArgumentException("Every command needs a distinct commandId, got '"
+                        + planned.command.getCommandId() + "'");
+            }
+            broker.publish(MqttWorker.COMMAND_TOPIC, gson.toJson(planned.command).getBytes(StandardCharsets.UTF_8));
+            report.sent.incrementAndGet();
+        }
+
+        // Step 3: Wait for the outstanding results
+        remaining.await(timeoutSeconds, TimeUnit.SECONDS);
+        report.finish(System.nanoTime() - start, expired + inFlight.size());
+        return report;
+    }
+
+    /**
+     * Removes the command that has been in flight the longest.
+     *
+     * @return False if a result took it first, or nothing is in flight
+     */
+    private static boolean expireOldest(Map<String, Long> inFlight) {
+        Map.Entry<String, Long> oldest = null;
+        for (Map.Entry<String, Long> entry : inFlight.entrySet()) {
+            if (oldest == null || entry.getValue() < oldest.getValue()) {
+                oldest = entry;
+            }
+        }
+        return oldest != null && inFlight.remove(oldest.getKey(), oldest.getValue());
+    }
+
+    /**
+     * Latencies and counts of a run.
+     */
+    public static final class Report {
+        private final Histogram latencies = new Histogram(HIGHEST_LATENCY_US, SIGNIFICANT_DIGITS);
+        private final AtomicInteger sent = new AtomicInteger();
+        private final int planned;
+        private int done;
+        private int failed;
+        private int lost;
+        private long elapsedNanos;
+
+        Report(int planned) {
+            this.planned = planned;
+        }
+
+        synchronized void recordResult(long latencyUs, boolean success) {
+            latencies.recordValue(Math.min(Math.max(latencyUs, 1), HIGHEST_LATENCY_US));
+            if (success) {
+                done++;
+            } else {
+                failed++;
+            }
+        }
+
+        synchronized void finish(long elapsedNanos, int lost) {
+            this.elapsedNanos = elapsedNanos;
+            this.lost = lost;
+        }
+
+        /**
+         * Get the latency at a percentile, in milliseconds.
+         *
+         * @param percentile The percentile, e.g. 99.0
+         */
+        public synchronized double getLatencyMs(double percentile) {
+            return latencies.getValueAtPercentile(percentile) / 1000.0;
+        }
+
+        /**
+         * Get the number of results with status "done".
+         */
+        public synchronized int getDone() {
+            return done;
+        }
+
+        /**
+         * Get the number of results with status "failed".
+         */
+        public synchronized int getFailed() {
+            return failed;
+        }
+
+        /**
+         * Get the number of commands without a result before the timeout.
+         */
+        public synchronized int getLost() {
+            return lost;
+        }
+
+        /**
+         * Get the counts, the throughput and the p50/p95/p99/max latencies.
+         */
+        public synchronized String summary() {
+            double seconds = elapsedNanos / 1e9;
+            return String.format(Locale.ROOT,
+                    "Commands: planned %d, sent %d, done %d, failed %d, lost %d in %.1f s (%.2f results/s)%n"
+                            + "Latency (ms): p50 = %.1f, p95 = %.1f, p99 = %.1f, max = %.1f",
+                    planned, sent.get(), done, failed, lost, seconds, seconds > 0 ? (done + failed) / seconds : 0.0,
+                    getLatencyMs(50.0), getLatencyMs(95.0), getLatencyMs(99.0), latencies.getMaxValue() / 1000.0);
+        }
+
+        /**
+         * Writes the percentile distribution of the latencies in milliseconds, in the .hgrm format
+         * of HdrHistogram, which its plotter reads.
+         *
+         * @param file The report
+         * @throws IOException If the file cannot be written
+         */
+        public synchronized void writeHistogram(File file) throws IOException {
+            try (PrintStream out = new PrintStream(file, StandardCharsets.UTF_8.name())) {
+                latencies.outputPercentileDistribution(out, 1000.0);
+            }
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package com.example.pythoncalculation.headless;
+
+import com.example.pythoncalculation.AnonymizationCommand;
+import com.example.pythoncalculation.codec.BinaryCodec;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Long-running worker that takes anonymization commands from the broker, like
+ * AnonymizationService on a device, and runs them on a HeadlessEngine.
+ *
+ * It subscribes to the same command topics (JSON and binary) with QoS 1 on a persistent
+ * session, and publishes the result of every command on anonymization/results in the same
+ * format as the app: commandId, kValue, dataset, status and the metrics summary with the preview.
+ * Several workers can share the commands through an MQTT shared subscription group
+ * ($share/<group>/...), so that each command runs on one of them.
+ *
+ * The worker can also run on an InProcessBroker (see LoadGenerator), with the same topics.
+ *
+ * Commands run one at a time. The headless engine runs exact median cuts: commands with
+ * l-diversity, sampled cut estimation, hierarchy cuts or full-domain generalization are answered as failed, "external"
+ * storage runs in memory, and batches are left to the devices.
+ */
+public final class MqttWorker {
+
+    public static final String COMMAND_TOPIC = "anonymization/commands";
+    public static final String RESULT_TOPIC = "anonymization/results";
+    private static final int QOS = 1;
+    private static final int REMEMBERED_COMMAND_IDS = 1000;
+
+    private final String brokerUrl;
+    private final String clientId;
+    private final String group;
+    private final File descriptor;
+    private final File outputDir;
+    private final HeadlessEngine engine;
+    private final Gson gson = new Gson();
+    // Codecs reuse their buffer: messages are decoded on the Paho thread, results encoded on the command thread
+    private final ThreadLocal<BinaryCodec> codecs = ThreadLocal.withInitial(BinaryCodec::new);
+    private final ExecutorService commandExecutor = Executors.newSingleThreadExecutor(r -> new Thread(r, "command"));
+    // IDs of the handled commands, oldest first; QoS 1 may deliver a command twice
+    private final Set<String> handledIds = new LinkedHashSet<>();
+    private MqttClient client;
+    private Publisher publisher;
+    private volatile boolean verbose = true;
+
+    /**
+     * Publishes a result, on the Paho client or on the in-process broker.
+     */
+    private interface Publisher {
+        void publish(String topic, byte[] payload) throws MqttException;
+    }
+
+    /**
+     * @param brokerUrl The broker, e.g. tcp://192.168.8.126:1883, or null on an InProcessBroker
+     * @param clientId The stable client ID of the persistent session
+     * @param group The shared subscription group, or null to receive every command
+     * @param descriptor The dataset registry descriptor
+     * @param outputDir The directory of the anonymized files
+     * @param engine The engine of the commands
+     */
+    public MqttWorker(String brokerUrl, String clientId, String group, File descriptor, File outputDir,
+                      HeadlessEngine engine) {
+        this.brokerUrl = brokerUrl;
+        this.clientId = clientId;
+        this.group = group;
+        this.descriptor = descriptor;
+        this.outputDir = outputDir;
+        this.engine = engine;
+    }
+
+    /**
+     * Connects and subscribes. Lost connections are re-established by Paho.
+     *
+     * @throws MqttException If the first connection fails
+     */
+    public void start() throws MqttException {
+        client = new MqttClient(brokerUrl, clientId, new MemoryPersistence());
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setCleanSession(false);
+        options.setAutomaticReconnect(true);
+        client.setCallback(new MqttCallbackExtended() {
+            @Override
+            public void connectComplete(boolean reconnect, String serverURI) {
+                // A persistent session keeps the subscription, but a new session needs it again
+                try {
+                    subscribe();
+                } catch (MqttException e) {
+                    System.err.println("Failed to subscribe: " + e.getMessage());
+                }
+                System.out.println((reconnect ? "Reconnected to " : "Connected to ") + serverURI);
+            }
+
+            @Override
+            public void connectionLost(Throwable cause) {
+                System.err.println("Connection lost, reconnecting: " + cause.getMessage());
+            }
+
+            @Override
+            public void messageArrived(String topic, MqttMessage message) {
+                onMessage(topic, message.getPayload());
+            }
+
+            @Override
+            public void deliveryComplete(IMqttDeliveryToken token) {
+            }
+        });
+        client.connect(options);
+        publisher = (topic, payload) -> client.publish(topic, payload, QOS, false);
+    }
+
+    /**
+     * Subscribes on an in-process broker instead of connecting to brokerUrl.
+     *
+     * @param broker The broker
+     */
+    public void start(InProcessBroker broker) {
+        for (String topic : topics()) {
+            broker.subscribe(topic, this::onMessage);
+        }
+        publisher = broker::publish;
+    }
+
+    private void subscribe() throws MqttException {
+        String[] topics = topics();
+        client.subscribe(topics, new int[] {QOS, QOS});
+        System.out.println("Subscribed to " + String.join(", ", topics));
+    }
+
+    private String[] topics() {
+        String prefix = group != null ? "$share/" + group + "/" : "";
+        return new String[] {prefix + COMMAND_TOPIC, prefix + COMMAND_TOPIC + BinaryCodec.TOPIC_SUFFIX};
+    }
+
+    /**
+     * Decodes a command and queues it. Runs on the Paho thread, so it must not block.
+     */
+    private void onMessage(String topic, byte[] payload) {
+        AnonymizationCommand command;
+        try {
+            if (topic.endsWith(BinaryCodec.TOPIC_SUFFIX)) {
+                BinaryCodec codec = codecs.get();
+                ByteBuffer in = ByteBuffer.wrap(payload);
+                int type = codec.readType(in);
+                if (type != BinaryCodec.TYPE_COMMAND) {
+                    System.err.println("Ignored binary message of type " + type + ": the worker runs single commands");
+                    return;
+                }
+                command = codec.decodeCommand(in, new AnonymizationCommand());
+                command.setBinaryReply(true);
+            } else {
+                JsonElement json = JsonParser.parseString(new String(payload, StandardCharsets.UTF_8));
+                if (json.isJsonObject() && json.getAsJsonObject().has("jobs")) {
+                    System.err.println("Ignored batch: the worker runs single commands");
+                    return;
+                }
+                command = gson.fromJson(json, AnonymizationCommand.class);
+            }
+        } catch (IllegalArgumentException | JsonParseException | IllegalStateException e) {
+            System.err.println("Invalid message on " + topic + ": " + e.getMessage());
+            return;
+        }
+        if (command == null || !command.isValid()) {
+            System.err.println("Invalid command: " + command);
+            return;
+        }
+        if (isDuplicate(command.getCommandId())) {
+            return;
+        }
+        commandExecutor.execute(() -> publishResult(command, execute(command)));
+    }
+
+    private synchronized boolean isDuplicate(String commandId) {
+        if (commandId == null) {
+            return false;
+        }
+        if (!handledIds.add(commandId)) {
+            System.out.println("Ignored duplicate command " + commandId);
+            return true;
+        }
+        if (handledIds.size() > REMEMBERED_COMMAND_IDS) {
+            Iterator<String> oldest = handledIds.iterator();
+            oldest.next();
+            oldest.remove();
+        }
+        return false;
+    }
+
+    /**
+     * Runs a command.
+     *
+     * @return The metrics and preview of the result, or null if it failed
+     */
+    String execute(AnonymizationCommand command) {
+        if (verbose) {
+            System.out.println("Running " + command);
+        }
+        try {
+            if (command.getLValue() > 1 || !"exact".equals(command.getCutEstimation())
+                    || !"median".equals(command.getSplitMode()) || !"local".equals(command.getGeneralization())) {
+                throw new IllegalArgumentException("The headless engine runs exact median cuts of Mondrian without l-diversity");
+            }
+            DatasetSchema schema = DatasetSchema.find(DatasetSchema.load(descriptor), command.getDataset());
+            File output = new File(outputDir, "k_" + command.getKValue() + "_anonymized_" + schema.getPath().getName());
+            HeadlessEngine.Result result = engine.run(schema, command.getKValue(), output);
+            if (verbose) {
+                System.out.println(result.getMetrics().summary());
+                System.out.println("Anonymized " + result.getRowCount() + " rows to " + output + " in "
+                        + result.getElapsedMs() + " ms");
+            }
+            return result.toResultText();
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Error during anonymization: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Publishes the result of a command on RESULT_TOPIC, in the encoding of the command.
+     */
+    private void publishResult(AnonymizationCommand command, String result) {
+        String status = result != null ? "done" : "failed";
+        byte[] payload;
+        String topic = RESULT_TOPIC;
+        if (command.isBinaryReply()) {
+            payload = BinaryCodec.toArray(codecs.get().encodeResult(command, status, result));
+            topic = RESULT_TOPIC + BinaryCodec.TOPIC_SUFFIX;
+        } else {
+            JsonObject json = new JsonObject();
+            json.addProperty("commandId", command.getCommandId());
+            json.addProperty("kValue", command.getKValue());
+            json.addProperty("dataset", command.getDataset());
+            json.addProperty("status", status);
+            json.addProperty("result", result);
+            payload = gson.toJson(json).getBytes(StandardCharsets.UTF_8);
+        }
+        try {
+            publisher.publish(topic, payload);
+        } catch (MqttException e) {
+            System.err.println("Failed to publish the result of " + command.getCommandId() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Set whether every command and its metrics are printed; errors are always printed.
+     *
+     * @param verbose False to keep quiet, e.g. under load
+     */
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    /**
+     * Disconnects and stops the command thread.
+     */
+    public void stop() {
+        commandExecutor.shutdownNow();
+        try {
+            if (client != null && client.isConnected()) {
+                client.disconnect();
+            }
+        } catch (MqttException e) {
+            System.err.println("Failed to disconnect: " + e.getMessage());
+        }
+    }
+}
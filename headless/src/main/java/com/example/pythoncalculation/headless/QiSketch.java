@@ -0,0 +1,100 @@
+package com.example.pythoncalculation.headless;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Mergeable summary of the quasi-identifiers of a data set: the number of rows of every leaf ID,
+ * per quasi-identifier.
+ *
+ * Its size is the number of distinct values, not of rows, and the sketches of two parts of a data
+ * set merge into the sketch of the whole by adding their counts, so it can be built in one pass
+ * over a file or from the parts held by several devices. It is exact: the distinct counts select
+ * the cut dimension like MondrianPartitioner, and the histogram of that dimension gives its
+ * medians.
+ */
+public final class QiSketch {
+
+    private final List<Map<Integer, long[]>> counts;
+    private long rows;
+
+    /**
+     * @param qiCount The number of quasi-identifiers
+     */
+    public QiSketch(int qiCount) {
+        counts = new ArrayList<>(qiCount);
+        for (int i = 0; i < qiCount; i++) {
+            counts.add(new HashMap<>());
+        }
+    }
+
+    /**
+     * Adds one row.
+     *
+     * @param leafIds The leaf ID of every quasi-identifier
+     */
+    public void add(int[] leafIds) {
+        for (int qi = 0; qi < leafIds.length; qi++) {
+            counts.get(qi).computeIfAbsent(leafIds[qi], id -> new long[1])[0]++;
+        }
+        rows++;
+    }
+
+    /**
+     * Adds the rows of another sketch of the same quasi-identifiers.
+     *
+     * @param other The sketch
+     */
+    public void merge(QiSketch other) {
+        if (other.counts.size() != counts.size()) {
+            throw new IllegalArgumentException("Sketches of " + counts.size() + " and " + other.counts.size()
+                    + " quasi-identifiers cannot be merged");
+        }
+        for (int qi = 0; qi < counts.size(); qi++) {
+            Map<Integer, long[]> target = counts.get(qi);
+            for (Map.Entry<Integer, long[]> entry : other.counts.get(qi).entrySet()) {
+                target.computeIfAbsent(entry.getKey(), id -> new long[1])[0] += entry.getValue()[0];
+            }
+        }
+        rows += other.rows;
+    }
+
+    /**
+     * Get the quasi-identifier with the most distinct values, the first one on ties, like the cut
+     * dimension of MondrianPartitioner.
+     */
+    public int widestDimension() {
+        int dim = 0;
+        for (int qi = 1; qi < counts.size(); qi++) {
+            if (counts.get(qi).size() > counts.get(dim).size()) {
+                dim = qi;
+            }
+        }
+        return dim;
+    }
+
+    /**
+     * Get the histogram of a quasi-identifier in leaf ID order.
+     *
+     * @param qi The quasi-identifier
+     * @return Pairs of leaf ID and row count, sorted by leaf ID
+     */
+    public long[][] histogram(int qi) {
+        List<Map.Entry<Integer, long[]>> entries = new ArrayList<>(counts.get(qi).entrySet());
+        entries.sort(Map.Entry.comparingByKey());
+        long[][] histogram = new long[entries.size()][];
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = new long[] {entries.get(i).getKey(), entries.get(i).getValue()[0]};
+        }
+        return histogram;
+    }
+
+    /**
+     * Get the number of rows.
+     */
+    public long getRows() {
+        return rows;
+    }
+}
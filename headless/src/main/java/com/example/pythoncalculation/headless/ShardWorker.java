@@ -0,0 +1,351 @@
+package com.example.pythoncalculation.headless;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Worker of a distributed run: anonymizes the boxes a DistributedCoordinator offers on
+ * SHARD_TOPIC and answers each with its equivalence-class summary on SUMMARY_TOPIC.
+ *
+ * A worker claims an offered box on TRANSFER_TOPIC and receives its rows in chunks on its own data
+ * topic, DATA_TOPIC followed by its worker ID; every chunk is appended to the shard file and
+ * acknowledged. Once the last chunk arrived, the worker runs the box on its HeadlessEngine like a
+ * data set of its own, with the identifiers as the coordinator transformed them, and keeps the
+ * output as a part file in its work directory. It then reads the part back and counts the rows of
+ * every distinct generalized quasi-identifier tuple: these classes, the NCP, the preview and the
+ * path of the part make the summary, which the coordinator verifies.
+ *
+ * Workers join the shared subscription group SHARD_GROUP, so each box goes to one of them. Chunks
+ * are written on one transfer thread and boxes run one at a time on another.
+ */
+public final class ShardWorker {
+
+    /**
+     * A box being received: its offer and the shard file its chunks are appended to.
+     */
+    private static final class Transfer {
+        final JsonObject offer;
+        final File input;
+        final Writer writer;
+        long received;
+
+        Transfer(JsonObject offer, File input) throws IOException {
+            this.offer = offer;
+            this.input = input;
+            this.writer = Files.newBufferedWriter(input.toPath(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private final File descriptor;
+    private final File workDir;
+    private final HeadlessEngine engine;
+    private final String workerId = UUID.randomUUID().toString();
+    private final Gson gson = new Gson();
+    private final ExecutorService transferExecutor = Executors.newSingleThreadExecutor(r -> new Thread(r, "shard-transfer"));
+    private final ExecutorService shardExecutor = Executors.newSingleThreadExecutor(r -> new Thread(r, "shard"));
+    // Boxes being received, by "<jobId>/<shard>"; used on the transfer thread only
+    private final Map<String, Transfer> transfers = new HashMap<>();
+    private BrokerConnection connection;
+    private volatile boolean verbose = true;
+
+    /**
+     * @param descriptor The dataset registry descriptor, with the hierarchies of the coordinator
+     * @param workDir The directory of the received shard files and of the anonymized parts, which
+     *                stay there
+     * @param engine The engine of the shards
+     */
+    public ShardWorker(File descriptor, File workDir, HeadlessEngine engine) {
+        this.descriptor = descriptor;
+        this.workDir = workDir;
+        this.engine = engine;
+    }
+
+    /**
+     * Connects to an MQTT broker and joins the shard group.
+     *
+     * @param brokerUrl The broker, e.g. tcp://192.168.8.126:1883
+     * @param clientId The client ID
+     * @throws MqttException If the connection or subscription fails
+     */
+    public void start(String brokerUrl, String clientId) throws MqttException {
+        start(BrokerConnection.connect(brokerUrl, clientId));
+    }
+
+    /**
+     * Joins the shard group on an in-process broker.
+     *
+     * @param broker The broker
+     */
+    public void start(InProcessBroker broker) {
+        try {
+            start(BrokerConnection.of(broker));
+        } catch (MqttException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void start(BrokerConnection brokerConnection) throws MqttException {
+        connection = brokerConnection;
+        // The data topic first, so that no chunk of a claimed box can be missed
+        connection.subscribe(DistributedCoordinator.DATA_TOPIC + workerId, this::onChunk);
+        connection.subscribe("$share/" + DistributedCoordinator.SHARD_GROUP + "/" + DistributedCoordinator.SHARD_TOPIC,
+                this::onShard);
+    }
+
+    /**
+     * Get the ID of the worker, the suffix of its data topic.
+     */
+    public String getWorkerId() {
+        return workerId;
+    }
+
+    /**
+     * Queues the claim of an offered box. Runs on the broker thread, so it must not block.
+     */
+    private void onShard(String topic, byte[] payload) {
+        JsonObject offer = parse(topic, payload);
+        if (offer == null) {
+            return;
+        }
+        if (!offer.has("jobId") || !offer.has("shard") || !offer.has("dataset") || !offer.has("kValue")) {
+            System.err.println("Invalid shard on " + topic + ": missing jobId, shard, dataset or kValue");
+            return;
+        }
+        transferExecutor.execute(() -> claim(offer));
+    }
+
+    /**
+     * Queues a chunk of a claimed box. Runs on the broker thread, so it must not block.
+     */
+    private void onChunk(String topic, byte[] payload) {
+        JsonObject chunk = parse(topic, payload);
+        if (chunk != null && chunk.has("jobId") && chunk.has("shard")) {
+            transferExecutor.execute(() -> receive(chunk));
+        }
+    }
+
+    private static JsonObject parse(String topic, byte[] payload) {
+        try {
+            return JsonParser.parseString(new String(payload, StandardCharsets.UTF_8)).getAsJsonObject();
+        } catch (JsonParseException | IllegalStateException e) {
+            System.err.println("Invalid message on " + topic + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Opens the shard file of an offered box and claims it.
+     */
+    private void claim(JsonObject offer) {
+        String key = offer.get("jobId").getAsString() + "/" + offer.get("shard").getAsInt();
+        if (transfers.containsKey(key)) {
+            return; // an offer delivered twice (QoS 1)
+        }
+        File input = new File(workDir, "shard-" + offer.get("jobId").getAsString() + "-" + offer.get("shard").getAsInt() + ".csv");
+        try {
+            Files.createDirectories(workDir.toPath());
+            transfers.put(key, new Transfer(offer, input));
+        } catch (IOException e) {
+            fail(offer, input, e);
+            return;
+        }
+        acknowledge(offer, 0);
+    }
+
+    /**
+     * Appends a chunk to its shard file, acknowledges it and, after the last one, queues the box.
+     * A chunk delivered twice (QoS 1) is skipped.
+     */
+    private void receive(JsonObject chunk) {
+        String key = chunk.get("jobId").getAsString() + "/" + chunk.get("shard").getAsInt();
+        Transfer transfer = transfers.get(key);
+        if (transfer == null) {
+            return;
+        }
+        try {
+            if (chunk.has("cancelled")) {
+                // The box went to another worker
+                transfers.remove(key);
+                transfer.writer.close();
+                Files.deleteIfExists(transfer.input.toPath());
+                return;
+            }
+            if (chunk.get("sequence").getAsLong() != transfer.received) {
+                return;
+            }
+            transfer.writer.write(chunk.get("rows").getAsString());
+            transfer.received++;
+            if (chunk.get("last").getAsBoolean()) {
+                transfers.remove(key);
+                transfer.writer.close();
+                shardExecutor.execute(() -> publish(anonymize(transfer.offer, transfer.input)));
+            }
+        } catch (IOException | RuntimeException e) {
+            transfers.remove(key);
+            try {
+                transfer.writer.close();
+            } catch (IOException closeError) {
+                e.addSuppressed(closeError);
+            }
+            fail(transfer.offer, transfer.input, e);
+            return;
+        }
+        acknowledge(transfer.offer, transfer.received);
+    }
+
+    private void acknowledge(JsonObject offer, long received) {
+        JsonObject message = new JsonObject();
+        message.addProperty("jobId", offer.get("jobId").getAsString());
+        message.addProperty("shard", offer.get("shard").getAsInt());
+        message.addProperty("worker", workerId);
+        message.addProperty("received", received);
+        try {
+            connection.publish(DistributedCoordinator.TRANSFER_TOPIC, gson.toJson(message).getBytes(StandardCharsets.UTF_8));
+        } catch (MqttException e) {
+            System.err.println("Failed to acknowledge shard " + offer.get("shard") + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Answers a box that could not be received with a failed summary.
+     */
+    private void fail(JsonObject offer, File input, Exception e) {
+        System.err.println("Error receiving shard " + offer.get("shard") + ": " + e.getMessage());
+        input.delete();
+        JsonObject summary = new JsonObject();
+        summary.addProperty("jobId", offer.get("jobId").getAsString());
+        summary.addProperty("shard", offer.get("shard").getAsInt());
+        summary.addProperty("status", "failed");
+        summary.addProperty("error", String.valueOf(e.getMessage()));
+        publish(summary);
+    }
+
+    /**
+     * Anonymizes a received box.
+     *
+     * @param shard The offer of the box
+     * @param input The shard file with its rows
+     * @return The summary: jobId, shard, worker, status and, if done, rows, classes, NCP, preview
+     *         and the path of the part
+     */
+    JsonObject anonymize(JsonObject shard, File input) {
+        JsonObject summary = new JsonObject();
+        summary.addProperty("jobId", shard.get("jobId").getAsString());
+        summary.addProperty("shard", shard.get("shard").getAsInt());
+        summary.addProperty("worker", workerId);
+        File output = new File(workDir, "anonymized_" + input.getName());
+        boolean done = false;
+        try {
+            // Step 1: the rows of the box as the input of the data set, identifiers already transformed
+            DatasetSchema schema = DatasetSchema.find(DatasetSchema.load(descriptor), shard.get("dataset").getAsString())
+                    .withPath(input).withIdentifiersTransformed();
+            if (verbose) {
+                System.out.println("Anonymizing shard " + shard.get("shard").getAsInt() + " of " + shard.get("shards").getAsInt()
+                        + " (" + shard.get("dimension").getAsString() + " " + shard.get("low").getAsString() + " to "
+                        + shard.get("high").getAsString() + ", " + shard.get("rows").getAsLong() + " rows)");
+            }
+
+            // Step 2: anonymize
+            HeadlessEngine.Result result = engine.run(schema, shard.get("kValue").getAsInt(), output);
+
+            // Step 3: the classes of the output, distinct generalized tuples in output order
+            List<String> qiList = schema.getQiList();
+            String[] header = CsvTable.readHeader(output, schema.getDelimiter());
+            Set<String> skipped = new HashSet<>(Arrays.asList(header));
+            skipped.removeAll(qiList);
+            CsvTable table = CsvTable.read(output, schema.getDelimiter(), skipped);
+            String[][] columns = new String[qiList.size()][];
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = table.column(qiList.get(i));
+            }
+            Map<List<String>, long[]> classes = new LinkedHashMap<>();
+            for (int row = 0; row < table.getRowCount(); row++) {
+                String[] values = new String[columns.length];
+                for (int i = 0; i < columns.length; i++) {
+                    values[i] = columns[i][row];
+                }
+                classes.computeIfAbsent(Arrays.asList(values), v -> new long[1])[0]++;
+            }
+            JsonArray classArray = new JsonArray();
+            for (Map.Entry<List<String>, long[]> entry : classes.entrySet()) {
+                JsonArray summaryClass = new JsonArray();
+                summaryClass.add(entry.getValue()[0]);
+                for (String value : entry.getKey()) {
+                    summaryClass.add(value);
+                }
+                classArray.add(summaryClass);
+            }
+
+            // Step 4: the summary, with the path of the part instead of its rows
+            summary.addProperty("status", "done");
+            summary.addProperty("rows", result.getRowCount());
+            summary.addProperty("ncp", result.getMetrics().getNcp());
+            summary.add("classes", classArray);
+            summary.addProperty("preview", result.getPreview());
+            summary.addProperty("output", output.getAbsolutePath());
+            done = true;
+            if (verbose) {
+                System.out.println("Shard " + shard.get("shard").getAsInt() + ": " + result.getMetrics().summary());
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Error during anonymization of shard " + shard.get("shard") + ": " + e.getMessage());
+            summary.addProperty("status", "failed");
+            summary.addProperty("error", String.valueOf(e.getMessage()));
+        } finally {
+            input.delete();
+            if (!done) {
+                output.delete();
+            }
+        }
+        return summary;
+    }
+
+    private void publish(JsonObject summary) {
+        try {
+            connection.publish(DistributedCoordinator.SUMMARY_TOPIC, gson.toJson(summary).getBytes(StandardCharsets.UTF_8));
+        } catch (MqttException e) {
+            System.err.println("Failed to publish the summary of shard " + summary.get("shard") + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Set whether every shard and its metrics are printed; errors are always printed.
+     *
+     * @param verbose False to keep quiet
+     */
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    /**
+     * Disconnects and stops the transfer and shard threads; the parts stay in the work directory.
+     */
+    public void stop() {
+        transferExecutor.shutdownNow();
+        shardExecutor.shutdownNow();
+        if (connection != null) {
+            connection.close();
+        }
+    }
+}
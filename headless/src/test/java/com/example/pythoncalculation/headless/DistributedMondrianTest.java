@@ -0,0 +1,137 @@
+package com.example.pythoncalculation.headless;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs a distributed anonymization with several shard workers on an in-process broker and checks
+ * the parts they keep.
+ */
+public class DistributedMondrianTest {
+
+    private TestDatasets datasets;
+    private DatasetSchema schema;
+
+    @Before
+    public void setUp() throws IOException {
+        datasets = new TestDatasets();
+        StringBuilder csv = new StringBuilder("name,email,age,sex,disease\n");
+        for (int row = 0; row < 400; row++) {
+            csv.append("person ").append(row).append(",person").append(row).append("@example.org,")
+                    .append(20 + row * 7 % 40).append(',')
+                    .append(row % 3 == 0 ? "Female" : "Male").append(',')
+                    .append(row % 2 == 0 ? "flu" : "\"cold, mild\"").append('\n');
+        }
+        int[] ages = new int[40];
+        for (int i = 0; i < ages.length; i++) {
+            ages[i] = 20 + i;
+        }
+        schema = datasets.writePeople(ages, csv.toString());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        datasets.close();
+    }
+
+    @Test
+    public void shardsOfSeveralWorkersMergeIntoAKAnonymousOutput() throws IOException {
+        int k = 6;
+        File output = datasets.file("out/k_6.json");
+        File keyFile = datasets.file("keys/identifier.key");
+        List<HeadlessEngine> engines = new ArrayList<>();
+        List<ShardWorker> workers = new ArrayList<>();
+        DistributedCoordinator.Result result;
+        try (InProcessBroker broker = new InProcessBroker()) {
+            try (DistributedCoordinator coordinator = new DistributedCoordinator(broker, 30, keyFile)) {
+                for (int i = 0; i < 3; i++) {
+                    // The workers have keys of their own: the coordinator pseudonymizes before the rows leave it
+                    HeadlessEngine engine = new HeadlessEngine(1, datasets.file("keys/worker-" + i + ".key"));
+                    engines.add(engine);
+                    ShardWorker worker = new ShardWorker(datasets.descriptor(), datasets.file("worker-" + i), engine);
+                    worker.setVerbose(false);
+                    worker.start(broker);
+                    workers.add(worker);
+                }
+                result = coordinator.run(schema, k, output, 4);
+            } finally {
+                for (ShardWorker worker : workers) {
+                    worker.stop();
+                }
+                for (HeadlessEngine engine : engines) {
+                    engine.close();
+                }
+            }
+        }
+
+        assertEquals(4, result.getShards().size());
+        assertEquals(4, result.getParts().size());
+        assertTrue(new String(Files.readAllBytes(output.toPath()), StandardCharsets.UTF_8).contains("\"parts\""));
+        String pseudonym = new IdentifierTransform(keyFile).transform("person0@example.org",
+                DatasetSchema.TRANSFORM_PSEUDONYMIZE);
+        List<String> lines = new ArrayList<>();
+        for (DistributedCoordinator.Part part : result.getParts()) {
+            List<String> partLines = Files.readAllLines(new File(part.getFile()).toPath(), StandardCharsets.UTF_8);
+            assertEquals("name,email,age,sex,disease", partLines.get(0));
+            assertEquals(part.getRows(), partLines.size() - 1);
+            lines.addAll(partLines.subList(1, partLines.size()));
+        }
+        assertEquals(400, lines.size());
+        Map<String, Integer> classes = new HashMap<>();
+        int flu = 0;
+        boolean pseudonymFound = false;
+        for (String line : lines) {
+            String[] fields = line.split(",", 5);
+            assertEquals(HeadlessEngine.SUPPRESSED, fields[0]);
+            assertTrue(fields[1].matches("[0-9a-f]{32}"));
+            pseudonymFound |= fields[1].equals(pseudonym);
+            flu += fields[4].equals("flu") ? 1 : 0;
+            classes.merge(fields[2] + "|" + fields[3], 1, Integer::sum);
+        }
+        assertTrue(pseudonymFound);
+        assertEquals(200, flu);
+        for (int size : classes.values()) {
+            assertTrue(size >= k);
+        }
+        assertEquals(classes.size(), result.getClassCount());
+        assertEquals(classes.size(), result.getMetrics().getEquivalenceClasses());
+        assertEquals(400, result.getRowCount());
+        assertTrue(result.getMetrics().summary().startsWith("K = 6: NCP = "));
+
+        // Ages of different shards never share a row range: the boxes are disjoint in age
+        long low = -1;
+        for (DistributedCoordinator.Shard shard : result.getShards()) {
+            assertTrue(shard.getLowLeaf() > low);
+            assertTrue(shard.getRows() >= k);
+            low = shard.getHighLeaf();
+        }
+    }
+
+    @Test
+    public void cutsKeepKRowsOnBothSides() {
+        // Leaf IDs 1..4 with 10, 1, 1, 10 rows: the median cut is 2|3, the halves cannot be cut again with K = 10
+        long[][] histogram = {{1, 10}, {2, 1}, {3, 1}, {4, 10}};
+        List<DistributedCoordinator.Shard> shards = DistributedCoordinator.cut(histogram, 10, 4);
+        assertEquals(2, shards.size());
+        assertEquals(1, shards.get(0).getLowLeaf());
+        assertEquals(2, shards.get(0).getHighLeaf());
+        assertEquals(11, shards.get(0).getRows());
+        assertEquals(3, shards.get(1).getLowLeaf());
+        assertEquals(11, shards.get(1).getRows());
+
+        // One value cannot be cut
+        assertEquals(1, DistributedCoordinator.cut(new long[][] {{7, 100}}, 2, 4).size());
+    }
+}
@@ -0,0 +1,87 @@
+package com.example.pythoncalculation.headless;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the headless engine on a small data set and checks its output against the app's format.
+ */
+public class HeadlessEngineTest {
+
+    private TestDatasets datasets;
+    private DatasetSchema schema;
+
+    @Before
+    public void setUp() throws IOException {
+        datasets = new TestDatasets();
+        StringBuilder csv = new StringBuilder("name,age,sex,email,disease\n");
+        String[] ages = {"20", "25", "31", "38"};
+        for (int row = 0; row < 40; row++) {
+            csv.append("person ").append(row).append(',').append(ages[row % 4]).append(',')
+                    .append(row % 3 == 0 ? "Female" : "Male").append(",p").append(row % 10).append("@example.org,")
+                    .append(row % 2 == 0 ? "flu" : "\"cold, mild\"").append('\n');
+        }
+        schema = datasets.writePeople(new int[] {20, 25, 31, 38}, csv.toString());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        datasets.close();
+    }
+
+    @Test
+    public void outputIsKAnonymousWithIdentifiersProtected() throws IOException {
+        int k = 4;
+        File output = datasets.file("out/k_4.csv");
+        HeadlessEngine.Result result;
+        try (HeadlessEngine engine = new HeadlessEngine(2, datasets.file("keys/identifier.key"))) {
+            result = engine.run(schema, k, output);
+        }
+
+        List<String> lines = Files.readAllLines(output.toPath(), StandardCharsets.UTF_8);
+        assertEquals("name,age,sex,email,disease", lines.get(0));
+        assertEquals(41, lines.size());
+        Map<String, Integer> classes = new HashMap<>();
+        for (String line : lines.subList(1, lines.size())) {
+            // The suppressed identifier keeps its position, the pseudonym is 32 hex digits
+            String[] fields = line.split(",", 5);
+            assertEquals(HeadlessEngine.SUPPRESSED, fields[0]);
+            assertTrue(fields[3].matches("[0-9a-f]{32}"));
+            assertTrue(fields[4].equals("flu") || fields[4].equals("\"cold, mild\""));
+            classes.merge(fields[1] + "|" + fields[2], 1, Integer::sum);
+        }
+        long dm = 0;
+        for (int size : classes.values()) {
+            assertTrue(size >= k);
+            dm += (long) size * size;
+        }
+        // The metrics count the classes of the output, not the partitions
+        assertEquals(classes.size(), result.getMetrics().getEquivalenceClasses());
+        assertEquals(dm, result.getMetrics().getDiscernibility());
+        assertTrue(result.getMetrics().summary().startsWith("K = 4: NCP = "));
+        assertEquals(40, result.getRowCount());
+        assertTrue(result.getPreview().contains("age"));
+    }
+
+    @Test
+    public void pseudonymsMatchKeyedBlake2b() {
+        // hashlib.blake2b(b'abc', key=b'key', digest_size=16).hexdigest()
+        byte[] digest = Blake2b.digest("abc".getBytes(StandardCharsets.UTF_8), "key".getBytes(StandardCharsets.UTF_8), 16);
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest) {
+            hex.append(String.format("%02x", b));
+        }
+        assertEquals("2cf02ae16ac225ee731f9d359d8a1c38", hex.toString());
+    }
+}
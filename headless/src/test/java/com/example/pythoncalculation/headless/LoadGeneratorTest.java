@@ -0,0 +1,155 @@
+package com.example.pythoncalculation.headless;
+
+import com.example.pythoncalculation.AnonymizationCommand;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the in-process broker and the load generator against a responder that answers every command.
+ */
+public class LoadGeneratorTest {
+
+    @Test
+    public void sharedSubscriptionsTakeTurns() throws InterruptedException {
+        AtomicInteger first = new AtomicInteger();
+        AtomicInteger second = new AtomicInteger();
+        AtomicInteger plain = new AtomicInteger();
+        try (InProcessBroker broker = new InProcessBroker()) {
+            broker.subscribe("$share/g/t", (topic, payload) -> first.incrementAndGet());
+            broker.subscribe("$share/g/t", (topic, payload) -> second.incrementAndGet());
+            broker.subscribe("t", (topic, payload) -> plain.incrementAndGet());
+            broker.subscribe("other", (topic, payload) -> fail("Delivered to another topic"));
+            for (int i = 0; i < 10; i++) {
+                broker.publish("t", new byte[0]);
+            }
+        }
+        assertEquals(5, first.get());
+        assertEquals(5, second.get());
+        assertEquals(10, plain.get());
+    }
+
+    @Test
+    public void generatedStreamsFollowTheMixAndReplay() throws IOException {
+        List<LoadGenerator.PlannedCommand> plan =
+                LoadGenerator.generate(LoadGenerator.MixEntry.parse("standard:10:3,wearable:5"), 400, 20.0, 7);
+        int standard = 0;
+        for (LoadGenerator.PlannedCommand planned : plan) {
+            standard += planned.getCommand().getDataset().equals("standard") ? 1 : 0;
+        }
+        assertTrue(standard > 250 && standard < 350);
+        assertEquals(50, plan.get(1).getOffsetMs());
+
+        File file = Files.createTempFile("stream", ".jsonl").toFile();
+        try {
+            LoadGenerator.record(plan, file);
+            List<LoadGenerator.PlannedCommand> replayed = LoadGenerator.replay(file);
+            assertEquals(plan.size(), replayed.size());
+            assertEquals(plan.get(399).getOffsetMs(), replayed.get(399).getOffsetMs());
+            assertEquals(plan.get(399).getCommand().getCommandId(), replayed.get(399).getCommand().getCommandId());
+            assertEquals(plan.get(399).getCommand().getKValue(), replayed.get(399).getCommand().getKValue());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void replayAssignsMissingIdsAndRejectsDuplicates() throws IOException {
+        File file = Files.createTempFile("stream", ".jsonl").toFile();
+        try {
+            Files.write(file.toPath(), ("{\"offsetMs\": 0, \"command\": {\"kValue\": 5, \"dataset\": \"standard\"}}\n"
+                    + "{\"offsetMs\": 10, \"command\": {\"commandId\": \"a\", \"kValue\": 5, \"dataset\": \"standard\"}}\n")
+                    .getBytes(StandardCharsets.UTF_8));
+            assertEquals("replay-1", LoadGenerator.replay(file).get(0).getCommand().getCommandId());
+
+            Files.write(file.toPath(), "{\"offsetMs\": 20, \"command\": {\"commandId\": \"a\", \"kValue\": 7, \"dataset\": \"standard\"}}\n"
+                    .getBytes(StandardCharsets.UTF_8), java.nio.file.StandardOpenOption.APPEND);
+            try {
+                LoadGenerator.replay(file);
+                fail("Duplicate commandId accepted");
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage().contains("Duplicate commandId 'a'"));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void unansweredCommandsAreLostInsteadOfBlocking() throws InterruptedException {
+        Gson gson = new Gson();
+        LoadGenerator.Report report;
+        try (InProcessBroker broker = new InProcessBroker()) {
+            // Never answers the K = 5 commands, like a worker that drops them
+            broker.subscribe(MqttWorker.COMMAND_TOPIC, (topic, payload) -> {
+                AnonymizationCommand command = gson.fromJson(new String(payload, StandardCharsets.UTF_8),
+                        AnonymizationCommand.class);
+                if (command.getKValue() == 5) {
+                    return;
+                }
+                JsonObject result = new JsonObject();
+                result.addProperty("commandId", command.getCommandId());
+                result.addProperty("status", "done");
+                broker.publish(MqttWorker.RESULT_TOPIC, gson.toJson(result).getBytes(StandardCharsets.UTF_8));
+            });
+            List<LoadGenerator.PlannedCommand> plan =
+                    LoadGenerator.generate(LoadGenerator.MixEntry.parse("standard:10,standard:5"), 12, 0, 3);
+            int unanswered = 0;
+            for (LoadGenerator.PlannedCommand planned : plan) {
+                unanswered += planned.getCommand().getKValue() == 5 ? 1 : 0;
+            }
+            assertTrue(unanswered > 2);
+            report = new LoadGenerator(broker, 2, 1).run(plan, false);
+            assertEquals(12 - unanswered, report.getDone());
+            assertEquals(unanswered, report.getLost());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mixEntriesNeedAKValue() {
+        LoadGenerator.MixEntry.parse("standard");
+    }
+
+    @Test
+    public void everyResultIsCountedOnce() throws InterruptedException {
+        Gson gson = new Gson();
+        ConcurrentHashMap<String, Boolean> seen = new ConcurrentHashMap<>();
+        LoadGenerator.Report report;
+        try (InProcessBroker broker = new InProcessBroker()) {
+            // Answers every command, fails the K = 5 ones and sends the first result twice
+            broker.subscribe(MqttWorker.COMMAND_TOPIC, (topic, payload) -> {
+                AnonymizationCommand command = gson.fromJson(new String(payload, StandardCharsets.UTF_8),
+                        AnonymizationCommand.class);
+                JsonObject result = new JsonObject();
+                result.addProperty("commandId", command.getCommandId());
+                result.addProperty("status", command.getKValue() == 5 ? "failed" : "done");
+                byte[] reply = gson.toJson(result).getBytes(StandardCharsets.UTF_8);
+                broker.publish(MqttWorker.RESULT_TOPIC, reply);
+                if (seen.isEmpty()) {
+                    broker.publish(MqttWorker.RESULT_TOPIC, reply);
+                }
+                seen.put(command.getCommandId(), true);
+            });
+            List<LoadGenerator.PlannedCommand> plan =
+                    LoadGenerator.generate(LoadGenerator.MixEntry.parse("standard:10,standard:5"), 50, 0, 3);
+            report = new LoadGenerator(broker, 4, 10).run(plan, false);
+        }
+        assertEquals(50, seen.size());
+        assertEquals(50, report.getDone() + report.getFailed());
+        assertTrue(report.getFailed() > 0);
+        assertEquals(0, report.getLost());
+        assertTrue(report.getLatencyMs(50.0) <= report.getLatencyMs(99.0));
+        assertTrue(report.summary().startsWith("Commands: planned 50, sent 50"));
+    }
+}
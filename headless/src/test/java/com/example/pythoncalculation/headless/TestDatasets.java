@@ -0,0 +1,102 @@
+package com.example.pythoncalculation.headless;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * A temporary directory holding the "people" data set of the headless tests: its registry
+ * (datasets.json), the age and sex hierarchies and the input file. Its columns are name (a
+ * suppressed identifier), email (a pseudonymized identifier), age and sex (the quasi-identifiers)
+ * and disease (sensitive); the tests choose the ages of the hierarchy and the rows.
+ */
+final class TestDatasets implements AutoCloseable {
+
+    static final String DATASET = "people";
+
+    private final File dir;
+
+    /**
+     * Creates the temporary directory.
+     *
+     * @throws IOException If it cannot be created
+     */
+    TestDatasets() throws IOException {
+        dir = Files.createTempDirectory("headless").toFile();
+    }
+
+    /**
+     * Get a file in the temporary directory.
+     *
+     * @param name The path below the directory, e.g. "out/k_4.csv"
+     * @return The file
+     */
+    File file(String name) {
+        return new File(dir, name);
+    }
+
+    /**
+     * Get the registry of the data set.
+     *
+     * @return The datasets.json file
+     */
+    File descriptor() {
+        return file("datasets.json");
+    }
+
+    /**
+     * Writes a file below the temporary directory, creating its parent directories.
+     *
+     * @param name The path below the directory
+     * @param content The content, written as UTF-8
+     * @throws IOException If the file cannot be written
+     */
+    void write(String name, String content) throws IOException {
+        File file = file(name);
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Writes the people data set.
+     *
+     * @param ages The leaf values of the age hierarchy, in leaf ID order; their parent is their decade
+     * @param csv The input file with its header row, any order of the columns
+     * @return The schema of the data set
+     * @throws IOException If a file cannot be written
+     */
+    DatasetSchema writePeople(int[] ages, String csv) throws IOException {
+        StringBuilder hierarchy = new StringBuilder();
+        for (int i = 0; i < ages.length; i++) {
+            int decade = ages[i] / 10 * 10;
+            hierarchy.append(i + 1).append(',').append(ages[i]).append(',').append(decade).append('-')
+                    .append(decade + 9).append(",*\n");
+        }
+        write("hierarchy/h_age.csv", hierarchy.toString());
+        write("hierarchy/h_sex.csv", "1,Female,*\n2,Male,*\n");
+        write("datasets.json", "{\"hierarchy_dir\": \"hierarchy\", \"datasets\": {\"" + DATASET + "\": {"
+                + "\"file\": \"people.csv\", \"columns\": {"
+                + "\"name\": {\"role\": \"identifier\"},"
+                + "\"email\": {\"role\": \"identifier\", \"transform\": \"pseudonymize\"},"
+                + "\"age\": {\"role\": \"qi\", \"hierarchy\": \"h_age.csv\", \"numeric\": \"range\"},"
+                + "\"sex\": {\"role\": \"qi\", \"hierarchy\": \"h_sex.csv\"},"
+                + "\"disease\": {\"role\": \"sensitive\"}},"
+                + "\"preview_columns\": [\"age\", \"sex\"]}}}");
+        write("people.csv", csv);
+        return DatasetSchema.find(DatasetSchema.load(descriptor()), DATASET);
+    }
+
+    /**
+     * Deletes the temporary directory with everything in it.
+     */
+    @Override
+    public void close() throws IOException {
+        try (Stream<Path> paths = Files.walk(dir.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
@@ -6,29 +6,65 @@ This script sends anonymization commands to the Android app via MQTT protocol.
 It sends JSON-formatted messages to trigger anonymization with specific k values and dataset selection.
 
 Usage:
-  python mqtt_sender.py <k_value> [dataset_type]
+  python mqtt_sender.py <k_value> [dataset_type] [--binary] [--hierarchy] [--full-domain]
+  python mqtt_sender.py --updated [dataset_type]
+  python mqtt_sender.py --profile on|off
+  python mqtt_sender.py --query <k_value> [dataset_type] [--group-by a,b] [--where column=value] [--sensitive column]
+                        [--sampled] [--hierarchy] [--full-domain]
 
 Arguments:
-  k_value      The K value for anonymization (2, 5, 10, 30, 50, or 500)
-  dataset_type The dataset to use (standard or wearable, defaults to standard)
+  k_value      The K value for anonymization (any value from 2 up to the number of records)
+  dataset_type The dataset ID to use (e.g. standard or wearable, defaults to standard)
+  --binary     Send the compact binary encoding on anonymization/commands/bin instead of JSON
+  --hierarchy  Cut categorical quasi-identifiers along their hierarchy ("splitMode": "hierarchy")
+  --full-domain Generalize every value of a column to the same hierarchy level ("generalization": "full-domain")
+  --updated    Announce a changed input file on anonymization/datasets/updated, so the app rebuilds
+               its pre-encoded snapshot (all data sets if no dataset_type is given)
+  --profile    Switch the partition profiling mode of the app on or off on anonymization/profiling
+  --query      Count the stored result of the run with this K value per generalized quasi-identifier value
+               on anonymization/queries, and print the answer from anonymization/queries/results; --sampled,
+               --hierarchy and --full-domain select the run of that engine instead of the exact median run
 
 Example:
   python mqtt_sender.py 10 wearable  # Sends {"kValue": 10, "dataset": "wearable"} to the MQTT broker
   python mqtt_sender.py 5            # Sends {"kValue": 5, "dataset": "standard"} to the MQTT broker
+  python mqtt_sender.py --updated standard  # Sends {"dataset": "standard"} to anonymization/datasets/updated
+  python mqtt_sender.py --profile on        # Sends {"enabled": true} to anonymization/profiling
+  python mqtt_sender.py --query 5 --group-by age,race --sensitive salary-class
 """
 
+import re
+import struct
 import sys
 import time
 import json
+import uuid
 import paho.mqtt.client as mqtt
 
 # MQTT Configuration - Update these to match your app settings
 MQTT_BROKER = "192.168.8.126"  # Same IP as in your Android app
 MQTT_PORT = 1883
 MQTT_TOPIC = "anonymization/commands"  # Same topic as in your Android app
+MQTT_DATASET_UPDATED_TOPIC = "anonymization/datasets/updated"
+MQTT_PROFILING_TOPIC = "anonymization/profiling"
+MQTT_QUERY_TOPIC = "anonymization/queries"
+MQTT_QUERY_RESULT_TOPIC = "anonymization/queries/results"
+QUERY_TIMEOUT_SECONDS = 30
 
-# Valid K values as defined in the app
-VALID_K_VALUES = [2, 5, 10, 30, 50, 500]
+# Binary encoding (BinaryCodec in the app): magic, version, message type, then the command body
+BINARY_TOPIC_SUFFIX = "/bin"
+BINARY_MAGIC = 0xA7
+BINARY_VERSION = 3
+BINARY_TYPE_COMMAND = 1
+
+# Byte codes of the split modes in the binary encoding
+SPLIT_MODES = ["median", "hierarchy"]
+
+# Byte codes of the generalizations in the binary encoding
+GENERALIZATIONS = ["local", "full-domain"]
+
+# Smallest K value accepted by the app (AnonymizationCommand.MIN_K_VALUE)
+MIN_K_VALUE = 2
 
 def on_connect(client, userdata, flags, rc):
     """Callback for when the client connects to the broker."""
@@ -41,8 +77,26 @@ def on_publish(client, userdata, mid):
     """Callback for when a message is published."""
     print(f"Message published successfully")
 
-def send_mqtt_message(k_value, dataset):
-    """Send a JSON-formatted MQTT message with the specified k-value and dataset."""
+def encode_string(value):
+    """uint16 UTF-8 length followed by the bytes, 0xFFFF for None."""
+    if value is None:
+        return struct.pack(">H", 0xFFFF)
+    data = value.encode("utf-8")
+    return struct.pack(">H", len(data)) + data
+
+def encode_command_binary(message_data):
+    """Encode a command in the binary format with the default options, its split mode and generalization."""
+    return (struct.pack(">BBB", BINARY_MAGIC, BINARY_VERSION, BINARY_TYPE_COMMAND)
+            + encode_string(message_data["commandId"])
+            + struct.pack(">i", message_data["kValue"])
+            + encode_string(message_data["dataset"])
+            # lValue 0, diversity distinct, cut estimation exact, sampleSize 0, storage memory, memoryBudgetMb 0
+            + struct.pack(">iBBiBi", 0, 0, 0, 0, 0, 0)
+            + struct.pack(">B", SPLIT_MODES.index(message_data.get("splitMode", "median")))
+            + struct.pack(">B", GENERALIZATIONS.index(message_data.get("generalization", "local"))))
+
+def publish_message(topic, message):
+    """Connect to the broker, publish one message with QoS 1 and disconnect."""
     # Create MQTT client instance
     client = mqtt.Client()
     
@@ -63,18 +117,9 @@ def send_mqtt_message(k_value, dataset):
     # Wait for connection to establish
     time.sleep(1)
     
-    # Create the JSON message
-    message_data = {
-        "kValue": k_value,
-        "dataset": dataset
-    }
-    
-    # Convert to JSON string
-    message = json.dumps(message_data)
-    
     # Publish the message
-    print(f"Sending JSON message: '{message}' to topic: {MQTT_TOPIC}")
-    result = client.publish(MQTT_TOPIC, message)
+    print(f"Sending message: '{message}' to topic: {topic}")
+    result = client.publish(topic, message, qos=1)
     
     # Check if the message was published
     if result.rc == mqtt.MQTT_ERR_SUCCESS:
@@ -90,46 +135,195 @@ def send_mqtt_message(k_value, dataset):
     client.disconnect()
     return True
 
+def send_mqtt_message(k_value, dataset, binary=False, split_mode="median", generalization="local"):
+    """Send a JSON-formatted (or binary) MQTT message with the specified k-value and dataset."""
+    # Create the JSON message
+    message_data = {
+        "commandId": str(uuid.uuid4()),  # the app ignores redelivered QoS 1 messages by this ID
+        "kValue": k_value,
+        "dataset": dataset
+    }
+    if split_mode != "median":
+        message_data["splitMode"] = split_mode
+    if generalization != "local":
+        message_data["generalization"] = generalization
+    
+    # Convert to JSON string, or to the binary encoding on the binary topic
+    topic = MQTT_TOPIC
+    message = json.dumps(message_data)
+    if binary:
+        topic = MQTT_TOPIC + BINARY_TOPIC_SUFFIX
+        print(f"Encoding {message} as {len(encode_command_binary(message_data))} binary bytes")
+        message = encode_command_binary(message_data)
+    
+    return publish_message(topic, message)
+
+def send_dataset_update(dataset=None):
+    """Announce a changed input file; None announces all data sets (empty payload)."""
+    message = json.dumps({"dataset": dataset}) if dataset else ""
+    return publish_message(MQTT_DATASET_UPDATED_TOPIC, message)
+
+def send_profiling(enabled):
+    """Switch the profiling mode of the app, which adds a partition profile to the metrics of every result."""
+    return publish_message(MQTT_PROFILING_TOPIC, json.dumps({"enabled": enabled}))
+
+def send_query(k_value, dataset, group_by, where, sensitive, options=None):
+    """Send a counting query and wait for its answer, matched by queryId. Returns the answer or None."""
+    query = {"queryId": str(uuid.uuid4()), "dataset": dataset, "kValue": k_value, "groupBy": group_by}
+    # the engine options of the run, e.g. {"splitMode": "hierarchy"}
+    query.update(options or {})
+    if where:
+        query["where"] = where
+    if sensitive:
+        query["sensitive"] = sensitive
+    answers = []
+
+    def on_message(client, userdata, message):
+        answer = json.loads(message.payload.decode("utf-8"))
+        if answer.get("queryId") == query["queryId"]:
+            answers.append(answer)
+
+    client = mqtt.Client()
+    client.on_message = on_message
+    try:
+        client.connect(MQTT_BROKER, MQTT_PORT, 60)
+    except Exception as e:
+        print(f"Error connecting to MQTT broker: {e}")
+        return None
+    client.loop_start()
+    # Subscribe before publishing, so the answer is not missed
+    client.subscribe(MQTT_QUERY_RESULT_TOPIC, qos=1)
+    time.sleep(1)
+    print(f"Sending query: '{json.dumps(query)}' to topic: {MQTT_QUERY_TOPIC}")
+    client.publish(MQTT_QUERY_TOPIC, json.dumps(query), qos=1)
+    deadline = time.time() + QUERY_TIMEOUT_SECONDS
+    while not answers and time.time() < deadline:
+        time.sleep(0.1)
+    client.loop_stop()
+    client.disconnect()
+    return answers[0] if answers else None
+
+def print_query_answer(answer):
+    """Print the counts of a query answer, one line per group."""
+    if "error" in answer:
+        print(f"Query failed: {answer['error']}")
+        return
+    print(f"{answer['records']} records in {answer['classes']} classes, answered in {answer['milliseconds']} ms")
+    for row in answer["rows"]:
+        group = ", ".join(f"{name} = {row[name]}" for name in answer["groupBy"]) or "total"
+        histogram = row.get("sensitive")
+        print(f"  {group}: {row['count']}"
+              + (" (" + ", ".join(f"{value}: {count}" for value, count in histogram.items()) + ")" if histogram else ""))
+
 def validate_inputs(k_value, dataset):
     """Validate the input parameters."""
     # Validate k-value
-    if k_value not in VALID_K_VALUES:
+    if k_value < MIN_K_VALUE:
         print(f"Error: {k_value} is not a valid K value.")
-        print(f"Valid K values are: {', '.join(map(str, VALID_K_VALUES))}")
+        print(f"K must be at least {MIN_K_VALUE}")
         return False
     
-    # Validate dataset
-    if dataset.lower() not in ["standard", "wearable"]:
-        print(f"Error: '{dataset}' is not a valid dataset type.")
-        print("Valid dataset types are: standard, wearable")
+    # Validate dataset (whether the ID is registered is checked by the app)
+    if not re.fullmatch(r"[A-Za-z0-9_.-]+", dataset):
+        print(f"Error: '{dataset}' is not a valid dataset ID.")
         return False
     
     return True
 
 if __name__ == "__main__":
+    if "--updated" in sys.argv[1:]:
+        args = [arg for arg in sys.argv[1:] if arg != "--updated"]
+        dataset = args[0].lower() if args else None
+        if dataset is not None and not re.fullmatch(r"[A-Za-z0-9_.-]+", dataset):
+            print(f"Error: '{dataset}' is not a valid dataset ID.")
+            sys.exit(1)
+        if send_dataset_update(dataset):
+            print(f"Dataset update sent for {dataset or 'all data sets'}")
+        else:
+            print("Failed to send message")
+        sys.exit(0)
+
+    if "--profile" in sys.argv[1:]:
+        args = [arg for arg in sys.argv[1:] if arg != "--profile"]
+        if len(args) != 1 or args[0] not in ("on", "off"):
+            print("Usage: python mqtt_sender.py --profile on|off")
+            sys.exit(1)
+        if send_profiling(args[0] == "on"):
+            print(f"Profiling switched {args[0]}")
+        else:
+            print("Failed to send message")
+        sys.exit(0)
+
+    if "--query" in sys.argv[1:]:
+        args = [arg for arg in sys.argv[1:] if arg != "--query"]
+        group_by, where, sensitive, options, positional = [], {}, None, {}, []
+        try:
+            while args:
+                arg = args.pop(0)
+                if arg == "--group-by":
+                    group_by = [name.strip() for name in args.pop(0).split(",") if name.strip()]
+                elif arg == "--where":
+                    column, value = args.pop(0).split("=", 1)
+                    where[column.strip()] = value.strip()
+                elif arg == "--sensitive":
+                    sensitive = args.pop(0)
+                elif arg == "--sampled":
+                    options["cutEstimation"] = "sampled"
+                elif arg == "--hierarchy":
+                    options["splitMode"] = "hierarchy"
+                elif arg == "--full-domain":
+                    options["generalization"] = "full-domain"
+                else:
+                    positional.append(arg)
+            k_value = int(positional[0])
+            dataset = positional[1].lower() if len(positional) > 1 else "standard"
+        except (IndexError, ValueError):
+            print("Usage: python mqtt_sender.py --query <k_value> [dataset_type] [--group-by a,b] "
+                  "[--where column=value] [--sensitive column] [--sampled] [--hierarchy] [--full-domain]")
+            sys.exit(1)
+        if not validate_inputs(k_value, dataset):
+            sys.exit(1)
+        answer = send_query(k_value, dataset, group_by, where, sensitive, options)
+        if answer is None:
+            print(f"No answer within {QUERY_TIMEOUT_SECONDS} seconds")
+            sys.exit(1)
+        print_query_answer(answer)
+        sys.exit(0)
+
     # Check command line arguments
-    if len(sys.argv) < 2 or len(sys.argv) > 3:
-        print("Usage: python mqtt_sender.py <k_value> [dataset_type]")
-        print("  k_value      - The K value for anonymization (2, 5, 10, 30, 50, or 500)")
-        print("  dataset_type - The dataset to use (standard or wearable, defaults to standard)")
+    binary = "--binary" in sys.argv[1:]
+    split_mode = "hierarchy" if "--hierarchy" in sys.argv[1:] else "median"
+    generalization = "full-domain" if "--full-domain" in sys.argv[1:] else "local"
+    args = [arg for arg in sys.argv[1:] if arg not in ("--binary", "--hierarchy", "--full-domain")]
+    if len(args) < 1 or len(args) > 2:
+        print("Usage: python mqtt_sender.py <k_value> [dataset_type] [--binary] [--hierarchy] [--full-domain]")
+        print("  k_value      - The K value for anonymization (2 or larger)")
+        print("  dataset_type - The dataset ID to use (e.g. standard or wearable, defaults to standard)")
+        print("  --binary     - Send the compact binary encoding instead of JSON")
+        print("  --hierarchy  - Cut categorical quasi-identifiers along their hierarchy")
+        print("  --full-domain - Generalize every value of a column to the same hierarchy level")
+        print("   or: python mqtt_sender.py --updated [dataset_type]")
+        print("   or: python mqtt_sender.py --profile on|off")
+        print("   or: python mqtt_sender.py --query <k_value> [dataset_type] [--group-by a,b] [--where column=value] "
+              "[--sensitive column]")
         sys.exit(1)
     
     try:
-        k_value = int(sys.argv[1])
+        k_value = int(args[0])
     except ValueError:
         print(f"Error: K value must be a valid integer.")
         sys.exit(1)
     
     # Get dataset type, default to "standard" if not provided
-    dataset = sys.argv[2].lower() if len(sys.argv) == 3 else "standard"
+    dataset = args[1].lower() if len(args) == 2 else "standard"
     
     # Validate inputs
     if not validate_inputs(k_value, dataset):
         sys.exit(1)
     
     # Send the message
-    if send_mqtt_message(k_value, dataset):
-        print("JSON message sent successfully")
+    if send_mqtt_message(k_value, dataset, binary, split_mode, generalization):
+        print(("Binary" if binary else "JSON") + " message sent successfully")
         print(f"Command: Anonymize with K={k_value} using {dataset} dataset")
     else:
         print("Failed to send message")
@@ -21,4 +21,5 @@ dependencyResolutionManagement {
 
 rootProject.name = "PythonCalculation_v2.0"
 include(":app")
+include(":headless")
  
\ No newline at end of file